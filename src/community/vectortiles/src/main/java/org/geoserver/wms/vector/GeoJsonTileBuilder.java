@@ -0,0 +1,131 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.json.GeoJSONBuilder;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.RawMap;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.renderer.lite.RendererUtilities;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequenceFilter;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Builds tiles as a GeoJSON feature collection. Each feature reports the layer it belongs to in a
+ * "layer" member, and its coordinates are expressed in the map CRS, rounded to the number of
+ * decimals needed to preserve the pixel precision.
+ */
+public class GeoJsonTileBuilder implements VectorTileBuilder {
+
+    public static final String MIME_TYPE = "application/json;type=geojson";
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+
+    private final Writer writer;
+
+    private final GeoJSONBuilder json;
+
+    private final AffineTransform screenToWorld;
+
+    private final double scale;
+
+    public GeoJsonTileBuilder(Rectangle screenSize, ReferencedEnvelope mapArea) {
+        try {
+            this.screenToWorld = RendererUtilities.worldToScreenTransform(mapArea, screenSize)
+                    .createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new ServiceException("Invalid map area " + mapArea, e);
+        }
+
+        // use one more decimal than the ones needed to tell pixels apart
+        double pixelSize = Math.min(mapArea.getWidth() / screenSize.width, mapArea.getHeight()
+                / screenSize.height);
+        int decimals = Math.max(0, (int) Math.ceil(-Math.log10(pixelSize))) + 1;
+        this.scale = Math.pow(10, decimals);
+
+        this.writer = new OutputStreamWriter(bytes, ProtobufOutput.UTF8);
+        this.json = new GeoJSONBuilder(writer);
+        if (mapArea.getCoordinateReferenceSystem() != null) {
+            json.setAxisOrder(CRS.getAxisOrder(mapArea.getCoordinateReferenceSystem()));
+        }
+        json.object().key("type").value("FeatureCollection");
+        json.key("features").array();
+    }
+
+    @Override
+    public void addFeature(String layerName, String featureId, String geometryName,
+            Geometry geometry, Map<String, Object> properties) {
+        Geometry world = (Geometry) geometry.clone();
+        world.apply(new ToWorldFilter());
+        world.geometryChanged();
+
+        json.object();
+        json.key("type").value("Feature");
+        json.key("layer").value(layerName);
+        if (featureId != null) {
+            json.key("id").value(featureId);
+        }
+        json.key("geometry_name").value(geometryName);
+        json.key("geometry");
+        json.writeGeom(world);
+        json.key("properties").object();
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            json.key(entry.getKey()).value(entry.getValue());
+        }
+        json.endObject();
+        json.endObject();
+    }
+
+    @Override
+    public WebMap build(WMSMapContent mapContent) throws IOException {
+        json.endArray();
+        json.endObject();
+        writer.flush();
+        return new RawMap(mapContent, bytes.toByteArray(), MIME_TYPE);
+    }
+
+    /**
+     * Turns screen coordinates back into world ones, rounding them to the tile precision
+     */
+    class ToWorldFilter implements CoordinateSequenceFilter {
+
+        final double[] point = new double[2];
+
+        @Override
+        public void filter(CoordinateSequence seq, int i) {
+            point[0] = seq.getX(i);
+            point[1] = seq.getY(i);
+            screenToWorld.transform(point, 0, point, 0, 1);
+            seq.setOrdinate(i, 0, Math.round(point[0] * scale) / scale);
+            seq.setOrdinate(i, 1, Math.round(point[1] * scale) / scale);
+        }
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+
+        @Override
+        public boolean isGeometryChanged() {
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,409 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.RawMap;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Builds tiles following the <a href="https://github.com/mapbox/vector-tile-spec">Mapbox vector
+ * tile specification</a>, version 2.
+ * <p>
+ * Coordinates are quantized to a grid of {@value #EXTENT} units per tile side, and each layer in
+ * the map becomes a layer in the tile, with keys and values shared among its features.
+ */
+public class MapBoxTileBuilder implements VectorTileBuilder {
+
+    public static final String MIME_TYPE = "application/x-protobuf;type=mapbox-vector";
+
+    /**
+     * The tile resolution, as recommended by the specification
+     */
+    static final int EXTENT = 4096;
+
+    static final int VERSION = 2;
+
+    // geometry types
+    static final int UNKNOWN = 0;
+
+    static final int POINT = 1;
+
+    static final int LINESTRING = 2;
+
+    static final int POLYGON = 3;
+
+    // geometry commands
+    static final int MOVE_TO = 1;
+
+    static final int LINE_TO = 2;
+
+    static final int CLOSE_PATH = 7;
+
+    private final double scaleX;
+
+    private final double scaleY;
+
+    private final Map<String, LayerBuilder> layers = new LinkedHashMap<String, LayerBuilder>();
+
+    public MapBoxTileBuilder(Rectangle screenSize) {
+        this.scaleX = (double) EXTENT / screenSize.width;
+        this.scaleY = (double) EXTENT / screenSize.height;
+    }
+
+    @Override
+    public void addFeature(String layerName, String featureId, String geometryName,
+            Geometry geometry, Map<String, Object> properties) {
+        if (geometry.getClass().equals(GeometryCollection.class)) {
+            // the specification has no heterogeneous collections, split them
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                addFeature(layerName, featureId, geometryName, geometry.getGeometryN(i),
+                        properties);
+            }
+            return;
+        }
+
+        GeometryEncoder encoder = new GeometryEncoder(scaleX, scaleY);
+        int type = encoder.encode(geometry);
+        if (type == UNKNOWN || encoder.size() == 0) {
+            // collapsed to nothing at this resolution
+            return;
+        }
+
+        LayerBuilder layer = layers.get(layerName);
+        if (layer == null) {
+            layer = new LayerBuilder(layerName);
+            layers.put(layerName, layer);
+        }
+        layer.addFeature(featureId, type, encoder, properties);
+    }
+
+    @Override
+    public WebMap build(WMSMapContent mapContent) throws IOException {
+        ProtobufOutput tile = new ProtobufOutput(4096);
+        for (LayerBuilder layer : layers.values()) {
+            tile.writeMessage(3, layer.build());
+        }
+        return new RawMap(mapContent, tile.toByteArray(), MIME_TYPE);
+    }
+
+    /**
+     * Extracts the numeric part of a feature id, e.g., 123 out of "states.123"
+     *
+     * @return the id, or -1 if the feature id does not end with a number
+     */
+    static long getNumericId(String featureId) {
+        if (featureId == null) {
+            return -1;
+        }
+        int start = featureId.length();
+        while (start > 0 && Character.isDigit(featureId.charAt(start - 1))) {
+            start--;
+        }
+        // ids larger than a long are not going to be meaningful anyways
+        if (start == featureId.length() || featureId.length() - start > 18) {
+            return -1;
+        }
+        return Long.parseLong(featureId.substring(start));
+    }
+
+    /**
+     * Accumulates the features of a layer, along with its keys and values dictionaries
+     */
+    static class LayerBuilder {
+
+        final String name;
+
+        final Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+
+        final Map<Object, Integer> values = new LinkedHashMap<Object, Integer>();
+
+        final ProtobufOutput features = new ProtobufOutput(4096);
+
+        int[] tags = new int[16];
+
+        LayerBuilder(String name) {
+            this.name = name;
+        }
+
+        void addFeature(String featureId, int type, GeometryEncoder geometry,
+                Map<String, Object> properties) {
+            int tagCount = 0;
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                Object value = normalize(entry.getValue());
+                if (value == null) {
+                    continue;
+                }
+                if (tagCount + 2 > tags.length) {
+                    tags = Arrays.copyOf(tags, tags.length * 2);
+                }
+                tags[tagCount++] = index(keys, entry.getKey());
+                tags[tagCount++] = index(values, value);
+            }
+
+            ProtobufOutput feature = new ProtobufOutput(geometry.size() * 2 + tagCount * 2 + 16);
+            long id = getNumericId(featureId);
+            if (id >= 0) {
+                feature.writeVarint(1, id);
+            }
+            feature.writePacked(2, tags, tagCount);
+            feature.writeVarint(3, type);
+            feature.writePacked(4, geometry.commands, geometry.size());
+            features.writeMessage(2, feature);
+        }
+
+        ProtobufOutput build() {
+            ProtobufOutput layer = new ProtobufOutput(features.size() + 256);
+            layer.writeVarint(15, VERSION);
+            layer.writeString(1, name);
+            // the features are already encoded as repeated field 2
+            layer.writeRaw(features);
+            for (String key : keys.keySet()) {
+                layer.writeString(3, key);
+            }
+            for (Object value : values.keySet()) {
+                writeValue(layer, value);
+            }
+            layer.writeVarint(5, EXTENT);
+            return layer;
+        }
+
+        private static <T> int index(Map<T, Integer> dictionary, T value) {
+            Integer index = dictionary.get(value);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(value, index);
+            }
+            return index;
+        }
+
+        /**
+         * Turns the value into one of the types the tile values can hold
+         */
+        private static Object normalize(Object value) {
+            if (value == null || value instanceof String || value instanceof Boolean
+                    || value instanceof Float || value instanceof Double
+                    || value instanceof Long) {
+                return value;
+            } else if (value instanceof Integer || value instanceof Short
+                    || value instanceof Byte) {
+                return ((Number) value).longValue();
+            } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+                return ((BigInteger) value).longValue();
+            } else if (value instanceof BigDecimal) {
+                return ((BigDecimal) value).doubleValue();
+            } else {
+                return value.toString();
+            }
+        }
+
+        private static void writeValue(ProtobufOutput out, Object value) {
+            ProtobufOutput message = new ProtobufOutput(16);
+            if (value instanceof String) {
+                message.writeString(1, (String) value);
+            } else if (value instanceof Float) {
+                message.writeFloat(2, (Float) value);
+            } else if (value instanceof Double) {
+                message.writeDouble(3, (Double) value);
+            } else if (value instanceof Long) {
+                message.writeSInt(6, (Long) value);
+            } else if (value instanceof Boolean) {
+                message.writeBool(7, (Boolean) value);
+            }
+            out.writeMessage(4, message);
+        }
+    }
+
+    /**
+     * Encodes a geometry as a sequence of commands and zig-zag encoded deltas, quantizing the
+     * coordinates to the tile extent
+     */
+    static class GeometryEncoder {
+
+        final double scaleX;
+
+        final double scaleY;
+
+        int[] commands = new int[32];
+
+        int length;
+
+        // the cursor position, shared by all the parts of a geometry
+        int x;
+
+        int y;
+
+        GeometryEncoder(double scaleX, double scaleY) {
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+        }
+
+        int size() {
+            return length;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(commands, length);
+        }
+
+        /**
+         * Encodes the geometry, returning its type
+         */
+        int encode(Geometry geometry) {
+            if (geometry instanceof Point || geometry instanceof MultiPoint) {
+                int[] points = new int[geometry.getNumGeometries() * 2];
+                int count = 0;
+                for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                    Point p = (Point) geometry.getGeometryN(i);
+                    if (!p.isEmpty()) {
+                        points[count * 2] = quantizeX(p.getX());
+                        points[count * 2 + 1] = quantizeY(p.getY());
+                        count++;
+                    }
+                }
+                if (count > 0) {
+                    addCommand(MOVE_TO, count);
+                    for (int i = 0; i < count; i++) {
+                        moveCursor(points[i * 2], points[i * 2 + 1]);
+                    }
+                }
+                return POINT;
+            } else if (geometry instanceof LineString || geometry instanceof MultiLineString) {
+                for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                    LineString line = (LineString) geometry.getGeometryN(i);
+                    int[] points = quantize(line.getCoordinateSequence(), false);
+                    if (points.length >= 4) {
+                        addPath(points, false);
+                    }
+                }
+                return LINESTRING;
+            } else if (geometry instanceof Polygon || geometry instanceof MultiPolygon) {
+                for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                    Polygon polygon = (Polygon) geometry.getGeometryN(i);
+                    int[] shell = quantize(polygon.getExteriorRing().getCoordinateSequence(), true);
+                    if (shell.length < 6) {
+                        // the polygon collapsed, so would its holes
+                        continue;
+                    }
+                    addPath(orient(shell, true), true);
+                    for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                        int[] hole = quantize(
+                                polygon.getInteriorRingN(j).getCoordinateSequence(), true);
+                        if (hole.length >= 6) {
+                            addPath(orient(hole, false), true);
+                        }
+                    }
+                }
+                return POLYGON;
+            }
+
+            return UNKNOWN;
+        }
+
+        /**
+         * Quantizes the coordinates, removing the consecutive duplicates, and for rings the
+         * closing point too
+         */
+        private int[] quantize(CoordinateSequence cs, boolean ring) {
+            int[] points = new int[cs.size() * 2];
+            int count = 0;
+            for (int i = 0; i < cs.size(); i++) {
+                int px = quantizeX(cs.getX(i));
+                int py = quantizeY(cs.getY(i));
+                if (count > 0 && points[count * 2 - 2] == px && points[count * 2 - 1] == py) {
+                    continue;
+                }
+                points[count * 2] = px;
+                points[count * 2 + 1] = py;
+                count++;
+            }
+            if (ring && count > 1 && points[0] == points[count * 2 - 2]
+                    && points[1] == points[count * 2 - 1]) {
+                count--;
+            }
+            return Arrays.copyOf(points, count * 2);
+        }
+
+        /**
+         * Makes sure exterior rings have a positive area, and interior ones a negative one,
+         * according to the surveyor's formula in tile coordinates (y pointing down)
+         */
+        private static int[] orient(int[] ring, boolean exterior) {
+            long area = 0;
+            int n = ring.length / 2;
+            for (int i = 0; i < n; i++) {
+                int j = (i + 1) % n;
+                area += (long) ring[i * 2] * ring[j * 2 + 1] - (long) ring[j * 2] * ring[i * 2 + 1];
+            }
+            if ((area > 0) != exterior) {
+                int[] reversed = new int[ring.length];
+                for (int i = 0; i < n; i++) {
+                    reversed[i * 2] = ring[(n - 1 - i) * 2];
+                    reversed[i * 2 + 1] = ring[(n - 1 - i) * 2 + 1];
+                }
+                return reversed;
+            }
+            return ring;
+        }
+
+        private void addPath(int[] points, boolean close) {
+            int n = points.length / 2;
+            addCommand(MOVE_TO, 1);
+            moveCursor(points[0], points[1]);
+            addCommand(LINE_TO, n - 1);
+            for (int i = 1; i < n; i++) {
+                moveCursor(points[i * 2], points[i * 2 + 1]);
+            }
+            if (close) {
+                addCommand(CLOSE_PATH, 1);
+            }
+        }
+
+        private void addCommand(int id, int count) {
+            add((id & 0x7) | (count << 3));
+        }
+
+        private void moveCursor(int px, int py) {
+            add(ProtobufOutput.zigZag(px - x));
+            add(ProtobufOutput.zigZag(py - y));
+            x = px;
+            y = py;
+        }
+
+        private void add(int value) {
+            if (length == commands.length) {
+                commands = Arrays.copyOf(commands, length * 2);
+            }
+            commands[length++] = value;
+        }
+
+        private int quantizeX(double sx) {
+            return (int) Math.round(sx * scaleX);
+        }
+
+        private int quantizeY(double sy) {
+            return (int) Math.round(sy * scaleY);
+        }
+    }
+}
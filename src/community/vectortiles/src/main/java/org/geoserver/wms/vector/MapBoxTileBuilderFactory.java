@@ -0,0 +1,40 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+/**
+ * Factory for {@link MapBoxTileBuilder}
+ */
+public class MapBoxTileBuilderFactory implements VectorTileBuilderFactory {
+
+    public static final Set<String> OUTPUT_FORMATS = Collections
+            .unmodifiableSet(new HashSet<String>(Arrays.asList(MapBoxTileBuilder.MIME_TYPE,
+                    "application/vnd.mapbox-vector-tile", "pbf")));
+
+    @Override
+    public String getMimeType() {
+        return MapBoxTileBuilder.MIME_TYPE;
+    }
+
+    @Override
+    public Set<String> getOutputFormats() {
+        return OUTPUT_FORMATS;
+    }
+
+    @Override
+    public MapBoxTileBuilder newBuilder(Rectangle screenSize, ReferencedEnvelope mapArea) {
+        return new MapBoxTileBuilder(screenSize);
+    }
+
+}
@@ -0,0 +1,133 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal protocol buffers writer, just enough to encode the few messages making up a vector tile
+ * without pulling in the protobuf runtime and generated classes.
+ */
+class ProtobufOutput {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int VARINT = 0;
+
+    static final int FIXED64 = 1;
+
+    static final int LENGTH_DELIMITED = 2;
+
+    static final int FIXED32 = 5;
+
+    private final ByteArrayOutputStream out;
+
+    public ProtobufOutput() {
+        this(256);
+    }
+
+    public ProtobufOutput(int size) {
+        out = new ByteArrayOutputStream(size);
+    }
+
+    public void writeTag(int field, int wireType) {
+        writeRawVarint((field << 3) | wireType);
+    }
+
+    public void writeVarint(int field, long value) {
+        writeTag(field, VARINT);
+        writeRawVarint(value);
+    }
+
+    public void writeSInt(int field, long value) {
+        writeTag(field, VARINT);
+        writeRawVarint(zigZag(value));
+    }
+
+    public void writeBool(int field, boolean value) {
+        writeTag(field, VARINT);
+        out.write(value ? 1 : 0);
+    }
+
+    public void writeFloat(int field, float value) {
+        writeTag(field, FIXED32);
+        int bits = Float.floatToIntBits(value);
+        for (int i = 0; i < 4; i++) {
+            out.write((bits >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    public void writeDouble(int field, double value) {
+        writeTag(field, FIXED64);
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            out.write((int) (bits >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    public void writeString(int field, String value) {
+        writeBytes(field, value.getBytes(UTF8));
+    }
+
+    public void writeBytes(int field, byte[] value) {
+        writeTag(field, LENGTH_DELIMITED);
+        writeRawVarint(value.length);
+        out.write(value, 0, value.length);
+    }
+
+    public void writeMessage(int field, ProtobufOutput message) {
+        writeTag(field, LENGTH_DELIMITED);
+        writeRawVarint(message.size());
+        writeRaw(message);
+    }
+
+    /**
+     * Appends the contents of another output, as is
+     */
+    public void writeRaw(ProtobufOutput other) {
+        byte[] bytes = other.out.toByteArray();
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a packed repeated field of unsigned integers
+     */
+    public void writePacked(int field, int[] values, int length) {
+        if (length == 0) {
+            return;
+        }
+        ProtobufOutput packed = new ProtobufOutput(length * 2);
+        for (int i = 0; i < length; i++) {
+            packed.writeRawVarint(values[i] & 0xFFFFFFFFL);
+        }
+        writeMessage(field, packed);
+    }
+
+    public void writeRawVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public int size() {
+        return out.size();
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+}
@@ -0,0 +1,45 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Accumulates the features of a vector tile and encodes them once all the layers have been
+ * visited.
+ * <p>
+ * Geometries are handed out already clipped and simplified, in screen coordinates, that is, with
+ * the origin in the upper left corner of the tile and one unit per pixel.
+ */
+public interface VectorTileBuilder {
+
+    /**
+     * Adds a feature to the tile
+     * 
+     * @param layerName the name of the layer the feature belongs to
+     * @param featureId the feature identifier, may be null
+     * @param geometryName the name of the geometry attribute
+     * @param geometry the feature geometry, in screen coordinates
+     * @param properties the other feature attributes
+     */
+    void addFeature(String layerName, String featureId, String geometryName, Geometry geometry,
+            Map<String, Object> properties);
+
+    /**
+     * Encodes the tile
+     * 
+     * @param mapContent
+     * @return
+     * @throws IOException
+     */
+    WebMap build(WMSMapContent mapContent) throws IOException;
+}
@@ -0,0 +1,40 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import java.awt.Rectangle;
+import java.util.Set;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+/**
+ * Creates {@link VectorTileBuilder} instances for a specific vector tile encoding
+ */
+public interface VectorTileBuilderFactory {
+
+    /**
+     * The MIME type of the tiles
+     * 
+     * @return
+     */
+    String getMimeType();
+
+    /**
+     * The names this format can be requested with, in addition to the MIME type
+     * 
+     * @return
+     */
+    Set<String> getOutputFormats();
+
+    /**
+     * Creates a new builder for a tile
+     * 
+     * @param screenSize the tile size, in pixels
+     * @param mapArea the tile bounds, in the map CRS
+     * @return
+     */
+    VectorTileBuilder newBuilder(Rectangle screenSize, ReferencedEnvelope mapArea);
+}
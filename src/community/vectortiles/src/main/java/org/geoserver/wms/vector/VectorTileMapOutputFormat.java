@@ -0,0 +1,315 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.MapProducerCapabilities;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.AbstractMapOutputFormat;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.Layer;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.matrix.XAffineTransform;
+import org.geotools.referencing.operation.transform.AffineTransform2D;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
+import org.geotools.renderer.lite.RendererUtilities;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.feature.Property;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+/**
+ * A {@link org.geoserver.wms.GetMapOutputFormat} producing vector tiles instead of images.
+ * <p>
+ * Features are selected the same way the renderer would, that is, using the layer definition
+ * query, the map area and the filters of the style rules active at the current scale. Their
+ * geometries are then turned into screen coordinates, simplified and clipped to the tile area
+ * (plus a buffer) and handed to a {@link VectorTileBuilder} for the actual encoding.
+ * <p>
+ * The buffer defaults to the GetMap BUFFER parameter, or to {@value #DEFAULT_BUFFER} pixels if
+ * missing, while the simplification tolerance, in pixels, can be set with the
+ * {@code org.geoserver.wms.vector.simplificationTolerance} property.
+ */
+public class VectorTileMapOutputFormat extends AbstractMapOutputFormat {
+
+    static final Logger LOGGER = Logging.getLogger(VectorTileMapOutputFormat.class);
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    /**
+     * Default buffer around the tile, in pixels
+     */
+    static final int DEFAULT_BUFFER = 8;
+
+    /**
+     * Default simplification tolerance, in pixels
+     */
+    static final double DEFAULT_TOLERANCE = 0.5;
+
+    static final String TOLERANCE_KEY = "org.geoserver.wms.vector.simplificationTolerance";
+
+    static final MapProducerCapabilities CAPABILITIES = new MapProducerCapabilities(true, false,
+            false, true, null);
+
+    private final VectorTileBuilderFactory builderFactory;
+
+    private double simplificationTolerance = getToleranceProperty();
+
+    public VectorTileMapOutputFormat(VectorTileBuilderFactory builderFactory) {
+        super(builderFactory.getMimeType(), builderFactory.getOutputFormats());
+        this.builderFactory = builderFactory;
+    }
+
+    private static double getToleranceProperty() {
+        String value = GeoServerExtensions.getProperty(TOLERANCE_KEY);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for " + TOLERANCE_KEY + ": " + value
+                        + ", using the default " + DEFAULT_TOLERANCE);
+            }
+        }
+        return DEFAULT_TOLERANCE;
+    }
+
+    /**
+     * Sets the simplification tolerance, in pixels. Zero or less disables simplification
+     *
+     * @param simplificationTolerance
+     */
+    public void setSimplificationTolerance(double simplificationTolerance) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
+    public double getSimplificationTolerance() {
+        return simplificationTolerance;
+    }
+
+    @Override
+    public WebMap produceMap(WMSMapContent mapContent) throws ServiceException, IOException {
+        final ReferencedEnvelope renderingArea = mapContent.getRenderingArea();
+        final Rectangle paintArea = new Rectangle(mapContent.getMapWidth(),
+                mapContent.getMapHeight());
+        final AffineTransform worldToScreen = RendererUtilities.worldToScreenTransform(
+                renderingArea, paintArea);
+        final double scaleDenominator = mapContent.getScaleDenominator();
+
+        // grab a bit more than the tile so that clients can draw lines and labels across it
+        final int buffer = mapContent.getBuffer() > 0 ? mapContent.getBuffer() : DEFAULT_BUFFER;
+        final Envelope clipArea = new Envelope(-buffer, paintArea.width + buffer, -buffer,
+                paintArea.height + buffer);
+        final double pixelSize = Math.abs(1 / XAffineTransform.getScaleX0(worldToScreen));
+        final ReferencedEnvelope queryArea = new ReferencedEnvelope(renderingArea);
+        queryArea.expandBy(buffer * pixelSize);
+
+        VectorTileBuilder builder = builderFactory.newBuilder(paintArea, renderingArea);
+        for (Layer layer : mapContent.layers()) {
+            if (!(layer instanceof FeatureLayer)) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Skipping non vector layer " + layer.getTitle());
+                }
+                continue;
+            }
+
+            try {
+                addLayer(builder, (FeatureLayer) layer, queryArea, worldToScreen, clipArea,
+                        scaleDenominator);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ServiceException("Failed to build the vector tile for layer "
+                        + layer.getTitle(), e);
+            }
+        }
+
+        return builder.build(mapContent);
+    }
+
+    private void addLayer(VectorTileBuilder builder, FeatureLayer layer,
+            ReferencedEnvelope queryArea, AffineTransform worldToScreen, Envelope clipArea,
+            double scaleDenominator) throws Exception {
+        Filter styleFilter = getStyleFilter(layer.getStyle(), scaleDenominator);
+        if (styleFilter == Filter.EXCLUDE) {
+            // nothing would be painted at this scale
+            return;
+        }
+
+        FeatureSource<?, ?> source = layer.getFeatureSource();
+        FeatureType schema = source.getSchema();
+        GeometryDescriptor gd = schema.getGeometryDescriptor();
+        if (gd == null) {
+            return;
+        }
+
+        // setup the query area and the transformation to screen coordinates
+        MathTransform toScreen = new AffineTransform2D(worldToScreen);
+        ReferencedEnvelope sourceArea = queryArea;
+        CoordinateReferenceSystem sourceCrs = gd.getCoordinateReferenceSystem();
+        CoordinateReferenceSystem mapCrs = queryArea.getCoordinateReferenceSystem();
+        if (sourceCrs != null && mapCrs != null && !CRS.equalsIgnoreMetadata(sourceCrs, mapCrs)) {
+            sourceArea = queryArea.transform(sourceCrs, true);
+            toScreen = ConcatenatedTransform.create(CRS.findMathTransform(sourceCrs, mapCrs, true),
+                    toScreen);
+        }
+
+        Filter filter = FF.bbox(FF.property(gd.getLocalName()), sourceArea);
+        if (styleFilter != Filter.INCLUDE) {
+            filter = FF.and(filter, styleFilter);
+        }
+        Query query = new Query(schema.getName().getLocalPart(), filter);
+        Query definitionQuery = layer.getQuery();
+        Query finalQuery = new Query(DataUtilities.mixQueries(definitionQuery, query,
+                "vectorTiles"));
+        finalQuery.setHints(definitionQuery.getHints());
+        finalQuery.setSortBy(definitionQuery.getSortBy());
+        finalQuery.setStartIndex(definitionQuery.getStartIndex());
+
+        String layerName = layer.getTitle() != null ? layer.getTitle() : schema.getName()
+                .getLocalPart();
+        String geometryName = gd.getLocalName();
+        FeatureIterator<?> features = source.getFeatures(finalQuery).features();
+        try {
+            while (features.hasNext()) {
+                Feature feature = features.next();
+                GeometryAttribute geometryAttribute = feature.getDefaultGeometryProperty();
+                if (geometryAttribute == null || geometryAttribute.getValue() == null) {
+                    continue;
+                }
+
+                Geometry geometry = JTS.transform((Geometry) geometryAttribute.getValue(),
+                        toScreen);
+                geometry = simplifyAndClip(geometry, clipArea);
+                if (geometry == null || geometry.isEmpty()) {
+                    continue;
+                }
+
+                Map<String, Object> properties = new LinkedHashMap<String, Object>();
+                for (Property property : feature.getProperties()) {
+                    if (!(property instanceof GeometryAttribute) && property.getValue() != null) {
+                        properties.put(property.getName().getLocalPart(), property.getValue());
+                    }
+                }
+                String id = feature.getIdentifier() != null ? feature.getIdentifier().getID()
+                        : null;
+                builder.addFeature(layerName, id, geometryName, geometry, properties);
+            }
+        } finally {
+            features.close();
+        }
+    }
+
+    /**
+     * Builds the filter selecting the features that the style would paint at the given scale
+     *
+     * @param style
+     * @param scaleDenominator
+     * @return {@link Filter#EXCLUDE} if no rule is active at this scale
+     */
+    Filter getStyleFilter(Style style, double scaleDenominator) {
+        if (style == null) {
+            return Filter.INCLUDE;
+        }
+
+        List<Filter> filters = new ArrayList<Filter>();
+        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+            for (Rule rule : fts.rules()) {
+                if (scaleDenominator < rule.getMinScaleDenominator()
+                        || scaleDenominator >= rule.getMaxScaleDenominator()) {
+                    continue;
+                }
+                if (rule.isElseFilter() || rule.getFilter() == null
+                        || rule.getFilter() == Filter.INCLUDE) {
+                    return Filter.INCLUDE;
+                }
+                filters.add(rule.getFilter());
+            }
+        }
+
+        if (filters.isEmpty()) {
+            return Filter.EXCLUDE;
+        } else if (filters.size() == 1) {
+            return filters.get(0);
+        } else {
+            return FF.or(filters);
+        }
+    }
+
+    /**
+     * Simplifies the geometry to the pixel precision and clips it to the tile area
+     *
+     * @param geometry a geometry in screen coordinates
+     * @param clipArea the tile area, buffer included
+     * @return the clipped geometry, or null if it falls outside of the tile
+     */
+    Geometry simplifyAndClip(Geometry geometry, Envelope clipArea) {
+        Envelope envelope = geometry.getEnvelopeInternal();
+        if (!clipArea.intersects(envelope)) {
+            return null;
+        }
+
+        if (geometry instanceof Point || geometry instanceof MultiPoint) {
+            if (clipArea.contains(envelope)) {
+                return geometry;
+            }
+        } else if (simplificationTolerance > 0) {
+            geometry = DouglasPeuckerSimplifier.simplify(geometry, simplificationTolerance);
+        }
+
+        if (!clipArea.contains(geometry.getEnvelopeInternal())) {
+            Geometry clip = JTS.toGeometry(clipArea, geometry.getFactory());
+            try {
+                geometry = geometry.intersection(clip);
+            } catch (TopologyException e) {
+                // the simplified geometry might be invalid, try to fix it
+                geometry = geometry.buffer(0).intersection(clip);
+            }
+        }
+
+        return geometry;
+    }
+
+    @Override
+    public MapProducerCapabilities getCapabilities(String format) {
+        return CAPABILITIES;
+    }
+
+}
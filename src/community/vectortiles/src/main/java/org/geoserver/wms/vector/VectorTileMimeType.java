@@ -0,0 +1,21 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import org.geowebcache.mime.MimeType;
+
+/**
+ * GWC {@link MimeType} for vector tiles, registered in the application context so that
+ * {@link org.geoserver.gwc.GWC#getMimeType(String)} can find it. Vector tiles cannot be cut out
+ * of a meta tile, so they do not support tiling and are always rendered one at a time.
+ */
+public class VectorTileMimeType extends MimeType {
+
+    public VectorTileMimeType(String mimeType, String fileExtension, String internalName) {
+        super(mimeType, fileExtension, internalName, mimeType, false);
+    }
+
+}
@@ -0,0 +1,114 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.vector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Level;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.geoserver.data.test.MockData;
+import org.geoserver.wms.WMSTestSupport;
+import org.geoserver.wms.vector.MapBoxTileBuilder.GeometryEncoder;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class VectorTileMapOutputFormatTest extends WMSTestSupport {
+
+    static final String BASE_REQUEST = "wms?service=WMS&version=1.1.0&request=GetMap&styles="
+            + "&bbox=-2,-1,2,6&width=256&height=256&srs=EPSG:4326";
+
+    @Test
+    public void testMapBoxTile() throws Exception {
+        String layer = getLayerId(MockData.BASIC_POLYGONS);
+        MockHttpServletResponse response = getAsServletResponse(BASE_REQUEST + "&layers=" + layer
+                + "&format=pbf");
+        assertEquals(MapBoxTileBuilder.MIME_TYPE, response.getContentType());
+
+        byte[] tile = getBinary(response);
+        // first field is a layer (field 3, length delimited)
+        assertEquals(0x1A, tile[0]);
+        assertTrue(new String(tile, "UTF-8").contains(layer));
+    }
+
+    @Test
+    public void testGeoJsonTile() throws Exception {
+        String layer = getLayerId(MockData.BASIC_POLYGONS);
+        JSONObject json = (JSONObject) getAsJSON(BASE_REQUEST + "&layers=" + layer
+                + "&format=geojson");
+        assertEquals("FeatureCollection", json.getString("type"));
+        JSONArray features = json.getJSONArray("features");
+        assertEquals(3, features.size());
+        for (int i = 0; i < features.size(); i++) {
+            JSONObject feature = features.getJSONObject(i);
+            assertEquals(layer, feature.getString("layer"));
+            assertEquals("MultiPolygon", feature.getJSONObject("geometry").getString("type"));
+        }
+    }
+
+    @Test
+    public void testGeometryEncoding() throws Exception {
+        // the examples from the vector tile specification
+        WKTReader reader = new WKTReader();
+        assertArrayEquals(new int[] { 9, 50, 34 }, encode(reader.read("POINT(25 17)")));
+        assertArrayEquals(new int[] { 9, 4, 4, 18, 0, 16, 16, 0 },
+                encode(reader.read("LINESTRING(2 2, 2 10, 10 10)")));
+        assertArrayEquals(new int[] { 9, 6, 12, 18, 10, 12, 24, 44, 15 },
+                encode(reader.read("POLYGON((3 6, 8 12, 20 34, 3 6))")));
+        // same polygon, opposite orientation, gets reversed
+        assertArrayEquals(new int[] { 9, 16, 24, 18, 24, 44, 33, 55, 15 },
+                encode(reader.read("POLYGON((3 6, 20 34, 8 12, 3 6))")));
+    }
+
+    @Test
+    public void testNumericId() {
+        assertEquals(123, MapBoxTileBuilder.getNumericId("BasicPolygons.123"));
+        assertEquals(-1, MapBoxTileBuilder.getNumericId("BasicPolygons.abc"));
+        assertEquals(-1, MapBoxTileBuilder.getNumericId(null));
+    }
+
+    /**
+     * Compares the PNG and vector tile throughput, only runs if the
+     * <code>vectortiles.benchmark</code> system property is set to true
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("vectortiles.benchmark"));
+
+        String layers = getLayerId(MockData.BASIC_POLYGONS) + ","
+                + getLayerId(MockData.ROAD_SEGMENTS) + "," + getLayerId(MockData.BRIDGES);
+        for (String format : new String[] { "image/png", "pbf", "geojson" }) {
+            String request = BASE_REQUEST + "&layers=" + layers + "&format=" + format;
+            // warm up
+            for (int i = 0; i < 10; i++) {
+                getAsServletResponse(request);
+            }
+            int iterations = 100;
+            long size = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                size += getBinary(getAsServletResponse(request)).length;
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            LOGGER.log(Level.INFO, format + ": " + iterations + " tiles in " + elapsed + "ms, "
+                    + (size / iterations) + " bytes per tile");
+        }
+    }
+
+    private int[] encode(Geometry geometry) {
+        GeometryEncoder encoder = new GeometryEncoder(1, 1);
+        encoder.encode(geometry);
+        return encoder.toArray();
+    }
+}
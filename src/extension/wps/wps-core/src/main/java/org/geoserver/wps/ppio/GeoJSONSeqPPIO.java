@@ -0,0 +1,73 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+
+import org.geoserver.config.GeoServer;
+import org.geoserver.wfs.json.GeoJSONSeqGetFeatureResponse;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.geojson.feature.FeatureJSON;
+
+/**
+ * Inputs and outputs feature collections as newline delimited GeoJSON, one feature per line,
+ * using the same encoding as the WFS output format
+ */
+public class GeoJSONSeqPPIO extends CDataPPIO {
+
+    GeoServer gs;
+
+    protected GeoJSONSeqPPIO(GeoServer gs) {
+        super(FeatureCollection.class, FeatureCollection.class,
+                GeoJSONSeqGetFeatureResponse.MIME_TYPE);
+        this.gs = gs;
+    }
+
+    @Override
+    public void encode(Object value, OutputStream os) throws IOException {
+        GeoJSONSeqGetFeatureResponse format = new GeoJSONSeqGetFeatureResponse(gs);
+        format.write(Collections.singletonList((FeatureCollection) value), os);
+    }
+
+    @Override
+    public Object decode(InputStream input) throws Exception {
+        return decode(new InputStreamReader(input, "UTF-8"));
+    }
+
+    @Override
+    public Object decode(String input) throws Exception {
+        return decode(new StringReader(input));
+    }
+
+    Object decode(Reader input) throws IOException {
+        FeatureJSON json = new FeatureJSON();
+        DefaultFeatureCollection features = new DefaultFeatureCollection();
+        BufferedReader reader = new BufferedReader(input);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // also accept GeoJSON text sequences, which start each feature with a RS character
+            line = line.replace('\u001e', ' ').trim();
+            if (line.length() > 0) {
+                features.add(json.readFeature(line));
+            }
+        }
+        return features;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "json";
+    }
+
+}
@@ -493,6 +493,45 @@ public class ExecuteTest extends WPSTestSupport {
         
     }
     
+    @Test
+    public void testGeoJSONSeqOutput() throws Exception {
+        String xml = "<wps:Execute service='WPS' version='1.0.0' xmlns:wps='http://www.opengis.net/wps/1.0.0' " +
+        "xmlns:ows='http://www.opengis.net/ows/1.1'>" +
+        "<ows:Identifier>gs:BufferFeatureCollection</ows:Identifier>" +
+         "<wps:DataInputs>" +
+            "<wps:Input>" +
+                "<ows:Identifier>features</ows:Identifier>" +
+                "<wps:Data>" +
+                  "<wps:ComplexData mimeType=\"application/json\"><![CDATA[" +
+                       readFileIntoString("states-FeatureCollection.json") +
+                  "]]></wps:ComplexData>" +
+                "</wps:Data>" +
+            "</wps:Input>" +
+            "<wps:Input>" +
+               "<ows:Identifier>distance</ows:Identifier>" +
+               "<wps:Data>" +
+                 "<wps:LiteralData>10</wps:LiteralData>" +
+               "</wps:Data>" +
+            "</wps:Input>" +
+           "</wps:DataInputs>" +
+           "<wps:ResponseForm>" +
+             "<wps:RawDataOutput mimeType=\"application/x-ndjson\">" +
+                 "<ows:Identifier>result</ows:Identifier>" +
+             "</wps:RawDataOutput>" +
+           "</wps:ResponseForm>" +
+         "</wps:Execute>";
+
+        MockHttpServletResponse r = postAsServletResponse("wps", xml);
+        assertEquals("application/x-ndjson", r.getContentType());
+        // one feature per line
+        String[] lines = r.getOutputStreamContent().trim().split("\n");
+        assertEquals(2, lines.length);
+        for (String line : lines) {
+            assertTrue(line.startsWith("{\"type\":\"Feature\""));
+            assertNotNull(new FeatureJSON().readFeature(line).getDefaultGeometry());
+        }
+    }
+
     @Test
     public void testShapeZip() throws Exception {
         String xml = "<wps:Execute service='WPS' version='1.0.0' xmlns:xlink=\"http://www.w3.org/1999/xlink\" " +
@@ -444,7 +444,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             mimeTypes = layer.getMimeTypes();
         } else {
             try {
-                mimeTypes = Collections.singletonList(MimeType.createFromFormat(format));
+                mimeTypes = Collections.singletonList(getMimeType(format));
             } catch (MimeException e) {
                 throw new RuntimeException();
             }
@@ -668,7 +668,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
 
         final MimeType mimeType;
         try {
-            mimeType = MimeType.createFromFormat(request.getFormat());
+            mimeType = getMimeType(request.getFormat());
             List<MimeType> tileLayerFormats = tileLayer.getMimeTypes();
             if (!tileLayerFormats.contains(mimeType)) {
                 requestMistmatchTarget.append("no tile cache for requested format");
@@ -1985,6 +1985,28 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         return lgi.prefixedName();
     }
 
+    /**
+     * Looks up the {@link MimeType} for the given format, falling back on the mime types
+     * contributed by GeoServer extensions (e.g., vector tiles) when GWC does not know about it
+     * 
+     * @param format the format or mime type
+     * @return
+     * @throws MimeException if no mime type matches the format
+     */
+    public static MimeType getMimeType(String format) throws MimeException {
+        try {
+            return MimeType.createFromFormat(format);
+        } catch (MimeException e) {
+            for (MimeType mimeType : GeoServerExtensions.extensions(MimeType.class)) {
+                if (mimeType.getFormat().equalsIgnoreCase(format)
+                        || mimeType.getMimeType().equalsIgnoreCase(format)) {
+                    return mimeType;
+                }
+            }
+            throw e;
+        }
+    }
+
     public static void tryReset() {
         GWC instance = GWC.INSTANCE;
         if (instance != null) {
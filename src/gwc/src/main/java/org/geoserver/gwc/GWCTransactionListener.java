@@ -24,11 +24,11 @@ import net.opengis.wfs.TransactionType;
 import net.opengis.wfs.UpdateElementType;
 
 import org.eclipse.emf.ecore.EObject;
+import org.geoserver.wfs.CoalescingTransactionListener;
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionEventType;
 import org.geoserver.wfs.TransactionPlugin;
 import org.geoserver.wfs.WFSException;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
@@ -41,7 +41,8 @@ import org.opengis.referencing.operation.TransformException;
  * of the layers involved in the transaction.
  * <p>
  * A Spring bean singleton of this class needs to be declared in order for GeoServer transactions to
- * pick it up automatically and forward transaction events to it.
+ * pick it up automatically and forward transaction events to it. The events are received merged
+ * by layer and type, see {@link CoalescingTransactionListener}.
  * </p>
  * <p>
  * TODO: upon deletion, only truncate if feature count > 0
@@ -52,7 +53,7 @@ import org.opengis.referencing.operation.TransformException;
  * @version $Id$
  * 
  */
-public class GWCTransactionListener implements TransactionPlugin {
+public class GWCTransactionListener implements TransactionPlugin, CoalescingTransactionListener {
 
     private static Logger log = Logging.getLogger(GWCTransactionListener.class);
 
@@ -193,8 +194,11 @@ public class GWCTransactionListener implements TransactionPlugin {
             return;
         }
 
-        final SimpleFeatureCollection affectedFeatures = event.getAffectedFeatures();
-        final ReferencedEnvelope affectedBounds = affectedFeatures.getBounds();
+        final ReferencedEnvelope affectedBounds = event.getAffectedBounds();
+        if (affectedBounds == null) {
+            // no feature affected
+            return;
+        }
 
         final TransactionType transaction = event.getRequest();
 
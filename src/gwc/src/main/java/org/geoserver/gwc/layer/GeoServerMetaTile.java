@@ -21,6 +21,8 @@ import javax.media.jai.RenderedOp;
 import org.geoserver.gwc.GWC;
 import org.geoserver.ows.Response;
 import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.RawMap;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapResponse;
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -36,7 +38,7 @@ import org.geowebcache.mime.MimeType;
 
 public class GeoServerMetaTile extends MetaTile {
 
-    private RenderedImageMap metaTileMap;
+    private WebMap metaTileMap;
 
     public GeoServerMetaTile(GridSubset gridSubset, MimeType responseFormat,
             FormatModifier formatModifier, long[] tileGridPosition, int metaX, int metaY,
@@ -45,9 +47,17 @@ public class GeoServerMetaTile extends MetaTile {
         super(gridSubset, responseFormat, formatModifier, tileGridPosition, metaX, metaY, gutter);
     }
 
-    public void setWebMap(RenderedImageMap webMap) {
+    /**
+     * Sets the map backing this meta tile, either a {@link RenderedImageMap} to be split and
+     * encoded, or an already encoded {@link RawMap} covering a single tile
+     * 
+     * @param webMap
+     */
+    public void setWebMap(WebMap webMap) {
         this.metaTileMap = webMap;
-        setImage(webMap.getImage());
+        if (webMap instanceof RenderedImageMap) {
+            setImage(((RenderedImageMap) webMap).getImage());
+        }
     }
 
     /**
@@ -63,27 +73,43 @@ public class GeoServerMetaTile extends MetaTile {
     public boolean writeTileToStream(final int tileIdx, Resource target) throws IOException {
 
         checkNotNull(metaTileMap, "webMap is not set");
+        if (metaTileMap instanceof RawMap) {
+            // already encoded, and never split since its format does not support tiling
+            if (this.tiles.length > 1) {
+                throw new IllegalStateException("Cannot split an encoded map into "
+                        + this.tiles.length + " tiles");
+            }
+            OutputStream outStream = target.getOutputStream();
+            try {
+                ((RawMap) metaTileMap).writeTo(outStream);
+                return true;
+            } finally {
+                outStream.close();
+            }
+        }
         if (!(metaTileMap instanceof RenderedImageMap)) {
-            throw new IllegalArgumentException("Only RenderedImageMaps are supported so far: "
-                    + metaTileMap.getClass().getName());
+            throw new IllegalArgumentException(
+                    "Only RenderedImageMaps and RawMaps are supported so far: "
+                            + metaTileMap.getClass().getName());
         }
+        final RenderedImageMap imageMap = (RenderedImageMap) metaTileMap;
         final RenderedImageMapResponse mapEncoder;
         {
             final GWC mediator = GWC.get();
             final Response responseEncoder = mediator.getResponseEncoder(responseFormat,
-                    metaTileMap);
+                    imageMap);
             mapEncoder = (RenderedImageMapResponse) responseEncoder;
         }
 
-        RenderedImage tile = metaTileMap.getImage();
-        WMSMapContent tileContext = metaTileMap.getMapContext();
+        RenderedImage tile = imageMap.getImage();
+        WMSMapContent tileContext = imageMap.getMapContext();
 
         if (this.tiles.length > 1 || (this.tiles.length == 1 && metaHasGutter())) {
             final Rectangle tileDim = this.tiles[tileIdx];
             tile = createTile(tileDim.x, tileDim.y, tileDim.width, tileDim.height);
             disposeLater(tile);
             {
-                final WMSMapContent metaTileContext = metaTileMap.getMapContext();
+                final WMSMapContent metaTileContext = imageMap.getMapContext();
                 // do not create tileContext with metaTileContext.getLayers() as the layer list.
                 // It is not needed at this stage and the constructor would force a
                 // MapLayer.getBounds() that might fail
@@ -40,6 +40,7 @@ import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.RawMap;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
@@ -512,7 +513,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
                 LOGGER.finer("--> " + Thread.currentThread().getName()
                         + " submitting getMap request for meta grid location "
                         + Arrays.toString(metaTile.getMetaGridPos()) + " on " + metaTile);
-                RenderedImageMap map;
+                WebMap map;
                 try {
                     long requestTime = System.currentTimeMillis();
                     map = dispatchGetMap(tile, metaTile);
@@ -561,7 +562,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         return metaKey.toString();
     }
 
-    private RenderedImageMap dispatchGetMap(final ConveyorTile tile, final MetaTile metaTile)
+    private WebMap dispatchGetMap(final ConveyorTile tile, final MetaTile metaTile)
             throws Exception {
 
         Map<String, String> params = buildGetMap(tile, metaTile);
@@ -572,14 +573,15 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
 
             GWC.get().dispatchOwsRequest(params, cookies);
             map = WEB_MAP.get();
-            if (!(map instanceof RenderedImageMap)) {
-                throw new IllegalStateException("Expected: RenderedImageMap, got " + map);
+            if (!(map instanceof RenderedImageMap) && !(map instanceof RawMap)) {
+                throw new IllegalStateException("Expected: RenderedImageMap or RawMap, got "
+                        + map);
             }
         } finally {
             WEB_MAP.remove();
         }
 
-        return (RenderedImageMap) map;
+        return map;
     }
 
     private GeoServerMetaTile createMetaTile(ConveyorTile tile, final int metaX, final int metaY) {
@@ -590,7 +592,8 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         MimeType responseFormat = tile.getMimeType();
         FormatModifier formatModifier = null;
         long[] tileGridPosition = tile.getTileIndex();
-        int gutter = info.getGutter();
+        // formats that cannot be split (e.g., vector tiles) are requested exactly on the tile
+        int gutter = responseFormat.supportsTiling() ? info.getGutter() : 0;
         metaTile = new GeoServerMetaTile(gridSubset, responseFormat, formatModifier,
                 tileGridPosition, metaX, metaY, gutter);
 
@@ -972,7 +975,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         List<MimeType> mimeTypes = new ArrayList<MimeType>(mimeFormats.size());
         for (String format : mimeFormats) {
             try {
-                mimeTypes.add(MimeType.createFromFormat(format));
+                mimeTypes.add(GWC.getMimeType(format));
             } catch (MimeException e) {
                 LOGGER.log(Level.WARNING, "Can't create MimeType from format " + format, e);
             }
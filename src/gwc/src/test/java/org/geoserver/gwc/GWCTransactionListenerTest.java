@@ -217,6 +217,7 @@ public class GWCTransactionListenerTest {
         SimpleFeatureCollection affectedFeatures = mock(SimpleFeatureCollection.class);
         when(affectedFeatures.getBounds()).thenReturn(affectedBounds);
         when(event.getAffectedFeatures()).thenReturn(affectedFeatures);
+        when(event.getAffectedBounds()).thenReturn(affectedBounds);
 
         listener.dataStoreChange(event);
     }
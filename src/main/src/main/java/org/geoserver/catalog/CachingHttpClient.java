@@ -0,0 +1,113 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.geotools.data.ows.HTTPClient;
+import org.geotools.data.ows.HTTPResponse;
+
+/**
+ * A {@link HTTPClient} wrapper routing the GET requests that can be cached through a
+ * {@link CascadedResponseCache}. All other requests are passed down to the delegate as is.
+ */
+public class CachingHttpClient implements HTTPClient {
+
+    final HTTPClient delegate;
+
+    final CascadedResponseCache cache;
+
+    final String scope;
+
+    /**
+     * Wraps a client
+     *
+     * @param delegate the client actually contacting the remote server
+     * @param cache the response cache
+     * @param scope the cache scope, requests in different scopes never share responses. Usually
+     *        the id of the store the client is used for
+     */
+    public CachingHttpClient(HTTPClient delegate, CascadedResponseCache cache, String scope) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.scope = scope;
+    }
+
+    @Override
+    public HTTPResponse get(URL url) throws IOException {
+        if (CascadedResponseCache.isCacheable(url)) {
+            return cache.get(scope, url, delegate);
+        }
+        return delegate.get(url);
+    }
+
+    @Override
+    public HTTPResponse post(URL url, InputStream postContent, String postContentType)
+            throws IOException {
+        return delegate.post(url, postContent, postContentType);
+    }
+
+    /**
+     * The wrapped client
+     *
+     * @return
+     */
+    public HTTPClient getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getUser() {
+        return delegate.getUser();
+    }
+
+    @Override
+    public void setUser(String user) {
+        delegate.setUser(user);
+    }
+
+    @Override
+    public String getPassword() {
+        return delegate.getPassword();
+    }
+
+    @Override
+    public void setPassword(String password) {
+        delegate.setPassword(password);
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return delegate.getConnectTimeout();
+    }
+
+    @Override
+    public void setConnectTimeout(int connectTimeout) {
+        delegate.setConnectTimeout(connectTimeout);
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return delegate.getReadTimeout();
+    }
+
+    @Override
+    public void setReadTimeout(int readTimeout) {
+        delegate.setReadTimeout(readTimeout);
+    }
+
+    @Override
+    public void setTryGzip(boolean tryGZIP) {
+        delegate.setTryGzip(tryGZIP);
+    }
+
+    @Override
+    public boolean isTryGzip() {
+        return delegate.isTryGzip();
+    }
+}
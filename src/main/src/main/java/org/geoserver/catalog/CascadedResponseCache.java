@@ -0,0 +1,528 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+import org.geotools.data.ows.HTTPClient;
+import org.geotools.data.ows.HTTPResponse;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A memory bound cache for the GetMap and GetFeatureInfo responses of cascaded WMS servers.
+ * <p>
+ * Responses are keyed by the store they have been requested for and by the normalised request
+ * (parameter names upper cased, parameters sorted), and are kept for as long as the remote
+ * server allows, according to its <code>Cache-Control</code> and <code>Expires</code> headers.
+ * When the remote server does not send any of them, the configured default time to live is
+ * used. Concurrent identical requests are coalesced, only one of them hits the remote server
+ * and the others share its response, as long as it can be cached.
+ * <p>
+ * Responses that cannot be cached (service exceptions, responses the remote server does not
+ * allow to cache, responses bigger than the cache) are streamed through without being buffered
+ * in memory.
+ */
+public class CascadedResponseCache {
+
+    static final Logger LOGGER = Logging.getLogger(CascadedResponseCache.class);
+
+    /**
+     * The maximum size of the cache, in bytes
+     */
+    public static final String CACHE_SIZE_KEY = "org.geoserver.wms.cascade.cacheSize";
+
+    /**
+     * The time to live, in seconds, of responses that do not specify one
+     */
+    public static final String DEFAULT_TTL_KEY = "org.geoserver.wms.cascade.cacheTTL";
+
+    static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The headers preserved along with the cached responses
+     */
+    static final String[] CACHED_HEADERS = { "Content-Type", "Content-Disposition",
+            "Cache-Control", "Expires", "Date", "Last-Modified", "ETag" };
+
+    final long maxSize;
+
+    final long defaultTimeToLive;
+
+    /**
+     * The cached entries, in access order
+     */
+    final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(
+            16, 0.75f, true);
+
+    long size;
+
+    /**
+     * The requests currently being run against the remote servers
+     */
+    final ConcurrentHashMap<String, FutureTask<HTTPResponse>> pending = new ConcurrentHashMap<String, FutureTask<HTTPResponse>>();
+
+    /**
+     * Builds a new cache
+     *
+     * @param maxSize the maximum cache size in bytes, zero or less disables caching
+     * @param defaultTimeToLive the time to live, in milliseconds, of the responses not
+     *        specifying a cache policy
+     */
+    public CascadedResponseCache(long maxSize, long defaultTimeToLive) {
+        this.maxSize = maxSize;
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    /**
+     * Returns true if the specified request can be cached, that is, if it's a GetMap or
+     * GetFeatureInfo request
+     *
+     * @param url
+     * @return
+     */
+    public static boolean isCacheable(URL url) {
+        String request = getRequest(url);
+        return "GetMap".equalsIgnoreCase(request) || "GetFeatureInfo".equalsIgnoreCase(request);
+    }
+
+    static String getRequest(URL url) {
+        Map<String, String> params = getParameters(url);
+        return params == null ? null : params.get("REQUEST");
+    }
+
+    /**
+     * Parses the url query string, returning the parameters with the names upper cased, and
+     * sorted by name
+     */
+    static Map<String, String> getParameters(URL url) {
+        String query = url.getQuery();
+        if (query == null) {
+            return null;
+        }
+        Map<String, String> params = new TreeMap<String, String>();
+        for (String pair : query.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            int idx = pair.indexOf('=');
+            String name = idx > 0 ? pair.substring(0, idx) : pair;
+            String value = idx > 0 ? pair.substring(idx + 1) : "";
+            try {
+                params.put(URLDecoder.decode(name, "UTF-8").toUpperCase(),
+                        URLDecoder.decode(value, "UTF-8"));
+            } catch (Exception e) {
+                // not a valid encoding, keep it as is
+                params.put(name.toUpperCase(), value);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Builds the cache key for the given request
+     *
+     * @param scope the cache scope, requests in different scopes never share responses
+     * @param url
+     * @return
+     */
+    static String getKey(String scope, URL url) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(scope).append('|');
+        sb.append(url.getProtocol()).append("://").append(url.getHost().toLowerCase());
+        sb.append(':').append(url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        sb.append(url.getPath());
+        Map<String, String> params = getParameters(url);
+        if (params != null) {
+            char separator = '?';
+            for (Map.Entry<String, String> entry : params.entrySet()) {
+                sb.append(separator).append(entry.getKey()).append('=').append(entry.getValue());
+                separator = '&';
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the response for the given request, either from the cache, from a concurrent
+     * identical request, or by running it against the remote server
+     *
+     * @param scope the cache scope, requests in different scopes never share responses
+     * @param url the request
+     * @param client the client used to contact the remote server
+     * @return
+     * @throws IOException
+     */
+    public HTTPResponse get(String scope, final URL url, final HTTPClient client)
+            throws IOException {
+        if (maxSize <= 0) {
+            return client.get(url);
+        }
+        final String key = getKey(scope, url);
+        CachedResponse response = getCached(key);
+        if (response != null) {
+            return response;
+        }
+
+        // coalesce with any identical request already in progress
+        FutureTask<HTTPResponse> task = new FutureTask<HTTPResponse>(
+                new Callable<HTTPResponse>() {
+
+                    @Override
+                    public HTTPResponse call() throws Exception {
+                        return load(key, url, client);
+                    }
+                });
+        FutureTask<HTTPResponse> running = pending.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+        } else if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Waiting for the identical request in progress " + url);
+        }
+
+        HTTPResponse result;
+        try {
+            result = running.get();
+        } catch (InterruptedException e) {
+            throw (IOException) new IOException("Interrupted while waiting for " + url)
+                    .initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (IOException) new IOException("Failed to run " + url).initCause(cause);
+        }
+        if (running != task && !(result instanceof CachedResponse)) {
+            // the response could not be cached and is being streamed to the request that
+            // ran it, we have to run our own
+            return client.get(url);
+        }
+        return result;
+    }
+
+    synchronized CachedResponse getCached(String key) {
+        CachedResponse response = entries.get(key);
+        if (response != null && response.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            size -= response.contents.length;
+            response = null;
+        }
+        return response;
+    }
+
+    /**
+     * Runs the request against the remote server. The response is read fully and cached only if
+     * its headers allow for it and it fits in the cache, otherwise it is streamed through as is
+     */
+    HTTPResponse load(String key, URL url, HTTPClient client) throws IOException {
+        HTTPResponse remote = client.get(url);
+        long now = System.currentTimeMillis();
+        long timeToLive = getTimeToLive(remote, now);
+        if (timeToLive <= 0 || isServiceException(remote, url)
+                || getContentLength(remote) > maxSize) {
+            return remote;
+        }
+
+        // the response might still be too big if it does not declare its length, stop
+        // buffering as soon as it's over the limit
+        InputStream is = remote.getResponseStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        boolean streaming = false;
+        CachedResponse response;
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                bos.write(buffer, 0, read);
+                if (bos.size() > maxSize) {
+                    streaming = true;
+                    return new StreamingResponse(remote, new SequenceInputStream(
+                            new ByteArrayInputStream(bos.toByteArray()), is));
+                }
+            }
+            response = new CachedResponse(remote, bos.toByteArray());
+        } finally {
+            if (!streaming) {
+                IOUtils.closeQuietly(is);
+                remote.dispose();
+            }
+        }
+        response.expires = now + timeToLive;
+        put(key, response);
+        return response;
+    }
+
+    /**
+     * Returns the declared length of the response, or -1 if not known
+     */
+    static long getContentLength(HTTPResponse response) {
+        String length = response.getResponseHeader("Content-Length");
+        if (length != null) {
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                // not known then
+            }
+        }
+        return -1;
+    }
+
+    synchronized void put(String key, CachedResponse response) {
+        if (response.contents.length > maxSize) {
+            return;
+        }
+        CachedResponse previous = entries.put(key, response);
+        if (previous != null) {
+            size -= previous.contents.length;
+        }
+        size += response.contents.length;
+
+        // evict the least recently used entries until we are back in the size limits
+        Iterator<CachedResponse> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            CachedResponse evicted = it.next();
+            it.remove();
+            size -= evicted.contents.length;
+        }
+    }
+
+    /**
+     * Computes the time to live of the response, in milliseconds, according to its cache headers
+     */
+    long getTimeToLive(HTTPResponse response, long now) {
+        String cacheControl = response.getResponseHeader("Cache-Control");
+        if (cacheControl != null) {
+            long maxAge = -1;
+            long sharedMaxAge = -1;
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store") || directive.equals("no-cache")
+                        || directive.equals("private")) {
+                    return 0;
+                } else if (directive.startsWith("max-age=")) {
+                    maxAge = parseSeconds(directive.substring(8));
+                } else if (directive.startsWith("s-maxage=")) {
+                    sharedMaxAge = parseSeconds(directive.substring(9));
+                }
+            }
+            // we are a shared cache, s-maxage takes precedence
+            if (sharedMaxAge >= 0) {
+                return sharedMaxAge * 1000;
+            } else if (maxAge >= 0) {
+                return maxAge * 1000;
+            }
+        }
+
+        String expires = response.getResponseHeader("Expires");
+        if (expires != null) {
+            Date date = parseDate(expires);
+            if (date == null) {
+                // invalid dates mean "already expired"
+                return 0;
+            }
+            // use the server clock as a reference if available
+            Date serverNow = parseDate(response.getResponseHeader("Date"));
+            long reference = serverNow != null ? serverNow.getTime() : now;
+            return Math.max(0, date.getTime() - reference);
+        }
+
+        return defaultTimeToLive;
+    }
+
+    static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    boolean isServiceException(HTTPResponse response, URL url) {
+        String contentType = response.getContentType();
+        if (contentType == null) {
+            return true;
+        }
+        contentType = contentType.toLowerCase();
+        if (contentType.contains("se_xml")) {
+            return true;
+        }
+        // a GetMap returning XML is reporting an error
+        return contentType.contains("xml") && !contentType.contains("svg")
+                && "GetMap".equalsIgnoreCase(getRequest(url));
+    }
+
+    /**
+     * Removes all the responses cached in the specified scope
+     *
+     * @param scope
+     */
+    public synchronized void clear(String scope) {
+        String prefix = scope + "|";
+        Iterator<Map.Entry<String, CachedResponse>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CachedResponse> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().contents.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached responses
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * The current cache size, in bytes
+     *
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * A response streamed from the remote server, whose beginning has already been read
+     */
+    static class StreamingResponse implements HTTPResponse {
+
+        final HTTPResponse delegate;
+
+        final InputStream stream;
+
+        StreamingResponse(HTTPResponse delegate, InputStream stream) {
+            this.delegate = delegate;
+            this.stream = stream;
+        }
+
+        @Override
+        public void dispose() {
+            IOUtils.closeQuietly(stream);
+            delegate.dispose();
+        }
+
+        @Override
+        public String getContentType() {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public String getResponseHeader(String headerName) {
+            return delegate.getResponseHeader(headerName);
+        }
+
+        @Override
+        public InputStream getResponseStream() throws IOException {
+            return stream;
+        }
+
+        @Override
+        public String getResponseCharset() {
+            return delegate.getResponseCharset();
+        }
+    }
+
+    /**
+     * A fully read response, that can be handed out multiple times
+     */
+    static class CachedResponse implements HTTPResponse {
+
+        final byte[] contents;
+
+        final String contentType;
+
+        final String charset;
+
+        final Map<String, String> headers = new TreeMap<String, String>(
+                String.CASE_INSENSITIVE_ORDER);
+
+        long expires;
+
+        CachedResponse(HTTPResponse response, byte[] contents) {
+            this.contents = contents;
+            this.contentType = response.getContentType();
+            this.charset = response.getResponseCharset();
+            for (String name : CACHED_HEADERS) {
+                String value = response.getResponseHeader(name);
+                if (value != null) {
+                    headers.put(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+            // nothing to do
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getResponseHeader(String headerName) {
+            return headers.get(headerName);
+        }
+
+        @Override
+        public InputStream getResponseStream() throws IOException {
+            return new ByteArrayInputStream(contents);
+        }
+
+        @Override
+        public String getResponseCharset() {
+            return charset;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.geotools.data.ows.HTTPClient;
+import org.geotools.data.ows.HTTPResponse;
+
+/**
+ * A {@link HTTPClient} wrapper bounding the number of concurrent requests run against a remote
+ * host. The permits are shared by all the clients contacting the same host, a permit is taken
+ * for each request and given back when its response is disposed, or its stream closed.
+ * <p>
+ * Requests wait at most the connect timeout for a permit, and fail if none became available.
+ */
+public class HostLimitingHttpClient implements HTTPClient {
+
+    final HTTPClient delegate;
+
+    final Semaphore permits;
+
+    /**
+     * Wraps a client
+     *
+     * @param delegate the client actually contacting the remote server
+     * @param permits the permits of the host contacted by the client
+     */
+    public HostLimitingHttpClient(HTTPClient delegate, Semaphore permits) {
+        this.delegate = delegate;
+        this.permits = permits;
+    }
+
+    @Override
+    public HTTPResponse get(URL url) throws IOException {
+        acquire(url);
+        try {
+            return new PermitResponse(delegate.get(url));
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public HTTPResponse post(URL url, InputStream postContent, String postContentType)
+            throws IOException {
+        acquire(url);
+        try {
+            return new PermitResponse(delegate.post(url, postContent, postContentType));
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void acquire(URL url) throws IOException {
+        try {
+            if (!permits.tryAcquire(getConnectTimeout(), TimeUnit.SECONDS)) {
+                throw new IOException("Timed out waiting for a connection to "
+                        + url.getHost() + ", too many concurrent requests to the host");
+            }
+        } catch (InterruptedException e) {
+            throw (IOException) new IOException("Interrupted while waiting for a connection to "
+                    + url.getHost()).initCause(e);
+        }
+    }
+
+    /**
+     * The wrapped client
+     *
+     * @return
+     */
+    public HTTPClient getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getUser() {
+        return delegate.getUser();
+    }
+
+    @Override
+    public void setUser(String user) {
+        delegate.setUser(user);
+    }
+
+    @Override
+    public String getPassword() {
+        return delegate.getPassword();
+    }
+
+    @Override
+    public void setPassword(String password) {
+        delegate.setPassword(password);
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return delegate.getConnectTimeout();
+    }
+
+    @Override
+    public void setConnectTimeout(int connectTimeout) {
+        delegate.setConnectTimeout(connectTimeout);
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return delegate.getReadTimeout();
+    }
+
+    @Override
+    public void setReadTimeout(int readTimeout) {
+        delegate.setReadTimeout(readTimeout);
+    }
+
+    @Override
+    public void setTryGzip(boolean tryGZIP) {
+        delegate.setTryGzip(tryGZIP);
+    }
+
+    @Override
+    public boolean isTryGzip() {
+        return delegate.isTryGzip();
+    }
+
+    /**
+     * Gives back the permit once the response is disposed or its stream closed, whichever
+     * comes first
+     */
+    class PermitResponse implements HTTPResponse {
+
+        final HTTPResponse response;
+
+        final AtomicBoolean released = new AtomicBoolean();
+
+        PermitResponse(HTTPResponse response) {
+            this.response = response;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            try {
+                response.dispose();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public String getContentType() {
+            return response.getContentType();
+        }
+
+        @Override
+        public String getResponseHeader(String headerName) {
+            return response.getResponseHeader(headerName);
+        }
+
+        @Override
+        public InputStream getResponseStream() throws IOException {
+            return new FilterInputStream(response.getResponseStream()) {
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String getResponseCharset() {
+            return response.getResponseCharset();
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -30,7 +31,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -129,6 +132,7 @@ import org.vfny.geoserver.util.DataStoreUtils;
  * <li>{@link #featureTypeCache} </li>
  * <li>{@link #featureTypeAttributeCache} </li>
  * <li>{@link #wmsCache} </li>
+ * <li>{@link #cascadedResponseCache} - GetMap and GetFeatureInfo responses of the cascaded WMS servers</li>
  * <li>{@link #coverageReaderCache} </li>
  * <li>{@link #hintCoverageReaderCache} </li>
  * <li>{@link #styleCache} </li>
@@ -181,12 +185,22 @@ public class ResourcePool {
     private static final String IMAGE_PYRAMID = "ImagePyramid";
     private static final String IMAGE_MOSAIC = "ImageMosaic";
 
+    /**
+     * The maximum number of concurrent requests run against a single cascaded WMS host, summed
+     * over all the stores pointing at it. Zero or less, the default, means no limit
+     */
+    public static final String MAX_CONNECTIONS_PER_HOST_KEY = "org.geoserver.wms.cascade.maxConnectionsPerHost";
+
     Catalog catalog;
     Map<String, CoordinateReferenceSystem> crsCache;
     DataStoreCache dataStoreCache;
     Map<String, FeatureType> featureTypeCache;
     Map<String, List<AttributeTypeInfo>> featureTypeAttributeCache;
     Map<String, WebMapServer> wmsCache;
+    CascadedResponseCache cascadedResponseCache;
+    ConcurrentHashMap<String, HTTPClient> pooledHttpClients;
+    ConcurrentHashMap<String, Semaphore> hostPermits;
+    int maxConnectionsPerHost;
     Map<String, GridCoverageReader>  coverageReaderCache;
     Map<CoverageHintReaderKey, GridCoverageReader> hintCoverageReaderCache;
     Map<StyleInfo,Style> styleCache;
@@ -226,6 +240,10 @@ public class ResourcePool {
         hintCoverageReaderCache = createHintCoverageReaderCache();
         
         wmsCache = createWmsCache();
+        cascadedResponseCache = createCascadedResponseCache();
+        pooledHttpClients = new ConcurrentHashMap<String, HTTPClient>();
+        hostPermits = new ConcurrentHashMap<String, Semaphore>();
+        maxConnectionsPerHost = (int) getLongProperty(MAX_CONNECTIONS_PER_HOST_KEY, 0);
         styleCache = createStyleCache();
 
         listeners = new CopyOnWriteArrayList<Listener>();
@@ -395,6 +413,33 @@ public class ResourcePool {
         return new WMSCache();
     }
 
+    /**
+     * Returns the cache of the GetMap and GetFeatureInfo responses of the cascaded WMS servers
+     */
+    public CascadedResponseCache getCascadedResponseCache() {
+        return cascadedResponseCache;
+    }
+
+    protected CascadedResponseCache createCascadedResponseCache() {
+        long size = getLongProperty(CascadedResponseCache.CACHE_SIZE_KEY,
+                CascadedResponseCache.DEFAULT_CACHE_SIZE);
+        long ttl = getLongProperty(CascadedResponseCache.DEFAULT_TTL_KEY, 0);
+        return new CascadedResponseCache(size, ttl * 1000);
+    }
+
+    static long getLongProperty(String key, long defaultValue) {
+        String value = GeoServerExtensions.getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value " + value + " for " + key + ", using the default: "
+                        + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * Sets the size of the feature type cache.
      * <p>
@@ -1654,15 +1699,37 @@ public class ResourcePool {
         
         HTTPClient client;
         if (info.isUseConnectionPooling()) {
-            client = new MultithreadedHttpClient();
-            if (info.getMaxConnections() > 0) {
-                int maxConnections = info.getMaxConnections();
-                MultithreadedHttpClient mtClient = (MultithreadedHttpClient) client;
-                mtClient.setMaxConnections(maxConnections);
+            client = info.getId() == null ? null : pooledHttpClients.get(info.getId());
+            if (client == null) {
+                client = new MultithreadedHttpClient();
+                if (info.getMaxConnections() > 0) {
+                    int maxConnections = info.getMaxConnections();
+                    MultithreadedHttpClient mtClient = (MultithreadedHttpClient) client;
+                    mtClient.setMaxConnections(maxConnections);
+                }
+                configureHTTPClient(client, info);
+                // the pool is shared by all the WebMapServer built for the store, until the
+                // store gets modified or removed
+                if (info.getId() != null) {
+                    HTTPClient existing = pooledHttpClients.putIfAbsent(info.getId(), client);
+                    if (existing != null) {
+                        client = existing;
+                    }
+                }
             }
         } else {
             client = new SimpleHttpClient();
+            configureHTTPClient(client, info);
+        }
+
+        if (maxConnectionsPerHost > 0) {
+            client = new HostLimitingHttpClient(client, getHostPermits(info));
         }
+
+        return new CachingHttpClient(client, cascadedResponseCache, info.getId());
+    }
+
+    private void configureHTTPClient(HTTPClient client, WMSStoreInfo info) {
         String username = info.getUsername();
         String password = info.getPassword();
         int connectTimeout = info.getConnectTimeout();
@@ -1671,8 +1738,30 @@ public class ResourcePool {
         client.setPassword(password);
         client.setConnectTimeout(connectTimeout);
         client.setReadTimeout(readTimeout);
-        
-        return client;
+    }
+
+    /**
+     * The permits bounding the concurrent requests against the host of the store, shared by all
+     * the stores pointing at the same host
+     */
+    private Semaphore getHostPermits(WMSStoreInfo info) {
+        String host;
+        try {
+            URL url = new URL(info.getCapabilitiesURL());
+            host = url.getProtocol() + "://" + url.getHost().toLowerCase() + ":"
+                    + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        } catch (MalformedURLException e) {
+            host = info.getCapabilitiesURL();
+        }
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(maxConnectionsPerHost, true);
+            Semaphore existing = hostPermits.putIfAbsent(host, permits);
+            if (existing != null) {
+                permits = existing;
+            }
+        }
+        return permits;
     }
 
     /**
@@ -1704,6 +1793,12 @@ public class ResourcePool {
      */
     public void clear( WMSStoreInfo info ) {
         wmsCache.remove( info.getId() );
+        cascadedResponseCache.clear( info.getId() );
+        // the pool settings might have changed, the connections of the old pool are released
+        // once the clients using it are garbage collected
+        if (info.getId() != null) {
+            pooledHttpClients.remove( info.getId() );
+        }
     }
     
     /**
@@ -1886,6 +1981,9 @@ public class ResourcePool {
         coverageReaderCache.clear();
         hintCoverageReaderCache.clear();
         wmsCache.clear();
+        cascadedResponseCache.clear();
+        pooledHttpClients.clear();
+        hostPermits.clear();
         styleCache.clear();
         listeners.clear();
     }
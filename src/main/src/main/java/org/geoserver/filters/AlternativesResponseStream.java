@@ -28,12 +28,23 @@ public class AlternativesResponseStream extends ServletOutputStream {
     HttpServletResponse myResponse;
     ServletOutputStream myStream;
     Set myCompressibleTypes;
+    long myParallelThreshold;
     Logger logger = org.geotools.util.logging.Logging.getLogger("org.geoserver.filters");
 
     public AlternativesResponseStream(HttpServletResponse response, Set compressible) throws IOException {
+        this(response, compressible, -1);
+    }
+
+    /**
+     * @param parallelThreshold the uncompressed size after which the compression switches to
+     *        parallel, see {@link GZIPResponseStream}
+     */
+    public AlternativesResponseStream(HttpServletResponse response, Set compressible,
+            long parallelThreshold) throws IOException {
         super();
         myResponse = response;
         myCompressibleTypes = compressible;
+        myParallelThreshold = parallelThreshold;
     }
 
     public void close() throws IOException {
@@ -68,7 +79,7 @@ public class AlternativesResponseStream extends ServletOutputStream {
 
         if (type != null && isCompressible(type)){
             logger.log(Level.FINE, "Compressing output for mimetype: {0}", type);
-            myStream = new GZIPResponseStream(myResponse);
+            myStream = new GZIPResponseStream(myResponse, myParallelThreshold);
         } else {
             logger.log(Level.FINE, "Not compressing output for mimetype: {0}", type);
             myStream = myResponse.getOutputStream();
@@ -29,6 +29,8 @@ import javax.servlet.http.HttpServletResponse;
 public class GZIPFilter implements Filter {
 
     private Set myCompressedTypes;
+    
+    private long myParallelThreshold = -1;
 
     public void doFilter(ServletRequest req, ServletResponse res,
             FilterChain chain) throws IOException, ServletException {
@@ -38,7 +40,8 @@ public class GZIPFilter implements Filter {
             String ae = request.getHeader("accept-encoding");
             if (ae != null && ae.indexOf("gzip") != -1) {
                 GZIPResponseWrapper wrappedResponse =
-                    new GZIPResponseWrapper(response, myCompressedTypes, request.getRequestURL().toString());
+                    new GZIPResponseWrapper(response, myCompressedTypes, request.getRequestURL().toString(),
+                        myParallelThreshold);
                 chain.doFilter(req, wrappedResponse);
                 wrappedResponse.finishResponse();
                 return;
@@ -58,6 +61,12 @@ public class GZIPFilter implements Filter {
             for (int i = 0; i < typeNames.length; i++){
                 myCompressedTypes.add(Pattern.compile(typeNames[i]));
             }
+            
+            // size of the uncompressed output after which the compression goes parallel
+            String parallelThreshold = filterConfig.getInitParameter("parallel-threshold");
+            if (parallelThreshold != null) {
+                myParallelThreshold = Long.parseLong(parallelThreshold.trim());
+            }
         } catch (Exception e){
             System.out.println("Error while setting up GZIPFilter; " + e);
         }
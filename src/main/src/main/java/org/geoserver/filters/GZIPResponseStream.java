@@ -13,33 +13,71 @@ package org.geoserver.filters;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 
+/**
+ * Compresses the response in memory, then writes it out with its content length.
+ * <p>
+ * When a parallel threshold is set, once the uncompressed output exceeds it the gzip member
+ * written so far is finished and the rest of the output is compressed in parallel, as a second
+ * member of the gzip stream (see {@link ParallelGZIPOutputStream}).
+ * </p>
+ */
 public class GZIPResponseStream extends ServletOutputStream {
     protected ByteArrayOutputStream baos = null;
     protected GZIPOutputStream gzipstream = null;
+    protected ParallelGZIPOutputStream parallelstream = null;
     protected boolean closed = false;
     protected HttpServletResponse response = null;
     protected ServletOutputStream output = null;
+    protected long parallelThreshold;
+    protected long written;
 
     public GZIPResponseStream(HttpServletResponse response) throws IOException {
+        this(response, -1);
+    }
+
+    /**
+     * @param parallelThreshold the uncompressed size after which the compression switches to
+     *        parallel, disabled if not positive
+     */
+    public GZIPResponseStream(HttpServletResponse response, long parallelThreshold)
+            throws IOException {
         super();
         closed = false;
         this.response = response;
         this.output = response.getOutputStream();
+        this.parallelThreshold = parallelThreshold;
         baos = new ByteArrayOutputStream();
         gzipstream = new GZIPOutputStream(baos);
     }
 
+    /**
+     * The stream the uncompressed data is currently written to
+     */
+    protected OutputStream getCompressingStream() throws IOException {
+        if (parallelstream == null && parallelThreshold > 0 && written >= parallelThreshold) {
+            // the output is large, finish the current member and go parallel
+            gzipstream.finish();
+            parallelstream = new ParallelGZIPOutputStream(baos);
+        }
+        return parallelstream != null ? parallelstream : gzipstream;
+    }
+
     public void close() throws IOException {
         if (closed) {
             throw new IOException("This output stream has already been closed");
         }
-        gzipstream.finish();
+        if (parallelstream != null) {
+            parallelstream.finish();
+        } else {
+            gzipstream.finish();
+        }
 
         byte[] bytes = baos.toByteArray();
         String contentLength = Integer.toString(bytes.length);
@@ -65,14 +103,15 @@ public class GZIPResponseStream extends ServletOutputStream {
         if (closed) {
             throw new IOException("Cannot flush a closed output stream");
         }
-        gzipstream.flush();
+        getCompressingStream().flush();
     }
 
     public void write(int b) throws IOException {
         if (closed) {
             throw new IOException("Cannot write to a closed output stream");
         }
-        gzipstream.write((byte)b);
+        getCompressingStream().write((byte)b);
+        written++;
     }
 
     public void write(byte b[]) throws IOException {
@@ -83,7 +122,8 @@ public class GZIPResponseStream extends ServletOutputStream {
         if (closed) {
             throw new IOException("Cannot write to a closed output stream");
         }
-        gzipstream.write(b, off, len);
+        getCompressingStream().write(b, off, len);
+        written += len;
     }
 
     public boolean closed() {
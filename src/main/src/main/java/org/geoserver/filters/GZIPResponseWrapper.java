@@ -27,18 +27,25 @@ public class GZIPResponseWrapper extends HttpServletResponseWrapper {
     protected PrintWriter writer = null;
     protected Set formatsToCompress;
     protected String requestedURL;
+    protected long parallelThreshold;
     protected Logger logger = org.geotools.util.logging.Logging.getLogger("org.geoserver.filters");
 
     public GZIPResponseWrapper(HttpServletResponse response, Set toCompress, String url) {
+        this(response, toCompress, url, -1);
+    }
+
+    public GZIPResponseWrapper(HttpServletResponse response, Set toCompress, String url, 
+            long parallelThreshold) {
         super(response);
         requestedURL = url;
         origResponse = response;
         // TODO: allow user-configured format list here
         formatsToCompress = toCompress;
+        this.parallelThreshold = parallelThreshold;
     }
 
     protected AlternativesResponseStream createOutputStream() throws IOException {
-        return new AlternativesResponseStream(origResponse, formatsToCompress);
+        return new AlternativesResponseStream(origResponse, formatsToCompress, parallelThreshold);
     }
 
     public void setContentType(String type){
@@ -0,0 +1,263 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.filters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.geoserver.platform.GeoServerExtensions;
+
+/**
+ * A gzip output stream compressing blocks of the input in parallel, on a thread pool shared by
+ * all the streams. Each block is deflated independently, using the end of the previous block as
+ * the dictionary, and ends with a sync flush so that the compressed blocks can be concatenated
+ * in a single deflate stream: the result is a standard, single member, gzip stream.
+ * <p>
+ * The number of blocks being compressed at any time by a stream is bounded, the writer waits for
+ * the oldest one to complete when the limit is reached. The size of the shared thread pool is
+ * set by the {@code org.geoserver.filters.gzipThreads} property, and defaults to the number of
+ * processors.
+ * </p>
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+    static final String THREADS_KEY = "org.geoserver.filters.gzipThreads";
+
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    static final byte[] HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+            0, 0, 0 };
+
+    static ExecutorService sharedPool;
+
+    /**
+     * Returns the pool shared by all the streams, creating it on first use
+     */
+    static synchronized ExecutorService getSharedPool() {
+        if (sharedPool == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            String value = GeoServerExtensions.getProperty(THREADS_KEY);
+            if (value != null) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    // keep the default
+                }
+            }
+            final AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "gzip-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sharedPool = executor;
+        }
+        return sharedPool;
+    }
+
+    OutputStream out;
+
+    ExecutorService pool;
+
+    int level;
+
+    int maxPending;
+
+    byte[] block = new byte[BLOCK_SIZE];
+
+    int count;
+
+    byte[] dictionary;
+
+    CRC32 crc = new CRC32();
+
+    long total;
+
+    LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    boolean finished;
+
+    /**
+     * Compresses on the shared pool, with the default compression level
+     */
+    public ParallelGZIPOutputStream(OutputStream out) throws IOException {
+        this(out, getSharedPool(), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param out the destination of the gzip stream
+     * @param pool the pool compressing the blocks
+     * @param level the deflate compression level
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService pool, int level)
+            throws IOException {
+        this.out = out;
+        this.pool = pool;
+        this.level = level;
+        this.maxPending = Runtime.getRuntime().availableProcessors() * 2;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+        if (count == block.length) {
+            submit(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == block.length) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Hands over the current block to the pool, writing out the oldest compressed blocks if too
+     * many are pending
+     */
+    void submit(final boolean last) throws IOException {
+        if (finished) {
+            throw new IOException("Cannot write to a finished gzip stream");
+        }
+        final byte[] data = block;
+        final int length = count;
+        final byte[] previous = dictionary;
+        crc.update(data, 0, length);
+        total += length;
+        // the end of this block is the dictionary of the next one
+        dictionary = Arrays.copyOfRange(data, Math.max(0, length - DICTIONARY_SIZE), length);
+
+        pending.add(pool.submit(new Callable<byte[]>() {
+
+            public byte[] call() throws Exception {
+                return deflate(data, length, previous, last, level);
+            }
+        }));
+        block = new byte[BLOCK_SIZE];
+        count = 0;
+
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null && dictionary.length > 0) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    result.write(buffer, 0, n);
+                }
+            } else {
+                // the sync flush aligns the output on a byte boundary, without ending the stream
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    void writeNext() throws IOException {
+        Future<byte[]> future = pending.removeFirst();
+        try {
+            out.write(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing the output");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress the output", e.getCause());
+        }
+    }
+
+    /**
+     * Compresses the remaining data and writes the gzip trailer, without closing the destination
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            submit(true);
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            finished = true;
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+        }
+        writeInt((int) crc.getValue());
+        writeInt((int) total);
+    }
+
+    void writeInt(int i) throws IOException {
+        // little endian, as mandated by the gzip format
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+    /**
+     * Flushes the destination, the data still being compressed is not waited for
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+}
@@ -236,8 +236,19 @@ public final class Requests {
      */
     public static InputStream getInputStream(URL url) throws IOException {
         //Open the connection
-        URLConnection conn = url.openConnection();
+        return getInputStream(url.openConnection());
+    }
 
+    /**
+     * Same as {@link #getInputStream(URL)}, but works against a connection that has not been
+     * opened yet, allowing the caller to set up extra request properties and to inspect the
+     * response headers afterwards
+     *
+     * @param conn the connection, not connected yet
+     * @return the response input stream, eventually decompressed
+     * @throws IOException
+     */
+    public static InputStream getInputStream(URLConnection conn) throws IOException {
         //If it is the http or https scheme, then ask for gzip if the server supports it.
         if (conn instanceof HttpURLConnection) {
             //Send the requested encoding to the remote server.
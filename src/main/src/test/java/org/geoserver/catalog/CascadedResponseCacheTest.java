@@ -0,0 +1,390 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.geotools.data.ows.HTTPClient;
+import org.geotools.data.ows.HTTPResponse;
+import org.geotools.data.ows.SimpleHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class CascadedResponseCacheTest {
+
+    HttpServer server;
+
+    StubHandler handler;
+
+    String baseURL;
+
+    @Before
+    public void startServer() throws IOException {
+        handler = new StubHandler();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/wms", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseURL = "http://localhost:" + server.getAddress().getPort() + "/wms?";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        handler.cacheControl = "max-age=60";
+        HTTPClient client = newClient(new CascadedResponseCache(1024 * 1024, 0));
+
+        URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        assertArrayEquals(StubHandler.CONTENTS, read(client.get(url)));
+        HTTPResponse cached = client.get(url);
+        assertArrayEquals(StubHandler.CONTENTS, read(cached));
+        assertEquals("image/png", cached.getContentType());
+        assertEquals("max-age=60", cached.getResponseHeader("cache-control"));
+        assertEquals(1, handler.hits.get());
+    }
+
+    @Test
+    public void testNormalizedRequest() throws Exception {
+        handler.cacheControl = "max-age=60";
+        HTTPClient client = newClient(new CascadedResponseCache(1024 * 1024, 0));
+
+        client.get(new URL(baseURL + "SERVICE=WMS&REQUEST=GetMap&LAYERS=a&FORMAT=image%2Fpng"));
+        client.get(new URL(baseURL + "format=image/png&layers=a&request=GetMap&service=WMS"));
+        assertEquals(1, handler.hits.get());
+
+        // a different request is not shared
+        client.get(new URL(baseURL + "format=image/png&layers=b&request=GetMap&service=WMS"));
+        assertEquals(2, handler.hits.get());
+    }
+
+    @Test
+    public void testScopes() throws Exception {
+        handler.cacheControl = "max-age=60";
+        CascadedResponseCache cache = new CascadedResponseCache(1024 * 1024, 0);
+        HTTPClient client1 = new CachingHttpClient(new SimpleHttpClient(), cache, "store1");
+        HTTPClient client2 = new CachingHttpClient(new SimpleHttpClient(), cache, "store2");
+
+        URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        client1.get(url);
+        client2.get(url);
+        assertEquals(2, handler.hits.get());
+
+        cache.clear("store1");
+        client1.get(url);
+        client2.get(url);
+        assertEquals(3, handler.hits.get());
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+        handler.cacheControl = "no-store";
+        HTTPClient client = newClient(new CascadedResponseCache(1024 * 1024, 60000));
+
+        URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        client.get(url);
+        client.get(url);
+        assertEquals(2, handler.hits.get());
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+        handler.expires = "Thu, 01 Jan 1970 00:00:00 GMT";
+        HTTPClient client = newClient(new CascadedResponseCache(1024 * 1024, 60000));
+
+        URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        client.get(url);
+        client.get(url);
+        assertEquals(2, handler.hits.get());
+    }
+
+    @Test
+    public void testDefaultTimeToLive() throws Exception {
+        HTTPClient client = newClient(new CascadedResponseCache(1024 * 1024, 60000));
+
+        URL url = new URL(baseURL + "service=WMS&request=GetFeatureInfo&layers=a");
+        client.get(url);
+        client.get(url);
+        assertEquals(1, handler.hits.get());
+
+        // capabilities are not cached
+        url = new URL(baseURL + "service=WMS&request=GetCapabilities");
+        client.get(url);
+        client.get(url);
+        assertEquals(3, handler.hits.get());
+    }
+
+    @Test
+    public void testServiceException() throws Exception {
+        handler.cacheControl = "max-age=60";
+        handler.contentType = "application/vnd.ogc.se_xml";
+        HTTPClient client = newClient(new CascadedResponseCache(1024 * 1024, 0));
+
+        URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        client.get(url);
+        client.get(url);
+        assertEquals(2, handler.hits.get());
+    }
+
+    @Test
+    public void testSizeBound() throws Exception {
+        handler.cacheControl = "max-age=60";
+        int size = StubHandler.CONTENTS.length;
+        CascadedResponseCache cache = new CascadedResponseCache(size * 2, 0);
+        HTTPClient client = newClient(cache);
+
+        for (String layer : new String[] { "a", "b", "c" }) {
+            client.get(new URL(baseURL + "request=GetMap&layers=" + layer));
+        }
+        assertEquals(size * 2, cache.getSize());
+        assertEquals(3, handler.hits.get());
+
+        // "a" has been evicted, "c" is still there
+        client.get(new URL(baseURL + "request=GetMap&layers=c"));
+        assertEquals(3, handler.hits.get());
+        client.get(new URL(baseURL + "request=GetMap&layers=a"));
+        assertEquals(4, handler.hits.get());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        handler.cacheControl = "max-age=60";
+        handler.delay = 1000;
+        assertEquals(1, runConcurrently(newClient(new CascadedResponseCache(1024 * 1024, 0)), 4));
+    }
+
+    @Test
+    public void testNotCacheableNotShared() throws Exception {
+        handler.cacheControl = "no-cache";
+        handler.delay = 500;
+        // each request streams its own response
+        assertEquals(4, runConcurrently(newClient(new CascadedResponseCache(1024 * 1024, 0)), 4));
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        handler.cacheControl = "max-age=60";
+        CascadedResponseCache cache = new CascadedResponseCache(StubHandler.CONTENTS.length - 1,
+                0);
+        HTTPClient client = newClient(cache);
+
+        URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        assertArrayEquals(StubHandler.CONTENTS, read(client.get(url)));
+        assertArrayEquals(StubHandler.CONTENTS, read(client.get(url)));
+        assertEquals(2, handler.hits.get());
+
+        // same without a declared content length, the response is streamed after the limit
+        handler.chunked = true;
+        assertArrayEquals(StubHandler.CONTENTS, read(client.get(url)));
+        assertArrayEquals(StubHandler.CONTENTS, read(client.get(url)));
+        assertEquals(4, handler.hits.get());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testHostLimit() throws Exception {
+        handler.cacheControl = "no-cache";
+        handler.delay = 200;
+        Semaphore permits = new Semaphore(2);
+        HTTPClient client = new CachingHttpClient(new HostLimitingHttpClient(
+                new SimpleHttpClient(), permits), new CascadedResponseCache(1024 * 1024, 0), "test");
+
+        assertEquals(6, runConcurrently(client, 6));
+        assertEquals(2, handler.maxRunning.get());
+        assertEquals(2, permits.availablePermits());
+    }
+
+    @Test
+    public void testHostLimitTimeout() throws Exception {
+        SimpleHttpClient delegate = new SimpleHttpClient();
+        delegate.setConnectTimeout(1);
+        HTTPClient client = new HostLimitingHttpClient(delegate, new Semaphore(1));
+
+        URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        HTTPResponse response = client.get(url);
+        try {
+            client.get(url);
+            fail("Should have timed out waiting for the first response to be disposed");
+        } catch (IOException e) {
+            // fine
+        }
+        // disposing gives back the permit
+        response.dispose();
+        assertArrayEquals(StubHandler.CONTENTS, read(client.get(url)));
+    }
+
+    /**
+     * Runs the same GetMap concurrently, returning the number of hits on the remote server
+     */
+    int runConcurrently(final HTTPClient client, int count) throws Exception {
+        final URL url = new URL(baseURL + "service=WMS&request=GetMap&layers=a&format=image/png");
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < count; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() throws Exception {
+                        return read(client.get(url));
+                    }
+                }));
+            }
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(StubHandler.CONTENTS, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return handler.hits.get();
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        CascadedResponseCache cache = new CascadedResponseCache(1024, 5000);
+        long now = System.currentTimeMillis();
+        assertEquals(5000, cache.getTimeToLive(response(), now));
+        assertEquals(60000,
+                cache.getTimeToLive(response("Cache-Control", "public, max-age=60"), now));
+        assertEquals(10000, cache.getTimeToLive(
+                response("Cache-Control", "max-age=60, s-maxage=10"), now));
+        assertEquals(0, cache.getTimeToLive(response("Cache-Control", "private"), now));
+        assertEquals(30000, cache.getTimeToLive(
+                response("Expires", "Thu, 01 Jan 2015 00:00:30 GMT", "Date",
+                        "Thu, 01 Jan 2015 00:00:00 GMT"), now));
+        assertEquals(0, cache.getTimeToLive(response("Expires", "0"), now));
+    }
+
+    HTTPClient newClient(CascadedResponseCache cache) {
+        return new CachingHttpClient(new SimpleHttpClient(), cache, "test");
+    }
+
+    CascadedResponseCache.CachedResponse response(final String... headers) {
+        HTTPResponse response = new HTTPResponse() {
+
+            @Override
+            public void dispose() {
+            }
+
+            @Override
+            public String getContentType() {
+                return "image/png";
+            }
+
+            @Override
+            public String getResponseHeader(String headerName) {
+                for (int i = 0; i < headers.length; i += 2) {
+                    if (headers[i].equalsIgnoreCase(headerName)) {
+                        return headers[i + 1];
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public InputStream getResponseStream() throws IOException {
+                return null;
+            }
+
+            @Override
+            public String getResponseCharset() {
+                return null;
+            }
+        };
+        return new CascadedResponseCache.CachedResponse(response, new byte[0]);
+    }
+
+    static byte[] read(HTTPResponse response) throws IOException {
+        InputStream is = response.getResponseStream();
+        try {
+            return IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+            response.dispose();
+        }
+    }
+
+    /**
+     * A stub remote server, counting the requests it receives
+     */
+    static class StubHandler implements HttpHandler {
+
+        static final byte[] CONTENTS = "the map contents".getBytes();
+
+        final AtomicInteger hits = new AtomicInteger();
+
+        final AtomicInteger running = new AtomicInteger();
+
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        volatile String contentType = "image/png";
+
+        volatile String cacheControl;
+
+        volatile String expires;
+
+        volatile long delay;
+
+        volatile boolean chunked;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            hits.incrementAndGet();
+            int current = running.incrementAndGet();
+            try {
+                int max = maxRunning.get();
+                while (current > max && !maxRunning.compareAndSet(max, current)) {
+                    max = maxRunning.get();
+                }
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        // go on
+                    }
+                }
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                if (cacheControl != null) {
+                    exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+                }
+                if (expires != null) {
+                    exchange.getResponseHeaders().set("Expires", expires);
+                }
+                exchange.sendResponseHeaders(200, chunked ? 0 : CONTENTS.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(CONTENTS);
+                os.close();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+}
@@ -35,6 +35,30 @@ public class GZIPResponseStreamTest  {
         assertEquals("Hello world!", new String(unzip(response.toByteArray())));
     }
 
+    @Test
+    public void testParallelStream() throws Exception {
+        ByteStreamCapturingHttpServletResponse response = 
+            new ByteStreamCapturingHttpServletResponse(new MockHttpServletResponse());
+        // switch to parallel compression after the first kilobyte
+        GZIPResponseStream stream = new GZIPResponseStream(response, 1024);
+        
+        // several blocks, with some repetition for the dictionaries to matter
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append("Hello world ").append(i % 1000).append("!");
+        }
+        byte[] content = sb.toString().getBytes();
+        stream.write(content, 0, 10);
+        stream.write(content, 10, content.length - 10);
+        stream.flush();
+        stream.close();
+        
+        assertNotNull(stream.parallelstream);
+        byte[] zipped = response.toByteArray();
+        assertTrue(zipped.length < content.length / 5);
+        assertArrayEquals(content, unzip(zipped));
+    }
+
     private byte[] unzip(byte[] zipped) throws Exception {
         InputStream stream  =
             new GZIPInputStream(new ByteArrayInputStream(zipped));
@@ -0,0 +1,299 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.TransactionResponseType;
+import net.opengis.wfs.TransactionType;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Base class for the caches of values computed out of the catalog layers, taking care of
+ * dropping them when the layers change.
+ * <p>
+ * The values of a layer are dropped when the layer or its resource are modified or removed from
+ * the catalog, and all the values are dropped on other catalog changes. For caches whose values
+ * depend on the layer data the layers modified by a WFS transaction are collected in the
+ * transaction, and their values dropped once the transaction is committed. Transaction events are
+ * received merged by layer and type, see {@link CoalescingTransactionListener}.
+ * </p>
+ * <p>
+ * Subclasses provide the actual invalidation, and can refine the reaction to catalog changes
+ * overriding {@link #handleOtherChange(Object)} and {@link #handleAddEvent(CatalogAddEvent)}.
+ * </p>
+ */
+public abstract class AbstractLayerCache implements CatalogListener, TransactionPlugin,
+        CoalescingTransactionListener {
+
+    static final Logger LOGGER = Logging.getLogger(AbstractLayerCache.class);
+
+    protected final Catalog catalog;
+
+    /**
+     * Whether the cached values depend on the layer data, and are affected by transactions
+     */
+    final boolean dataDependent;
+
+    /**
+     * The key under which the layers modified by a transaction are collected in its extended
+     * properties, waiting for the transaction to be committed
+     */
+    final String transactionKey = getClass().getName() + ".changes";
+
+    protected AbstractLayerCache(Catalog catalog, boolean dataDependent) {
+        this.catalog = catalog;
+        this.dataDependent = dataDependent;
+    }
+
+    /**
+     * Reads a numeric property, logging a warning and falling back on the default if the value
+     * is invalid
+     */
+    protected static long getLongProperty(String key, long defaultValue) {
+        String value = GeoServerExtensions.getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + key + ": " + value
+                        + ", using the default: " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Drops all the values computed out of the specified layer
+     *
+     * @param layerName the layer prefixed name
+     */
+    public abstract void invalidate(String layerName);
+
+    /**
+     * Drops the values computed out of the specified layer that are affected by a change in the
+     * given area. Drops all of them by default.
+     *
+     * @param layerName the layer prefixed name
+     * @param bounds the modified area, or null if unknown
+     */
+    public void invalidate(String layerName, ReferencedEnvelope bounds) {
+        invalidate(layerName);
+    }
+
+    /**
+     * Drops all the values
+     */
+    public abstract void clear();
+
+    /**
+     * Drops all the values when the global configuration, or the configuration of the given
+     * service type, is modified
+     *
+     * @param geoServer the configuration to listen to
+     * @param serviceType the service type, or null for all of them
+     */
+    protected void clearOnConfigurationChange(GeoServer geoServer,
+            final Class<? extends ServiceInfo> serviceType) {
+        geoServer.addListener(new ConfigurationListenerAdapter() {
+            @Override
+            public void handlePostGlobalChange(GeoServerInfo global) {
+                clear();
+            }
+
+            @Override
+            public void handlePostServiceChange(ServiceInfo service) {
+                if (serviceType == null || serviceType.isInstance(service)) {
+                    clear();
+                }
+            }
+
+            @Override
+            public void reloaded() {
+                clear();
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------
+    // Catalog changes
+    // ----------------------------------------------------------------------------------------
+
+    void handleCatalogChange(CatalogEvent event) {
+        Object source = event.getSource();
+        if (source instanceof LayerInfo) {
+            ResourceInfo resource = ((LayerInfo) source).getResource();
+            if (resource != null) {
+                invalidate(resource.prefixedName());
+                return;
+            }
+        } else if (source instanceof ResourceInfo) {
+            invalidate(((ResourceInfo) source).prefixedName());
+            return;
+        }
+        handleOtherChange(source);
+    }
+
+    /**
+     * Called when a catalog object other than a layer or a resource is modified or removed,
+     * drops all the values by default
+     */
+    protected void handleOtherChange(Object source) {
+        clear();
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // a new object cannot be part of a cached value
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        handleCatalogChange(event);
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        handleCatalogChange(event);
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    // ----------------------------------------------------------------------------------------
+    // Transactions
+    // ----------------------------------------------------------------------------------------
+
+    /**
+     * Returns the area modified by the transaction event, or null if unknown. Returns null by
+     * default, subclasses caching area dependent values should compute it.
+     */
+    protected ReferencedEnvelope getModifiedArea(TransactionEvent event) {
+        return null;
+    }
+
+    /**
+     * Collects the modified layers in the transaction, the values are dropped only once the
+     * transaction is committed, see {@link #afterTransaction}
+     */
+    @Override
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (!dataDependent) {
+            return;
+        }
+        QName typeName = event.getLayerName();
+        String layerName = typeName.getLocalPart();
+        NamespaceInfo ns = catalog.getNamespaceByURI(typeName.getNamespaceURI());
+        if (ns != null) {
+            layerName = ns.getPrefix() + ":" + layerName;
+        }
+        ReferencedEnvelope bounds = getModifiedArea(event);
+
+        Map<String, List<ReferencedEnvelope>> changes = getTransactionChanges(event.getRequest(),
+                true);
+        if (changes == null) {
+            // nowhere to keep track of them, drop right away
+            invalidate(layerName, bounds);
+            return;
+        }
+        List<ReferencedEnvelope> layerChanges = changes.get(layerName);
+        if (layerChanges == null) {
+            layerChanges = new ArrayList<ReferencedEnvelope>(2);
+            changes.put(layerName, layerChanges);
+        }
+        layerChanges.add(bounds);
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, List<ReferencedEnvelope>> getTransactionChanges(TransactionType request,
+            boolean create) {
+        Map<Object, Object> properties = request == null ? null : request.getExtendedProperties();
+        if (properties == null) {
+            return null;
+        }
+        Map<String, List<ReferencedEnvelope>> changes;
+        changes = (Map<String, List<ReferencedEnvelope>>) properties.get(transactionKey);
+        if (changes == null && create) {
+            changes = new HashMap<String, List<ReferencedEnvelope>>();
+            properties.put(transactionKey, changes);
+        }
+        return changes;
+    }
+
+    @Override
+    public TransactionType beforeTransaction(TransactionType request) throws WFSException {
+        return request;
+    }
+
+    @Override
+    public void beforeCommit(TransactionType request) throws WFSException {
+        // nothing to do
+    }
+
+    /**
+     * Drops the values affected by the transaction, if committed
+     */
+    @Override
+    public void afterTransaction(TransactionType request, TransactionResponseType result,
+            boolean committed) {
+        Map<String, List<ReferencedEnvelope>> changes = getTransactionChanges(request, false);
+        if (changes == null) {
+            return;
+        }
+        request.getExtendedProperties().remove(transactionKey);
+        if (!committed) {
+            return;
+        }
+        try {
+            for (Map.Entry<String, List<ReferencedEnvelope>> entry : changes.entrySet()) {
+                for (ReferencedEnvelope bounds : entry.getValue()) {
+                    invalidate(entry.getKey(), bounds);
+                }
+            }
+        } catch (RuntimeException e) {
+            // the transaction is committed already, don't make it fail
+            LOGGER.log(Level.WARNING, "Failed to drop the cached values modified by the "
+                    + "transaction", e);
+        }
+    }
+
+    @Override
+    public int getPriority() {
+        return 0;
+    }
+}
@@ -0,0 +1,21 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+/**
+ * Implemented by transaction listeners that only need to know which layers, and which areas of
+ * them, a transaction modifies, such as caches and tile caches.
+ * <p>
+ * Instead of an event per transaction element these listeners receive, right before the
+ * transaction is committed, a single event per layer and event type. The merged event has no
+ * affected features, {@link TransactionEvent#getAffectedBounds()} returns the union of the
+ * areas affected by the merged events instead, computed when each of them was issued. Its source
+ * is the one of the first event merged. No event is issued if the transaction fails.
+ * </p>
+ */
+public interface CoalescingTransactionListener extends TransactionListener {
+
+}
@@ -6,6 +6,7 @@
 package org.geoserver.wfs;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
@@ -27,11 +28,25 @@ class CountExecutor {
 
     int providedCount = COUNT_UNSET;
 
+    HitsCache cache;
+
+    List<String> layers;
+
     public CountExecutor(FeatureSource source, Query query) {
         this.source = source;
         this.query = query;
     }
 
+    /**
+     * Builds an executor running the count through the hits cache, the layers are the ones the
+     * query is run against
+     */
+    public CountExecutor(FeatureSource source, Query query, HitsCache cache, List<String> layers) {
+        this(source, query);
+        this.cache = cache;
+        this.layers = layers;
+    }
+
     public CountExecutor(int providedCount) {
         this.providedCount = providedCount;
     }
@@ -39,6 +54,8 @@ class CountExecutor {
     public int getCount() throws IOException {
         if(providedCount != COUNT_UNSET) {
             return providedCount;
+        } else if (cache != null) {
+            return cache.getMatchedCount(layers, source, query);
         } else {
             return source.getCount(query);
         }
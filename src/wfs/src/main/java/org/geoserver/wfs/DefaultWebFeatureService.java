@@ -52,6 +52,16 @@ public class DefaultWebFeatureService implements WebFeatureService, ApplicationC
      */
     protected FilterFactory2 filterFactory;
 
+    /**
+     * Feature count cache
+     */
+    protected HitsCache hitsCache;
+
+    /**
+     * Runs the GetFeature queries concurrently
+     */
+    protected GetFeatureExecutor queryExecutor;
+
     /**
      * The spring application context, used to look up transaction listeners, plugins and
      * element handlers
@@ -70,6 +80,20 @@ public class DefaultWebFeatureService implements WebFeatureService, ApplicationC
         this.filterFactory = filterFactory;
     }
 
+    /**
+     * Sets the cache used for the GetFeature feature counts
+     */
+    public void setHitsCache(HitsCache hitsCache) {
+        this.hitsCache = hitsCache;
+    }
+
+    /**
+     * Sets the executor used to run the GetFeature queries concurrently
+     */
+    public void setQueryExecutor(GetFeatureExecutor queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
     public WFSInfo getServiceInfo() {
         return geoServer.getService(WFSInfo.class);
     }
@@ -118,6 +142,8 @@ public class DefaultWebFeatureService implements WebFeatureService, ApplicationC
         throws WFSException {
         GetFeature getFeature = new GetFeature(getServiceInfo(), catalog);
         getFeature.setFilterFactory(filterFactory);
+        getFeature.setHitsCache(hitsCache);
+        getFeature.setQueryExecutor(queryExecutor);
 
         return getFeature.run(new GetFeatureRequest.WFS11(request));
     }
@@ -49,6 +49,16 @@ public class DefaultWebFeatureService20 implements WebFeatureService20, Applicat
     /** filter factory */
     protected FilterFactory2 filterFactory;
 
+    /**
+     * Feature count cache
+     */
+    protected HitsCache hitsCache;
+
+    /**
+     * Runs the GetFeature queries concurrently
+     */
+    protected GetFeatureExecutor queryExecutor;
+
     /**
      * The spring application context, used to look up transaction listeners, plugins and
      * element handlers
@@ -62,6 +72,20 @@ public class DefaultWebFeatureService20 implements WebFeatureService20, Applicat
     public void setFilterFactory(FilterFactory2 filterFactory) {
         this.filterFactory = filterFactory;
     }
+
+    /**
+     * Sets the cache used for the GetFeature feature counts
+     */
+    public void setHitsCache(HitsCache hitsCache) {
+        this.hitsCache = hitsCache;
+    }
+
+    /**
+     * Sets the executor used to run the GetFeature queries concurrently
+     */
+    public void setQueryExecutor(GetFeatureExecutor queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
     
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.context = applicationContext;
@@ -93,6 +117,8 @@ public class DefaultWebFeatureService20 implements WebFeatureService20, Applicat
     public FeatureCollectionResponse getFeature(GetFeatureType request) throws WFSException {
         GetFeature gf = new GetFeature(getServiceInfo(), getCatalog());
         gf.setFilterFactory(filterFactory);
+        gf.setHitsCache(hitsCache);
+        gf.setQueryExecutor(queryExecutor);
         gf.setStoredQueryProvider(getStoredQueryProvider());
         
         return gf.run(new GetFeatureRequest.WFS20(request));
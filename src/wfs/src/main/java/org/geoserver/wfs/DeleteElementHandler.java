@@ -129,8 +129,16 @@ public class DeleteElementHandler extends AbstractTransactionElementHandler {
                 damaged = store.getFeatures(filter).getBounds();
             }
 
-            if ((request.getLockId() != null) && store instanceof FeatureLocking
-                    && (request.isReleaseActionSome())) {
+            // with the lock index the locks are checked here, instead of by the store
+            FeatureLockIndex lockIndex = FeatureLockIndex.lookup();
+            List<String> lockedFids = null;
+            if (lockIndex != null) {
+                lockedFids = lockIndex.check(elementName, store.getFeatures(filter),
+                        request.getLockId());
+            }
+
+            if (lockIndex == null && (request.getLockId() != null)
+                    && store instanceof FeatureLocking && (request.isReleaseActionSome())) {
                 SimpleFeatureLocking locking;
                 locking = (SimpleFeatureLocking) store;
 
@@ -187,6 +195,11 @@ public class DeleteElementHandler extends AbstractTransactionElementHandler {
             	if(deletedCount > 0)
             		deleted += deletedCount;
                 store.removeFeatures(filter);
+
+                if (lockIndex != null && request.getLockId() != null
+                        && request.isReleaseActionSome()) {
+                    lockIndex.release(request.getLockId(), elementName, lockedFids);
+                }
             }
         } catch (IOException e) {
             String msg = e.getMessage();
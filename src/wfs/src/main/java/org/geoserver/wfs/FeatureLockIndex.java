@@ -0,0 +1,698 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.FeatureLockException;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+
+/**
+ * A GeoServer level index of the WFS feature locks, used instead of the data store locking when
+ * the {@code org.geoserver.wfs.lockIndex} property is set to true.
+ * <p>
+ * The data store locking keeps an object per locked feature and scans them to find the expired
+ * ones, which does not scale to locks covering hundreds of thousands of features. This index
+ * instead:
+ * <ul>
+ * <li>keeps, for each feature type, the locked feature ids in a primitive long to int map, the
+ * int being the slot of the lock, whenever the ids are made of a common prefix followed by a
+ * number, as it's the case for most stores. Other ids go in a plain hash map</li>
+ * <li>records the locks requested with a filter as the filter itself, the features matching it
+ * are locked without getting an entry in the maps. Only the features that are not part of the
+ * lock, because they were locked by others or released, are recorded</li>
+ * <li>expires the locks lazily, through a timer wheel advanced by the index operations</li>
+ * <li>locks and checks the features in batches, and releases a whole lock at once</li>
+ * </ul>
+ * </p>
+ * <p>
+ * A filter lock also covers the features that start matching the filter after the lock was
+ * acquired, which is stricter than locking the features matching at lock time.
+ * </p>
+ */
+public class FeatureLockIndex {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureLockIndex.class);
+
+    static final String ENABLED_KEY = "org.geoserver.wfs.lockIndex";
+
+    /**
+     * The number of features locked or checked at once, while holding the index monitor
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * The timer wheel resolution, in milliseconds
+     */
+    static final long TICK = 1000;
+
+    static final int WHEEL_SIZE = 256;
+
+    /**
+     * The feature ids of a feature type, stored in a primitive map when made of a common prefix
+     * followed by a number
+     */
+    static class FidMap {
+        String prefix;
+
+        LongIntMap numeric = new LongIntMap();
+
+        Map<String, Integer> others = new HashMap<String, Integer>();
+
+        /**
+         * Returns the numeric part of the fid, or -1 if the fid does not have the common prefix
+         * followed by a number
+         */
+        long toKey(String fid) {
+            if (prefix == null) {
+                int dot = fid.lastIndexOf('.');
+                if (dot < 0 || parse(fid, dot + 1) < 0) {
+                    return -1;
+                }
+                prefix = fid.substring(0, dot + 1);
+            }
+            if (!fid.startsWith(prefix)) {
+                return -1;
+            }
+            return parse(fid, prefix.length());
+        }
+
+        /**
+         * Parses the number at the end of the fid, which must convert back to the very same
+         * digits
+         */
+        static long parse(String fid, int start) {
+            int length = fid.length() - start;
+            if (length < 1 || length > 18 || (length > 1 && fid.charAt(start) == '0')) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = start; i < fid.length(); i++) {
+                char c = fid.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        int get(String fid) {
+            long key = toKey(fid);
+            if (key >= 0) {
+                return numeric.get(key);
+            }
+            Integer value = others.get(fid);
+            return value == null ? LongIntMap.NO_VALUE : value;
+        }
+
+        int put(String fid, int value) {
+            long key = toKey(fid);
+            if (key >= 0) {
+                return numeric.put(key, value);
+            }
+            Integer previous = others.put(fid, value);
+            return previous == null ? LongIntMap.NO_VALUE : previous;
+        }
+
+        int remove(String fid) {
+            long key = toKey(fid);
+            if (key >= 0) {
+                return numeric.remove(key);
+            }
+            Integer previous = others.remove(fid);
+            return previous == null ? LongIntMap.NO_VALUE : previous;
+        }
+
+        boolean isEmpty() {
+            return numeric.isEmpty() && others.isEmpty();
+        }
+    }
+
+    /**
+     * The locks of a feature type
+     */
+    static class TypeLocks {
+        FidMap fids = new FidMap();
+
+        List<FilterLock> filterLocks = new ArrayList<FilterLock>();
+
+        boolean isEmpty() {
+            return fids.isEmpty() && filterLocks.isEmpty();
+        }
+    }
+
+    /**
+     * A lock covering the features matching a filter, but the excluded ones
+     */
+    static class FilterLock {
+        LockHolder holder;
+
+        String type;
+
+        Filter filter;
+
+        FidMap excluded = new FidMap();
+
+        FilterLock(LockHolder holder, String type, Filter filter) {
+            this.holder = holder;
+            this.type = type;
+            this.filter = filter;
+        }
+
+        boolean covers(Feature feature, String fid) {
+            return excluded.get(fid) == LongIntMap.NO_VALUE && filter.evaluate(feature);
+        }
+    }
+
+    /**
+     * The fids locked by a lock in a feature type, the numeric ones relative to the prefix of the
+     * type
+     */
+    static class FidList {
+        long[] numeric = new long[16];
+
+        int count;
+
+        List<String> others = new ArrayList<String>();
+
+        void add(long key) {
+            if (count == numeric.length) {
+                numeric = Arrays.copyOf(numeric, count * 2);
+            }
+            numeric[count++] = key;
+        }
+    }
+
+    /**
+     * A lock, identified by its authorization
+     */
+    static class LockHolder {
+        String authorization;
+
+        int slot;
+
+        /**
+         * The lock duration in milliseconds, zero for locks that never expire
+         */
+        long duration;
+
+        long expires;
+
+        boolean released;
+
+        Map<String, FidList> fids = new HashMap<String, FidList>();
+
+        List<FilterLock> filterLocks = new ArrayList<FilterLock>();
+
+        LockHolder(String authorization, int slot, long duration) {
+            this.authorization = authorization;
+            this.slot = slot;
+            this.duration = duration;
+        }
+
+        void add(String type, TypeLocks locks, String fid) {
+            FidList list = fids.get(type);
+            if (list == null) {
+                list = new FidList();
+                fids.put(type, list);
+            }
+            long key = locks.fids.toKey(fid);
+            if (key >= 0) {
+                list.add(key);
+            } else {
+                list.others.add(fid);
+            }
+        }
+    }
+
+    /**
+     * A hashed timer wheel, each bucket holds the locks expiring in a tick, plus the ones
+     * expiring a multiple of the wheel size later, which are just moved to the same bucket again
+     * when the bucket is processed
+     */
+    static class TimerWheel {
+        List<LockHolder>[] buckets;
+
+        long tick;
+
+        long current;
+
+        @SuppressWarnings("unchecked")
+        TimerWheel(int size, long tick, long now) {
+            this.buckets = new List[size];
+            this.tick = tick;
+            this.current = now / tick;
+        }
+
+        void schedule(LockHolder holder) {
+            long t = Math.max(holder.expires / tick, current + 1);
+            int i = (int) (t % buckets.length);
+            if (buckets[i] == null) {
+                buckets[i] = new ArrayList<LockHolder>();
+            }
+            buckets[i].add(holder);
+        }
+
+        /**
+         * Moves the wheel to the specified time, returning the locks that expired
+         */
+        List<LockHolder> advance(long now) {
+            long target = now / tick;
+            if (target <= current) {
+                return Collections.emptyList();
+            }
+            // visit each bucket at most once
+            long from = Math.max(current + 1, target - buckets.length + 1);
+            current = target;
+
+            List<LockHolder> expired = new ArrayList<LockHolder>();
+            for (long t = from; t <= target; t++) {
+                int i = (int) (t % buckets.length);
+                List<LockHolder> bucket = buckets[i];
+                if (bucket == null) {
+                    continue;
+                }
+                buckets[i] = null;
+                for (LockHolder holder : bucket) {
+                    if (holder.released) {
+                        continue;
+                    } else if (holder.expires <= now) {
+                        expired.add(holder);
+                    } else {
+                        // refreshed, or expiring in a later round
+                        schedule(holder);
+                    }
+                }
+            }
+            return expired;
+        }
+    }
+
+    Catalog catalog;
+
+    boolean enabled;
+
+    Map<String, TypeLocks> types = new HashMap<String, TypeLocks>();
+
+    Map<String, LockHolder> holders = new HashMap<String, LockHolder>();
+
+    List<LockHolder> slots = new ArrayList<LockHolder>();
+
+    Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+    TimerWheel wheel = new TimerWheel(WHEEL_SIZE, TICK, System.currentTimeMillis());
+
+    public FeatureLockIndex(Catalog catalog) {
+        this(catalog, Boolean.valueOf(GeoServerExtensions.getProperty(ENABLED_KEY)));
+    }
+
+    public FeatureLockIndex(Catalog catalog, boolean enabled) {
+        this.catalog = catalog;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Whether the index is used instead of the data store locking
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the index of the application context if it's enabled, null otherwise
+     */
+    public static FeatureLockIndex lookup() {
+        FeatureLockIndex index = GeoServerExtensions.bean(FeatureLockIndex.class);
+        return index != null && index.isEnabled() ? index : null;
+    }
+
+    /**
+     * The key of a feature type, types without a namespace are in the default one
+     */
+    String key(QName typeName) {
+        String uri = typeName.getNamespaceURI();
+        if (uri == null || uri.length() == 0) {
+            uri = catalog.getDefaultNamespace().getURI();
+        }
+        return uri + ":" + typeName.getLocalPart();
+    }
+
+    /**
+     * Creates a new lock, not locking any feature yet
+     *
+     * @param authorization the lock id
+     * @param duration the lock duration in milliseconds, zero for locks that never expire
+     */
+    public synchronized void create(String authorization, long duration) {
+        expire();
+        if (holders.containsKey(authorization)) {
+            throw new IllegalArgumentException("Lock " + authorization + " already exists");
+        }
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = slots.size();
+            slots.add(null);
+        } else {
+            slot = freeSlots.pop();
+        }
+        LockHolder holder = new LockHolder(authorization, slot, Math.max(0, duration));
+        slots.set(slot, holder);
+        holders.put(authorization, holder);
+        schedule(holder);
+    }
+
+    void schedule(LockHolder holder) {
+        if (holder.duration > 0) {
+            holder.expires = System.currentTimeMillis() + holder.duration;
+            wheel.schedule(holder);
+        }
+    }
+
+    /**
+     * Releases the locks that expired
+     */
+    void expire() {
+        expire(System.currentTimeMillis());
+    }
+
+    void expire(long now) {
+        for (LockHolder holder : wheel.advance(now)) {
+            LOGGER.fine("Lock " + holder.authorization + " expired");
+            release(holder);
+        }
+    }
+
+    LockHolder getHolder(String authorization) throws FeatureLockException {
+        LockHolder holder = holders.get(authorization);
+        if (holder == null) {
+            throw new FeatureLockException("Lock " + authorization
+                    + " does not exist, or has expired");
+        }
+        return holder;
+    }
+
+    /**
+     * Locks the features in the specified lock.
+     * <p>
+     * The features not locked by others are added to the locked list, the other ones to the not
+     * locked list. If the filter is not a feature id one, the features are locked as a filter
+     * lock, without recording them.
+     * </p>
+     *
+     * @param authorization the lock id
+     * @param typeName the feature type name
+     * @param filter the filter the features have been selected with
+     * @param features the features to lock
+     */
+    public void lock(String authorization, QName typeName, Filter filter,
+            FeatureIterator<? extends Feature> features, List<String> locked,
+            List<String> notLocked) throws IOException {
+        String type = key(typeName);
+        LockHolder holder;
+        FilterLock filterLock = null;
+        synchronized (this) {
+            expire();
+            holder = getHolder(authorization);
+            if (!(filter instanceof Id)) {
+                // registered before scanning, so that concurrent locks see it
+                filterLock = new FilterLock(holder, type, filter);
+                getTypeLocks(type).filterLocks.add(filterLock);
+                holder.filterLocks.add(filterLock);
+            }
+        }
+
+        List<Feature> batch = new ArrayList<Feature>(BATCH_SIZE);
+        while (features.hasNext()) {
+            batch.add(features.next());
+            if (batch.size() == BATCH_SIZE) {
+                lock(holder, type, filterLock, batch, locked, notLocked);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            lock(holder, type, filterLock, batch, locked, notLocked);
+        }
+    }
+
+    synchronized void lock(LockHolder holder, String type, FilterLock filterLock,
+            List<Feature> batch, List<String> locked, List<String> notLocked)
+            throws FeatureLockException {
+        expire();
+        if (holder.released) {
+            throw new FeatureLockException("Lock " + holder.authorization
+                    + " expired while locking the features");
+        }
+        TypeLocks locks = getTypeLocks(type);
+        for (Feature feature : batch) {
+            String fid = feature.getIdentifier().getID();
+            if (isLockedByOthers(locks, feature, fid, holder)) {
+                notLocked.add(fid);
+                if (filterLock != null) {
+                    filterLock.excluded.put(fid, 0);
+                }
+            } else {
+                locked.add(fid);
+                if (filterLock == null && locks.fids.put(fid, holder.slot) != holder.slot) {
+                    holder.add(type, locks, fid);
+                }
+            }
+        }
+    }
+
+    TypeLocks getTypeLocks(String type) {
+        TypeLocks locks = types.get(type);
+        if (locks == null) {
+            locks = new TypeLocks();
+            types.put(type, locks);
+        }
+        return locks;
+    }
+
+    boolean isLockedByOthers(TypeLocks locks, Feature feature, String fid, LockHolder self) {
+        int slot = locks.fids.get(fid);
+        if (slot != LongIntMap.NO_VALUE && (self == null || slot != self.slot)) {
+            return true;
+        }
+        for (FilterLock filterLock : locks.filterLocks) {
+            if (filterLock.holder != self && filterLock.covers(feature, fid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isLockedBy(String type, TypeLocks locks, Feature feature, String fid,
+            LockHolder holder) {
+        if (locks.fids.get(fid) == holder.slot) {
+            return true;
+        }
+        for (FilterLock filterLock : holder.filterLocks) {
+            if (filterLock.type.equals(type) && filterLock.covers(feature, fid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks that none of the features is locked by a lock other than the specified one, which
+     * can be null.
+     *
+     * @return the ids of the features locked by the specified lock
+     * @throws FeatureLockException if a feature is locked by another lock
+     */
+    public List<String> check(QName typeName, FeatureCollection<?, ?> features,
+            String authorization) throws IOException {
+        String type = key(typeName);
+        LockHolder holder = null;
+        synchronized (this) {
+            expire();
+            TypeLocks locks = types.get(type);
+            if (locks == null || locks.isEmpty()) {
+                return Collections.emptyList();
+            }
+            if (authorization != null) {
+                holder = holders.get(authorization);
+            }
+        }
+
+        List<String> owned = new ArrayList<String>();
+        List<Feature> batch = new ArrayList<Feature>(BATCH_SIZE);
+        FeatureIterator<?> it = features.features();
+        try {
+            while (it.hasNext()) {
+                batch.add(it.next());
+                if (batch.size() == BATCH_SIZE) {
+                    check(type, batch, holder, owned);
+                    batch.clear();
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (!batch.isEmpty()) {
+            check(type, batch, holder, owned);
+        }
+        return owned;
+    }
+
+    synchronized void check(String type, List<Feature> batch, LockHolder holder,
+            List<String> owned) throws FeatureLockException {
+        expire();
+        // the lock might have expired since the previous batch, and its slot reused by another
+        if (holder != null && holder.released) {
+            holder = null;
+        }
+        TypeLocks locks = types.get(type);
+        if (locks == null) {
+            return;
+        }
+        for (Feature feature : batch) {
+            String fid = feature.getIdentifier().getID();
+            if (isLockedByOthers(locks, feature, fid, holder)) {
+                throw new FeatureLockException("Feature " + fid + " is locked by another lock",
+                        fid);
+            }
+            if (holder != null && isLockedBy(type, locks, feature, fid, holder)) {
+                owned.add(fid);
+            }
+        }
+    }
+
+    /**
+     * Releases the specified features from the lock, the lock itself is kept
+     */
+    public synchronized void release(String authorization, QName typeName, List<String> fids) {
+        expire();
+        LockHolder holder = holders.get(authorization);
+        String type = key(typeName);
+        TypeLocks locks = types.get(type);
+        if (holder == null || locks == null) {
+            return;
+        }
+        for (String fid : fids) {
+            if (locks.fids.get(fid) == holder.slot) {
+                locks.fids.remove(fid);
+            }
+            for (FilterLock filterLock : holder.filterLocks) {
+                if (filterLock.type.equals(type)) {
+                    filterLock.excluded.put(fid, 0);
+                }
+            }
+        }
+        if (locks.isEmpty()) {
+            types.remove(type);
+        }
+    }
+
+    /**
+     * Whether the lock exists and has not expired
+     */
+    public synchronized boolean exists(String authorization) {
+        expire();
+        return holders.containsKey(authorization);
+    }
+
+    /**
+     * Restarts the expiry countdown of the lock, returns false if the lock does not exist
+     */
+    public synchronized boolean refresh(String authorization) {
+        expire();
+        LockHolder holder = holders.get(authorization);
+        if (holder == null) {
+            return false;
+        }
+        if (holder.duration > 0) {
+            // the wheel finds out about the new expiry when processing the old one
+            holder.expires = System.currentTimeMillis() + holder.duration;
+        }
+        return true;
+    }
+
+    /**
+     * Releases the lock and all the features it locks, returns false if the lock does not exist
+     */
+    public synchronized boolean release(String authorization) {
+        expire();
+        LockHolder holder = holders.get(authorization);
+        if (holder == null) {
+            return false;
+        }
+        release(holder);
+        return true;
+    }
+
+    void release(LockHolder holder) {
+        holder.released = true;
+        holders.remove(holder.authorization);
+        for (Map.Entry<String, FidList> entry : holder.fids.entrySet()) {
+            TypeLocks locks = types.get(entry.getKey());
+            if (locks == null) {
+                continue;
+            }
+            FidList list = entry.getValue();
+            for (int i = 0; i < list.count; i++) {
+                if (locks.fids.numeric.get(list.numeric[i]) == holder.slot) {
+                    locks.fids.numeric.remove(list.numeric[i]);
+                }
+            }
+            for (String fid : list.others) {
+                Integer slot = locks.fids.others.get(fid);
+                if (slot != null && slot == holder.slot) {
+                    locks.fids.others.remove(fid);
+                }
+            }
+        }
+        for (FilterLock filterLock : holder.filterLocks) {
+            TypeLocks locks = types.get(filterLock.type);
+            if (locks != null) {
+                locks.filterLocks.remove(filterLock);
+            }
+        }
+        for (Iterator<TypeLocks> it = types.values().iterator(); it.hasNext();) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
+        holder.fids = null;
+        holder.filterLocks = Collections.emptyList();
+        slots.set(holder.slot, null);
+        freeSlots.push(holder.slot);
+    }
+
+    /**
+     * Releases all the locks
+     */
+    public synchronized void releaseAll() {
+        for (LockHolder holder : holders.values()) {
+            holder.released = true;
+        }
+        holders.clear();
+        types.clear();
+        slots.clear();
+        freeSlots.clear();
+    }
+}
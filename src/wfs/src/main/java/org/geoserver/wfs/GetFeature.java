@@ -15,6 +15,8 @@ import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
@@ -33,6 +35,7 @@ import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.KvpMap;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geoserver.wfs.request.Lock;
@@ -42,9 +45,12 @@ import org.geoserver.wfs.request.Query;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Join;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.factory.Hints;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.NameImpl;
 import org.geotools.feature.SchemaException;
 import org.geotools.filter.FilterCapabilities;
@@ -60,6 +66,7 @@ import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.xml.Encoder;
 import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.FeatureType;
@@ -117,6 +124,22 @@ public class GetFeature {
     /** Standard logging instance for class */
     private static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.vfny.geoserver.requests");
 
+    /**
+     * The property enabling cursor paging for WFS 2.0 sorted requests, see {@link PagingCursor}
+     */
+    public static final String CURSOR_PAGING_KEY = "org.geoserver.wfs.cursorPaging";
+
+    /**
+     * The vendor parameter carrying the paging cursor in the next links
+     */
+    public static final String CURSOR_PARAM = "cursor";
+
+    /**
+     * The largest page cursor paging is used for, the page features are held in memory to build
+     * the cursor to the next page out of them, larger pages are paged by start index only
+     */
+    static final int CURSOR_PAGE_LIMIT = 10000;
+
     /**
      * Describes the allowed filters we support for join queries.
      */
@@ -175,6 +198,15 @@ public class GetFeature {
     /** stored query provider */
     StoredQueryProvider storedQueryProvider;
 
+    /** feature count cache */
+    HitsCache hitsCache;
+
+    /** the cursor leading to the next page, if cursor paging is in use */
+    PagingCursor nextCursor;
+
+    /** runs the queries concurrently */
+    GetFeatureExecutor queryExecutor;
+
     /**
      * Creates the WFS 1.0/1.1 GetFeature operation.
      */
@@ -220,6 +252,20 @@ public class GetFeature {
         this.storedQueryProvider = storedQueryProvider;
     }
 
+    /**
+     * Sets the cache used for the feature counts
+     */
+    public void setHitsCache(HitsCache hitsCache) {
+        this.hitsCache = hitsCache;
+    }
+
+    /**
+     * Sets the executor used to run multiple queries concurrently
+     */
+    public void setQueryExecutor(GetFeatureExecutor queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
     public FeatureCollectionResponse run(GetFeatureRequest request)
         throws WFSException {
         List<Query> queries = request.getQueries();
@@ -306,161 +352,63 @@ public class GetFeature {
         }
         int offset = totalOffset;
 
+        // cursor paging is used only for single query, limited, sorted requests
+        boolean cursorPaging = Boolean.parseBoolean(GeoServerExtensions
+                .getProperty(CURSOR_PAGING_KEY)) && request.getVersion().startsWith("2")
+                && queries.size() == 1 && maxFeatures < Integer.MAX_VALUE
+                && !request.isResultTypeHits();
+
         List results = new ArrayList();
         List<CountExecutor> totalCountExecutors = new ArrayList<CountExecutor>();
+        List<PreparedQuery> preparedQueries = null;
+        List<Future<Integer>> sizes = null;
         try {
-            for (int i = 0; (i < queries.size()) && (count < maxFeatures); i++) {
-
-                Query query = queries.get(i);
-                try {
-                //alias sanity check
-                if (!query.getAliases().isEmpty()) {
-                    if (query.getAliases().size() != query.getTypeNames().size()) {
-                        throw new WFSException(request, String.format("Query specifies %d type names and %d " +
-                            "aliases, must be equal", query.getTypeNames().size(), query.getAliases().size())); 
-                    }
-                }
-
-                List<FeatureTypeInfo> metas = new ArrayList();
-                for (QName typeName : query.getTypeNames()) {
-                    metas.add(featureTypeInfo(typeName, request));
+            // the queries can be counted concurrently only if the size of one does not depend
+            // on the ones preceding it, that is, if there is no offset to carry over. The limit
+            // is applied afterwards, the count of a query is then the same as the sequential one
+            if (queryExecutor != null && queryExecutor.isEnabled() && queries.size() > 1
+                    && offset <= 0 && !cursorPaging
+                    && !(request.getVersion().startsWith("1.0") && maxFeatures == Integer.MAX_VALUE)) {
+                preparedQueries = new ArrayList<PreparedQuery>();
+                sizes = new ArrayList<Future<Integer>>();
+                for (int i = 0; i < queries.size(); i++) {
+                    preparedQueries.add(prepareQuery(request, queries.get(i)));
                 }
+            }
 
-                //first is the primary feature type
-                FeatureTypeInfo meta = metas.get(0);
-
-                // parse the requested property names and distribute among requested types
-                List<List<String>> reqPropertyNames = parsePropertyNames(query, metas);
+            for (int i = 0; (i < queries.size()) && (count < maxFeatures); i++) {
 
-                NamespaceSupport ns = getNamespaceSupport();
-                
-                List<List<PropertyName>> propNames = new ArrayList();
-                List<List<PropertyName>> allPropNames = new ArrayList();
-                
-                for (int j = 0; j < metas.size(); j++) {
-                    List<String> propertyNames = reqPropertyNames.get(j);
-                    List<PropertyName> metaPropNames = null;
-                    List<PropertyName> metaAllPropNames = null;
-                    if (!propertyNames.isEmpty()){
-                        
-                         metaPropNames = new ArrayList<PropertyName>();
-                        
-                        for (Iterator iter = propertyNames.iterator(); iter.hasNext();) {
-                            PropertyName propName = createPropertyName((String) iter.next(), ns);
-        
-                            if ( propName.evaluate(meta.getFeatureType()) == null) {
-                                String mesg = "Requested property: " + propName + " is " + "not available "
-                                    + "for " + meta.getPrefixedName() + ".  ";
-                                
-                                if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                                    List<AttributeTypeInfo> atts = meta.attributes();
-                                    List attNames = new ArrayList( atts.size() );
-                                    for ( AttributeTypeInfo att : atts ) {
-                                        attNames.add( att.getName() );
-                                    }
-                                    mesg += "The possible propertyName values are: " + attNames;
-                                }
-        
-                                throw new WFSException(request, mesg, "InvalidParameterValue");
-                            }
-                            
-                            metaPropNames.add(propName);
-                        }
-                        
-                        // if we need to force feature bounds computation, we have to load 
-                        // all of the geometries, but we'll have to remove them in the 
-                        // returned feature type
-                        if(wfs.isFeatureBounding()) {
-                            metaAllPropNames = addGeometryProperties(meta, metaPropNames);
-                        } else {
-                            metaAllPropNames = metaPropNames;
-                        }     
-                        
-                        //we must also include any properties that are mandatory ( even if not requested ),
-                        // ie. those with minOccurs > 0
-                        //only do this for simple features, complex mandatory features are handled by app-schema
-                        if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                            metaAllPropNames = 
-                                DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaAllPropNames);
-                            metaPropNames = 
-                                DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaPropNames);
+                // count ahead only as many queries as the executor threads, the queries past the
+                // one reaching maxFeatures are then never counted
+                if (sizes != null) {
+                    int until = Math.min(queries.size(), i + queryExecutor.getThreads());
+                    for (int j = sizes.size(); j < until; j++) {
+                        Map<String, String> viewParam = viewParams != null ? viewParams.get(j)
+                                : null;
+                        try {
+                            sizes.add(submitSize(request, queries.get(j),
+                                    preparedQueries.get(j), maxFeatures, viewParam));
+                        } catch (WFSException e) {
+                            setLocator(e, queries.get(j));
+                            throw e;
                         }
-                        //for complex features, mandatory properties need to be handled by datastore.
                     }
-                    allPropNames.add(metaAllPropNames);
-                    propNames.add(metaPropNames);
                 }
 
-                //set up joins (if specified)
-                List<Join> joins = null;
-                String primaryAlias = null;
-                QName primaryTypeName = query.getTypeNames().get(0);
-                    FeatureTypeInfo primaryMeta = metas.get(0);
-                
-                //make sure filters are sane
-                //
-                // Validation of filters on non-simple feature types is not yet supported.
-                // FIXME: Support validation of filters on non-simple feature types:
-                // need to consider xpath properties and how to configure namespace prefixes in
-                // GeoTools app-schema FeaturePropertyAccessorFactory.
-                Filter filter = query.getFilter();
-                
-                if (filter == null && metas.size() > 1) {
-                    throw new WFSException(request, "Join query must specify a filter");
-                }
-
-                if (filter != null) {
-                    if (meta.getFeatureType() instanceof SimpleFeatureType) {                
-                        if (metas.size() > 1) {
-                            //ensure that the filter is allowable
-                            if (!isValidJoinFilter(filter)) {
-                                throw new WFSException(request, 
-                                        "Unable to preform join with specified filter: " + filter);
-                            }
-                                // join, need to separate the joining filter from other filters
-                            JoinExtractingVisitor extractor = 
-                                    new JoinExtractingVisitor(metas, query.getAliases());
-                            filter.accept(extractor, null);
-
-                            primaryAlias = extractor.getPrimaryAlias();
-                            primaryMeta = extractor.getPrimaryFeatureType();
-                            primaryTypeName = new QName(primaryMeta.getNamespace().getURI(),
-                                    primaryMeta.getNativeName());
-                            joins = extractor.getJoins();
-                            if (joins.size() != metas.size()-1) {
-                                throw new WFSException(request, String.format("Query specified %d types but %d " +
-                                        "join filters were found", metas.size(), extractor.getJoins().size()));
-                            }
-
-                            //validate the filter for each join
-                            for (int j = 1; j < metas.size(); j++) {
-                                Join join = joins.get(j-1);
-                                if (join.getFilter() != null) {
-                                    validateFilter(join.getFilter(), query, metas.get(j), request);
-                                }
-                            }
-
-                            filter = extractor.getPrimaryFilter();
-                            if (filter != null) {
-                                validateFilter(filter, query, meta, request);
-                            }
-                        }
-                        else {
-                            validateFilter(filter, query, meta, request);
-                        }
-                    } else {
-                        BBOXNamespaceSettingVisitor filterVisitor = new BBOXNamespaceSettingVisitor(ns);
-                        filter.accept(filterVisitor, null);
-                    }
-                }
-                
-                // load primary feature source
-                Hints hints = null;
-                if (joins != null) {
-                    hints = new Hints(ResourcePool.JOINS, joins);
-                }
-                FeatureSource<? extends FeatureType, ? extends Feature> source = 
-                    primaryMeta.getFeatureSource(null, hints);
+                Query query = queries.get(i);
+                try {
+                PreparedQuery prepared = preparedQueries != null ? preparedQueries.get(i)
+                        : prepareQuery(request, query);
+                List<FeatureTypeInfo> metas = prepared.metas;
+                List<String> layerNames = prepared.layerNames;
+                FeatureTypeInfo meta = prepared.meta;
+                List<List<PropertyName>> propNames = prepared.propNames;
+                List<List<PropertyName>> allPropNames = prepared.allPropNames;
+                List<Join> joins = prepared.joins;
+                String primaryAlias = prepared.primaryAlias;
+                QName primaryTypeName = prepared.primaryTypeName;
+                Filter filter = prepared.filter;
+                FeatureSource<? extends FeatureType, ? extends Feature> source = prepared.source;
 
                 // handle local maximum
                 int queryMaxFeatures = maxFeatures - count;
@@ -468,15 +416,54 @@ public class GetFeature {
                 if (metaMaxFeatures > 0 && metaMaxFeatures < queryMaxFeatures) {
                     queryMaxFeatures = metaMaxFeatures;
                 }
+                // with cursor paging the page starts right after the last sort key returned,
+                // skipping only the features sharing that very key that have been returned already
+                List<String> cursorAttributes = null;
+                PagingCursor cursor = null;
+                int queryHash = 0;
+                int queryOffset = offset;
+                if (cursorPaging && joins == null && queryMaxFeatures <= CURSOR_PAGE_LIMIT) {
+                    cursorAttributes = getCursorAttributes(query, meta);
+                }
+                if (cursorAttributes != null) {
+                    queryHash = getQueryHash(query, meta, filter);
+                    cursor = PagingCursor.decode(getCursorToken());
+                    if (cursor != null && cursor.startIndex == offset
+                            && cursor.queryHash == queryHash
+                            && cursor.values.size() == cursorAttributes.size()) {
+                        queryOffset = cursor.skip;
+                    } else {
+                        // not a cursor for this page, fall back on the start index
+                        cursor = null;
+                    }
+                }
+
                 Map<String, String> viewParam = viewParams != null ? viewParams.get(i) : null;
-                org.geotools.data.Query gtQuery = toDataQuery(query, filter, offset,
+                org.geotools.data.Query gtQuery = toDataQuery(query, filter, queryOffset,
                         queryMaxFeatures, source, request, allPropNames.get(0), viewParam,
                             joins, primaryTypeName, primaryAlias);
+                if (cursor != null) {
+                    Filter cursorFilter = cursor.toFilter(filterFactory, query.getSortBy());
+                    if (gtQuery.getFilter() == null || gtQuery.getFilter() == Filter.INCLUDE) {
+                        gtQuery.setFilter(cursorFilter);
+                    } else {
+                        gtQuery.setFilter(filterFactory.and(gtQuery.getFilter(), cursorFilter));
+                    }
+                }
 
                 LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
 
                 FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(request, source, gtQuery);
 
+                // with cursor paging the page is read upfront, the cursor to the next page is
+                // built out of its last features and the encoder is handed the page in memory
+                List<SimpleFeature> page = null;
+                if (cursorAttributes != null && features instanceof SimpleFeatureCollection) {
+                    page = readPage((SimpleFeatureCollection) features);
+                    features = new ListFeatureCollection((SimpleFeatureType) features.getSchema(),
+                            page);
+                }
+
                 // For complex features, we need the targetCrs and version in scenario where we have
                 // a top level feature that does not contain a geometry(therefore no crs) and has a
                 // nested feature that contains geometry as its property.Furthermore it is possible
@@ -502,12 +489,24 @@ public class GetFeature {
                 }
 
                 int size = 0;
-                if (calculateSize) {
-                    size = features.size();
+                if (sizes != null) {
+                    size = Math.min(GetFeatureExecutor.get(sizes.get(i)), queryMaxFeatures);
+                } else if (calculateSize) {
+                    if (hitsCache != null && request.isResultTypeHits()) {
+                        size = hitsCache.getSize(layerNames, gtQuery, features);
+                    } else {
+                        size = getSize(source, gtQuery, features);
+                    }
                 }
                 
                 //update the count
                 count += size;
+
+                // a full page, build the cursor to the next one
+                if (page != null && totalOffset > -1 && size == queryMaxFeatures) {
+                    nextCursor = buildNextCursor(page, cursorAttributes, cursor, totalOffset
+                            + size, queryHash);
+                }
                 
                 //if offset is present we need to check the size of this returned feature collection
                 // and adjust the offset for the next feature collection accordingly
@@ -524,7 +523,8 @@ public class GetFeature {
                                     viewParam, joins, primaryTypeName, primaryAlias);
                         
                         //int size2 = getFeatures(request, source, q2).size();
-                        int size2 = source.getCount(q2);
+                        int size2 = hitsCache != null ? hitsCache.getCount(layerNames,
+                                source, q2) : source.getCount(q2);
                         if (size2 > 0) {
                             //adjust the offset for the next query
                             offset = Math.max(0, offset - size2);
@@ -541,7 +541,8 @@ public class GetFeature {
                         org.geotools.data.Query qTotal = toDataQuery(query, filter, 0,
                                 Integer.MAX_VALUE, source, request, allPropNames.get(0), viewParam,
                                 joins, primaryTypeName, primaryAlias);
-                    totalCountExecutors.add(new CountExecutor(source, qTotal));
+                    totalCountExecutors.add(new CountExecutor(source, qTotal, hitsCache,
+                            layerNames));
                 }
 
                 // we may need to shave off geometries we did load only to make bounds
@@ -572,12 +573,7 @@ public class GetFeature {
                 results.add(features);
                 }
                 catch(WFSException e) {
-                    //intercept and set locator to query handle if one was set, or if it simply set
-                    // to GetFeature, which is the default
-                    if (query.getHandle() != null && 
-                        (e.getLocator() == null || "GetFeature".equalsIgnoreCase(e.getLocator()))) {
-                        e.setLocator(query.getHandle());
-                    }
+                    setLocator(e, query);
                     throw e;
                 }
             }
@@ -601,8 +597,10 @@ public class GetFeature {
                     totalCount = count;
                 } else {
                     // ok, in this case we're forced to run the queries to discover the actual total count
-                    for (CountExecutor q : totalCountExecutors) {
-                        int result = q.getCount();
+                    List<Future<Integer>> totalCounts = submitCounts(totalCountExecutors);
+                    for (int i = 0; i < totalCountExecutors.size(); i++) {
+                        int result = totalCounts != null ? GetFeatureExecutor.get(totalCounts
+                                .get(i)) : totalCountExecutors.get(i).getCount();
                         // if the count is unknown for one, we don't know the total, period 
                         if(result == -1) {
                             totalCount = -1;
@@ -618,6 +616,19 @@ public class GetFeature {
             throw new WFSException(request, "Error occurred getting features", e, request.getHandle());
         } catch (SchemaException e) {
             throw new WFSException(request, "Error occurred getting features", e, request.getHandle());
+        } finally {
+            // the counts of the queries past maxFeatures are not needed, the ones not started
+            // yet won't run
+            if (sizes != null) {
+                for (Future<Integer> size : sizes) {
+                    size.cancel(false);
+                }
+            }
+        }
+
+        // read the first features of each query while the previous one is encoded
+        if (queryExecutor != null && !request.isResultTypeHits()) {
+            results = queryExecutor.prefetch(results);
         }
         
         
@@ -654,6 +665,279 @@ public class GetFeature {
         return buildResults(request, totalOffset, maxFeatures, count, totalCount, results, lockId);
     }
 
+    /**
+     * Looks up the feature types of the query, and sets up its property names, filter, joins and
+     * feature source
+     */
+    PreparedQuery prepareQuery(GetFeatureRequest request, Query query) throws IOException {
+        try {
+            //alias sanity check
+            if (!query.getAliases().isEmpty()) {
+                if (query.getAliases().size() != query.getTypeNames().size()) {
+                    throw new WFSException(request, String.format("Query specifies %d type names and %d " +
+                        "aliases, must be equal", query.getTypeNames().size(), query.getAliases().size())); 
+                }
+            }
+
+            List<FeatureTypeInfo> metas = new ArrayList();
+            List<String> layerNames = new ArrayList<String>();
+            for (QName typeName : query.getTypeNames()) {
+                FeatureTypeInfo typeInfo = featureTypeInfo(typeName, request);
+                metas.add(typeInfo);
+                layerNames.add(typeInfo.prefixedName());
+            }
+
+            //first is the primary feature type
+            FeatureTypeInfo meta = metas.get(0);
+
+            // parse the requested property names and distribute among requested types
+            List<List<String>> reqPropertyNames = parsePropertyNames(query, metas);
+
+            NamespaceSupport ns = getNamespaceSupport();
+        
+            List<List<PropertyName>> propNames = new ArrayList();
+            List<List<PropertyName>> allPropNames = new ArrayList();
+        
+            for (int j = 0; j < metas.size(); j++) {
+                List<String> propertyNames = reqPropertyNames.get(j);
+                List<PropertyName> metaPropNames = null;
+                List<PropertyName> metaAllPropNames = null;
+                if (!propertyNames.isEmpty()){
+                
+                     metaPropNames = new ArrayList<PropertyName>();
+                
+                    for (Iterator iter = propertyNames.iterator(); iter.hasNext();) {
+                        PropertyName propName = createPropertyName((String) iter.next(), ns);
+
+                        if ( propName.evaluate(meta.getFeatureType()) == null) {
+                            String mesg = "Requested property: " + propName + " is " + "not available "
+                                + "for " + meta.getPrefixedName() + ".  ";
+                        
+                            if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                                List<AttributeTypeInfo> atts = meta.attributes();
+                                List attNames = new ArrayList( atts.size() );
+                                for ( AttributeTypeInfo att : atts ) {
+                                    attNames.add( att.getName() );
+                                }
+                                mesg += "The possible propertyName values are: " + attNames;
+                            }
+
+                            throw new WFSException(request, mesg, "InvalidParameterValue");
+                        }
+                    
+                        metaPropNames.add(propName);
+                    }
+                
+                    // if we need to force feature bounds computation, we have to load 
+                    // all of the geometries, but we'll have to remove them in the 
+                    // returned feature type
+                    if(wfs.isFeatureBounding()) {
+                        metaAllPropNames = addGeometryProperties(meta, metaPropNames);
+                    } else {
+                        metaAllPropNames = metaPropNames;
+                    }     
+                
+                    //we must also include any properties that are mandatory ( even if not requested ),
+                    // ie. those with minOccurs > 0
+                    //only do this for simple features, complex mandatory features are handled by app-schema
+                    if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                        metaAllPropNames = 
+                            DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaAllPropNames);
+                        metaPropNames = 
+                            DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaPropNames);
+                    }
+                    //for complex features, mandatory properties need to be handled by datastore.
+                }
+                allPropNames.add(metaAllPropNames);
+                propNames.add(metaPropNames);
+            }
+
+            //set up joins (if specified)
+            List<Join> joins = null;
+            String primaryAlias = null;
+            QName primaryTypeName = query.getTypeNames().get(0);
+                FeatureTypeInfo primaryMeta = metas.get(0);
+        
+            //make sure filters are sane
+            //
+            // Validation of filters on non-simple feature types is not yet supported.
+            // FIXME: Support validation of filters on non-simple feature types:
+            // need to consider xpath properties and how to configure namespace prefixes in
+            // GeoTools app-schema FeaturePropertyAccessorFactory.
+            Filter filter = query.getFilter();
+        
+            if (filter == null && metas.size() > 1) {
+                throw new WFSException(request, "Join query must specify a filter");
+            }
+
+            if (filter != null) {
+                if (meta.getFeatureType() instanceof SimpleFeatureType) {                
+                    if (metas.size() > 1) {
+                        //ensure that the filter is allowable
+                        if (!isValidJoinFilter(filter)) {
+                            throw new WFSException(request, 
+                                    "Unable to preform join with specified filter: " + filter);
+                        }
+                            // join, need to separate the joining filter from other filters
+                        JoinExtractingVisitor extractor = 
+                                new JoinExtractingVisitor(metas, query.getAliases());
+                        filter.accept(extractor, null);
+
+                        primaryAlias = extractor.getPrimaryAlias();
+                        primaryMeta = extractor.getPrimaryFeatureType();
+                        primaryTypeName = new QName(primaryMeta.getNamespace().getURI(),
+                                primaryMeta.getNativeName());
+                        joins = extractor.getJoins();
+                        if (joins.size() != metas.size()-1) {
+                            throw new WFSException(request, String.format("Query specified %d types but %d " +
+                                    "join filters were found", metas.size(), extractor.getJoins().size()));
+                        }
+
+                        //validate the filter for each join
+                        for (int j = 1; j < metas.size(); j++) {
+                            Join join = joins.get(j-1);
+                            if (join.getFilter() != null) {
+                                validateFilter(join.getFilter(), query, metas.get(j), request);
+                            }
+                        }
+
+                        filter = extractor.getPrimaryFilter();
+                        if (filter != null) {
+                            validateFilter(filter, query, meta, request);
+                        }
+                    }
+                    else {
+                        validateFilter(filter, query, meta, request);
+                    }
+                } else {
+                    BBOXNamespaceSettingVisitor filterVisitor = new BBOXNamespaceSettingVisitor(ns);
+                    filter.accept(filterVisitor, null);
+                }
+            }
+        
+            // load primary feature source
+            Hints hints = null;
+            if (joins != null) {
+                hints = new Hints(ResourcePool.JOINS, joins);
+            }
+            FeatureSource<? extends FeatureType, ? extends Feature> source = 
+                primaryMeta.getFeatureSource(null, hints);
+
+            PreparedQuery prepared = new PreparedQuery();
+            prepared.metas = metas;
+            prepared.layerNames = layerNames;
+            prepared.meta = meta;
+            prepared.propNames = propNames;
+            prepared.allPropNames = allPropNames;
+            prepared.joins = joins;
+            prepared.primaryAlias = primaryAlias;
+            prepared.primaryTypeName = primaryTypeName;
+            prepared.filter = filter;
+            prepared.source = source;
+            return prepared;
+        } catch (WFSException e) {
+            setLocator(e, query);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the count of the query in the executor thread pool, limited by the global and layer
+     * maximum number of features only
+     */
+    Future<Integer> submitSize(GetFeatureRequest request, Query query,
+            final PreparedQuery prepared, int maxFeatures, Map<String, String> viewParam)
+            throws IOException {
+        int queryMaxFeatures = maxFeatures;
+        int metaMaxFeatures = maxFeatures(prepared.metas);
+        if (metaMaxFeatures > 0 && metaMaxFeatures < queryMaxFeatures) {
+            queryMaxFeatures = metaMaxFeatures;
+        }
+        final org.geotools.data.Query gtQuery = toDataQuery(query, prepared.filter, 0,
+                queryMaxFeatures, prepared.source, request, prepared.allPropNames.get(0),
+                viewParam, prepared.joins, prepared.primaryTypeName, prepared.primaryAlias);
+        final FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(
+                request, prepared.source, gtQuery);
+        final boolean hits = hitsCache != null && request.isResultTypeHits();
+
+        return queryExecutor.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                if (hits) {
+                    return hitsCache.getSize(prepared.layerNames, gtQuery, features);
+                } else {
+                    return getSize(prepared.source, gtQuery, features);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of features in the collection built out of the query. Complex feature
+     * collections report a size of zero regardless of their contents, for them the source is asked
+     * to count the query instead, and the features are iterated over only if the source cannot
+     * count them
+     */
+    static int getSize(FeatureSource<? extends FeatureType, ? extends Feature> source,
+            org.geotools.data.Query query,
+            FeatureCollection<? extends FeatureType, ? extends Feature> features)
+            throws IOException {
+        if (features.getSchema() instanceof SimpleFeatureType) {
+            return features.size();
+        }
+
+        int count = source.getCount(query);
+        if (count >= 0) {
+            return count;
+        }
+        count = 0;
+        FeatureIterator<? extends Feature> it = features.features();
+        try {
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+        } finally {
+            it.close();
+        }
+        return count;
+    }
+
+    /**
+     * Runs the total counts in the executor thread pool, returns null if they have to be run
+     * sequentially instead
+     */
+    List<Future<Integer>> submitCounts(List<CountExecutor> executors) {
+        if (queryExecutor == null || !queryExecutor.isEnabled() || executors.size() < 2) {
+            return null;
+        }
+        List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+        for (final CountExecutor executor : executors) {
+            counts.add(queryExecutor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    return executor.getCount();
+                }
+            }));
+        }
+        return counts;
+    }
+
+    /**
+     * Sets the locator of the exception to the query handle if one was set, unless the exception
+     * has a specific locator already
+     */
+    void setLocator(WFSException e, Query query) {
+        //intercept and set locator to query handle if one was set, or if it simply set
+        // to GetFeature, which is the default
+        if (query.getHandle() != null && 
+            (e.getLocator() == null || "GetFeature".equalsIgnoreCase(e.getLocator()))) {
+            e.setLocator(query.getHandle());
+        }
+    }
+
     protected void processStoredQueries(GetFeatureRequest request) {
         List queries = request.getAdaptedQueries();
         for (int i = 0; i < queries.size(); i++) {
@@ -715,6 +999,9 @@ public class GetFeature {
                 kvp = buildKvpFromRequest(request);
             }
 
+            // the cursor is only valid for the next page
+            kvp.remove(CURSOR_PARAM.toUpperCase());
+
             if (offset > 0) {
                 //previous
                 
@@ -733,10 +1020,15 @@ public class GetFeature {
 
                 //calculate the count of the next result set 
                 int nextCount = total - (offset + count);
-                if (nextCount > 0) {
+                // if the total is unknown (e.g., over the hits cache count threshold) a full page
+                // may be followed by another one
+                if (nextCount > 0 || (total < 0 && count == maxFeatures)) {
                     kvp.put("startIndex", String.valueOf(offset > 0 ? offset + count : count));
                     //kvp.put("count", String.valueOf(nextCount));
                     kvp.put("count", String.valueOf(maxFeatures));
+                    if (nextCursor != null) {
+                        kvp.put(CURSOR_PARAM, nextCursor.encode());
+                    }
                     result.setNext(buildURL(request.getBaseUrl(), "wfs", kvp, URLType.SERVICE));
                 }
             }
@@ -745,6 +1037,120 @@ public class GetFeature {
         return result;
     }
 
+    /**
+     * Returns the attributes the query is sorted on, if they are suitable for cursor paging (plain,
+     * non nillable attributes of a simple feature type), or null otherwise
+     */
+    List<String> getCursorAttributes(Query query, FeatureTypeInfo meta) throws IOException {
+        List<SortBy> sortBy = query.getSortBy();
+        FeatureType schema = meta.getFeatureType();
+        if (sortBy == null || sortBy.isEmpty() || !(schema instanceof SimpleFeatureType)) {
+            return null;
+        }
+
+        List<String> attributes = new ArrayList<String>();
+        for (SortBy sort : sortBy) {
+            // natural order sorts do not have a property name
+            PropertyName property = sort.getPropertyName();
+            Object evaluated = property != null ? property.evaluate(schema) : null;
+            if (!(evaluated instanceof AttributeDescriptor)
+                    || evaluated instanceof GeometryDescriptor) {
+                return null;
+            }
+            // a null sorts differently than any comparison would suggest
+            AttributeDescriptor descriptor = (AttributeDescriptor) evaluated;
+            if (descriptor.isNillable()) {
+                return null;
+            }
+            attributes.add(descriptor.getLocalName());
+        }
+        return attributes;
+    }
+
+    /**
+     * Hashes the parts of the query a cursor depends on
+     */
+    int getQueryHash(Query query, FeatureTypeInfo meta, Filter filter) {
+        StringBuilder sb = new StringBuilder(meta.prefixedName()).append('|').append(filter);
+        for (SortBy sort : query.getSortBy()) {
+            sb.append('|').append(sort.getPropertyName().getPropertyName()).append(' ')
+                    .append(sort.getSortOrder());
+        }
+        return sb.toString().hashCode();
+    }
+
+    /**
+     * Returns the paging cursor sent by the client, if any
+     */
+    String getCursorToken() {
+        Request req = Dispatcher.REQUEST.get();
+        if (req == null || req.getRawKvp() == null) {
+            return null;
+        }
+        Object token = req.getRawKvp().get(CURSOR_PARAM);
+        return token instanceof String ? (String) token : null;
+    }
+
+    /**
+     * Reads the features of a page in memory, in the order returned by the store
+     */
+    List<SimpleFeature> readPage(SimpleFeatureCollection features) {
+        List<SimpleFeature> page = new ArrayList<SimpleFeature>();
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                page.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return page;
+    }
+
+    /**
+     * Builds the cursor to the page following the given one, out of the sort attributes of its
+     * last features.
+     * <p>
+     * The features sharing the last key are told apart from the previous ones by comparing their
+     * normalized values with {@link Object#equals(Object)}. This matches the store comparison for
+     * numbers, dates and booleans, but not for strings sorted with a collation that considers
+     * different strings equal (e.g. case insensitive): in that case a run of "equal" keys would be
+     * counted short, and a few features repeated on the next page.
+     * </p>
+     */
+    PagingCursor buildNextCursor(List<SimpleFeature> page, List<String> attributes,
+            PagingCursor current, int startIndex, int queryHash) {
+        // the last key, and how many features in a row have it
+        List<Object> last = null;
+        int run = 0;
+        for (SimpleFeature feature : page) {
+            List<Object> values = new ArrayList<Object>(attributes.size());
+            for (String attribute : attributes) {
+                Object value = PagingCursor.normalize(feature.getAttribute(attribute));
+                if (value == null) {
+                    // not a value we can put in a cursor, or an attribute left out of the query
+                    return null;
+                }
+                values.add(value);
+            }
+            if (values.equals(last)) {
+                run++;
+            } else {
+                last = values;
+                run = 1;
+            }
+        }
+
+        if (last == null) {
+            return null;
+        }
+        if (current != null && last.equals(current.values)) {
+            // the whole page shares the key of the previous one
+            run += current.skip;
+        }
+        return new PagingCursor(startIndex, run, queryHash, last);
+    }
+
     KvpMap buildKvpFromRequest(GetFeatureRequest request) {
         
         // FILTER_LANGUAGE
@@ -1277,4 +1683,29 @@ O:      for (String propName : query.getPropertyNames()) {
         
         return properties;
     }
+
+    /**
+     * The feature types, properties, filter and feature source of a query, ready to be run
+     */
+    static class PreparedQuery {
+        List<FeatureTypeInfo> metas;
+
+        List<String> layerNames;
+
+        FeatureTypeInfo meta;
+
+        List<List<PropertyName>> propNames;
+
+        List<List<PropertyName>> allPropNames;
+
+        List<Join> joins;
+
+        String primaryAlias;
+
+        QName primaryTypeName;
+
+        Filter filter;
+
+        FeatureSource<? extends FeatureType, ? extends Feature> source;
+    }
 }
@@ -0,0 +1,234 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.LocalLayer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Runs the slow parts of GetFeature requests made of multiple queries concurrently, on a bounded
+ * thread pool: the feature counts of the queries, and the read of the first features of a query
+ * while the previous one is being encoded.
+ * <p>
+ * The executor is disabled by default, the following properties configure it:
+ * <ul>
+ * <li>{@code org.geoserver.wfs.queryThreads}: the size of the thread pool shared by all
+ * requests, the executor is disabled if non positive</li>
+ * <li>{@code org.geoserver.wfs.prefetchSize}: the number of features read in advance for each
+ * query, prefetching is disabled if non positive</li>
+ * </ul>
+ * </p>
+ */
+public class GetFeatureExecutor extends AbstractDispatcherCallback implements DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(GetFeatureExecutor.class);
+
+    static final String THREADS_KEY = "org.geoserver.wfs.queryThreads";
+
+    static final String PREFETCH_SIZE_KEY = "org.geoserver.wfs.prefetchSize";
+
+    static final int DEFAULT_PREFETCH_SIZE = 500;
+
+    /**
+     * The collections with a prefetch in progress, to be cleaned up at the end of the request
+     */
+    static final ThreadLocal<List<PrefetchingFeatureCollection>> PREFETCHING = new ThreadLocal<List<PrefetchingFeatureCollection>>();
+
+    int threads;
+
+    int prefetchSize;
+
+    ExecutorService pool;
+
+    public GetFeatureExecutor() {
+        this(getProperty(THREADS_KEY, 0), getProperty(PREFETCH_SIZE_KEY, DEFAULT_PREFETCH_SIZE));
+    }
+
+    /**
+     * Builds the executor with the given thread pool size and number of features read in advance
+     */
+    public GetFeatureExecutor(int threads, int prefetchSize) {
+        this.threads = threads;
+        this.prefetchSize = prefetchSize;
+    }
+
+    private static int getProperty(String key, int defaultValue) {
+        String value = GeoServerExtensions.getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + key + ": " + value
+                        + ", using the default: " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Whether queries are run concurrently at all
+     */
+    public boolean isEnabled() {
+        return threads > 0;
+    }
+
+    /**
+     * The size of the thread pool
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    synchronized ExecutorService getPool() {
+        if (pool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "wfs-query-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            pool = executor;
+        }
+        return pool;
+    }
+
+    /**
+     * Runs the task in the thread pool, on behalf of the user running the current request, and
+     * with the same request, local workspace and local layer
+     */
+    public <T> Future<T> submit(final Callable<T> task) {
+        final SecurityContext context = SecurityContextHolder.getContext();
+        final Request request = Dispatcher.REQUEST.get();
+        final WorkspaceInfo workspace = LocalWorkspace.get();
+        final LayerInfo layer = LocalLayer.get();
+        return getPool().submit(new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                SecurityContextHolder.setContext(context);
+                Dispatcher.REQUEST.set(request);
+                LocalWorkspace.set(workspace);
+                LocalLayer.set(layer);
+                try {
+                    return task.call();
+                } finally {
+                    SecurityContextHolder.clearContext();
+                    Dispatcher.REQUEST.remove();
+                    LocalWorkspace.remove();
+                    LocalLayer.remove();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the task to complete and returns its result, rethrowing the exception the task
+     * failed with, if any
+     */
+    public static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the query results", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Wraps the simple feature collections in the results so that, when the encoder starts
+     * reading one, the first features of the following one are read in the background
+     */
+    public List prefetch(List results) {
+        if (!isEnabled() || prefetchSize <= 0 || results.size() < 2) {
+            return results;
+        }
+
+        List prefetching = new ArrayList(results);
+        PrefetchingFeatureCollection next = null;
+        for (int i = results.size() - 1; i >= 0; i--) {
+            Object features = results.get(i);
+            if (features instanceof SimpleFeatureCollection) {
+                next = new PrefetchingFeatureCollection((SimpleFeatureCollection) features, this,
+                        prefetchSize, next);
+                prefetching.set(i, next);
+            } else {
+                next = null;
+            }
+        }
+        return prefetching;
+    }
+
+    void register(PrefetchingFeatureCollection features) {
+        List<PrefetchingFeatureCollection> list = PREFETCHING.get();
+        if (list == null) {
+            list = new ArrayList<PrefetchingFeatureCollection>();
+            PREFETCHING.set(list);
+        }
+        list.add(features);
+    }
+
+    @Override
+    public void finished(Request request) {
+        // close the prefetched iterators the encoder did not get to use (e.g., on errors)
+        List<PrefetchingFeatureCollection> list = PREFETCHING.get();
+        if (list != null) {
+            PREFETCHING.remove();
+            for (PrefetchingFeatureCollection features : list) {
+                features.dispose();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+}
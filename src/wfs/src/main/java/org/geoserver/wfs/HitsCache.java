@@ -0,0 +1,250 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.Hints;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.filter.visitor.SimplifyingFilterVisitor;
+import org.opengis.filter.Filter;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Caches the feature counts GetFeature computes to fill numberMatched/numberOfFeatures, so that
+ * clients paging over a large layer do not run the very same count query for every page.
+ * <p>
+ * Counts are keyed by user, layers, normalised filter, view parameters and limits, and are kept
+ * for a configurable amount of time. Entries are dropped when a WFS transaction modifying one of
+ * their layers is committed, or when the layers are modified in the catalog.
+ * </p>
+ * <p>
+ * The following properties configure the cache:
+ * <ul>
+ * <li>{@code org.geoserver.wfs.hitsCache.ttl}: time to live of the counts, in seconds. The cache
+ * is disabled if non positive, which is the default</li>
+ * <li>{@code org.geoserver.wfs.hitsCache.maxEntries}: the maximum number of counts kept,
+ * least recently used ones are evicted first</li>
+ * <li>{@code org.geoserver.wfs.hitsCache.countThreshold}: if positive, numberMatched is counted
+ * only up to this value, larger results are reported as unknown</li>
+ * </ul>
+ * </p>
+ */
+public class HitsCache extends AbstractLayerCache {
+
+    static final String TTL_KEY = "org.geoserver.wfs.hitsCache.ttl";
+
+    static final String MAX_ENTRIES_KEY = "org.geoserver.wfs.hitsCache.maxEntries";
+
+    static final String COUNT_THRESHOLD_KEY = "org.geoserver.wfs.hitsCache.countThreshold";
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    static class Entry {
+        List<String> layers;
+
+        int count;
+
+        long expires;
+
+        Entry(List<String> layers, int count, long expires) {
+            this.layers = layers;
+            this.count = count;
+            this.expires = expires;
+        }
+    }
+
+    long timeToLive;
+
+    int maxEntries;
+
+    int countThreshold;
+
+    /**
+     * Bumped at each invalidation, counts started before an invalidation are not stored as they
+     * might be stale already
+     */
+    volatile long generation;
+
+    final Map<String, Entry> entries;
+
+    public HitsCache(Catalog catalog) {
+        this(catalog, getLongProperty(TTL_KEY, 0) * 1000l, (int) getLongProperty(MAX_ENTRIES_KEY,
+                DEFAULT_MAX_ENTRIES), (int) getLongProperty(COUNT_THRESHOLD_KEY, 0));
+    }
+
+    /**
+     * Builds the cache with the given time to live (in milliseconds), maximum number of entries
+     * and count threshold
+     */
+    public HitsCache(Catalog catalog, long timeToLive, int maxEntries, int countThreshold) {
+        super(catalog, true);
+        this.timeToLive = timeToLive;
+        this.maxEntries = maxEntries;
+        this.countThreshold = countThreshold;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > HitsCache.this.maxEntries;
+            }
+        };
+        catalog.addListener(this);
+    }
+
+    /**
+     * Whether counts are cached at all
+     */
+    public boolean isEnabled() {
+        return timeToLive > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Returns the size of the collection, that was built out of the query against the specified
+     * layers
+     */
+    public int getSize(List<String> layers, Query query, FeatureCollection<?, ?> features) {
+        String key = isEnabled() ? getKey("size", layers, query) : null;
+        long generation = this.generation;
+        Entry entry = lookup(key);
+        if (entry != null) {
+            return entry.count;
+        }
+
+        int count = features.size();
+        store(key, layers, count, generation);
+        return count;
+    }
+
+    /**
+     * Counts the features matched by the query against the specified layers
+     */
+    public int getCount(List<String> layers, FeatureSource<?, ?> source, Query query)
+            throws IOException {
+        return count("count", layers, source, query, false);
+    }
+
+    /**
+     * Counts the features matched by the query against the specified layers, for the sake of
+     * filling numberMatched. If a count threshold is configured, and the query is not limited
+     * already, the count stops at the threshold and -1 (unknown) is returned for larger results
+     */
+    public int getMatchedCount(List<String> layers, FeatureSource<?, ?> source, Query query)
+            throws IOException {
+        boolean bounded = countThreshold > 0 && query.getMaxFeatures() > countThreshold;
+        return count(bounded ? "bounded" : "count", layers, source, query, bounded);
+    }
+
+    int count(String type, List<String> layers, FeatureSource<?, ?> source, Query query,
+            boolean bounded) throws IOException {
+        String key = isEnabled() ? getKey(type, layers, query) : null;
+        long generation = this.generation;
+        Entry entry = lookup(key);
+        if (entry != null) {
+            return entry.count;
+        }
+
+        int count;
+        if (bounded) {
+            Query limited = new Query(query);
+            limited.setMaxFeatures(countThreshold + 1);
+            count = source.getCount(limited);
+            if (count > countThreshold) {
+                count = -1;
+            }
+        } else {
+            count = source.getCount(query);
+        }
+        store(key, layers, count, generation);
+        return count;
+    }
+
+    String getKey(String type, List<String> layers, Query query) {
+        StringBuilder sb = new StringBuilder(type).append('|');
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        sb.append(auth == null ? "" : auth.getName()).append('|');
+        sb.append(layers).append('|').append(query.getTypeName()).append('|');
+
+        Filter filter = query.getFilter();
+        if (filter != null) {
+            filter = (Filter) filter.accept(new SimplifyingFilterVisitor(), null);
+        }
+        sb.append(filter).append('|');
+        sb.append(query.getJoins()).append('|');
+        sb.append(query.getStartIndex()).append('|').append(query.getMaxFeatures()).append('|');
+
+        Hints hints = query.getHints();
+        Object viewParams = hints == null ? null : hints.get(Hints.VIRTUAL_TABLE_PARAMETERS);
+        if (viewParams instanceof Map) {
+            // in a predictable order
+            viewParams = new TreeMap<Object, Object>((Map<?, ?>) viewParams);
+        }
+        sb.append(viewParams);
+
+        return sb.toString();
+    }
+
+    synchronized Entry lookup(String key) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    synchronized void store(String key, List<String> layers, int count, long generation) {
+        if (key != null && generation == this.generation) {
+            entries.put(key, new Entry(layers, count, System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    /**
+     * Drops all the counts involving the specified layer
+     */
+    @Override
+    public synchronized void invalidate(String layerName) {
+        generation++;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().layers.contains(layerName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the counts
+     */
+    @Override
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    @Override
+    protected void handleOtherChange(Object source) {
+        if (source instanceof StyleInfo || source instanceof LayerGroupInfo) {
+            // no effect on the counts
+            return;
+        }
+        // stores, namespaces... just drop everything
+        clear();
+    }
+}
@@ -7,13 +7,16 @@ package org.geoserver.wfs;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
@@ -28,12 +31,14 @@ import org.eclipse.emf.ecore.EObject;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.feature.ReprojectingFeatureCollection;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.request.Insert;
 import org.geoserver.wfs.request.TransactionElement;
 import org.geoserver.wfs.request.TransactionRequest;
 import org.geoserver.wfs.request.TransactionResponse;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureStore;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureStore;
@@ -62,11 +67,57 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
      * logger
      */
     static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+
+    /**
+     * The system property enabling batch inserts, with the maximum number of features added to
+     * a store in a single call
+     */
+    public static final String BATCH_SIZE_KEY = "org.geoserver.wfs.insertBatchSize";
+
     private FilterFactory filterFactory;
 
+    int batchSize;
+
     public InsertElementHandler(GeoServer gs, FilterFactory filterFactory) {
         super(gs);
         this.filterFactory = filterFactory;
+        String value = GeoServerExtensions.getProperty(BATCH_SIZE_KEY);
+        if (value != null) {
+            try {
+                batchSize = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + BATCH_SIZE_KEY + ": " + value
+                        + ", batch inserts are disabled");
+            }
+        }
+    }
+
+    /**
+     * The maximum number of features added to a store in a single call when running in batch
+     * mode, or a non positive value if batch mode is disabled.
+     * <p>
+     * In batch mode consecutive inserts of the same feature type are run as a single one, see
+     * {@link #execute(List, TransactionRequest, Map, TransactionResponse, TransactionListener)}
+     * </p>
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the feature type the insert is about, or null if it inserts features of more than
+     * one type
+     */
+    QName getInsertTypeName(TransactionElement element) throws WFSTransactionException {
+        QName result = null;
+        for (QName typeName : getTypeNames(element)) {
+            if (result == null) {
+                result = typeName;
+            } else if (!result.equals(typeName)) {
+                return null;
+            }
+        }
+        return result;
     }
 
     public void checkValidity(TransactionElement element, Map<QName, FeatureTypeInfo> featureTypeInfos)
@@ -76,52 +127,89 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public void execute(TransactionElement element, TransactionRequest request, Map featureStores, 
         TransactionResponse response, TransactionListener listener) throws WFSTransactionException {
-        
-        Insert insert = (Insert) element;
+        execute(Collections.singletonList((Insert) element), request, featureStores, response,
+                listener);
+    }
+
+    /**
+     * The features of a given type inserted by an insert element
+     */
+    static class InsertPart {
+        Insert insert;
+
+        SimpleFeatureCollection features;
+
+        LinkedList<FeatureId> fids = new LinkedList<FeatureId>();
+
+        InsertPart(Insert insert, SimpleFeatureType schema) {
+            this.insert = insert;
+            this.features = new DefaultFeatureCollection(null, schema);
+        }
+    }
+
+    /**
+     * Runs the inserts together: the features are grouped by type, and in batch mode are added to
+     * the stores in chunks of {@link #getBatchSize()} features, spanning the inserts. Events are
+     * still issued for each insert, with the insert as their source, the pre insert events of
+     * all the inserts of a type are issued before their features are added, and the post insert
+     * ones after, {@link CoalescingTransactionListener}s receive them merged into one per type.
+     * The inserted feature ids are reported in the same order, and with the same handles, as if
+     * the inserts were run one by one, and failures are reported with the handle of the insert
+     * that failed.
+     */
+    @SuppressWarnings("unchecked")
+    public void execute(List<Insert> inserts, TransactionRequest request, Map featureStores,
+        TransactionResponse response, TransactionListener listener) throws WFSTransactionException {
+
+        Insert insert = inserts.get(0);
         LOGGER.finer("Transasction Insert:" + insert);
 
         long inserted = response.getTotalInserted().longValue();
 
         try {
-            // group features by their schema
-            HashMap /* <SimpleFeatureType,FeatureCollection> */ schema2features = new HashMap();
-
+            // group features by their schema, and then by insert
+            Map<SimpleFeatureType, List<InsertPart>> schema2parts = 
+                new LinkedHashMap<SimpleFeatureType, List<InsertPart>>();
+            List<Map<SimpleFeatureType, InsertPart>> insertParts = 
+                new ArrayList<Map<SimpleFeatureType, InsertPart>>();
             
-            List featureList = insert.getFeatures();
-            for (Iterator f = featureList.iterator(); f.hasNext();) {
-                SimpleFeature feature = (SimpleFeature) f.next();
-                SimpleFeatureType schema = feature.getFeatureType();
-                DefaultFeatureCollection collection = 
-                    (DefaultFeatureCollection) schema2features.get(schema);
+            for (Insert current : inserts) {
+                insert = current;
+                Map<SimpleFeatureType, InsertPart> parts = new HashMap<SimpleFeatureType, InsertPart>();
+                insertParts.add(parts);
+                List featureList = current.getFeatures();
+                for (Iterator f = featureList.iterator(); f.hasNext();) {
+                    SimpleFeature feature = (SimpleFeature) f.next();
+                    SimpleFeatureType schema = feature.getFeatureType();
+                    InsertPart part = parts.get(schema);
+
+                    if (part == null) {
+                        part = new InsertPart(current, schema);
+                        parts.put(schema, part);
+                        List<InsertPart> schemaParts = schema2parts.get(schema);
+                        if (schemaParts == null) {
+                            schemaParts = new ArrayList<InsertPart>();
+                            schema2parts.put(schema, schemaParts);
+                        }
+                        schemaParts.add(part);
+                    }
 
-                if (collection == null) {
-                    collection = new DefaultFeatureCollection(null, schema);
-                    schema2features.put(schema, collection);
-                }
+                    // do a check for idegen = useExisting, if set try to tell the datastore to use
+                    // the privided fid
+                    if (current.isIdGenUseExisting()) {
+                        feature.getUserData().put(Hints.USE_PROVIDED_FID, true);
+                    }
 
-                // do a check for idegen = useExisting, if set try to tell the datastore to use
-                // the privided fid
-                if (insert.isIdGenUseExisting()) {
-                    feature.getUserData().put(Hints.USE_PROVIDED_FID, true);
+                    ((DefaultFeatureCollection) part.features).add(feature);
                 }
-
-                collection.add(feature);
             }
 
-            // JD: change from set fo list because if inserting
-            // features into different feature stores, they could very well
-            // get given the same id
-            // JD: change from list to map so that the map can later be
-            // processed and we can report the fids back in the same order
-            // as they were supplied
-            Map<String, List<FeatureId>> schema2fids = new HashMap<String, List<FeatureId>>();
-
-            for (Iterator c = schema2features.values().iterator(); c.hasNext();) {
-                SimpleFeatureCollection collection = (SimpleFeatureCollection) c.next();
-                SimpleFeatureType schema = collection.getSchema();
+            for (Map.Entry<SimpleFeatureType, List<InsertPart>> entry : schema2parts.entrySet()) {
+                SimpleFeatureType schema = entry.getKey();
+                List<InsertPart> parts = entry.getValue();
+                insert = parts.get(0).insert;
 
                 final QName elementName = new QName(schema.getName().getNamespaceURI(), schema.getTypeName());
                 SimpleFeatureStore store;
@@ -132,84 +220,103 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
                         + "'");
                 }
 
-                if (collection != null) {
+                final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
+                for (InsertPart part : parts) {
+                    insert = part.insert;
                     // if we really need to, make sure we are inserting coordinates that do
                     // match the CRS area of validity
                     if(getInfo().isCiteCompliant()) {
-                        checkFeatureCoordinatesRange(collection);
+                        checkFeatureCoordinatesRange(part.features);
                     }
                     
                     // reprojection
-                    final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
                     if(defaultGeometry != null) {
                         CoordinateReferenceSystem target = defaultGeometry.getCoordinateReferenceSystem();
                         if (target != null) {
-                            collection = new ReprojectingFeatureCollection(collection, target);
+                            part.features = new ReprojectingFeatureCollection(part.features, target);
                         }
                     }
+                }
                     
-                    // Need to use the namespace here for the
-                    // lookup, due to our weird
-                    // prefixed internal typenames. see
-                    // http://jira.codehaus.org/secure/ViewIssue.jspa?key=GEOS-143
-
-                    // Once we get our datastores making features
-                    // with the correct namespaces
-                    // we can do something like this:
-                    // FeatureTypeInfo typeInfo =
-                    // catalog.getFeatureTypeInfo(schema.getTypeName(),
-                    // schema.getNamespace());
-                    // until then (when geos-144 is resolved) we're
-                    // stuck with:
-                    // QName qName = (QName) typeNames.get( i );
-                    // FeatureTypeInfo typeInfo =
-                    // catalog.featureType( qName.getPrefix(),
-                    // qName.getLocalPart() );
-
-                    // this is possible with the insert hack above.
-                    LOGGER.finer("Use featureValidation to check contents of insert");
-
-                    // featureValidation(
-                    // typeInfo.getDataStore().getId(), schema,
-                    // collection );
-                    List<FeatureId> fids = schema2fids.get(schema.getTypeName());
-
-                    if (fids == null) {
-                        fids = new LinkedList<FeatureId>();
-                        schema2fids.put(schema.getTypeName(), fids);
-                    }
-
-                    //fire pre insert event
+                // Need to use the namespace here for the
+                // lookup, due to our weird
+                // prefixed internal typenames. see
+                // http://jira.codehaus.org/secure/ViewIssue.jspa?key=GEOS-143
+
+                // Once we get our datastores making features
+                // with the correct namespaces
+                // we can do something like this:
+                // FeatureTypeInfo typeInfo =
+                // catalog.getFeatureTypeInfo(schema.getTypeName(),
+                // schema.getNamespace());
+                // until then (when geos-144 is resolved) we're
+                // stuck with:
+                // QName qName = (QName) typeNames.get( i );
+                // FeatureTypeInfo typeInfo =
+                // catalog.featureType( qName.getPrefix(),
+                // qName.getLocalPart() );
+
+                // this is possible with the insert hack above.
+                LOGGER.finer("Use featureValidation to check contents of insert");
+
+                // featureValidation(
+                // typeInfo.getDataStore().getId(), schema,
+                // collection );
+
+                //fire pre insert events
+                List<InsertElementType> sources = new ArrayList<InsertElementType>(parts.size());
+                for (InsertPart part : parts) {
+                    insert = part.insert;
+                    InsertElementType source = Insert.WFS11.unadapt(part.insert);
+                    sources.add(source);
                     TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_INSERT,
-                            request, elementName, collection);
-                    event.setSource(Insert.WFS11.unadapt(insert));
+                            request, elementName, part.features);
+                    event.setSource(source);
                     
                     listener.dataStoreChange( event );
-                    fids.addAll(store.addFeatures(collection));
+                }
+
+                if (batchSize > 0) {
+                    addFeatures(store, parts);
+                } else {
+                    for (InsertPart part : parts) {
+                        insert = part.insert;
+                        part.fids.addAll(store.addFeatures(part.features));
+                    }
+                }
                     
-                    //fire post insert event
-                    SimpleFeatureCollection features = store.getFeatures(filterFactory.id(new HashSet<FeatureId>(fids)));
-                    event = new TransactionEvent(TransactionEventType.POST_INSERT, request, 
-                        elementName, features, Insert.WFS11.unadapt(insert));
+                //fire post insert events
+                for (int i = 0; i < parts.size(); i++) {
+                    InsertPart part = parts.get(i);
+                    insert = part.insert;
+                    SimpleFeatureCollection features = store.getFeatures(filterFactory
+                            .id(new HashSet<FeatureId>(part.fids)));
+                    TransactionEvent event = new TransactionEvent(TransactionEventType.POST_INSERT,
+                            request, elementName, features, sources.get(i));
                     listener.dataStoreChange( event );
                 }
             }
 
             // report back fids, we need to keep the same order the
             // fids were reported in the original feature collection
-            for (Iterator f = featureList.iterator(); f.hasNext();) {
-                SimpleFeature feature = (SimpleFeature) f.next();
-                SimpleFeatureType schema = feature.getFeatureType();
+            for (int i = 0; i < inserts.size(); i++) {
+                Insert current = inserts.get(i);
+                Map<SimpleFeatureType, InsertPart> parts = insertParts.get(i);
+                List featureList = current.getFeatures();
+                for (Iterator f = featureList.iterator(); f.hasNext();) {
+                    SimpleFeature feature = (SimpleFeature) f.next();
 
-                // get the next fid
-                LinkedList<FeatureId> fids = (LinkedList<FeatureId>) schema2fids.get(schema.getTypeName());
-                FeatureId fid = fids.removeFirst();
+                    // get the next fid
+                    FeatureId fid = parts.get(feature.getFeatureType()).fids.removeFirst();
 
-                response.addInsertedFeature(insert.getHandle(), fid);
-            }
+                    response.addInsertedFeature(current.getHandle(), fid);
+                }
 
-            // update the insert counter
-            inserted += featureList.size();
+                // update the insert counter
+                inserted += featureList.size();
+            }
+        } catch (WFSTransactionException e) {
+            throw e;
         } catch (Exception e) {
             String msg = "Error performing insert: " + e.getMessage();
             throw new WFSTransactionException(msg, e, insert.getHandle());
@@ -220,6 +327,51 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
     }
 
     
+    /**
+     * Adds the features of the inserts to the store in chunks of {@link #batchSize} features,
+     * collecting the generated ids in each insert. A failure is reported with the handle of the
+     * insert providing the first feature of the failing chunk.
+     */
+    void addFeatures(SimpleFeatureStore store, List<InsertPart> parts)
+            throws WFSTransactionException {
+        SimpleFeatureType schema = parts.get(0).features.getSchema();
+        ListFeatureCollection chunk = new ListFeatureCollection(schema);
+        List<InsertPart> owners = new ArrayList<InsertPart>(batchSize);
+        for (InsertPart part : parts) {
+            SimpleFeatureIterator fi = part.features.features();
+            try {
+                while (fi.hasNext()) {
+                    chunk.add(fi.next());
+                    owners.add(part);
+                    if (chunk.size() >= batchSize) {
+                        addChunk(store, chunk, owners);
+                        chunk = new ListFeatureCollection(schema);
+                        owners.clear();
+                    }
+                }
+            } finally {
+                fi.close();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            addChunk(store, chunk, owners);
+        }
+    }
+
+    void addChunk(SimpleFeatureStore store, ListFeatureCollection chunk, List<InsertPart> owners)
+            throws WFSTransactionException {
+        List<FeatureId> fids;
+        try {
+            fids = store.addFeatures(chunk);
+        } catch (Exception e) {
+            String msg = "Error performing insert: " + e.getMessage();
+            throw new WFSTransactionException(msg, e, owners.get(0).insert.getHandle());
+        }
+        for (int i = 0; i < fids.size(); i++) {
+            owners.get(i).fids.add(fids.get(i));
+        }
+    }
+
     /**
      * Checks that all features coordinates are within the expected coordinate range
      * @param collection
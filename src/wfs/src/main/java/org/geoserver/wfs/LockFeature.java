@@ -7,6 +7,7 @@ package org.geoserver.wfs;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -115,6 +116,10 @@ public class LockFeature {
 
             // create a new lock (token used to manage locks across datastores)
             fLock = newFeatureLock(request);
+            FeatureLockIndex index = FeatureLockIndex.lookup();
+            if (index != null) {
+                index.create(fLock.getAuthorization(), fLock.getDuration());
+            }
 
             // prepare the response object
             LockFeatureResponse response = request.createResponse();
@@ -162,6 +167,12 @@ public class LockFeature {
                     // now gather the features
                     features = source.getFeatures(filter);
 
+                    if (index != null) {
+                        // the features are locked in the index, whatever the store
+                        lockInIndex(index, fLock, meta, filter, features, response);
+                        continue;
+                    }
+
                     if (source instanceof FeatureLocking) {
                         ((FeatureLocking) source).setFeatureLock(fLock);
                     }
@@ -255,6 +266,11 @@ public class LockFeature {
                 }
             }
 
+            if (index != null) {
+                // all the features start the same countdown
+                index.refresh(fLock.getAuthorization());
+            }
+
             // should we releas all? if not set default to true
             
             boolean lockAll = !request.isLockActionSome();
@@ -267,6 +283,11 @@ public class LockFeature {
                 throw new WFSException(request, "Could not aquire locks for:" + notLocked);
             }
 
+            if (index != null && fLock.getDuration() < 0) {
+                // the request just checked the features could be locked
+                index.release(fLock.getAuthorization());
+            }
+
             return response;
         } catch (WFSException e) {
             // release locks when something fails
@@ -283,12 +304,43 @@ public class LockFeature {
         }
     }
 
+    /**
+     * Locks the features in the lock index, recording the locked and not locked ones in the
+     * response
+     */
+    void lockInIndex(FeatureLockIndex index, FeatureLock fLock, FeatureTypeInfo meta,
+            Filter filter, FeatureCollection<? extends FeatureType, ? extends Feature> features,
+            LockFeatureResponse response) throws IOException {
+        List<String> locked = new ArrayList<String>();
+        List<String> notLocked = new ArrayList<String>();
+        FeatureIterator<? extends Feature> it = features.features();
+        try {
+            QName typeName = new QName(meta.getNamespace().getURI(), meta.getName());
+            index.lock(fLock.getAuthorization(), typeName, filter, it, locked, notLocked);
+        } finally {
+            it.close();
+        }
+
+        for (String fid : locked) {
+            response.addLockedFeature(fid(fid));
+        }
+        for (String fid : notLocked) {
+            LOGGER.fine("Lock " + fid + " conflict (authID:" + fLock.getAuthorization() + ")");
+            response.addNotLockedFeature(fid(fid));
+        }
+    }
+
     /**
      * Release lock by authorization
      *
      * @param lockID
      */
     public void release(String lockId) throws WFSException {
+        FeatureLockIndex index = FeatureLockIndex.lookup();
+        if (index != null) {
+            index.release(lockId);
+            return;
+        }
         try {
             boolean refresh = false;
 
@@ -355,6 +407,11 @@ public class LockFeature {
      * @return Number of locks released
      */
     public void releaseAll() throws WFSException {
+        FeatureLockIndex index = FeatureLockIndex.lookup();
+        if (index != null) {
+            index.releaseAll();
+            return;
+        }
         try {
             List dataStores = catalog.getDataStores();
 
@@ -389,6 +446,10 @@ public class LockFeature {
     }
 
     public boolean exists(String lockId) throws WFSException {
+        FeatureLockIndex index = FeatureLockIndex.lookup();
+        if (index != null) {
+            return index.exists(lockId);
+        }
         try {
             List dataStores = catalog.getDataStores();
 
@@ -426,6 +487,11 @@ public class LockFeature {
     }
 
     public void refresh(String lockId) throws WFSException {
+        FeatureLockIndex index = FeatureLockIndex.lookup();
+        if (index != null) {
+            index.refresh(lockId);
+            return;
+        }
         try {
             boolean refresh = false;
 
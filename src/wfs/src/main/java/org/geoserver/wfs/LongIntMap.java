@@ -0,0 +1,155 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to non negative int values, based on open addressing with linear
+ * probing, storing the entries in two primitive arrays instead of an object per entry.
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+class LongIntMap {
+
+    /**
+     * Returned for missing keys, and used to mark the free buckets
+     */
+    static final int NO_VALUE = -1;
+
+    long[] keys;
+
+    int[] values;
+
+    int size;
+
+    int mask;
+
+    LongIntMap() {
+        this(16);
+    }
+
+    LongIntMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 1;
+        keys = new long[n];
+        values = new int[n];
+        Arrays.fill(values, NO_VALUE);
+        mask = n - 1;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the value of the key, or {@link #NO_VALUE}
+     */
+    int get(long key) {
+        int i = hash(key) & mask;
+        while (values[i] != NO_VALUE) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Associates the value to the key, returns the previous value or {@link #NO_VALUE}
+     */
+    int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must be positive or zero: " + value);
+        }
+        int i = hash(key) & mask;
+        while (values[i] != NO_VALUE) {
+            if (keys[i] == key) {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        // keep the load factor under 2/3
+        if (++size * 3 > values.length * 2) {
+            grow();
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes the key, returns the previous value or {@link #NO_VALUE}
+     */
+    int remove(long key) {
+        int i = hash(key) & mask;
+        while (values[i] != NO_VALUE) {
+            if (keys[i] == key) {
+                int previous = values[i];
+                values[i] = NO_VALUE;
+                size--;
+                shiftBack(i);
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Moves back the entries following a removed one, so that no probe sequence is broken
+     */
+    void shiftBack(int free) {
+        int j = free;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == NO_VALUE) {
+                return;
+            }
+            int home = hash(keys[j]) & mask;
+            // the entry stays if its home bucket is cyclically between the free one and itself
+            boolean stays = free <= j ? (free < home && home <= j) : (free < home || home <= j);
+            if (!stays) {
+                keys[free] = keys[j];
+                values[free] = values[j];
+                values[j] = NO_VALUE;
+                free = j;
+            }
+        }
+    }
+
+    void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        int n = oldValues.length * 2;
+        keys = new long[n];
+        values = new int[n];
+        Arrays.fill(values, NO_VALUE);
+        mask = n - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int j = hash(oldKeys[i]) & mask;
+                while (values[j] != NO_VALUE) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
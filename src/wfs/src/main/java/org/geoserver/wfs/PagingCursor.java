@@ -0,0 +1,208 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+/**
+ * The position reached by a GetFeature paging session, used to turn the next page request into
+ * a "sort key greater than the last one returned" filter instead of a potentially very expensive
+ * offset.
+ * <p>
+ * The cursor holds the sort key values of the last feature returned, along with the number of
+ * features that have been returned with that very same key (which have to be skipped, in case the
+ * sort is not unique), the start index of the page it leads to, and a hash of the query it was
+ * built for. It travels in the next links as an opaque, url safe token.
+ * </p>
+ */
+class PagingCursor {
+
+    static final byte STRING = 'S';
+
+    static final byte LONG = 'L';
+
+    static final byte DOUBLE = 'D';
+
+    static final byte DECIMAL = 'B';
+
+    static final byte TIMESTAMP = 'T';
+
+    static final byte BOOLEAN = 'Z';
+
+    int startIndex;
+
+    int skip;
+
+    int queryHash;
+
+    List<Object> values;
+
+    PagingCursor(int startIndex, int skip, int queryHash, List<Object> values) {
+        this.startIndex = startIndex;
+        this.skip = skip;
+        this.queryHash = queryHash;
+        this.values = values;
+    }
+
+    /**
+     * Returns the value in the form it takes once decoded from a token, or null if the value
+     * cannot be part of a cursor
+     */
+    static Object normalize(Object value) {
+        if (value instanceof String || value instanceof Boolean || value instanceof Long
+                || value instanceof Double || value instanceof BigDecimal) {
+            return value;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        } else if (value instanceof java.util.Date) {
+            return new Timestamp(((java.util.Date) value).getTime());
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the cursor as a url safe token
+     */
+    String encode() {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(startIndex);
+            dos.writeInt(skip);
+            dos.writeInt(queryHash);
+            dos.writeInt(values.size());
+            for (Object value : values) {
+                if (value instanceof String) {
+                    dos.writeByte(STRING);
+                    dos.writeUTF((String) value);
+                } else if (value instanceof Long) {
+                    dos.writeByte(LONG);
+                    dos.writeLong((Long) value);
+                } else if (value instanceof Double) {
+                    dos.writeByte(DOUBLE);
+                    dos.writeDouble((Double) value);
+                } else if (value instanceof BigDecimal) {
+                    dos.writeByte(DECIMAL);
+                    dos.writeUTF(value.toString());
+                } else if (value instanceof Timestamp) {
+                    dos.writeByte(TIMESTAMP);
+                    dos.writeLong(((Timestamp) value).getTime());
+                } else if (value instanceof Boolean) {
+                    dos.writeByte(BOOLEAN);
+                    dos.writeBoolean((Boolean) value);
+                } else {
+                    throw new IllegalArgumentException("Unsupported cursor value: " + value);
+                }
+            }
+            dos.flush();
+            String base64 = DatatypeConverter.printBase64Binary(bos.toByteArray());
+            return base64.replace('+', '-').replace('/', '_').replace("=", "");
+        } catch (IOException e) {
+            // cannot happen, we are writing in memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decodes a token built by {@link #encode()}, returns null if the token is not valid
+     */
+    static PagingCursor decode(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            String base64 = token.replace('-', '+').replace('_', '/');
+            while (base64.length() % 4 != 0) {
+                base64 += "=";
+            }
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                    DatatypeConverter.parseBase64Binary(base64)));
+            int startIndex = dis.readInt();
+            int skip = dis.readInt();
+            int queryHash = dis.readInt();
+            int size = dis.readInt();
+            if (startIndex < 0 || skip < 0 || size <= 0 || size > 64) {
+                return null;
+            }
+            List<Object> values = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                byte type = dis.readByte();
+                switch (type) {
+                case STRING:
+                    values.add(dis.readUTF());
+                    break;
+                case LONG:
+                    values.add(dis.readLong());
+                    break;
+                case DOUBLE:
+                    values.add(dis.readDouble());
+                    break;
+                case DECIMAL:
+                    values.add(new BigDecimal(dis.readUTF()));
+                    break;
+                case TIMESTAMP:
+                    values.add(new Timestamp(dis.readLong()));
+                    break;
+                case BOOLEAN:
+                    values.add(dis.readBoolean());
+                    break;
+                default:
+                    return null;
+                }
+            }
+            return new PagingCursor(startIndex, skip, queryHash, values);
+        } catch (Exception e) {
+            // not a token we generated
+            return null;
+        }
+    }
+
+    /**
+     * Builds the filter selecting the features sorting at or after the cursor position, that is,
+     * for a sort on attributes a, b, c: a > va OR (a = va AND (b > vb OR (b = vb AND c >= vc)))
+     * (with the comparisons reversed for descending sorts)
+     */
+    Filter toFilter(FilterFactory2 ff, List<SortBy> sortBy) {
+        Filter result = null;
+        for (int i = values.size() - 1; i >= 0; i--) {
+            SortBy sort = sortBy.get(i);
+            PropertyName property = sort.getPropertyName();
+            Literal value = ff.literal(values.get(i));
+            boolean descending = sort.getSortOrder() == SortOrder.DESCENDING;
+            if (result == null) {
+                result = descending ? ff.lessOrEqual(property, value) : ff.greaterOrEqual(
+                        property, value);
+            } else {
+                Filter after = descending ? ff.less(property, value) : ff.greater(property,
+                        value);
+                result = ff.or(after, ff.and(ff.equal(property, value, true), result));
+            }
+        }
+        return result;
+    }
+}
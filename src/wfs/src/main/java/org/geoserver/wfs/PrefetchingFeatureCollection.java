@@ -0,0 +1,149 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A collection that can read its first features in the background. Opening the collection
+ * starts the prefetch of the next one, so that when the encoder gets to it the features are
+ * already there.
+ */
+class PrefetchingFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+    /**
+     * Returns the features read in advance, then keeps on reading from the same iterator
+     */
+    static class PrefetchedIterator implements SimpleFeatureIterator {
+
+        List<SimpleFeature> buffer;
+
+        int index;
+
+        SimpleFeatureIterator delegate;
+
+        PrefetchedIterator(List<SimpleFeature> buffer, SimpleFeatureIterator delegate) {
+            this.buffer = buffer;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < buffer.size() || delegate.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            if (index < buffer.size()) {
+                // release the features as they are consumed
+                SimpleFeature feature = buffer.set(index++, null);
+                return feature;
+            }
+            return delegate.next();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    GetFeatureExecutor executor;
+
+    int prefetchSize;
+
+    PrefetchingFeatureCollection next;
+
+    boolean started;
+
+    Future<PrefetchedIterator> prefetched;
+
+    PrefetchingFeatureCollection(SimpleFeatureCollection delegate, GetFeatureExecutor executor,
+            int prefetchSize, PrefetchingFeatureCollection next) {
+        super(delegate);
+        this.executor = executor;
+        this.prefetchSize = prefetchSize;
+        this.next = next;
+    }
+
+    /**
+     * Starts reading the first features in the background, if not done already
+     */
+    synchronized void prefetch() {
+        if (started) {
+            return;
+        }
+        started = true;
+        prefetched = executor.submit(new Callable<PrefetchedIterator>() {
+
+            @Override
+            public PrefetchedIterator call() throws Exception {
+                SimpleFeatureIterator it = delegate.features();
+                try {
+                    List<SimpleFeature> buffer = new ArrayList<SimpleFeature>();
+                    while (buffer.size() < prefetchSize && it.hasNext()) {
+                        buffer.add(it.next());
+                    }
+                    return new PrefetchedIterator(buffer, it);
+                } catch (RuntimeException e) {
+                    it.close();
+                    throw e;
+                }
+            }
+        });
+        executor.register(this);
+    }
+
+    synchronized Future<PrefetchedIterator> take() {
+        Future<PrefetchedIterator> result = prefetched;
+        prefetched = null;
+        return result;
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        if (next != null) {
+            next.prefetch();
+        }
+
+        // the prefetched iterator can be used only once, further calls read from scratch
+        Future<PrefetchedIterator> future = take();
+        if (future == null) {
+            return delegate.features();
+        }
+        try {
+            return GetFeatureExecutor.get(future);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes the prefetched iterator, if it has not been used
+     */
+    void dispose() {
+        Future<PrefetchedIterator> future = take();
+        if (future != null && !future.cancel(false)) {
+            try {
+                future.get().close();
+            } catch (Exception e) {
+                GetFeatureExecutor.LOGGER.log(Level.FINE, "Failed to close prefetched features",
+                        e);
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ package org.geoserver.wfs;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -22,11 +23,13 @@ import javax.xml.namespace.QName;
 
 import net.opengis.wfs.TransactionResponseType;
 import net.opengis.wfs.TransactionType;
+import net.opengis.wfs.WfsFactory;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.request.Insert;
 import org.geoserver.wfs.request.TransactionElement;
 import org.geoserver.wfs.request.TransactionRequest;
 import org.geoserver.wfs.request.TransactionResponse;
@@ -314,12 +317,30 @@ public class Transaction {
         Exception exception = null;
 
         try {
-            for (Iterator it = elementHandlers.entrySet().iterator(); it.hasNext();) {
-                Map.Entry entry = (Map.Entry) it.next();
-                TransactionElement element = (TransactionElement) entry.getKey();
-                TransactionElementHandler handler = (TransactionElementHandler) entry.getValue();
-
-                handler.execute(element, request, stores, result, multiplexer);
+            List<TransactionElement> elements = new ArrayList<TransactionElement>(
+                    elementHandlers.keySet());
+            for (int i = 0; i < elements.size(); i++) {
+                TransactionElement element = elements.get(i);
+                TransactionElementHandler handler = (TransactionElementHandler) elementHandlers
+                        .get(element);
+
+                if (handler instanceof InsertElementHandler
+                        && ((InsertElementHandler) handler).getBatchSize() > 0) {
+                    // batch mode, run the following inserts of the same type along with this one
+                    InsertElementHandler insertHandler = (InsertElementHandler) handler;
+                    List<Insert> inserts = new ArrayList<Insert>();
+                    inserts.add((Insert) element);
+                    QName typeName = insertHandler.getInsertTypeName(element);
+                    while (typeName != null && i + 1 < elements.size()
+                            && elementHandlers.get(elements.get(i + 1)) == handler
+                            && typeName.equals(insertHandler.getInsertTypeName(elements
+                                    .get(i + 1)))) {
+                        inserts.add((Insert) elements.get(++i));
+                    }
+                    insertHandler.execute(inserts, request, stores, result, multiplexer);
+                } else {
+                    handler.execute(element, request, stores, result, multiplexer);
+                }
             }
         } catch (WFSTransactionException e) {
             LOGGER.log(Level.SEVERE, "Transaction failed", e);
@@ -344,6 +365,9 @@ public class Transaction {
             if (exception != null) {
                 transaction.rollback();
             } else {
+                // deliver the merged events to the listeners waiting for them
+                multiplexer.flush();
+
                 // inform plugins we're about to commit
                 for (Iterator it = transactionPlugins.iterator(); it.hasNext();) {
                     TransactionPlugin tp = (TransactionPlugin) it.next();
@@ -447,10 +471,30 @@ public class Transaction {
     void fireAfterTransaction(TransactionRequest request, TransactionResponse result, boolean committed, TransactionPlugin tp) {
         TransactionType tx = TransactionRequest.WFS11.unadapt(request);
         TransactionResponseType tr = TransactionResponse.WFS11.unadapt(result);
+        if (tr == null && result != null) {
+            // a WFS 2.0 transaction, the plugins get the summary only
+            tr = summarize(result);
+        }
         
         if (tx != null && tr != null) tp.afterTransaction(tx, tr, committed);
     }
 
+    /**
+     * Builds a WFS 1.1 transaction response carrying the summary of the given response, with
+     * empty results
+     */
+    TransactionResponseType summarize(TransactionResponse result) {
+        WfsFactory factory = WfsFactory.eINSTANCE;
+        TransactionResponseType tr = factory.createTransactionResponseType();
+        tr.setTransactionSummary(factory.createTransactionSummaryType());
+        tr.getTransactionSummary().setTotalInserted(result.getTotalInserted());
+        tr.getTransactionSummary().setTotalUpdated(result.getTotalUpdated());
+        tr.getTransactionSummary().setTotalDeleted(result.getTotalDeleted());
+        tr.setTransactionResults(factory.createTransactionResultsType());
+        tr.setInsertResults(factory.createInsertResultsType());
+        return tr;
+    }
+
     void fireBeforeCommit(TransactionRequest request, TransactionPlugin tp) {
         TransactionType tx = TransactionRequest.WFS11.unadapt(request);
         if (tx != null) tp.beforeCommit(tx);
@@ -647,17 +691,26 @@ public class Transaction {
 
     /**
      * Bounces the single callback we got from transaction event handlers to all
-     * registered listeners
+     * registered listeners. The {@link CoalescingTransactionListener}s are skipped, the events
+     * are merged by layer and type for them instead, and delivered by {@link #flush()}
      *
      * @author Andrea Aime - TOPP
      *
      */
     private class TransactionListenerMux implements TransactionListener {
+        
+        /**
+         * The merged events, by layer name and event type, in the order they were first issued
+         */
+        Map<List<Object>, TransactionEvent> merged = new LinkedHashMap<List<Object>, TransactionEvent>();
+        
         public void dataStoreChange(List listeners, TransactionEvent event)
             throws WFSException {
             for (Iterator it = listeners.iterator(); it.hasNext();) {
                 TransactionListener listener = (TransactionListener) it.next();
-                listener.dataStoreChange(event);
+                if (!(listener instanceof CoalescingTransactionListener)) {
+                    listener.dataStoreChange(event);
+                }
             }
         }
 
@@ -665,6 +718,62 @@ public class Transaction {
             throws WFSException {
             dataStoreChange(transactionPlugins, event);
             dataStoreChange(transactionListeners, event);
+            if (hasCoalescingListeners()) {
+                merge(event);
+            }
+        }
+
+        boolean hasCoalescingListeners() {
+            for (Object listener : transactionPlugins) {
+                if (listener instanceof CoalescingTransactionListener) {
+                    return true;
+                }
+            }
+            for (Object listener : transactionListeners) {
+                if (listener instanceof CoalescingTransactionListener) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void merge(TransactionEvent event) {
+            List<Object> key = Arrays.asList((Object) event.getLayerName(), event.getType());
+            TransactionEvent mergedEvent = merged.get(key);
+            if (mergedEvent == null) {
+                mergedEvent = new TransactionEvent(event);
+                merged.put(key, mergedEvent);
+            }
+            // the affected collection may not be usable later, compute the bounds right away
+            try {
+                mergedEvent.expandAffectedBounds(event.getAffectedBounds());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to compute the area affected by the "
+                        + event.getType() + " event on " + event.getLayerName(), e);
+            }
+        }
+
+        /**
+         * Delivers the merged events to the coalescing listeners
+         */
+        void flush() throws WFSException {
+            try {
+                for (TransactionEvent event : merged.values()) {
+                    flush(transactionPlugins, event);
+                    flush(transactionListeners, event);
+                }
+            } finally {
+                merged.clear();
+            }
+        }
+
+        void flush(List listeners, TransactionEvent event) throws WFSException {
+            for (Iterator it = listeners.iterator(); it.hasNext();) {
+                TransactionListener listener = (TransactionListener) it.next();
+                if (listener instanceof CoalescingTransactionListener) {
+                    listener.dataStoreChange(event);
+                }
+            }
         }
     }
 }
@@ -15,6 +15,7 @@ import net.opengis.wfs.UpdateElementType;
 import org.geoserver.wfs.request.TransactionRequest;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 
 
 /**
@@ -37,6 +38,7 @@ public class TransactionEvent {
     private QName layerName;
     private Object source;
     private final TransactionRequest request;
+    private ReferencedEnvelope affectedBounds;
 
     public TransactionEvent(TransactionEventType type, TransactionRequest request, QName layerName,
             SimpleFeatureCollection affectedFeatures) {
@@ -52,6 +54,28 @@ public class TransactionEvent {
         this.source = source;
     }
 
+    /**
+     * Builds a merged event, with no affected features and empty affected bounds, out of the
+     * first event of a sequence, see {@link CoalescingTransactionListener}
+     */
+    TransactionEvent(TransactionEvent first) {
+        this(first.type, first.request, first.layerName, null, first.source);
+    }
+
+    /**
+     * Adds an area to the bounds of a merged event
+     */
+    void expandAffectedBounds(ReferencedEnvelope bounds) {
+        if (bounds == null || bounds.isNull()) {
+            return;
+        }
+        if (affectedBounds == null) {
+            affectedBounds = new ReferencedEnvelope(bounds);
+        } else {
+            affectedBounds.expandToInclude(bounds);
+        }
+    }
+
     /**
      * The type of change occurring
      */
@@ -63,11 +87,26 @@ public class TransactionEvent {
      * A collection of the features that are being manipulated. Accessible and usable only
      * when the event is being thrown, if you store the event and try to access the collection later
      * there is no guarantee it will still be usable.
+     * <p>
+     * Null for the merged events delivered to {@link CoalescingTransactionListener}s.
+     * </p>
      */
     public SimpleFeatureCollection getAffectedFeatures() {
         return affectedFeatures;
     }
     
+    /**
+     * The area affected by the change: the bounds of the affected features, or the merged bounds
+     * of the events coalesced into this one. May be null if the coalesced events did not affect
+     * any feature.
+     */
+    public ReferencedEnvelope getAffectedBounds() {
+        if (affectedBounds == null && affectedFeatures != null) {
+            return affectedFeatures.getBounds();
+        }
+        return affectedBounds;
+    }
+
     /**
      * The name of the layer / feature type that this transaction effects.
      */
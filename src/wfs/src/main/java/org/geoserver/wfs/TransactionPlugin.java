@@ -37,6 +37,10 @@ public interface TransactionPlugin extends TransactionListener {
      * @param committed
      *            true if the transaction was successful, false if the transaction was aborted for
      *            any reason
+     *            <p>
+     *            The request and the result of WFS 2.0 transactions are converted to WFS 1.1,
+     *            the result only carries the transaction summary.
+     *            </p>
      */
     void afterTransaction(TransactionType request, TransactionResponseType result, boolean committed);
 
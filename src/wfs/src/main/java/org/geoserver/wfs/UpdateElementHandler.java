@@ -7,6 +7,7 @@ package org.geoserver.wfs;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -225,6 +226,14 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
             LOGGER.finer("Preprocess to remember modification as a set of fids");
             
             SimpleFeatureCollection features = store.getFeatures(filter);
+
+            // with the lock index the locks are checked here, instead of by the store
+            FeatureLockIndex lockIndex = FeatureLockIndex.lookup();
+            List<String> lockedFids = Collections.emptyList();
+            if (lockIndex != null) {
+                lockedFids = lockIndex.check(elementName, features, request.getLockId());
+            }
+
             TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_UPDATE, request,
                     elementName, features);
             event.setSource(Update.WFS11.unadapt(update));
@@ -256,7 +265,11 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
             }
             finally {
                 // make sure we unlock
-                if ((request.getLockId() != null) && store instanceof FeatureLocking
+                if (lockIndex != null) {
+                    if (request.getLockId() != null && request.isReleaseActionSome()) {
+                        lockIndex.release(request.getLockId(), elementName, lockedFids);
+                    }
+                } else if ((request.getLockId() != null) && store instanceof FeatureLocking
                         && (request.isReleaseActionSome())) {
                     SimpleFeatureLocking locking;
                     locking = (SimpleFeatureLocking) store;
@@ -0,0 +1,201 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Writes simple features as GeoJSON Feature objects, preparing the attribute keys and the
+ * number of decimals once per feature type. Shared by the GeoJSON outputs, which write the
+ * features either in a FeatureCollection or one per line.
+ */
+class GeoJSONFeatureEncoder {
+
+    static final char[] TYPE = GeoJSONStreamingWriter.token("type");
+
+    static final char[] ID = GeoJSONStreamingWriter.token("id");
+
+    static final char[] GEOMETRY = GeoJSONStreamingWriter.token("geometry");
+
+    static final char[] GEOMETRY_NAME = GeoJSONStreamingWriter.token("geometry_name");
+
+    static final char[] PROPERTIES = GeoJSONStreamingWriter.token("properties");
+
+    final GeoJSONStreamingWriter jsonWriter;
+
+    final Catalog catalog;
+
+    /** null - default, "" - none, or the property used as the id */
+    final String idOption;
+
+    final boolean featureBounding;
+
+    SimpleFeatureType lastType;
+
+    char[][] keys;
+
+    CoordinateReferenceSystem crs;
+
+    boolean hasGeom;
+
+    /**
+     * @param catalog used to look up the number of decimals of each feature type, can be null
+     * @param idOption null to use the feature id, "" to skip it, or the attribute to use
+     * @param featureBounding whether to add the bounding box of each feature
+     */
+    GeoJSONFeatureEncoder(GeoJSONStreamingWriter jsonWriter, Catalog catalog, String idOption,
+            boolean featureBounding) {
+        this.jsonWriter = jsonWriter;
+        this.catalog = catalog;
+        this.idOption = idOption;
+        this.featureBounding = featureBounding;
+    }
+
+    /**
+     * The CRS of the first feature with a default geometry, or null
+     */
+    CoordinateReferenceSystem getCrs() {
+        return crs;
+    }
+
+    /**
+     * Whether any of the features written had a geometry
+     */
+    boolean hasGeometry() {
+        return hasGeom;
+    }
+
+    void write(SimpleFeature feature) throws IOException {
+        jsonWriter.object();
+        jsonWriter.key(TYPE).value("Feature");
+
+        SimpleFeatureType fType = feature.getFeatureType();
+        List<AttributeDescriptor> types = fType.getAttributeDescriptors();
+        if (fType != lastType) {
+            keys = new char[types.size()][];
+            for (int j = 0; j < keys.length; j++) {
+                keys[j] = GeoJSONStreamingWriter.token(types.get(j).getLocalName());
+            }
+            jsonWriter.setNumberOfDecimals(getNumDecimals(fType));
+            lastType = fType;
+        }
+
+        if (idOption == null) {
+            jsonWriter.key(ID).value(feature.getID());
+        } else if (idOption.length() != 0) {
+            Object value = feature.getAttribute(idOption);
+            jsonWriter.key(ID).value(value);
+        }
+
+        GeometryDescriptor defaultGeomType = fType.getGeometryDescriptor();
+        if (defaultGeomType != null) {
+            CoordinateReferenceSystem featureCrs = defaultGeomType.getCoordinateReferenceSystem();
+
+            jsonWriter.setAxisOrder(CRS.getAxisOrder(featureCrs));
+
+            if (crs == null)
+                crs = featureCrs;
+        } else {
+            // If we don't know, assume EAST_NORTH so that no swapping occurs
+            jsonWriter.setAxisOrder(CRS.AxisOrder.EAST_NORTH);
+        }
+
+        jsonWriter.key(GEOMETRY);
+        Geometry aGeom = (Geometry) feature.getDefaultGeometry();
+
+        if (aGeom == null) {
+            // In case the default geometry is not set, we will
+            // just use the first geometry we find
+            for (int j = 0; j < types.size() && aGeom == null; j++) {
+                Object value = feature.getAttribute(j);
+                if (value != null && value instanceof Geometry) {
+                    aGeom = (Geometry) value;
+                }
+            }
+        }
+        // Write the geometry, whether it is a null or not
+        if (aGeom != null) {
+            jsonWriter.writeGeom(aGeom);
+            hasGeom = true;
+        } else {
+            jsonWriter.value(null);
+        }
+        if (defaultGeomType != null)
+            jsonWriter.key(GEOMETRY_NAME).value(defaultGeomType.getLocalName());
+
+        jsonWriter.key(PROPERTIES);
+        jsonWriter.object();
+
+        for (int j = 0; j < types.size(); j++) {
+            Object value = feature.getAttribute(j);
+            AttributeDescriptor ad = types.get(j);
+
+            if (idOption != null && idOption.equals(ad.getLocalName())) {
+                continue; // skip this value as it is used as the id
+            }
+            if (value != null) {
+                if (value instanceof Geometry) {
+                    // This is an area of the spec where they
+                    // decided to 'let convention evolve',
+                    // that is how to handle multiple
+                    // geometries. My take is to print the
+                    // geometry here if it's not the default.
+                    // If it's the default that you already
+                    // printed above, so you don't need it here.
+                    if (ad.equals(defaultGeomType)) {
+                        // Do nothing, we wrote it above
+                        // jsonWriter.value("geometry_name");
+                    } else {
+                        jsonWriter.key(keys[j]);
+                        jsonWriter.writeGeom((Geometry) value);
+                    }
+                } else {
+                    jsonWriter.key(keys[j]);
+                    jsonWriter.value(value);
+                }
+
+            } else {
+                jsonWriter.key(keys[j]);
+                jsonWriter.value(null);
+            }
+        }
+        // Bounding box for feature in properties
+        ReferencedEnvelope refenv = ReferencedEnvelope.reference(feature.getBounds());
+        if (featureBounding && !refenv.isEmpty())
+            jsonWriter.writeBoundingBox(refenv);
+
+        jsonWriter.endObject(); // end the properties
+        jsonWriter.endObject(); // end the feature
+    }
+
+    /**
+     * Returns the number of decimals configured for the feature type, or -1 to write the
+     * coordinates at full precision
+     */
+    int getNumDecimals(SimpleFeatureType fType) {
+        if (catalog == null) {
+            return -1;
+        }
+        FeatureTypeInfo info = catalog.getFeatureTypeByName(fType.getName());
+        if (info != null && info.getNumDecimals() > 0) {
+            return info.getNumDecimals();
+        }
+        return -1;
+    }
+}
@@ -46,10 +46,7 @@ import org.geotools.referencing.CRS.AxisOrder;
 import org.geotools.referencing.NamedIdentifier;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.FeatureType;
-import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.filter.Filter;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.ReferenceIdentifier;
@@ -57,8 +54,6 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import javax.xml.namespace.QName;
 
-import com.vividsolutions.jts.geom.Geometry;
-
 /**
  * A GetFeatureInfo response handler specialized in producing Json and JsonP data for a GetFeatureInfo request.
  * 
@@ -69,6 +64,10 @@ import com.vividsolutions.jts.geom.Geometry;
 public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
     private final Logger LOGGER = org.geotools.util.logging.Logging.getLogger(this.getClass());
 
+    static final char[] TYPE = GeoJSONFeatureEncoder.TYPE;
+
+    static final char[] PROPERTIES = GeoJSONFeatureEncoder.PROPERTIES;
+
     // store the response type
     private final boolean jsonp;
 
@@ -124,7 +123,6 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
         // prepare to write out
         OutputStreamWriter osw = null;
         Writer outWriter = null;
-        boolean hasGeom = false;
 
         // get feature count for request
         Integer featureCount = null; 
@@ -147,8 +145,8 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
                 outWriter.write(getCallbackFunction() + "(");
             }
 
-            final GeoJSONBuilder jsonWriter = new GeoJSONBuilder(outWriter);
-            jsonWriter.object().key("type").value("FeatureCollection");
+            final GeoJSONStreamingWriter jsonWriter = new GeoJSONStreamingWriter(outWriter);
+            jsonWriter.object().key(TYPE).value("FeatureCollection");
             if(featureCount != null) {
                 jsonWriter.key("totalFeatures").value(featureCount);
             }
@@ -160,112 +158,16 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             //
             // execute should also fail if all of the locks could not be aquired
             List<FeatureCollection> resultsList = featureCollection.getFeature();
-            CoordinateReferenceSystem crs = null;
+            GeoJSONFeatureEncoder encoder = new GeoJSONFeatureEncoder(jsonWriter,
+                    gs.getCatalog(), id_option, featureBounding);
             for (int i = 0; i < resultsList.size(); i++) {
                 FeatureCollection collection = resultsList.get(i);
                 FeatureIterator iterator = collection.features();
 
                 
                 try {
-                    SimpleFeatureType fType;
-                    List<AttributeDescriptor> types;
-
                     while (iterator.hasNext()) {
-                        SimpleFeature feature = (SimpleFeature) iterator.next();
-                        jsonWriter.object();
-                        jsonWriter.key("type").value("Feature");
-
-                        fType = feature.getFeatureType();
-                        types = fType.getAttributeDescriptors();
-
-                        if( id_option == null ){
-                            jsonWriter.key("id").value(feature.getID());
-                        }
-                        else if ( id_option.length() != 0){
-                            Object value = feature.getAttribute(id_option);
-                            jsonWriter.key("id").value(value);
-                        }
-                        
-                        GeometryDescriptor defaultGeomType = fType.getGeometryDescriptor();
-                        if(defaultGeomType != null) {
-                            CoordinateReferenceSystem featureCrs =
-                                    defaultGeomType.getCoordinateReferenceSystem();
-                            
-                            jsonWriter.setAxisOrder(CRS.getAxisOrder(featureCrs));
-                            
-                            if (crs == null)
-                                crs = featureCrs;
-                        } else  {
-                            // If we don't know, assume EAST_NORTH so that no swapping occurs
-                            jsonWriter.setAxisOrder(CRS.AxisOrder.EAST_NORTH);
-                        }
-                        
-                        jsonWriter.key("geometry");
-                        Geometry aGeom = (Geometry) feature.getDefaultGeometry();
-
-                        if (aGeom == null) {
-                            // In case the default geometry is not set, we will
-                            // just use the first geometry we find
-                            for (int j = 0; j < types.size() && aGeom == null; j++) {
-                                Object value = feature.getAttribute(j);
-                                if (value != null && value instanceof Geometry) {
-                                    aGeom = (Geometry) value;
-                                }
-                            }
-                        }
-                        // Write the geometry, whether it is a null or not
-                        if (aGeom != null) {
-                            jsonWriter.writeGeom(aGeom);
-                            hasGeom = true;
-                        } else {
-                            jsonWriter.value(null);
-                        }
-                        if (defaultGeomType != null)
-                            jsonWriter.key("geometry_name").value(defaultGeomType.getLocalName());
-
-                        jsonWriter.key("properties");
-                        jsonWriter.object();
-
-                        for (int j = 0; j < types.size(); j++) {
-                            Object value = feature.getAttribute(j);
-                            AttributeDescriptor ad = types.get(j);
-                            
-                            if( id_option != null && id_option.equals(ad.getLocalName()) ){
-                            	continue; // skip this value as it is used as the id
-                            }
-                            if (value != null) {
-                                if (value instanceof Geometry) {
-                                    // This is an area of the spec where they
-                                    // decided to 'let convention evolve',
-                                    // that is how to handle multiple
-                                    // geometries. My take is to print the
-                                    // geometry here if it's not the default.
-                                    // If it's the default that you already
-                                    // printed above, so you don't need it here.
-                                    if (ad.equals(defaultGeomType)) {
-                                        // Do nothing, we wrote it above
-                                        // jsonWriter.value("geometry_name");
-                                    } else {
-                                        jsonWriter.key(ad.getLocalName());
-                                        jsonWriter.writeGeom((Geometry) value);
-                                    }
-                                } else {
-                                    jsonWriter.key(ad.getLocalName());
-                                    jsonWriter.value(value);
-                                }
-
-                            } else {
-                                jsonWriter.key(ad.getLocalName());
-                                jsonWriter.value(null);
-                            }
-                        }
-                        // Bounding box for feature in properties
-                        ReferencedEnvelope refenv = ReferencedEnvelope.reference(feature.getBounds());
-                        if (featureBounding && !refenv.isEmpty())
-                            jsonWriter.writeBoundingBox(refenv);
-
-                        jsonWriter.endObject(); // end the properties
-                        jsonWriter.endObject(); // end the feature
+                        encoder.write((SimpleFeature) iterator.next());
                     }
                 } // catch an exception here?
                 finally {
@@ -278,16 +180,16 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             try {
                 if ("true".equals(GeoServerExtensions.getProperty("GEOSERVER_GEOJSON_LEGACY_CRS"))){
                     // This is wrong, but GeoServer used to do it this way.
-                    writeCrsLegacy(jsonWriter, crs);
+                    writeCrsLegacy(jsonWriter, encoder.getCrs());
                 } else {
-                    writeCrs(jsonWriter, crs);
+                    writeCrs(jsonWriter, encoder.getCrs());
                 }
             } catch (FactoryException e) {
                 throw (IOException) new IOException("Error looking up crs identifier").initCause(e);
             }
             
             // Bounding box for featurecollection
-            if (hasGeom && featureBounding) {
+            if (encoder.hasGeometry() && featureBounding) {
                 ReferencedEnvelope e = null;
                 for (int i = 0; i < resultsList.size(); i++) {
                     FeatureCollection collection = (FeatureCollection) resultsList.get(i);
@@ -308,10 +210,10 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             jsonWriter.endObject(); // end featurecollection
 
             if (jsonp) {
-                outWriter.write(")");
+                jsonWriter.writeRaw(")");
             }
 
-            outWriter.flush();
+            jsonWriter.flush();
 
         } catch (JSONException jsonException) {
             ServiceException serviceException = new ServiceException("Error: "
@@ -321,8 +223,8 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
         }
     }
 
-    private void writeCrs(final GeoJSONBuilder jsonWriter,
-            CoordinateReferenceSystem crs) throws FactoryException {
+    private void writeCrs(final GeoJSONStreamingWriter jsonWriter,
+            CoordinateReferenceSystem crs) throws FactoryException, IOException {
         if (crs != null) {
             String identifier = CRS.lookupIdentifier(crs, true);
             // If we get a plain EPSG code, generate a URI as the GeoJSON spec says to 
@@ -336,8 +238,8 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             }
             jsonWriter.key("crs");
             jsonWriter.object();
-            jsonWriter.key("type").value("name");
-            jsonWriter.key("properties");
+            jsonWriter.key(TYPE).value("name");
+            jsonWriter.key(PROPERTIES);
             jsonWriter.object();
             jsonWriter.key("name");
             jsonWriter.value(identifier);
@@ -350,8 +252,8 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
     }
     
     // Doesn't follow spec, but GeoServer used to do this.
-    private void writeCrsLegacy(final GeoJSONBuilder jsonWriter,
-            CoordinateReferenceSystem crs) {
+    private void writeCrsLegacy(final GeoJSONStreamingWriter jsonWriter,
+            CoordinateReferenceSystem crs) throws IOException {
         // Coordinate Referense System, currently only if the namespace is
         // EPSG
         if (crs != null) {
@@ -364,8 +266,8 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
                 if (csStr.equals("EPSG")) {
                     jsonWriter.key("crs");
                     jsonWriter.object();
-                    jsonWriter.key("type").value(csStr);
-                    jsonWriter.key("properties");
+                    jsonWriter.key(TYPE).value(csStr);
+                    jsonWriter.key(PROPERTIES);
                     jsonWriter.object();
                     jsonWriter.key("code");
                     jsonWriter.value(namedIdent.getCode());
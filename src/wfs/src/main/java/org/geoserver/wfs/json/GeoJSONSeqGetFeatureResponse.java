@@ -0,0 +1,161 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.json.JSONException;
+
+import org.geoserver.config.GeoServer;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.WFSGetFeatureOutputFormat;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geoserver.wfs.request.GetFeatureRequest;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A GetFeature response writing newline delimited GeoJSON, each feature as a standalone
+ * Feature object on its own line, with no enclosing FeatureCollection.
+ * <p>
+ * As there are no collection level members to compute, the output is flushed every
+ * {@link #NDJSON_FLUSH_INTERVAL} features (the FLUSHINTERVAL format option), so that clients can
+ * start processing the features as they arrive, with constant memory on both sides.
+ * </p>
+ * <p>
+ * The flushes reach the client only once the service strategy lets go of the output. With the
+ * default PARTIAL-BUFFER2 strategy the first
+ * {@link org.vfny.geoserver.util.PartialBufferedOutputStream2#DEFAULT_BUFFER_SIZE} KB are held
+ * back, so that a failure can still be reported as a service exception, and flushing
+ * is a no-op until they are filled: the first features are sent at once when the buffer fills
+ * up, or when the response ends, and the flush interval applies from there on. The SPEED
+ * strategy sends the features out at the first flush.
+ * </p>
+ */
+public class GeoJSONSeqGetFeatureResponse extends WFSGetFeatureOutputFormat {
+
+    /**
+     * The system property holding the number of features written between two flushes
+     */
+    public static final String NDJSON_FLUSH_INTERVAL = "org.geoserver.wfs.ndjson.flushInterval";
+
+    static final int DEFAULT_FLUSH_INTERVAL = 100;
+
+    public static final String MIME_TYPE = "application/x-ndjson";
+
+    static final Set<String> FORMATS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("ndjson", MIME_TYPE)));
+
+    public GeoJSONSeqGetFeatureResponse(GeoServer gs) {
+        super(gs, FORMATS);
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return MIME_TYPE;
+    }
+
+    @Override
+    protected void write(FeatureCollectionResponse featureCollection, OutputStream output,
+            Operation getFeature) throws IOException {
+        write(featureCollection.getFeature(), output, getFlushInterval(getFeature));
+    }
+
+    /**
+     * Writes the features of the collections, one per line, flushing the output at the
+     * configured interval
+     */
+    public void write(List<FeatureCollection> collections, OutputStream output)
+            throws IOException {
+        write(collections, output, getFlushInterval(null));
+    }
+
+    /**
+     * Writes the features of the collections, one per line, flushing the output every
+     * flushInterval features
+     */
+    public void write(List<FeatureCollection> collections, OutputStream output,
+            int flushInterval) throws IOException {
+        // include fid?
+        String idOption = null;
+        Request request = Dispatcher.REQUEST.get();
+        if (request != null && request.getKvp() != null) {
+            idOption = JSONType.getIdPolicy((Map<String, String>) request.getKvp());
+        }
+
+        try {
+            BufferedWriter outWriter = new BufferedWriter(new OutputStreamWriter(output, gs
+                    .getSettings().getCharset()));
+            GeoJSONStreamingWriter jsonWriter = new GeoJSONStreamingWriter(outWriter);
+            GeoJSONFeatureEncoder encoder = new GeoJSONFeatureEncoder(jsonWriter,
+                    gs.getCatalog(), idOption, getInfo().isFeatureBounding());
+
+            int count = 0;
+            for (FeatureCollection collection : collections) {
+                FeatureIterator iterator = collection.features();
+                try {
+                    while (iterator.hasNext()) {
+                        encoder.write((SimpleFeature) iterator.next());
+                        jsonWriter.writeRaw("\n");
+                        if (++count % flushInterval == 0) {
+                            // does not reach the client until the service strategy buffer
+                            // is full, see the class javadoc
+                            jsonWriter.flush();
+                        }
+                    }
+                } finally {
+                    iterator.close();
+                }
+            }
+            jsonWriter.flush();
+        } catch (JSONException jsonException) {
+            ServiceException serviceException = new ServiceException("Error: "
+                    + jsonException.getMessage());
+            serviceException.initCause(jsonException);
+            throw serviceException;
+        }
+    }
+
+    int getFlushInterval(Operation operation) {
+        Object option = null;
+        if (operation != null && operation.getParameters().length > 0) {
+            GetFeatureRequest request = GetFeatureRequest.adapt(operation.getParameters()[0]);
+            if (request != null && request.getFormatOptions() != null) {
+                option = request.getFormatOptions().get("FLUSHINTERVAL");
+            }
+        }
+        if (option == null) {
+            option = GeoServerExtensions.getProperty(NDJSON_FLUSH_INTERVAL);
+        }
+        if (option != null) {
+            try {
+                int interval = Integer.parseInt(option.toString().trim());
+                if (interval > 0) {
+                    return interval;
+                }
+            } catch (NumberFormatException e) {
+                // fall back on the default
+            }
+            LOGGER.warning("Invalid ndjson flush interval: " + option + ", using the default: "
+                    + DEFAULT_FLUSH_INTERVAL);
+        }
+        return DEFAULT_FLUSH_INTERVAL;
+    }
+}
@@ -0,0 +1,486 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import net.sf.json.JSONException;
+import net.sf.json.util.JSONUtils;
+
+import org.geotools.geometry.jts.coordinatesequence.CoordinateSequences;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.CoordinateArraySequence;
+
+/**
+ * A streaming GeoJSON writer producing the same output as {@link GeoJSONBuilder}, without its
+ * per call overhead: there is no key bookkeeping, keys can be turned into reusable tokens with
+ * {@link #token(String)}, numbers are formatted in a reusable buffer and coordinates are read
+ * straight out of the coordinate sequences.
+ * <p>
+ * The writer does not validate the structure being written, it's up to the caller to pair
+ * objects and arrays and to alternate keys and values correctly.
+ * </p>
+ */
+public class GeoJSONStreamingWriter {
+
+    static final char[] NULL = "null".toCharArray();
+
+    static final char[] TRUE = "true".toCharArray();
+
+    static final char[] FALSE = "false".toCharArray();
+
+    static final char[] TYPE = token("type");
+
+    static final char[] COORDINATES = token("coordinates");
+
+    static final char[] GEOMETRIES = token("geometries");
+
+    static final char[] BBOX = token("bbox");
+
+    final Writer writer;
+
+    final char[] buffer = new char[8192];
+
+    int position;
+
+    /**
+     * Whether the current object/array already has a member, used to place commas
+     */
+    boolean[] members = new boolean[32];
+
+    int depth;
+
+    boolean afterKey;
+
+    CRS.AxisOrder axisOrder = CRS.AxisOrder.EAST_NORTH;
+
+    int numDecimals = -1;
+
+    long scale;
+
+    final StringBuilder numberBuffer = new StringBuilder(32);
+
+    public GeoJSONStreamingWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Turns a key into a token that can be written with {@link #key(char[])}, quoted and
+     * followed by the colon
+     */
+    public static char[] token(String key) {
+        return (JSONUtils.quote(key) + ":").toCharArray();
+    }
+
+    /**
+     * Set the axis order to assume all input will be provided in. Has no effect on geometries
+     * that have already been written.
+     */
+    public void setAxisOrder(CRS.AxisOrder axisOrder) {
+        this.axisOrder = axisOrder;
+    }
+
+    /**
+     * Rounds the coordinates to the given number of decimals, a negative value (the default)
+     * writes them at full precision
+     */
+    public void setNumberOfDecimals(int numDecimals) {
+        // past 15 decimals rounding on a long would overflow for most values anyways
+        this.numDecimals = numDecimals > 15 ? -1 : numDecimals;
+        if (this.numDecimals >= 0) {
+            scale = 1;
+            for (int i = 0; i < this.numDecimals; i++) {
+                scale *= 10;
+            }
+        }
+    }
+
+    public GeoJSONStreamingWriter object() throws IOException {
+        beforeValue();
+        write('{');
+        push();
+        return this;
+    }
+
+    public GeoJSONStreamingWriter endObject() throws IOException {
+        write('}');
+        depth--;
+        return this;
+    }
+
+    public GeoJSONStreamingWriter array() throws IOException {
+        beforeValue();
+        write('[');
+        push();
+        return this;
+    }
+
+    public GeoJSONStreamingWriter endArray() throws IOException {
+        write(']');
+        depth--;
+        return this;
+    }
+
+    public GeoJSONStreamingWriter key(String key) throws IOException {
+        return key(token(key));
+    }
+
+    /**
+     * Writes a key token built by {@link #token(String)}
+     */
+    public GeoJSONStreamingWriter key(char[] token) throws IOException {
+        if (members[depth]) {
+            write(',');
+        }
+        members[depth] = true;
+        write(token, 0, token.length);
+        afterKey = true;
+        return this;
+    }
+
+    /**
+     * Writes a value the same way {@link GeoJSONBuilder#value(Object)} would
+     */
+    public GeoJSONStreamingWriter value(Object value) throws IOException {
+        if (value == null) {
+            beforeValue();
+            write(NULL, 0, NULL.length);
+        } else if (value instanceof String) {
+            value((String) value);
+        } else if (value instanceof Double) {
+            value(((Double) value).doubleValue());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            value(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            value(((Boolean) value).booleanValue());
+        } else if (value instanceof java.util.Date || value instanceof Calendar) {
+            value(Converters.convert(value, String.class));
+        } else {
+            beforeValue();
+            write(JSONUtils.valueToString(value));
+        }
+        return this;
+    }
+
+    public GeoJSONStreamingWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            write(NULL, 0, NULL.length);
+        } else {
+            quote(value);
+        }
+        return this;
+    }
+
+    public GeoJSONStreamingWriter value(long value) throws IOException {
+        beforeValue();
+        numberBuffer.setLength(0);
+        numberBuffer.append(value);
+        writeNumberBuffer();
+        return this;
+    }
+
+    public GeoJSONStreamingWriter value(boolean value) throws IOException {
+        beforeValue();
+        char[] chars = value ? TRUE : FALSE;
+        write(chars, 0, chars.length);
+        return this;
+    }
+
+    /**
+     * Writes a double the same way json-lib does, that is, as {@link Double#toString(double)}
+     * minus the trailing zeroes of the decimal part
+     */
+    public GeoJSONStreamingWriter value(double value) throws IOException {
+        beforeValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("JSON does not allow non-finite numbers");
+        }
+        numberBuffer.setLength(0);
+        numberBuffer.append(value);
+        int length = numberBuffer.length();
+        boolean decimal = false;
+        for (int i = 0; i < length; i++) {
+            char c = numberBuffer.charAt(i);
+            if (c == 'E' || c == 'e') {
+                decimal = false;
+                break;
+            } else if (c == '.' && i > 0) {
+                decimal = true;
+            }
+        }
+        if (decimal) {
+            while (numberBuffer.charAt(length - 1) == '0') {
+                length--;
+            }
+            if (numberBuffer.charAt(length - 1) == '.') {
+                length--;
+            }
+            numberBuffer.setLength(length);
+        }
+        writeNumberBuffer();
+        return this;
+    }
+
+    /**
+     * Writes an ordinate, rounding it if a number of decimals has been set
+     */
+    void ordinate(double value) throws IOException {
+        if (numDecimals < 0 || Double.isNaN(value) || Double.isInfinite(value)
+                || Math.abs(value) * scale >= Long.MAX_VALUE) {
+            value(value);
+            return;
+        }
+        beforeValue();
+        long rounded = Math.round(value * scale);
+        numberBuffer.setLength(0);
+        if (rounded < 0) {
+            numberBuffer.append('-');
+            rounded = -rounded;
+        }
+        numberBuffer.append(rounded / scale);
+        long fraction = rounded % scale;
+        if (fraction != 0) {
+            numberBuffer.append('.');
+            int mark = numberBuffer.length();
+            for (long s = scale / 10; s > fraction; s /= 10) {
+                numberBuffer.append('0');
+            }
+            numberBuffer.append(fraction);
+            int length = numberBuffer.length();
+            while (length > mark && numberBuffer.charAt(length - 1) == '0') {
+                length--;
+            }
+            numberBuffer.setLength(length);
+        }
+        writeNumberBuffer();
+    }
+
+    /**
+     * Writes any geometry, with the same structure as {@link GeoJSONBuilder#writeGeom(Geometry)}
+     */
+    public GeoJSONStreamingWriter writeGeom(Geometry geometry) throws IOException {
+        object();
+        key(TYPE);
+        value(GeoJSONBuilder.getGeometryName(geometry));
+
+        final int geometryType = GeoJSONBuilder.getGeometryType(geometry);
+        if (geometryType != GeoJSONBuilder.MULTIGEOMETRY) {
+            key(COORDINATES);
+            switch (geometryType) {
+            case GeoJSONBuilder.POINT:
+                Coordinate c = ((Point) geometry).getCoordinate();
+                writeCoordinate(c.x, c.y, c.z);
+                break;
+            case GeoJSONBuilder.LINESTRING:
+                writeCoordinates(((LineString) geometry).getCoordinateSequence());
+                break;
+            case GeoJSONBuilder.MULTIPOINT:
+                writeCoordinates(new CoordinateArraySequence(geometry.getCoordinates()));
+                break;
+            case GeoJSONBuilder.POLYGON:
+                writePolygon((Polygon) geometry);
+                break;
+            case GeoJSONBuilder.MULTILINESTRING:
+                array();
+                for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                    writeCoordinates(((LineString) geometry.getGeometryN(i))
+                            .getCoordinateSequence());
+                }
+                endArray();
+                break;
+            case GeoJSONBuilder.MULTIPOLYGON:
+                array();
+                for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                    writePolygon((Polygon) geometry.getGeometryN(i));
+                }
+                endArray();
+                break;
+            }
+        } else {
+            GeometryCollection collection = (GeometryCollection) geometry;
+            key(GEOMETRIES);
+            array();
+            for (int i = 0, n = collection.getNumGeometries(); i < n; i++) {
+                writeGeom(collection.getGeometryN(i));
+            }
+            endArray();
+        }
+
+        return endObject();
+    }
+
+    void writePolygon(Polygon polygon) throws IOException {
+        array();
+        writeCoordinates(polygon.getExteriorRing().getCoordinateSequence());
+        for (int i = 0, n = polygon.getNumInteriorRing(); i < n; i++) {
+            writeCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+        endArray();
+    }
+
+    void writeCoordinates(CoordinateSequence coords) throws IOException {
+        array();
+        int dim = CoordinateSequences.coordinateDimension(coords);
+        final int size = coords.size();
+        for (int i = 0; i < size; i++) {
+            writeCoordinate(coords.getX(i), coords.getY(i),
+                    dim > 2 ? coords.getOrdinate(i, 2) : Double.NaN);
+        }
+        endArray();
+    }
+
+    void writeCoordinate(double x, double y, double z) throws IOException {
+        array();
+        if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+            ordinate(y);
+            ordinate(x);
+        } else {
+            ordinate(x);
+            ordinate(y);
+        }
+        if (!Double.isNaN(z)) {
+            ordinate(z);
+        }
+        endArray();
+    }
+
+    /**
+     * Writes the envelope as a "bbox" key followed by [minX,minY,maxX,maxY]
+     */
+    public GeoJSONStreamingWriter writeBoundingBox(Envelope env) throws IOException {
+        key(BBOX);
+        array();
+        if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+            ordinate(env.getMinY());
+            ordinate(env.getMinX());
+            ordinate(env.getMaxY());
+            ordinate(env.getMaxX());
+        } else {
+            ordinate(env.getMinX());
+            ordinate(env.getMinY());
+            ordinate(env.getMaxX());
+            ordinate(env.getMaxY());
+        }
+        return endArray();
+    }
+
+    /**
+     * Writes out the raw text, without any quoting or separator
+     */
+    public void writeRaw(String text) throws IOException {
+        write(text);
+    }
+
+    /**
+     * Flushes the buffered contents into the underlying writer, and flushes it
+     */
+    public void flush() throws IOException {
+        writer.write(buffer, 0, position);
+        position = 0;
+        writer.flush();
+    }
+
+    void quote(String s) throws IOException {
+        // strings that need escaping, or that json-lib would treat as functions, take the
+        // generic path so that the output stays the same
+        int length = s.length();
+        if (length == 0 || s.startsWith("function")) {
+            write(JSONUtils.quote(s));
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < ' ' || c == '"' || c == '\\' || c == '/' || (c >= 0x80 && c < 0xa0)
+                    || (c >= 0x2000 && c < 0x2100)) {
+                write(JSONUtils.quote(s));
+                return;
+            }
+        }
+        write('"');
+        write(s);
+        write('"');
+    }
+
+    void beforeValue() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else if (depth > 0) {
+            if (members[depth]) {
+                write(',');
+            }
+            members[depth] = true;
+        }
+    }
+
+    void push() {
+        depth++;
+        if (depth == members.length) {
+            members = Arrays.copyOf(members, depth * 2);
+        }
+        members[depth] = false;
+    }
+
+    void writeNumberBuffer() throws IOException {
+        int length = numberBuffer.length();
+        if (position + length > buffer.length) {
+            drain();
+        }
+        numberBuffer.getChars(0, length, buffer, position);
+        position += length;
+    }
+
+    void write(char c) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = c;
+    }
+
+    void write(char[] chars, int offset, int length) throws IOException {
+        if (position + length > buffer.length) {
+            drain();
+            if (length > buffer.length) {
+                writer.write(chars, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(chars, offset, buffer, position, length);
+        position += length;
+    }
+
+    void write(String s) throws IOException {
+        int length = s.length();
+        if (position + length > buffer.length) {
+            drain();
+            if (length > buffer.length) {
+                writer.write(s);
+                return;
+            }
+        }
+        s.getChars(0, length, buffer, position);
+        position += length;
+    }
+
+    void drain() throws IOException {
+        writer.write(buffer, 0, position);
+        position = 0;
+    }
+}
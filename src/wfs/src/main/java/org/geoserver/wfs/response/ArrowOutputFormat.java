@@ -0,0 +1,287 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.geoserver.config.GeoServer;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.WFSGetFeatureOutputFormat;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geoserver.wfs.request.GetFeatureRequest;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * WFS output format for a GetFeature operation in which the outputFormat is "arrow", writing the
+ * features as an Apache Arrow IPC stream.
+ * <p>
+ * The attributes are written as typed columns, numbers, booleans and dates in their binary form,
+ * the geometries as WKB tagged with the GeoArrow "geoarrow.wkb" extension, in record batches of
+ * {@link #ARROW_BATCH_SIZE} rows, so that the memory used does not grow with the response size.
+ * The batch size can also be lowered with the BATCHSIZE format option.
+ * </p>
+ */
+public class ArrowOutputFormat extends WFSGetFeatureOutputFormat {
+
+    /**
+     * The system property holding the number of rows in each record batch
+     */
+    public static final String ARROW_BATCH_SIZE = "org.geoserver.wfs.arrow.batchSize";
+
+    /**
+     * The system property holding the size of the strings and geometries after which a record
+     * batch is written out even if not full
+     */
+    public static final String ARROW_BATCH_BYTES = "org.geoserver.wfs.arrow.batchBytes";
+
+    static final int DEFAULT_BATCH_SIZE = 8192;
+
+    /**
+     * Hard limit to the batch size, the columns of a full batch are held in memory
+     */
+    static final int MAX_BATCH_SIZE = 1024 * 1024;
+
+    static final long DEFAULT_BATCH_BYTES = 16 * 1024 * 1024;
+
+    static final String MIME_TYPE = "application/vnd.apache.arrow.stream";
+
+    static final Set<String> FORMATS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("arrow", MIME_TYPE)));
+
+    public ArrowOutputFormat(GeoServer gs) {
+        super(gs, FORMATS);
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public String getPreferredDisposition(Object value, Operation operation) {
+        return DISPOSITION_ATTACH;
+    }
+
+    @Override
+    public String getAttachmentFileName(Object value, Operation operation) {
+        GetFeatureRequest request = GetFeatureRequest.adapt(operation.getParameters()[0]);
+        String outputFileName = request.getQueries().get(0).getTypeNames().get(0).getLocalPart();
+        return outputFileName + ".arrow";
+    }
+
+    @Override
+    protected void write(FeatureCollectionResponse featureCollection, OutputStream output,
+            Operation getFeature) throws IOException, ServiceException {
+        List<FeatureCollection> collections = featureCollection.getFeature();
+        SimpleFeatureType schema = null;
+        for (FeatureCollection fc : collections) {
+            if (!(fc.getSchema() instanceof SimpleFeatureType)) {
+                throw new ServiceException("The arrow output format supports only simple features");
+            }
+            if (schema == null) {
+                schema = (SimpleFeatureType) fc.getSchema();
+            } else if (!schema.equals(fc.getSchema())) {
+                throw new ServiceException("The arrow output format can only write feature "
+                        + "collections sharing the same schema, got " + schema.getTypeName()
+                        + " and " + fc.getSchema().getName().getLocalPart());
+            }
+        }
+        if (schema == null) {
+            throw new ServiceException("No feature collection to write");
+        }
+
+        OutputStream os = new BufferedOutputStream(output, 64 * 1024);
+        ArrowStreamWriter writer = new ArrowStreamWriter(os, getBatchSize(getFeature),
+                getBatchBytes());
+
+        // the feature id, then one column per attribute
+        writer.addColumn("FID", ArrowStreamWriter.Type.STRING, null);
+        int count = schema.getAttributeCount();
+        ArrowStreamWriter.Type[] types = new ArrowStreamWriter.Type[count];
+        for (int i = 0; i < count; i++) {
+            AttributeDescriptor ad = schema.getDescriptor(i);
+            types[i] = getType(ad.getType().getBinding());
+            Map<String, String> metadata = null;
+            if (ad instanceof GeometryDescriptor) {
+                metadata = getGeometryMetadata((GeometryDescriptor) ad);
+            }
+            writer.addColumn(ad.getLocalName(), types[i], metadata);
+        }
+        writer.putMetadata("typeName", schema.getTypeName());
+
+        WKBWriter wkbWriter = new WKBWriter();
+        for (FeatureCollection fc : collections) {
+            SimpleFeatureIterator it = ((SimpleFeatureCollection) fc).features();
+            try {
+                while (it.hasNext()) {
+                    SimpleFeature f = it.next();
+                    writer.appendString(0, f.getID());
+                    for (int i = 0; i < count; i++) {
+                        writeValue(writer, i + 1, types[i], f.getAttribute(i), wkbWriter);
+                    }
+                    writer.endRow();
+                }
+            } finally {
+                it.close();
+            }
+        }
+        writer.finish();
+    }
+
+    void writeValue(ArrowStreamWriter writer, int column, ArrowStreamWriter.Type type,
+            Object value, WKBWriter wkbWriter) throws IOException {
+        if (value == null) {
+            writer.appendNull(column);
+            return;
+        }
+        switch (type) {
+        case INT:
+            writer.appendInt(column, ((Number) value).intValue());
+            break;
+        case LONG:
+            writer.appendLong(column, ((Number) value).longValue());
+            break;
+        case FLOAT:
+            writer.appendFloat(column, ((Number) value).floatValue());
+            break;
+        case DOUBLE:
+            writer.appendDouble(column, ((Number) value).doubleValue());
+            break;
+        case BOOLEAN:
+            writer.appendBoolean(column, (Boolean) value);
+            break;
+        case TIMESTAMP:
+            writer.appendLong(column, ((Date) value).getTime());
+            break;
+        case BINARY:
+            writer.appendBinary(column, wkbWriter.write((Geometry) value));
+            break;
+        default:
+            writer.appendString(column, value.toString());
+        }
+    }
+
+    /**
+     * Maps an attribute binding to the column type
+     */
+    static ArrowStreamWriter.Type getType(Class<?> binding) {
+        if (Geometry.class.isAssignableFrom(binding)) {
+            return ArrowStreamWriter.Type.BINARY;
+        } else if (Integer.class.equals(binding) || Short.class.equals(binding)
+                || Byte.class.equals(binding)) {
+            return ArrowStreamWriter.Type.INT;
+        } else if (Long.class.equals(binding)) {
+            return ArrowStreamWriter.Type.LONG;
+        } else if (Float.class.equals(binding)) {
+            return ArrowStreamWriter.Type.FLOAT;
+        } else if (Double.class.equals(binding)) {
+            return ArrowStreamWriter.Type.DOUBLE;
+        } else if (Boolean.class.equals(binding)) {
+            return ArrowStreamWriter.Type.BOOLEAN;
+        } else if (Date.class.isAssignableFrom(binding)) {
+            return ArrowStreamWriter.Type.TIMESTAMP;
+        }
+        // BigDecimal, BigInteger and any other type keep their full text representation
+        return ArrowStreamWriter.Type.STRING;
+    }
+
+    Map<String, String> getGeometryMetadata(GeometryDescriptor gd) {
+        Map<String, String> metadata = new LinkedHashMap<String, String>();
+        metadata.put("ARROW:extension:name", "geoarrow.wkb");
+        String crs = null;
+        CoordinateReferenceSystem reference = gd.getCoordinateReferenceSystem();
+        if (reference != null) {
+            try {
+                crs = CRS.lookupIdentifier(reference, true);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not find an identifier for the CRS of "
+                        + gd.getLocalName(), e);
+            }
+        }
+        metadata.put("ARROW:extension:metadata", crs != null ? "{\"crs\":\"" + crs + "\"}" : "{}");
+        return metadata;
+    }
+
+    /**
+     * The batch size configured with {@link #ARROW_BATCH_SIZE}, which the BATCHSIZE format option
+     * can lower but not raise, as it's the client asking
+     */
+    int getBatchSize(Operation operation) {
+        int maxSize = DEFAULT_BATCH_SIZE;
+        String value = GeoServerExtensions.getProperty(ARROW_BATCH_SIZE);
+        if (value != null) {
+            int size = parseBatchSize(value);
+            if (size > 0) {
+                maxSize = Math.min(size, MAX_BATCH_SIZE);
+            } else {
+                LOGGER.warning("Invalid value for " + ARROW_BATCH_SIZE + ": " + value
+                        + ", using the default: " + DEFAULT_BATCH_SIZE);
+            }
+        }
+
+        Object option = null;
+        if (operation != null && operation.getParameters().length > 0) {
+            GetFeatureRequest request = GetFeatureRequest.adapt(operation.getParameters()[0]);
+            if (request != null && request.getFormatOptions() != null) {
+                option = request.getFormatOptions().get("BATCHSIZE");
+            }
+        }
+        if (option != null) {
+            int size = parseBatchSize(option.toString());
+            if (size > 0) {
+                return Math.min(size, maxSize);
+            }
+            LOGGER.warning("Invalid arrow batch size: " + option + ", using the default: "
+                    + maxSize);
+        }
+        return maxSize;
+    }
+
+    static int parseBatchSize(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long getBatchBytes() {
+        String value = GeoServerExtensions.getProperty(ARROW_BATCH_BYTES);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for " + ARROW_BATCH_BYTES + ": " + value
+                        + ", using the default: " + DEFAULT_BATCH_BYTES);
+            }
+        }
+        return DEFAULT_BATCH_BYTES;
+    }
+}
@@ -0,0 +1,716 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a table in the Apache Arrow IPC streaming format: a schema message, followed by record
+ * batches holding up to a given number of rows, followed by the end of stream marker.
+ * <p>
+ * The values are appended row by row into typed column vectors, which are written out and reset
+ * when the batch is full, or when the variable length values grow past a byte limit, so that the
+ * memory used is bounded by the batch size whatever the number of rows.
+ * </p>
+ * <p>
+ * The Arrow metadata is encoded in FlatBuffers, by the minimal builder below, the layout of the
+ * messages follows the Arrow columnar format specification, version 5 of the metadata.
+ * </p>
+ */
+class ArrowStreamWriter {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The column types supported, and the Arrow type each maps to
+     */
+    enum Type {
+        /** 32 bits signed integer */
+        INT,
+        /** 64 bits signed integer */
+        LONG,
+        /** single precision floating point */
+        FLOAT,
+        /** double precision floating point */
+        DOUBLE,
+        /** boolean, bit packed */
+        BOOLEAN,
+        /** milliseconds since the epoch, in UTC */
+        TIMESTAMP,
+        /** UTF-8 string */
+        STRING,
+        /** variable length binary */
+        BINARY
+    }
+
+    /** Message header union ids */
+    static final int HEADER_SCHEMA = 1;
+
+    static final int HEADER_RECORD_BATCH = 3;
+
+    /** Type union ids */
+    static final int TYPE_INT = 2;
+
+    static final int TYPE_FLOATING_POINT = 3;
+
+    static final int TYPE_BINARY = 4;
+
+    static final int TYPE_UTF8 = 5;
+
+    static final int TYPE_BOOL = 6;
+
+    static final int TYPE_TIMESTAMP = 10;
+
+    /** The V5 metadata version */
+    static final short METADATA_VERSION = 4;
+
+    static final int CONTINUATION = 0xFFFFFFFF;
+
+    /**
+     * A column vector, holding the values of the current batch
+     */
+    static class Column {
+        String name;
+
+        Type type;
+
+        Map<String, String> metadata;
+
+        /** validity bitmap, a bit set for each non null value */
+        byte[] validity;
+
+        int nullCount;
+
+        /** fixed width values, or bit packed booleans */
+        byte[] values;
+
+        /** offsets of the variable length values, count + 1 of them */
+        int[] offsets;
+
+        int count;
+
+        /** the number of rows the arrays can hold */
+        int capacity;
+
+        Column(String name, Type type, Map<String, String> metadata, int capacity) {
+            this.name = name;
+            this.type = type;
+            this.metadata = metadata;
+            this.capacity = capacity;
+            this.validity = new byte[(capacity + 7) / 8];
+            if (type == Type.STRING || type == Type.BINARY) {
+                offsets = new int[capacity + 1];
+                values = new byte[capacity * 16];
+            } else if (type == Type.BOOLEAN) {
+                values = new byte[(capacity + 7) / 8];
+            } else {
+                values = new byte[capacity * getWidth(type)];
+            }
+        }
+
+        /**
+         * Grows the arrays to hold the given number of rows, the variable length values grow
+         * on their own as they are appended
+         */
+        void grow(int rows) {
+            capacity = rows;
+            validity = Arrays.copyOf(validity, (rows + 7) / 8);
+            if (isVariable()) {
+                offsets = Arrays.copyOf(offsets, rows + 1);
+            } else if (type == Type.BOOLEAN) {
+                values = Arrays.copyOf(values, (rows + 7) / 8);
+            } else {
+                values = Arrays.copyOf(values, rows * getWidth(type));
+            }
+        }
+
+        static int getWidth(Type type) {
+            switch (type) {
+            case INT:
+            case FLOAT:
+                return 4;
+            default:
+                return 8;
+            }
+        }
+
+        boolean isVariable() {
+            return offsets != null;
+        }
+
+        /**
+         * The length of the values buffer for the current count
+         */
+        int getValuesLength() {
+            if (isVariable()) {
+                return offsets[count];
+            } else if (type == Type.BOOLEAN) {
+                return (count + 7) / 8;
+            } else {
+                return count * getWidth(type);
+            }
+        }
+
+        void reset() {
+            Arrays.fill(validity, (byte) 0);
+            if (type == Type.BOOLEAN) {
+                Arrays.fill(values, (byte) 0);
+            }
+            nullCount = 0;
+            count = 0;
+        }
+    }
+
+    OutputStream out;
+
+    int batchSize;
+
+    long maxBatchBytes;
+
+    List<Column> columns = new ArrayList<Column>();
+
+    Map<String, String> metadata = new LinkedHashMap<String, String>();
+
+    boolean started;
+
+    int rows;
+
+    long variableBytes;
+
+    byte[] scratch = new byte[8];
+
+    /**
+     * The number of rows the columns are initially allocated for, they grow up to the batch size
+     * only if that many rows are written
+     */
+    static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * @param out the destination stream
+     * @param batchSize the maximum number of rows in a record batch
+     * @param maxBatchBytes the variable length values size after which a batch is written out
+     *        even if not full
+     */
+    ArrowStreamWriter(OutputStream out, int batchSize, long maxBatchBytes) {
+        this.out = out;
+        this.batchSize = batchSize;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Adds a column to the schema, returning its index. All columns must be added before the
+     * first row.
+     */
+    int addColumn(String name, Type type, Map<String, String> metadata) {
+        if (started) {
+            throw new IllegalStateException("Columns must be added before writing rows");
+        }
+        columns.add(new Column(name, type, metadata, Math.min(batchSize, INITIAL_CAPACITY)));
+        return columns.size() - 1;
+    }
+
+    /**
+     * Adds a key/value pair to the schema metadata
+     */
+    void putMetadata(String key, String value) {
+        metadata.put(key, value);
+    }
+
+    void start() throws IOException {
+        if (!started) {
+            started = true;
+            FlatBufferBuilder fb = new FlatBufferBuilder();
+            writeMessage(fb, encodeSchema(fb), HEADER_SCHEMA, 0);
+        }
+    }
+
+    Column next(int index) throws IOException {
+        start();
+        Column column = columns.get(index);
+        if (column.count != rows) {
+            throw new IllegalStateException("Column " + column.name + " has " + column.count
+                    + " values in row " + rows);
+        }
+        if (column.count == column.capacity) {
+            column.grow((int) Math.min(batchSize, column.capacity * 2l));
+        }
+        return column;
+    }
+
+    void setValid(Column column) {
+        column.validity[column.count >> 3] |= 1 << (column.count & 7);
+    }
+
+    void appendNull(int index) throws IOException {
+        Column column = next(index);
+        column.nullCount++;
+        if (column.isVariable()) {
+            column.offsets[column.count + 1] = column.offsets[column.count];
+        }
+        // fixed width values are left to zero, as the arrays are reused they need a reset
+        else if (column.type != Type.BOOLEAN) {
+            int width = Column.getWidth(column.type);
+            Arrays.fill(column.values, column.count * width, (column.count + 1) * width, (byte) 0);
+        }
+        column.count++;
+    }
+
+    void appendInt(int index, int value) throws IOException {
+        Column column = next(index);
+        setValid(column);
+        putInt(column.values, column.count * 4, value);
+        column.count++;
+    }
+
+    void appendLong(int index, long value) throws IOException {
+        Column column = next(index);
+        setValid(column);
+        putLong(column.values, column.count * 8, value);
+        column.count++;
+    }
+
+    void appendFloat(int index, float value) throws IOException {
+        appendInt(index, Float.floatToRawIntBits(value));
+    }
+
+    void appendDouble(int index, double value) throws IOException {
+        appendLong(index, Double.doubleToRawLongBits(value));
+    }
+
+    void appendBoolean(int index, boolean value) throws IOException {
+        Column column = next(index);
+        setValid(column);
+        if (value) {
+            column.values[column.count >> 3] |= 1 << (column.count & 7);
+        }
+        column.count++;
+    }
+
+    void appendString(int index, String value) throws IOException {
+        appendBinary(index, value.getBytes(UTF8));
+    }
+
+    void appendBinary(int index, byte[] value) throws IOException {
+        Column column = next(index);
+        setValid(column);
+        int start = column.offsets[column.count];
+        int end = start + value.length;
+        if (end > column.values.length) {
+            column.values = Arrays.copyOf(column.values, Math.max(end, column.values.length * 2));
+        }
+        System.arraycopy(value, 0, column.values, start, value.length);
+        column.offsets[column.count + 1] = end;
+        column.count++;
+        variableBytes += value.length;
+    }
+
+    /**
+     * Completes the current row, writing out the batch if full
+     */
+    void endRow() throws IOException {
+        rows++;
+        if (rows == batchSize || variableBytes >= maxBatchBytes) {
+            flushBatch();
+        }
+    }
+
+    void flushBatch() throws IOException {
+        start();
+        if (rows == 0) {
+            return;
+        }
+
+        // the buffers of each column, in order, each padded to 8 bytes in the body
+        List<long[]> buffers = new ArrayList<long[]>();
+        long bodyLength = 0;
+        for (Column column : columns) {
+            bodyLength = addBuffer(buffers, bodyLength, column.nullCount > 0 ? (rows + 7) / 8 : 0);
+            if (column.isVariable()) {
+                bodyLength = addBuffer(buffers, bodyLength, (rows + 1) * 4);
+            }
+            bodyLength = addBuffer(buffers, bodyLength, column.getValuesLength());
+        }
+
+        FlatBufferBuilder fb = new FlatBufferBuilder();
+        writeMessage(fb, encodeRecordBatch(fb, buffers), HEADER_RECORD_BATCH, bodyLength);
+
+        for (Column column : columns) {
+            if (column.nullCount > 0) {
+                writePadded(column.validity, 0, (rows + 7) / 8);
+            }
+            if (column.isVariable()) {
+                byte[] offsets = new byte[(rows + 1) * 4];
+                for (int i = 0; i <= rows; i++) {
+                    putInt(offsets, i * 4, column.offsets[i]);
+                }
+                writePadded(offsets, 0, offsets.length);
+            }
+            writePadded(column.values, 0, column.getValuesLength());
+            column.reset();
+        }
+        rows = 0;
+        variableBytes = 0;
+    }
+
+    static long addBuffer(List<long[]> buffers, long offset, long length) {
+        buffers.add(new long[] { offset, length });
+        return offset + pad8(length);
+    }
+
+    static long pad8(long length) {
+        return (length + 7) & ~7l;
+    }
+
+    void writePadded(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        int padding = (int) (pad8(length) - length);
+        if (padding > 0) {
+            out.write(new byte[padding]);
+        }
+    }
+
+    /**
+     * Writes the remaining rows and the end of stream marker, the stream is not closed
+     */
+    void finish() throws IOException {
+        flushBatch();
+        writeInt(CONTINUATION);
+        writeInt(0);
+        out.flush();
+    }
+
+    /**
+     * Writes an encapsulated message: continuation marker, metadata length, metadata padded to 8
+     * bytes. The body, if any, is written by the caller
+     */
+    void writeMessage(FlatBufferBuilder fb, int header, int headerType, long bodyLength)
+            throws IOException {
+        fb.startTable(5);
+        fb.addLong(3, bodyLength);
+        fb.addOffset(2, header);
+        fb.addShort(0, METADATA_VERSION);
+        fb.addByte(1, headerType);
+        byte[] message = fb.finish(fb.endTable());
+
+        writeInt(CONTINUATION);
+        writeInt((int) pad8(message.length));
+        writePadded(message, 0, message.length);
+    }
+
+    void writeInt(int value) throws IOException {
+        putInt(scratch, 0, value);
+        out.write(scratch, 0, 4);
+    }
+
+    static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+    static void putLong(byte[] b, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            b[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    /**
+     * Encodes the Schema table, returning its offset
+     */
+    int encodeSchema(FlatBufferBuilder fb) {
+        int[] fields = new int[columns.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = encodeField(fb, columns.get(i));
+        }
+        int fieldsVector = fb.createOffsetVector(fields);
+        int metadataVector = encodeMetadata(fb, metadata);
+
+        fb.startTable(4);
+        fb.addOffset(1, fieldsVector);
+        if (metadataVector != 0) {
+            fb.addOffset(2, metadataVector);
+        }
+        return fb.endTable();
+    }
+
+    int encodeField(FlatBufferBuilder fb, Column column) {
+        int name = fb.createString(column.name);
+        int typeType;
+        int type;
+        switch (column.type) {
+        case INT:
+        case LONG:
+            fb.startTable(2);
+            fb.addInt(0, column.type == Type.INT ? 32 : 64);
+            fb.addByte(1, 1);
+            type = fb.endTable();
+            typeType = TYPE_INT;
+            break;
+        case FLOAT:
+        case DOUBLE:
+            fb.startTable(1);
+            // SINGLE = 1, DOUBLE = 2
+            fb.addShort(0, column.type == Type.FLOAT ? 1 : 2);
+            type = fb.endTable();
+            typeType = TYPE_FLOATING_POINT;
+            break;
+        case BOOLEAN:
+            fb.startTable(0);
+            type = fb.endTable();
+            typeType = TYPE_BOOL;
+            break;
+        case TIMESTAMP:
+            int timezone = fb.createString("UTC");
+            fb.startTable(2);
+            fb.addOffset(1, timezone);
+            // MILLISECOND = 1
+            fb.addShort(0, 1);
+            type = fb.endTable();
+            typeType = TYPE_TIMESTAMP;
+            break;
+        case BINARY:
+            fb.startTable(0);
+            type = fb.endTable();
+            typeType = TYPE_BINARY;
+            break;
+        default:
+            fb.startTable(0);
+            type = fb.endTable();
+            typeType = TYPE_UTF8;
+        }
+        // readers expect the children, even if empty
+        int children = fb.createOffsetVector(new int[0]);
+        int metadata = encodeMetadata(fb, column.metadata);
+
+        fb.startTable(7);
+        fb.addOffset(0, name);
+        fb.addOffset(3, type);
+        fb.addOffset(5, children);
+        if (metadata != 0) {
+            fb.addOffset(6, metadata);
+        }
+        fb.addByte(1, 1);
+        fb.addByte(2, typeType);
+        return fb.endTable();
+    }
+
+    static int encodeMetadata(FlatBufferBuilder fb, Map<String, String> metadata) {
+        if (metadata == null || metadata.isEmpty()) {
+            return 0;
+        }
+        int[] pairs = new int[metadata.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            int key = fb.createString(entry.getKey());
+            int value = fb.createString(entry.getValue());
+            fb.startTable(2);
+            fb.addOffset(0, key);
+            fb.addOffset(1, value);
+            pairs[i++] = fb.endTable();
+        }
+        return fb.createOffsetVector(pairs);
+    }
+
+    /**
+     * Encodes the RecordBatch table for the current rows, returning its offset
+     */
+    int encodeRecordBatch(FlatBufferBuilder fb, List<long[]> buffers) {
+
+        // FieldNode and Buffer are structs of two longs, stored inline, written last to first
+        fb.startVector(16, buffers.size(), 8);
+        for (int i = buffers.size() - 1; i >= 0; i--) {
+            fb.prep(8, 16);
+            fb.putLong(buffers.get(i)[1]);
+            fb.putLong(buffers.get(i)[0]);
+        }
+        int buffersVector = fb.endVector(buffers.size());
+
+        fb.startVector(16, columns.size(), 8);
+        for (int i = columns.size() - 1; i >= 0; i--) {
+            fb.prep(8, 16);
+            fb.putLong(columns.get(i).nullCount);
+            fb.putLong(rows);
+        }
+        int nodesVector = fb.endVector(columns.size());
+
+        fb.startTable(5);
+        fb.addLong(0, rows);
+        fb.addOffset(1, nodesVector);
+        fb.addOffset(2, buffersVector);
+        return fb.endTable();
+    }
+
+    /**
+     * A minimal FlatBuffers builder, filling the buffer from the end as the reference
+     * implementation does, so that all the offsets point forward
+     */
+    static class FlatBufferBuilder {
+        byte[] buf = new byte[256];
+
+        int space = buf.length;
+
+        int minAlign = 1;
+
+        int[] vtable;
+
+        int objectStart;
+
+        int offset() {
+            return buf.length - space;
+        }
+
+        void grow(int needed) {
+            while (space < needed) {
+                int size = buf.length;
+                byte[] grown = new byte[size * 2];
+                System.arraycopy(buf, 0, grown, size, size);
+                buf = grown;
+                space += size;
+            }
+        }
+
+        /**
+         * Aligns the buffer so that a value of the given size can be written after the
+         * additional bytes
+         */
+        void prep(int size, int additional) {
+            if (size > minAlign) {
+                minAlign = size;
+            }
+            int alignSize = (-(offset() + additional)) & (size - 1);
+            grow(alignSize + size + additional);
+            for (int i = 0; i < alignSize; i++) {
+                buf[--space] = 0;
+            }
+        }
+
+        void putByte(int value) {
+            buf[--space] = (byte) value;
+        }
+
+        void putShort(int value) {
+            space -= 2;
+            buf[space] = (byte) value;
+            buf[space + 1] = (byte) (value >> 8);
+        }
+
+        void putInt(int value) {
+            space -= 4;
+            ArrowStreamWriter.putInt(buf, space, value);
+        }
+
+        void putLong(long value) {
+            space -= 8;
+            ArrowStreamWriter.putLong(buf, space, value);
+        }
+
+        void putOffset(int target) {
+            prep(4, 0);
+            putInt(offset() - target + 4);
+        }
+
+        int createString(String s) {
+            byte[] bytes = s.getBytes(UTF8);
+            prep(1, 0);
+            putByte(0);
+            startVector(1, bytes.length, 1);
+            space -= bytes.length;
+            System.arraycopy(bytes, 0, buf, space, bytes.length);
+            return endVector(bytes.length);
+        }
+
+        void startVector(int elementSize, int count, int alignment) {
+            prep(4, elementSize * count);
+            prep(alignment, elementSize * count);
+        }
+
+        int endVector(int count) {
+            // the space for the length has been prepared by startVector
+            putInt(count);
+            return offset();
+        }
+
+        int createOffsetVector(int[] offsets) {
+            startVector(4, offsets.length, 4);
+            for (int i = offsets.length - 1; i >= 0; i--) {
+                putOffset(offsets[i]);
+            }
+            return endVector(offsets.length);
+        }
+
+        void startTable(int fields) {
+            vtable = new int[fields];
+            objectStart = offset();
+        }
+
+        void addByte(int field, int value) {
+            prep(1, 0);
+            putByte(value);
+            vtable[field] = offset();
+        }
+
+        void addShort(int field, int value) {
+            prep(2, 0);
+            putShort(value);
+            vtable[field] = offset();
+        }
+
+        void addInt(int field, int value) {
+            prep(4, 0);
+            putInt(value);
+            vtable[field] = offset();
+        }
+
+        void addLong(int field, long value) {
+            prep(8, 0);
+            putLong(value);
+            vtable[field] = offset();
+        }
+
+        void addOffset(int field, int target) {
+            putOffset(target);
+            vtable[field] = offset();
+        }
+
+        int endTable() {
+            // placeholder for the vtable offset
+            prep(4, 0);
+            putInt(0);
+            int tableOffset = offset();
+
+            int fields = vtable.length;
+            while (fields > 0 && vtable[fields - 1] == 0) {
+                fields--;
+            }
+            for (int i = fields - 1; i >= 0; i--) {
+                prep(2, 0);
+                putShort(vtable[i] != 0 ? tableOffset - vtable[i] : 0);
+            }
+            prep(2, 0);
+            putShort(tableOffset - objectStart);
+            putShort((fields + 2) * 2);
+
+            // the table points back to its vtable
+            ArrowStreamWriter.putInt(buf, buf.length - tableOffset, offset() - tableOffset);
+            vtable = null;
+            return tableOffset;
+        }
+
+        byte[] finish(int root) {
+            prep(minAlign, 4);
+            putOffset(root);
+            return Arrays.copyOfRange(buf, space, buf.length);
+        }
+    }
+}
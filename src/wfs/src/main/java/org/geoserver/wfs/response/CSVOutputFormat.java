@@ -5,10 +5,10 @@
  */
 package org.geoserver.wfs.response;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
 import java.text.NumberFormat;
 import java.util.Collection;
 import java.util.Date;
@@ -33,6 +33,9 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.PropertyDescriptor;
 
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTWriter;
+
 /**
  * WFS output format for a GetFeature operation in which the outputFormat is "csv".
  * The refence specification for this format can be found in this RFC:
@@ -84,8 +87,8 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
             ServiceException {
     	   //write out content here
         
-        //create a writer
-        BufferedWriter w = new BufferedWriter( new OutputStreamWriter( output ) );
+        //create a writer, using the platform charset as it always did
+        CSVWriter w = new CSVWriter(output, Charset.defaultCharset());
                    
         //get the feature collection
         FeatureCollection<?, ?> fc = 
@@ -97,7 +100,7 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
             w.write("FID,");
             for ( int i = 0; i < ft.getAttributeCount(); i++ ) {
                 AttributeDescriptor ad = ft.getDescriptor( i );
-                w.write( prepCSVField(ad.getLocalName()) );
+                w.writeField(ad.getLocalName());
                    
                 if ( i < ft.getAttributeCount()-1 ) {
                    w.write( "," );
@@ -122,18 +125,29 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
                         XSDElementDeclarationImpl xsdEl = (XSDElementDeclarationImpl) xsd;
                         elName = xsdEl.getQName();
                     }
-                    w.write(prepCSVField(elName));
+                    w.writeField(elName);
                     i++;
                 }
             }
         }
         // by RFC each line is terminated by CRLF
-        w.write( "\r\n" );
+        w.endLine();
         
         // prepare the formatter for numbers
         NumberFormat coordFormatter = NumberFormat.getInstance(Locale.US);
         coordFormatter.setMaximumFractionDigits(getInfo().getGeoServer().getSettings().getNumDecimals());
         coordFormatter.setGroupingUsed(false);
+        ValueWriter values = new ValueWriter(coordFormatter);
+        
+        // pick the formatting of each attribute once
+        int[] kinds = null;
+        if (fc.getSchema() instanceof SimpleFeatureType) {
+            SimpleFeatureType ft = (SimpleFeatureType) fc.getSchema();
+            kinds = new int[ft.getAttributeCount()];
+            for (int j = 0; j < kinds.length; j++) {
+                kinds[j] = ValueWriter.getKind(ft.getDescriptor(j).getType().getBinding());
+            }
+        }
            
         //write out the features
         FeatureIterator<?> i = fc.features();
@@ -141,18 +155,20 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
             while( i.hasNext() ) {                
                 Feature f = i.next();
                 // dump fid
-                w.write(prepCSVField(f.getIdentifier().getID()));
-                w.write(",");
+                w.writeField(f.getIdentifier().getID());
+                w.write(',');
                 if (f instanceof SimpleFeature) {
                     // dump attributes
-                    for ( int j = 0; j < ((SimpleFeature) f).getAttributeCount(); j++ ) {
-                        Object att = ((SimpleFeature) f).getAttribute( j );
+                    SimpleFeature sf = (SimpleFeature) f;
+                    int count = sf.getAttributeCount();
+                    for ( int j = 0; j < count; j++ ) {
+                        Object att = sf.getAttribute( j );
                         if ( att != null ) {
-                            String value = formatToString(att, coordFormatter);
-                            w.write( prepCSVField(value) );
+                            values.write(att, kinds != null && j < kinds.length ? kinds[j] 
+                                    : ValueWriter.GENERIC, w);
                         }
-                        if ( j < ((SimpleFeature) f).getAttributeCount()-1 ) {
-                            w.write(",");    
+                        if ( j < count-1 ) {
+                            w.write(',');    
                         }
                     }
                 } else {
@@ -169,7 +185,7 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
                             continue;
                         }
                         if (j > 0) {
-                            w.write(",");
+                            w.write(',');
                         }
                         j++;
                         // Multi valued properties aren't supported, only for SF0 for now
@@ -185,13 +201,12 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
                         }
 
                         if (att != null) {
-                            String value = formatToString(att, coordFormatter);
-                            w.write(prepCSVField(value));
+                            values.write(att, ValueWriter.GENERIC, w);
                         }     
                     }
                 }
                 // by RFC each line is terminated by CRLF
-                w.write("\r\n");
+                w.endLine();
             }
         } finally {
             i.close();
@@ -200,46 +215,121 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         w.flush();
     }
     
-    private String formatToString(Object att, NumberFormat coordFormatter) {
-        String value = null;
-        if (att instanceof Number) {
+    /**
+     * Writes the attribute values. The formatting is picked once per attribute from its binding,
+     * the values themselves are looked at only when the binding is too generic or does not match
+     */
+    static class ValueWriter {
+        
+        static final int GENERIC = 0;
+        
+        static final int INTEGRAL = 1;
+        
+        static final int NUMBER = 2;
+        
+        static final int DATE = 3;
+        
+        static final int GEOMETRY = 4;
+        
+        static final int STRING = 5;
+        
+        NumberFormat coordFormatter;
+        
+        WKTWriter wktWriter = new WKTWriter();
+        
+        StringWriter wkt = new StringWriter();
+        
+        ValueWriter(NumberFormat coordFormatter) {
+            this.coordFormatter = coordFormatter;
+        }
+        
+        static int getKind(Class<?> binding) {
+            if (binding == Integer.class || binding == Long.class || binding == Short.class
+                    || binding == Byte.class) {
+                return INTEGRAL;
+            } else if (Number.class.isAssignableFrom(binding)) {
+                return NUMBER;
+            } else if (Date.class.isAssignableFrom(binding)) {
+                return DATE;
+            } else if (Geometry.class.isAssignableFrom(binding)) {
+                return GEOMETRY;
+            } else if (binding == String.class) {
+                return STRING;
+            }
+            return GENERIC;
+        }
+        
+        void write(Object att, int kind, CSVWriter w) throws IOException {
+            switch (kind) {
+            case INTEGRAL:
+                if (att instanceof Integer || att instanceof Long || att instanceof Short
+                        || att instanceof Byte) {
+                    // same digits as the number formatter, as grouping is disabled
+                    w.write(att.toString());
+                    return;
+                }
+                break;
+            case NUMBER:
+                if (att instanceof Number) {
+                    w.writeField(formatNumber((Number) att));
+                    return;
+                }
+                break;
+            case DATE:
+                if (att instanceof Date) {
+                    w.writeField(formatDate((Date) att));
+                    return;
+                }
+                break;
+            case GEOMETRY:
+                if (att instanceof Geometry) {
+                    // same as Geometry.toString(), without building a new writer each time
+                    wkt.getBuffer().setLength(0);
+                    wktWriter.write((Geometry) att, wkt);
+                    w.writeField(wkt.toString());
+                    return;
+                }
+                break;
+            case STRING:
+                if (att instanceof String) {
+                    w.writeField((String) att);
+                    return;
+                }
+                break;
+            }
+            
+            // the binding did not help, use the actual value type
+            int actual = getKind(att.getClass());
+            if (actual != kind) {
+                write(att, actual, w);
+            } else {
+                // everything else we just "toString"
+                w.writeField(att.toString());
+            }
+        }
+        
+        String formatNumber(Number number) {
+            if (number instanceof Double || number instanceof Float) {
+                double d = number.doubleValue();
+                // integral values are printed as such by the formatter, skip it
+                if (d != 0 && Math.abs(d) < 1e15 && d == Math.rint(d)) {
+                    return Long.toString((long) d);
+                }
+            }
             // don't allow scientific notation in the output, as OpenOffice won't
             // recognize that as a number
-            value = coordFormatter.format(att);
-        } else if (att instanceof Date) {
+            return coordFormatter.format(number);
+        }
+        
+        String formatDate(Date date) {
             // serialize dates in ISO format
-            if (att instanceof java.sql.Date)
-                value = DateUtil.serializeSqlDate((java.sql.Date) att);
-            else if (att instanceof java.sql.Time)
-                value = DateUtil.serializeSqlTime((java.sql.Time) att);
+            if (date instanceof java.sql.Date)
+                return DateUtil.serializeSqlDate((java.sql.Date) date);
+            else if (date instanceof java.sql.Time)
+                return DateUtil.serializeSqlTime((java.sql.Time) date);
             else
-                value = DateUtil.serializeDateTime((Date) att);
-        } else {
-            // everything else we just "toString"
-            value = att.toString();
+                return DateUtil.serializeDateTime(date);
         }
-        return value;
-    }
-
-    /*
-     * The CSV "spec" explains that fields with certain properties must be
-     * delimited by double quotes, and also that double quotes within fields
-     * must be escaped.  This method takes a field and returns one that
-     * obeys the CSV spec.
-     */    
-    private String prepCSVField(String field){
-    	// "embedded double-quote characters must be represented by a pair of double-quote characters."
-    	String mod = field.replaceAll("\"", "\"\"");
-    	
-    	/*
-    	 * Enclose string in double quotes if it contains double quotes, commas, or newlines
-    	 */
-    	if(mod.matches(".*(\"|\n|,).*")){
-    		mod = "\"" + mod + "\"";
-    	}
-    	
-		return mod;
-    	
     }
     
     @Override
@@ -0,0 +1,251 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes CSV content into a large byte buffer. Characters in the ASCII range are copied straight
+ * into the buffer when the charset encodes them as single bytes, which is the case of all the
+ * common ones, only the other characters go through the charset encoder.
+ * <p>
+ * The field escaping is done with a single scan of the field, and reproduces exactly the output
+ * of the regular expressions previously used by {@link CSVOutputFormat}.
+ * </p>
+ */
+class CSVWriter extends Writer {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The field contains double quotes, that have to be doubled
+     */
+    static final int QUOTES = 1;
+
+    /**
+     * The field has to be enclosed in double quotes
+     */
+    static final int ENCLOSE = 2;
+
+    OutputStream out;
+
+    CharsetEncoder encoder;
+
+    /**
+     * Used instead of the byte buffer for charsets that are not ASCII compatible
+     */
+    Writer fallback;
+
+    byte[] buffer;
+
+    int count;
+
+    CSVWriter(OutputStream out, Charset charset) {
+        this.out = out;
+        if (isAsciiCompatible(charset)) {
+            // same error handling as OutputStreamWriter
+            encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            buffer = new byte[BUFFER_SIZE];
+        } else {
+            fallback = new BufferedWriter(new OutputStreamWriter(out, charset), BUFFER_SIZE);
+        }
+    }
+
+    static boolean isAsciiCompatible(Charset charset) {
+        char[] ascii = new char[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char) i;
+        }
+        byte[] encoded = new String(ascii).getBytes(charset);
+        if (encoded.length != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks what escaping the field needs, returns a combination of {@link #QUOTES} and
+     * {@link #ENCLOSE}.
+     * <p>
+     * The field used to be enclosed when matching {@code .*("|\n|,).*}, in which the dot does
+     * not match line terminators: a field is enclosed if it contains a single \n and no other
+     * line terminator, or if it contains no line terminators at all and has a double quote or a
+     * comma.
+     * </p>
+     */
+    static int scan(String field) {
+        boolean quotes = false;
+        boolean comma = false;
+        int newlines = 0;
+        boolean terminators = false;
+        for (int i = 0; i < field.length(); i++) {
+            switch (field.charAt(i)) {
+            case '"':
+                quotes = true;
+                break;
+            case ',':
+                comma = true;
+                break;
+            case '\n':
+                newlines++;
+                break;
+            case '\r':
+            case '\u0085':
+            case '\u2028':
+            case '\u2029':
+                terminators = true;
+                break;
+            }
+        }
+
+        int result = quotes ? QUOTES : 0;
+        if (!terminators && (newlines == 1 || (newlines == 0 && (quotes || comma)))) {
+            result |= ENCLOSE;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the field, doubling the double quotes and enclosing it in double quotes if needed
+     */
+    void writeField(String field) throws IOException {
+        int escaping = scan(field);
+        if ((escaping & ENCLOSE) != 0) {
+            write('"');
+        }
+        if ((escaping & QUOTES) != 0) {
+            int start = 0;
+            for (int i = field.indexOf('"'); i >= 0; i = field.indexOf('"', i + 1)) {
+                // write up to the quote included, the next chunk starts with it again
+                write(field, start, i + 1 - start);
+                start = i;
+            }
+            write(field, start, field.length() - start);
+        } else {
+            write(field, 0, field.length());
+        }
+        if ((escaping & ENCLOSE) != 0) {
+            write('"');
+        }
+    }
+
+    /**
+     * Terminates the current line, with a CRLF as mandated by the RFC
+     */
+    void endLine() throws IOException {
+        write('\r');
+        write('\n');
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (fallback != null) {
+            fallback.write(c);
+        } else if (c < 0x80) {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) c;
+        } else {
+            encode(CharBuffer.wrap(new char[] { (char) c }));
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (fallback != null) {
+            fallback.write(str, off, len);
+            return;
+        }
+
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[count++] = (byte) c;
+                i++;
+            } else {
+                // encode the whole run of non ASCII chars, surrogate pairs included
+                int start = i;
+                while (i < end && str.charAt(i) >= 0x80) {
+                    i++;
+                }
+                encode(CharBuffer.wrap(str, start, i));
+            }
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        write(new String(cbuf, off, len));
+    }
+
+    void encode(CharBuffer chars) throws IOException {
+        encoder.reset();
+        CoderResult result;
+        do {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, count, buffer.length - count);
+            result = encoder.encode(chars, bytes, true);
+            count = bytes.position();
+            if (result.isOverflow()) {
+                flushBuffer();
+            }
+        } while (result.isOverflow());
+        do {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, count, buffer.length - count);
+            result = encoder.flush(bytes);
+            count = bytes.position();
+            if (result.isOverflow()) {
+                flushBuffer();
+            }
+        } while (result.isOverflow());
+    }
+
+    void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fallback != null) {
+            fallback.flush();
+        } else {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    /**
+     * Flushes the content, the output stream is not closed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
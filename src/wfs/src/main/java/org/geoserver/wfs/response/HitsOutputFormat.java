@@ -77,8 +77,8 @@ public class HitsOutputFormat extends WFSResponse {
             // collection size() now returns 0. In order to count the number of features,
             // we have to build the features to count them and this has great performance
             // impact. Unless we introduce joins in our fetching of
-            // data, we will have to count the number of features manually when needed. In
-            // GML3Outputformat I use xslt to populate numberOfFeatures attribute.
+            // data, we will have to count the number of features manually when needed.
+            // GML3OutputFormat does the same to populate the numberOfFeatures attribute.
             hits.setNumberOfFeatures(countFeature(featureCollection));
         } else {
             hits.setNumberOfFeatures(featureCollection.getNumberOfFeatures());
@@ -25,19 +25,34 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.SimpleTimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.namespace.QName;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CatalogBuilder;
 import org.geoserver.catalog.FeatureTypeInfo;
@@ -110,12 +125,41 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private static final Logger LOGGER = Logging.getLogger(ShapeZipOutputFormat.class);
     public static final String GS_SHAPEFILE_CHARSET = "GS-SHAPEFILE-CHARSET";
     public static final String SHAPE_ZIP_DEFAULT_PRJ_IS_ESRI = "SHAPE-ZIP_DEFAULT_PRJ_IS_ESRI";
+    /**
+     * Enables the streaming mode, in which the shapefiles are encoded straight into the zip
+     * instead of being staged in a temporary directory
+     */
+    public static final String GS_SHAPEFILE_STREAMING = "GS-SHAPEFILE-STREAMING";
+    /**
+     * The size in bytes each shapefile part is kept in memory up to in streaming mode, before
+     * spilling it to a temporary file
+     */
+    public static final String GS_SHAPEFILE_SPILL_THRESHOLD = "GS-SHAPEFILE-SPILL-THRESHOLD";
+    static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+    /**
+     * The number of features that can be waiting for a streaming shapefile writer
+     */
+    static final int WRITER_QUEUE_SIZE = 1024;
+    /**
+     * The number of streaming shapefile writers that can run in parallel, across all requests
+     */
+    static final int WRITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    
+    /**
+     * Marks the end of the features sent to a streaming shapefile writer
+     */
+    private static final Object END = new Object();
     
     private static final Configuration templateConfig = new Configuration();
     
     private ApplicationContext applicationContext;
     private Catalog catalog;
 	private GeoServerResourceLoader resourceLoader;
+    /**
+     * Runs the streaming shapefile writers, when all threads are busy the writers run in the
+     * thread reading the features instead
+     */
+    private final ExecutorService writerExecutor;
     
     /**
      * Tuple used when fanning out a collection with generic geometry types to multiple outputs 
@@ -126,6 +170,22 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         DataStore dstore;
         FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
     }
+    
+    /**
+     * Streaming counterpart of {@link StoreWriter}, the features are encoded in a separate thread
+     */
+    private static class QueueWriter {
+        StreamingShapefileWriter writer;
+        BlockingQueue<Object> queue;
+        /**
+         * The writer task, or null if the writer runs in the thread reading the features
+         */
+        Future<Void> future;
+        /**
+         * Tells the writer task to stop, when the features cannot be all written
+         */
+        volatile boolean aborted;
+    }
 
     /**
      * @deprecated use {@link #ShapeZipOutputFormat(GeoServer)}
@@ -140,6 +200,16 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         super(gs, "SHAPE-ZIP");
         this.catalog = catalog;
         this.resourceLoader = resourceLoader;
+        final AtomicInteger count = new AtomicInteger();
+        this.writerExecutor = new ThreadPoolExecutor(0, WRITER_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "shpzip-writer-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
     }
 
     /**
@@ -214,6 +284,11 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
      */
     public void write(List<SimpleFeatureCollection> collections, Charset charset, OutputStream output, 
         GetFeatureRequest request) throws IOException, ServiceException {
+        if (isStreaming()) {
+            writeStreaming(collections, charset, output, request);
+            return;
+        }
+        
         //We might get multiple featurecollections in our response (multiple queries?) so we need to
         //write out multiple shapefile sets, one for each query response.
         File tempDir = IOUtils.createTempDirectory("shpziptemp");
@@ -279,6 +354,304 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
     }
 
+    /**
+     * Streaming version of {@link #write(List, Charset, OutputStream, GetFeatureRequest)}, each
+     * shapefile is encoded in a single pass and then zipped, without a temporary directory. The
+     * shapefiles of collections with generic geometries, one per geometry type, are encoded in
+     * parallel.
+     */
+    private void writeStreaming(List<SimpleFeatureCollection> collections, Charset charset,
+            OutputStream output, GetFeatureRequest request) throws IOException, ServiceException {
+        int threshold = getSpillThreshold();
+        List<StreamingShapefileWriter> writers = new ArrayList<StreamingShapefileWriter>();
+        try {
+            // if an empty result out of feature type with unknown geometry is created, the
+            // zip file will be empty and the zip output stream will break
+            boolean shapefileCreated = false;
+            for (SimpleFeatureCollection curCollection : collections) {
+                
+                if(curCollection.getSchema().getGeometryDescriptor() == null) {
+                    throw new WFSException(request, "Cannot write geometryless shapefiles, yet " 
+                            + curCollection.getSchema() + " has no geometry field");
+                } 
+                Class geomType = curCollection.getSchema().getGeometryDescriptor().getType().getBinding();
+                if(GeometryCollection.class.equals(geomType) || Geometry.class.equals(geomType)) {
+                    // in this case we fan out the output to multiple shapefiles
+                    shapefileCreated |= streamCollectionToShapefiles(curCollection, charset, threshold, writers);
+                } else {
+                    // simple case, only one and supported type
+                    streamCollectionToShapefile(curCollection, charset, threshold, writers);
+                    shapefileCreated = true;
+                }
+            }
+            
+            // take care of the case the output is completely empty
+            if(!shapefileCreated) {
+                SimpleFeatureCollection fc;
+                fc = (SimpleFeatureCollection) collections.get(0);
+                fc = remapCollectionSchema(fc, Point.class);
+                streamCollectionToShapefile(fc, charset, threshold, writers);
+            }
+            
+            ZipOutputStream zipOut = new ZipOutputStream(output);
+            boolean useEsriFormat = isESRIFormatRequested(request);
+            for (StreamingShapefileWriter writer : writers) {
+                writer.writeTo(zipOut, getPrjContent(writer.schema, useEsriFormat));
+            }
+            
+            // dump the request
+            zipRequestDump(zipOut, request, collections.get(0));
+            zipOut.finish();
+        } catch (FactoryException fe) {
+            LOGGER.log(Level.WARNING,
+                    "Error while getting EPSG code from FeatureType", fe);
+            throw new ServiceException(fe);
+        } finally {
+            // remove the buffers spilled on disk
+            for (StreamingShapefileWriter writer : writers) {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * Streaming version of {@link #writeCollectionToShapefile(SimpleFeatureCollection, File, Charset, GetFeatureRequest)},
+     * the writer is added to the list
+     */
+    private void streamCollectionToShapefile(SimpleFeatureCollection c, Charset charset,
+            int threshold, List<StreamingShapefileWriter> writers) {
+        FeatureTypeInfo ftInfo = getFeatureTypeInfo(c);
+        c = remapCollectionSchema(c, null);
+        
+        SimpleFeatureType schema = c.getSchema();
+        String fileName = new FileNameSource(getClass()).getShapeName(ftInfo, null);
+        SimpleFeatureIterator it = null;
+        try {
+            StreamingShapefileWriter writer = new StreamingShapefileWriter(fileName, schema,
+                    schema.getGeometryDescriptor().getType().getBinding(), charset, threshold);
+            writers.add(writer);
+            it = c.features();
+            while (it.hasNext()) {
+                writer.write(it.next());
+            }
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING,
+                "Error while writing featuretype '" + schema.getTypeName() + "' to shapefile.", ioe);
+            throw new ServiceException(ioe);
+        } finally {
+            if (it != null) {
+                it.close();
+            }
+        }
+    }
+
+    /**
+     * Streaming version of {@link #writeCollectionToShapefiles(SimpleFeatureCollection, File, Charset, GetFeatureRequest)}.
+     * The features are routed to one writer per geometry type, each running in a thread of the
+     * shared writer pool if one is available, the writers are added to the list in the order the
+     * geometry types are found
+     * @return true if a shapefile has been created, false otherwise
+     */
+    private boolean streamCollectionToShapefiles(SimpleFeatureCollection c, Charset charset,
+            int threshold, List<StreamingShapefileWriter> writers) {
+        FeatureTypeInfo ftInfo = getFeatureTypeInfo(c);
+        c = remapCollectionSchema(c, null);
+        SimpleFeatureType schema = c.getSchema();
+        
+        Map<Class, QueueWriter> queues = new LinkedHashMap<Class, QueueWriter>();
+        boolean completed = false;
+        SimpleFeatureIterator it = null;
+        try {
+            it = c.features();
+            while(it.hasNext()) {
+                SimpleFeature f = it.next();
+                
+                if(f.getDefaultGeometry() == null) {
+                    LOGGER.warning("Skipping " + f.getID() + " as its geometry is null");
+                    continue;
+                }
+                
+                put(getQueueWriter(ftInfo, f, queues, charset, threshold, writers), f);
+            }
+            
+            // let the writers complete, and report their failures if any
+            for (QueueWriter qw : queues.values()) {
+                put(qw, END);
+            }
+            for (QueueWriter qw : queues.values()) {
+                if (qw.future != null) {
+                    getWriterResult(qw.future);
+                }
+            }
+            completed = true;
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING,
+                "Error while writing featuretype '" + schema.getTypeName() + "' to shapefile.", ioe);
+            throw new ServiceException(ioe);
+        } finally {
+            if (it != null) {
+                it.close();
+            }
+            if (!completed) {
+                // stop the writers still running after a failure before their buffers are removed
+                for (QueueWriter qw : queues.values()) {
+                    qw.aborted = true;
+                }
+                for (QueueWriter qw : queues.values()) {
+                    if (qw.future != null) {
+                        try {
+                            qw.future.get(1, TimeUnit.MINUTES);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } catch (Exception e) {
+                            // the original failure is the one being reported
+                            LOGGER.log(Level.FINE, "Shapefile writer failed while aborting", e);
+                        }
+                    }
+                }
+            }
+        }
+        
+        return !queues.isEmpty();
+    }
+
+    /**
+     * Returns the queue feeding the writer for a specific geometry type, creates a new writer if
+     * there are none so far
+     */
+    private QueueWriter getQueueWriter(FeatureTypeInfo ftInfo, SimpleFeature f,
+            Map<Class, QueueWriter> queues, Charset charset, int threshold,
+            List<StreamingShapefileWriter> writers) throws IOException {
+        // get the target class
+        Map<String, Object> map = getGeometryType((Geometry) f.getDefaultGeometry());
+        Class<?> target = (Class<?>) map.get("target");
+        String geometryType = (String) map.get("geometryType");
+        
+        QueueWriter queueWriter = queues.get(target);
+        if(queueWriter == null) {
+            SimpleFeatureType retyped = getTargetSchema(ftInfo, f.getFeatureType(), target, geometryType);
+            final StreamingShapefileWriter writer = new StreamingShapefileWriter(
+                    retyped.getTypeName(), retyped, target, charset, threshold);
+            writers.add(writer);
+            final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(WRITER_QUEUE_SIZE);
+            
+            final QueueWriter qw = new QueueWriter();
+            qw.writer = writer;
+            qw.queue = queue;
+            try {
+                qw.future = writerExecutor.submit(new Callable<Void>() {
+                    
+                    public Void call() throws Exception {
+                        while (!qw.aborted) {
+                            Object item = queue.poll(100, TimeUnit.MILLISECONDS);
+                            if (item == END) {
+                                writer.close();
+                                break;
+                            } else if (item != null) {
+                                writer.write((SimpleFeature) item);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // all the writer threads are busy, write in this thread
+                LOGGER.fine("No shapefile writer thread available, writing "
+                        + writer.fileName + " in the request thread");
+            }
+            queueWriter = qw;
+            queues.put(target, queueWriter);
+        }
+        return queueWriter;
+    }
+
+    /**
+     * Hands over the item to the writer, without blocking forever if the writer failed
+     */
+    private void put(QueueWriter queueWriter, Object item) throws IOException {
+        if (queueWriter.future == null) {
+            if (item == END) {
+                queueWriter.writer.close();
+            } else {
+                queueWriter.writer.write((SimpleFeature) item);
+            }
+            return;
+        }
+        try {
+            while(!queueWriter.queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if(queueWriter.future.isDone()) {
+                    // rethrows the writer failure, if any
+                    getWriterResult(queueWriter.future);
+                    throw new IOException("The writer of " + queueWriter.writer.fileName 
+                            + " stopped before the end of the features");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the shapefiles", e);
+        }
+    }
+
+    /**
+     * Waits for the writer task to complete, rethrowing the exception it failed with, if any
+     */
+    private static void getWriterResult(Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the shapefiles", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the .prj file content, in ESRI format if requested and available, null if the
+     * schema has no CRS
+     */
+    private String getPrjContent(SimpleFeatureType schema, boolean useEsriFormat)
+            throws FactoryException, IOException {
+        String prj = null;
+        if(useEsriFormat) {
+            prj = getESRIPrjContent(schema);
+        }
+        if(prj == null && schema.getCoordinateReferenceSystem() != null) {
+            prj = schema.getCoordinateReferenceSystem().toWKT();
+        }
+        return prj;
+    }
+
+    /**
+     * Streaming version of {@link #createRequestDump(File, GetFeatureRequest, SimpleFeatureCollection)}
+     */
+    private void zipRequestDump(ZipOutputStream zipOut, GetFeatureRequest gft, SimpleFeatureCollection fc) {
+        final Request request = Dispatcher.REQUEST.get();
+        if(request == null || gft == null) {
+            // we're probably running in a unit test
+            return;
+        }
+        
+        FeatureTypeInfo ftInfo = getFeatureTypeInfo(fc);
+        String fileName = new FileNameSource(getClass()).getRequestDumpName(ftInfo) + ".txt";
+        try {
+            zipOut.putNextEntry(new ZipEntry(fileName));
+            // the encoder is not allowed to close the zip
+            writeRequestDump(request, gft, new CloseShieldOutputStream(zipOut));
+            zipOut.closeEntry();
+        } catch(IOException e) {
+            throw new WFSException(gft, "Failed to dump the WFS request");
+        }
+    }
+
     /**
      * Dumps the request
      * @param simpleFeatureCollection
@@ -296,37 +669,13 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         File target = new File(tempDir, fileName);
         
         try {
-            if(request.isGet()) {
-                final HttpServletRequest httpRequest = request.getHttpRequest();
-                String baseUrl = ResponseUtils.baseURL(httpRequest);
-                String path = request.getPath();
-                //encode proxy url if existing
-                String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
-                StringBuilder url = new StringBuilder();
-                String parameters = httpRequest.getQueryString();
-				url.append(mangledUrl).append("?").append(parameters);
-                FileUtils.writeStringToFile(target, url.toString());
-            } else {
-                org.geotools.xml.Configuration cfg = null;
-                QName elementName = null;
-                if(gft.getVersion().equals("1.1.0")) {
-                    cfg = new WFSConfiguration();
-                    elementName = WFS.GetFeature;
-                } else {
-                    cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
-                    elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
-                }
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(target);
-                    Encoder encoder = new Encoder(cfg);
-                    encoder.setIndenting(true);
-                    encoder.setIndentSize(2);
-                    encoder.encode(gft, elementName, fos);
-                } finally {
-                    if(fos != null)
-                        fos.close();
-                }
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(target);
+                writeRequestDump(request, gft, fos);
+            } finally {
+                if(fos != null)
+                    fos.close();
             }
         } catch(IOException e) {
             throw new WFSException(gft, "Failed to dump the WFS request");
@@ -334,6 +683,38 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         
     }
 
+    /**
+     * Writes the request, as a GET url or as the XML document that was posted
+     */
+    private void writeRequestDump(Request request, GetFeatureRequest gft, OutputStream out)
+            throws IOException {
+        if(request.isGet()) {
+            final HttpServletRequest httpRequest = request.getHttpRequest();
+            String baseUrl = ResponseUtils.baseURL(httpRequest);
+            String path = request.getPath();
+            //encode proxy url if existing
+            String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
+            StringBuilder url = new StringBuilder();
+            String parameters = httpRequest.getQueryString();
+            url.append(mangledUrl).append("?").append(parameters);
+            out.write(url.toString().getBytes());
+        } else {
+            org.geotools.xml.Configuration cfg = null;
+            QName elementName = null;
+            if(gft.getVersion().equals("1.1.0")) {
+                cfg = new WFSConfiguration();
+                elementName = WFS.GetFeature;
+            } else {
+                cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
+                elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
+            }
+            Encoder encoder = new Encoder(cfg);
+            encoder.setIndenting(true);
+            encoder.setIndentSize(2);
+            encoder.encode(gft, elementName, out);
+        }
+    }
+
     private void createEmptyZipWarning(File tempDir) throws IOException {
         PrintWriter pw = null;
         try {
@@ -438,12 +819,21 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private void changeWKTFormatIfFileFormatIsESRI(File tempDir, GetFeatureRequest request,
             String fileName, SimpleFeatureType remappedSchema) throws FactoryException,
             IOException, FileNotFoundException {
-        
+        if (isESRIFormatRequested(request)) {
+            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
+        }
+    }
+
+    /**
+     * Checks whether the .prj files should use the ESRI WKT format, see
+     * {@link #changeWKTFormatIfFileFormatIsESRI(File, GetFeatureRequest, String, SimpleFeatureType)}
+     */
+    private boolean isESRIFormatRequested(GetFeatureRequest request) {
         boolean useEsriFormat = false;
         
         // if the request originates from the WPS we won't actually have any GetFeatureType request
         if(request == null) {
-            return;
+            return false;
         }
         
         Map<String, ?> formatOptions = request.getFormatOptions();
@@ -456,20 +846,37 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }else{
             useEsriFormat = "ESRI".equalsIgnoreCase(requestedPrjFileFormat);
         }
-        
-        if (useEsriFormat) {
-            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
-        }
+        return useEsriFormat;
     }
 
     private void replaceOGCPrjFileByESRIPrjFile(File tempDir, String fileName,
             SimpleFeatureType remappedSchema) throws FactoryException, IOException,
             FileNotFoundException {
+        String data = getESRIPrjContent(remappedSchema);
+        if (data != null) {
+            File prjShapeFile = new File(tempDir, fileName + ".prj");
+            prjShapeFile.delete();
+
+            BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the ESRI WKT of the schema CRS in user_projections/esri.properties, returns null
+     * if not found
+     */
+    private String getESRIPrjContent(SimpleFeatureType remappedSchema) throws FactoryException,
+            IOException {
         final Integer epsgCode = CRS.lookupEpsgCode(remappedSchema.getGeometryDescriptor()
                 .getCoordinateReferenceSystem(), true);
         if(epsgCode == null){
             LOGGER.info("Can't find the EPSG code for the shapefile CRS");
-            return;
+            return null;
         }
         File file = resourceLoader.find("user_projections", "esri.properties");
 
@@ -486,22 +893,14 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
 
             String data = (String) properties.get(epsgCode.toString());
 
-            if (data != null) {
-                File prjShapeFile = new File(tempDir, fileName + ".prj");
-                prjShapeFile.delete();
-
-                BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
-                try {
-                    out.write(data);
-                } finally {
-                    out.close();
-                }
-            } else {
+            if (data == null) {
                 LOGGER.info("Requested shapefile with ESRI WKT .prj format but couldn't find an entry for ESPG code "
                         + epsgCode + " in esri.properties");
             }
+            return data;
         } else {
             LOGGER.info("Requested shapefile with ESRI WKT .prj format but the esri.properties file does not exist in the user_projections directory");
+            return null;
         }
     }
     
@@ -684,21 +1083,7 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         StoreWriter storeWriter = writers.get(target);
         if(storeWriter == null) {
             // retype the schema
-            SimpleFeatureType original = f.getFeatureType();
-            SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-            for (AttributeDescriptor d : original.getAttributeDescriptors()) {
-                if(Geometry.class.isAssignableFrom(d.getType().getBinding())) {
-                    GeometryDescriptor gd = (GeometryDescriptor) d;
-                    builder.add(gd.getLocalName(), target, gd.getCoordinateReferenceSystem());
-                    builder.setDefaultGeometry(gd.getLocalName());
-                } else {
-                    builder.add(d);
-                }
-            }
-            builder.setNamespaceURI(original.getName().getURI());
-            String fileName = new FileNameSource(getClass()).getShapeName(ftInfo, geometryType);
-            builder.setName(fileName);
-            SimpleFeatureType retyped = builder.buildFeatureType();
+            SimpleFeatureType retyped = getTargetSchema(ftInfo, f.getFeatureType(), target, geometryType);
             
             // create the datastore for the current geom type
             DataStore dstore = buildStore(tempDir, charset, retyped);
@@ -712,6 +1097,28 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         return storeWriter.writer;
     }
     
+    /**
+     * Retypes the schema so that the geometry has the target type, and names it after the
+     * shapefile for the specific geometry type
+     */
+    private SimpleFeatureType getTargetSchema(FeatureTypeInfo ftInfo, SimpleFeatureType original,
+            Class<?> target, String geometryType) {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        for (AttributeDescriptor d : original.getAttributeDescriptors()) {
+            if(Geometry.class.isAssignableFrom(d.getType().getBinding())) {
+                GeometryDescriptor gd = (GeometryDescriptor) d;
+                builder.add(gd.getLocalName(), target, gd.getCoordinateReferenceSystem());
+                builder.setDefaultGeometry(gd.getLocalName());
+            } else {
+                builder.add(d);
+            }
+        }
+        builder.setNamespaceURI(original.getName().getURI());
+        String fileName = new FileNameSource(getClass()).getShapeName(ftInfo, geometryType);
+        builder.setName(fileName);
+        return builder.buildFeatureType();
+    }
+    
     private Map<String, Object> getGeometryType(Geometry g) {
     	Class<?> target;
         String geometryType = null;
@@ -760,6 +1167,30 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         return result != null ? result : Charset.forName("ISO-8859-1");
     }
 
+    /**
+     * Checks whether the shapefiles should be streamed into the zip instead of being staged in
+     * a temporary directory
+     */
+    private boolean isStreaming() {
+        return Boolean.valueOf(GeoServerExtensions.getProperty(GS_SHAPEFILE_STREAMING, applicationContext));
+    }
+
+    /**
+     * Looks up the size each shapefile part is kept in memory up to in streaming mode
+     */
+    private int getSpillThreshold() {
+        String value = GeoServerExtensions.getProperty(GS_SHAPEFILE_SPILL_THRESHOLD, applicationContext);
+        if(value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch(NumberFormatException e) {
+                LOGGER.warning("Invalid value for " + GS_SHAPEFILE_SPILL_THRESHOLD + ": " + value 
+                        + ", using the default: " + DEFAULT_SPILL_THRESHOLD);
+            }
+        }
+        return DEFAULT_SPILL_THRESHOLD;
+    }
+
     /**
      * Creates a shapefile data store for the specified schema 
      * @param tempDir
@@ -0,0 +1,295 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.feature.FeatureTypes;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Encodes a shapefile in a single pass over the features, without going through a temporary
+ * directory. The .shp, .shx and .dbf headers contain the record count and the bounds, which are
+ * known only at the end, so the records of each part are buffered, in memory up to a threshold
+ * and in a temporary file of their own after that (up to three per shapefile), and the headers
+ * are written when the shapefile is zipped.
+ * <p>
+ * The attribute types are mapped to dbf columns the same way the shapefile datastore does.
+ * Instances are not thread safe, but can be handed over from a thread to another.
+ * </p>
+ */
+class StreamingShapefileWriter {
+
+    static final Logger LOGGER = Logging.getLogger(StreamingShapefileWriter.class);
+
+    static final int HEADER_LENGTH = 100;
+
+    String fileName;
+
+    SimpleFeatureType schema;
+
+    Charset charset;
+
+    ShapeType shapeType;
+
+    ShapeHandler handler;
+
+    List<String> attributes = new ArrayList<String>();
+
+    DbaseFileHeader dbfHeader;
+
+    DbaseFileWriter dbfWriter;
+
+    DeferredFileOutputStream shp;
+
+    DeferredFileOutputStream shx;
+
+    DeferredFileOutputStream dbf;
+
+    Envelope bounds = new Envelope();
+
+    int records;
+
+    /**
+     * Offset of the next record in the .shp file, in 16 bit words
+     */
+    int offset = HEADER_LENGTH / 2;
+
+    /**
+     * @param fileName the name of the shapefile, without extension
+     * @param schema the shapefile compatible schema of the features
+     * @param geometryType the geometry type stored in the shapefile
+     * @param charset the dbf charset
+     * @param threshold the size each file is kept in memory up to, before moving it on disk
+     */
+    StreamingShapefileWriter(String fileName, SimpleFeatureType schema, Class geometryType,
+            Charset charset, int threshold) throws IOException {
+        this.fileName = fileName;
+        this.schema = schema;
+        this.charset = charset;
+        this.shapeType = JTSUtilities.getShapeType(geometryType);
+        this.handler = shapeType.getShapeHandler(new GeometryFactory());
+
+        shp = new DeferredFileOutputStream(threshold, "shpzip", ".shp", null);
+        shx = new DeferredFileOutputStream(threshold, "shpzip", ".shx", null);
+        dbf = new DeferredFileOutputStream(threshold, "shpzip", ".dbf", null);
+
+        dbfHeader = createDbaseHeader(schema);
+        dbfWriter = new DbaseFileWriter(dbfHeader, Channels.newChannel(dbf), charset);
+    }
+
+    /**
+     * Builds the dbf header, mapping the attributes the same way as the shapefile datastore
+     */
+    DbaseFileHeader createDbaseHeader(SimpleFeatureType schema) throws IOException {
+        DbaseFileHeader header = new DbaseFileHeader();
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            if (ad instanceof GeometryDescriptor) {
+                continue;
+            }
+            Class binding = ad.getType().getBinding();
+            String name = ad.getLocalName();
+            int length = FeatureTypes.getFieldLength(ad);
+            if (length == FeatureTypes.ANY_LENGTH) {
+                length = 255;
+            }
+            if (binding == Integer.class || binding == Short.class || binding == Byte.class) {
+                header.addColumn(name, 'N', Math.min(length, 9), 0);
+            } else if (binding == Long.class) {
+                header.addColumn(name, 'N', Math.min(length, 19), 0);
+            } else if (binding == BigInteger.class) {
+                header.addColumn(name, 'N', Math.min(length, 33), 0);
+            } else if (Number.class.isAssignableFrom(binding)) {
+                int l = Math.min(length, 33);
+                header.addColumn(name, 'N', l, Math.max(l - 2, 0));
+            } else if (java.util.Date.class.isAssignableFrom(binding)) {
+                header.addColumn(name, 'D', length, 0);
+            } else if (binding == Boolean.class) {
+                header.addColumn(name, 'L', 1, 0);
+            } else if (CharSequence.class.isAssignableFrom(binding)) {
+                header.addColumn(name, 'C', Math.min(254, length), 0);
+            } else {
+                throw new IOException("Unable to write " + name + " of type "
+                        + binding.getName() + " in a shapefile");
+            }
+            attributes.add(name);
+        }
+        return header;
+    }
+
+    /**
+     * Appends the feature to the shapefile
+     */
+    void write(SimpleFeature feature) throws IOException {
+        Geometry g = (Geometry) feature.getDefaultGeometry();
+        int length;
+        if (g == null || g.isEmpty()) {
+            g = null;
+            length = 4;
+        } else {
+            g = JTSUtilities.convertToCollection(g, shapeType);
+            bounds.expandToInclude(g.getEnvelopeInternal());
+            length = handler.getLength(g);
+        }
+
+        // the record header is big endian, the geometry little endian
+        ByteBuffer buffer = ByteBuffer.allocate(8 + length);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(++records);
+        buffer.putInt(length / 2);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (g == null) {
+            buffer.putInt(ShapeType.NULL.id);
+        } else {
+            buffer.putInt(shapeType.id);
+            handler.write(buffer, g);
+        }
+        shp.write(buffer.array(), 0, buffer.position());
+
+        ByteBuffer index = ByteBuffer.allocate(8);
+        index.order(ByteOrder.BIG_ENDIAN);
+        index.putInt(offset);
+        index.putInt(length / 2);
+        shx.write(index.array());
+        offset += length / 2 + 4;
+
+        Object[] values = new Object[attributes.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = feature.getAttribute(attributes.get(i));
+        }
+        dbfWriter.write(values);
+    }
+
+    /**
+     * Flushes the buffered records, no more features can be written after this call
+     */
+    void close() throws IOException {
+        if (dbfWriter != null) {
+            dbfWriter.close();
+            dbfWriter = null;
+            shp.close();
+            shx.close();
+        }
+    }
+
+    /**
+     * Writes out the shapefile as zip entries: the .shp, .shx and .dbf files, the .prj one if a
+     * projection is provided, and the .cst file with the charset name
+     */
+    void writeTo(ZipOutputStream zip, String prj) throws IOException {
+        close();
+
+        zip.putNextEntry(new ZipEntry(fileName + ".shp"));
+        zip.write(createHeader(offset));
+        copy(shp, zip, 0);
+        zip.closeEntry();
+
+        zip.putNextEntry(new ZipEntry(fileName + ".shx"));
+        zip.write(createHeader(HEADER_LENGTH / 2 + 4 * records));
+        copy(shx, zip, 0);
+        zip.closeEntry();
+
+        // the header written at the beginning had no record count, replace it
+        zip.putNextEntry(new ZipEntry(fileName + ".dbf"));
+        dbfHeader.setNumRecords(records);
+        dbfHeader.writeHeader(Channels.newChannel(zip));
+        copy(dbf, zip, dbfHeader.getHeaderLength());
+        zip.closeEntry();
+
+        if (prj != null) {
+            zip.putNextEntry(new ZipEntry(fileName + ".prj"));
+            zip.write(prj.getBytes());
+            zip.closeEntry();
+        }
+
+        // .cst is not a standard extension, it's there for debugging and control purposes
+        zip.putNextEntry(new ZipEntry(fileName + ".cst"));
+        zip.write(charset.name().getBytes());
+        zip.closeEntry();
+    }
+
+    /**
+     * Builds the header shared by the .shp and .shx files
+     */
+    byte[] createHeader(int fileLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(9994);
+        buffer.position(24);
+        buffer.putInt(fileLength);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(1000);
+        buffer.putInt(shapeType.id);
+        if (!bounds.isNull()) {
+            buffer.putDouble(bounds.getMinX());
+            buffer.putDouble(bounds.getMinY());
+            buffer.putDouble(bounds.getMaxX());
+            buffer.putDouble(bounds.getMaxY());
+        }
+        // z and m ranges are left to zero
+        return buffer.array();
+    }
+
+    void copy(DeferredFileOutputStream source, OutputStream out, int skip) throws IOException {
+        if (source.isInMemory()) {
+            byte[] data = source.getData();
+            out.write(data, skip, data.length - skip);
+        } else {
+            InputStream in = new FileInputStream(source.getFile());
+            try {
+                org.apache.commons.io.IOUtils.skipFully(in, skip);
+                org.apache.commons.io.IOUtils.copy(in, out);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Removes the temporary files, if any
+     */
+    void dispose() {
+        try {
+            close();
+        } catch (IOException e) {
+            LOGGER.fine("Failed to close the buffers of " + fileName + ": " + e.getMessage());
+        }
+        for (DeferredFileOutputStream buffer : new DeferredFileOutputStream[] { shp, shx, dbf }) {
+            File file = buffer.getFile();
+            if (file != null && file.exists() && !file.delete()) {
+                LOGGER.warning("Could not delete temp file: " + file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.config.GeoServer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.AbstractLayerCache;
+import org.geoserver.wfs.WFSInfo;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Caches the serialized DescribeFeatureType responses, clients often describe the feature types
+ * before each GetFeature, and building the XSD model out of the catalog is expensive.
+ * <p>
+ * Responses are keyed by encoder, WFS version, user, feature types, base URL, proxy base URL,
+ * local workspace and charset. Entries are dropped when their feature types or layers are
+ * modified or removed from the catalog, the ones describing all the feature types when a new
+ * one is added, and all of them are dropped on other catalog changes, such as namespace or store
+ * ones, and when the global or WFS configuration changes. The number of hits and misses is
+ * tracked.
+ * </p>
+ * <p>
+ * The following properties configure the cache:
+ * <ul>
+ * <li>{@code org.geoserver.wfs.describeFeatureTypeCache.ttl}: time to live of the responses, in
+ * seconds. The cache is disabled if non positive, which is the default. Customized schema.xsd
+ * files in the data directory are not watched, their changes show up after this delay</li>
+ * <li>{@code org.geoserver.wfs.describeFeatureTypeCache.maxEntries}: the maximum number of
+ * responses kept, least recently used ones are evicted first</li>
+ * </ul>
+ * </p>
+ */
+public class DescribeFeatureTypeCache extends AbstractLayerCache {
+
+    static final String TTL_KEY = "org.geoserver.wfs.describeFeatureTypeCache.ttl";
+
+    static final String MAX_ENTRIES_KEY = "org.geoserver.wfs.describeFeatureTypeCache.maxEntries";
+
+    static final int DEFAULT_MAX_ENTRIES = 200;
+
+    static class Entry {
+        List<String> layers;
+
+        boolean allTypes;
+
+        byte[] content;
+
+        long expires;
+
+        Entry(List<String> layers, boolean allTypes, byte[] content, long expires) {
+            this.layers = layers;
+            this.allTypes = allTypes;
+            this.content = content;
+            this.expires = expires;
+        }
+    }
+
+    GeoServer geoServer;
+
+    long timeToLive;
+
+    int maxEntries;
+
+    /**
+     * Bumped at each invalidation, responses started before an invalidation are not stored as
+     * they might be stale already
+     */
+    volatile long generation;
+
+    final Map<String, Entry> entries;
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    public DescribeFeatureTypeCache(GeoServer geoServer) {
+        this(geoServer, getLongProperty(TTL_KEY, 0) * 1000l, (int) getLongProperty(
+                MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * Builds the cache with the given time to live (in milliseconds) and maximum number of
+     * entries
+     */
+    public DescribeFeatureTypeCache(GeoServer geoServer, long timeToLive, int maxEntries) {
+        super(geoServer.getCatalog(), false);
+        this.geoServer = geoServer;
+        this.timeToLive = timeToLive;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > DescribeFeatureTypeCache.this.maxEntries;
+            }
+        };
+        catalog.addListener(this);
+        // schema base URL, GML settings...
+        clearOnConfigurationChange(geoServer, WFSInfo.class);
+    }
+
+    /**
+     * Whether responses are cached at all
+     */
+    public boolean isEnabled() {
+        return timeToLive > 0 && maxEntries > 0;
+    }
+
+    /**
+     * The number of responses served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of responses that had to be encoded while the cache was enabled
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Builds the key of a response, or returns null if the cache is disabled
+     *
+     * @param encoder identifies the encoder and the output format
+     * @param version the WFS version of the request
+     * @param featureTypes the described feature types
+     * @param baseURL the base URL of the request
+     */
+    public String getKey(String encoder, String version, FeatureTypeInfo[] featureTypes,
+            String baseURL) {
+        if (!isEnabled()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(encoder).append('|').append(version).append('|');
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        sb.append(auth == null ? "" : auth.getName()).append('|');
+        sb.append(getLayers(featureTypes)).append('|').append(baseURL).append('|');
+
+        // same lookup as the proxifying url mangler
+        String proxyBase = GeoServerExtensions.getProperty("PROXY_BASE_URL");
+        if (proxyBase == null) {
+            proxyBase = geoServer.getSettings().getProxyBaseUrl();
+        }
+        sb.append(proxyBase).append('|');
+        WorkspaceInfo ws = LocalWorkspace.get();
+        sb.append(ws == null ? "" : ws.getName()).append('|');
+        sb.append(geoServer.getSettings().getCharset());
+        return sb.toString();
+    }
+
+    static List<String> getLayers(FeatureTypeInfo[] featureTypes) {
+        List<String> layers = new ArrayList<String>(featureTypes.length);
+        for (FeatureTypeInfo ft : featureTypes) {
+            layers.add(ft.prefixedName());
+        }
+        // the response does not depend on the order the types were requested
+        Collections.sort(layers);
+        return layers;
+    }
+
+    /**
+     * Returns the cached response, or null if missing, counting the hit or miss
+     */
+    public byte[] get(String key) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.content;
+    }
+
+    /**
+     * Stores a response, unless the cache has been invalidated since the given generation, which
+     * should be read before encoding the response
+     *
+     * @param allTypes whether the request did not name any type, and described all of them
+     */
+    public synchronized void put(String key, FeatureTypeInfo[] featureTypes, boolean allTypes,
+            byte[] content, long generation) {
+        if (key != null && generation == this.generation) {
+            entries.put(key, new Entry(getLayers(featureTypes), allTypes, content,
+                    System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    /**
+     * The current generation, to be passed to
+     * {@link #put(String, FeatureTypeInfo[], boolean, byte[], long)}
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Drops all the responses describing the specified layer
+     */
+    @Override
+    public synchronized void invalidate(String layerName) {
+        generation++;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().layers.contains(layerName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the responses describing all the feature types
+     */
+    public synchronized void invalidateAllTypes() {
+        generation++;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().allTypes) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the responses
+     */
+    @Override
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    @Override
+    protected void handleOtherChange(Object source) {
+        if (source instanceof StyleInfo || source instanceof LayerGroupInfo) {
+            // not part of the schemas
+            return;
+        }
+        // namespaces, stores... just drop everything
+        clear();
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // a new type is not part of the cached responses, but should be part of the ones
+        // describing all of them
+        Object source = event.getSource();
+        if (source instanceof ResourceInfo || source instanceof LayerInfo) {
+            invalidateAllTypes();
+        }
+    }
+}
@@ -5,19 +5,17 @@
  */
 package org.geoserver.wfs.xml;
 
-import java.io.IOException;
-import java.io.OutputStream;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.namespace.QName;
 
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.ResourceInfo;
@@ -25,7 +23,6 @@ import org.geoserver.config.GeoServer;
 import org.geoserver.ows.util.ResponseUtils;
 import org.geoserver.platform.Operation;
 import org.geoserver.wfs.WFSInfo;
-import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geoserver.wfs.xml.v1_1_0.WFSConfiguration;
 import org.geotools.gml3.v3_2.GML;
@@ -33,7 +30,6 @@ import org.geotools.gml3.v3_2.GMLConfiguration;
 import org.geotools.wfs.v2_0.WFS;
 import org.geotools.xml.Configuration;
 import org.geotools.xml.Encoder;
-import org.w3c.dom.Document;
 
 public class GML32OutputFormat extends GML3OutputFormat {
 
@@ -49,22 +45,6 @@ public class GML32OutputFormat extends GML3OutputFormat {
     
     GeoServer geoServer;
 
-    protected static DOMSource xslt;
-
-    static {
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        docFactory.setNamespaceAware(true);
-        Document xsdDocument = null;
-        try {
-            xsdDocument = docFactory.newDocumentBuilder().parse(
-                    GML3OutputFormat.class.getResourceAsStream("/ChangeNumberOfFeature32.xslt"));
-            xslt = new DOMSource(xsdDocument);
-        } catch (Exception e) {
-            xslt = null;
-            LOGGER.log(Level.INFO, e.getMessage(), e);
-        }
-    }
-
     public GML32OutputFormat(GeoServer geoServer, WFSConfiguration configuration) {
         super(new HashSet(FORMATS), geoServer, configuration);
         this.geoServer = geoServer;
@@ -109,17 +89,35 @@ public class GML32OutputFormat extends GML3OutputFormat {
     }
 
     @Override
-    protected void setAdditionalSchemaLocations(Encoder encoder, GetFeatureRequest request, WFSInfo wfs) {
+    protected void setAdditionalSchemaLocations(Map<String, String> schemaLocations,
+            GetFeatureRequest request, WFSInfo wfs) {
         //since wfs 2.0 schema does not depend on gml 3.2 schema we register it manually
         String loc = wfs.isCanonicalSchemaLocation() ? GML.CANONICAL_SCHEMA_LOCATION : 
             ResponseUtils.buildSchemaURL(request.getBaseUrl(), "gml/3.2.1/gml.xsd");
-        encoder.setSchemaLocation(GML.NAMESPACE, loc);
+        schemaLocations.put(GML.NAMESPACE, loc);
+    }
+
+    @Override
+    protected GML3StreamingWriter createStreamingWriter(WFSInfo wfs) {
+        GML3StreamingWriter writer = new GML3StreamingWriter(GML3StreamingWriter.Version.GML32,
+                geoServer.getCatalog(), wfs.getGML().get(WFSInfo.Version.V_20).getSrsNameStyle()
+                        .toSrsSyntax());
+        writer.setFeatureBounding(wfs.isFeatureBounding());
+        writer.setSrsDimension(!wfs.isCiteCompliant());
+        return writer;
+    }
+
+    @Override
+    protected QName getFeatureCollectionName() {
+        return WFS.FeatureCollection;
     }
 
     @Override
-    protected void encode(FeatureCollectionResponse results, OutputStream output, Encoder encoder)
-            throws IOException {
-        encoder.encode(results.getAdaptee(), WFS.FeatureCollection, output);
+    protected Map<String, String> getFeatureCountAttributes(BigInteger count) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("numberMatched", "unknown");
+        attributes.put("numberReturned", count.toString());
+        return attributes;
     }
     
     @Override
@@ -137,9 +135,4 @@ public class GML32OutputFormat extends GML3OutputFormat {
         return "wfs/2.0/wfs.xsd";
     }
 
-    @Override
-    protected DOMSource getXSLT() {
-        return GML32OutputFormat.xslt;
-    }
-
 }
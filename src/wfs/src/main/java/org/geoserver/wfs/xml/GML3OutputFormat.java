@@ -9,41 +9,35 @@ import static org.geoserver.ows.util.ResponseUtils.buildSchemaURL;
 import static org.geoserver.ows.util.ResponseUtils.buildURL;
 import static org.geoserver.ows.util.ResponseUtils.params;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
 
 import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.ErrorListener;
-import javax.xml.transform.Transformer;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.ows.URLMangler.URLType;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.WFSException;
@@ -55,6 +49,7 @@ import org.geoserver.wfs.request.Query;
 import org.geoserver.wfs.xml.v1_1_0.WFS;
 import org.geoserver.wfs.xml.v1_1_0.WFSConfiguration;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.NameImpl;
 import org.geotools.feature.simple.SimpleFeatureTypeImpl;
 import org.geotools.gml3.GMLConfiguration;
@@ -62,28 +57,23 @@ import org.geotools.xml.Configuration;
 import org.geotools.xml.Encoder;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.Name;
-import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
     
+    /**
+     * System property enabling the streaming encoding of simple features
+     */
+    public static final String STREAMING_ENCODING_KEY = "org.geoserver.wfs.gml.streaming";
+
     GeoServer geoServer;
     Catalog catalog;
     WFSConfiguration configuration;
-    protected static DOMSource xslt;
-    
-    static {
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        docFactory.setNamespaceAware(true);
-        Document xsdDocument = null;
-        try {
-            xsdDocument = docFactory.newDocumentBuilder().parse(
-                    GML3OutputFormat.class.getResourceAsStream("/ChangeNumberOfFeature.xslt"));
-            xslt = new DOMSource(xsdDocument);
-        } catch (Exception e) {
-            xslt = null;
-            LOGGER.log(Level.INFO, e.getMessage(), e);
-        }
-    }
+    boolean streamingEncoding = Boolean.parseBoolean(GeoServerExtensions
+            .getProperty(STREAMING_ENCODING_KEY));
 
     public GML3OutputFormat(GeoServer geoServer, WFSConfiguration configuration) {
         this(new HashSet(Arrays.asList(new Object[] {"gml3", "text/xml; subtype=gml/3.1.1"})), 
@@ -199,13 +189,12 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
         //declare wfs schema location
         Object gft = getFeature.getParameters()[0];
         
-        Encoder encoder = createEncoder(configuration, ns2metas, gft);
-        encoder.setEncoding(Charset.forName( geoServer.getSettings().getCharset() ));
-
+        Charset charset = Charset.forName( geoServer.getSettings().getCharset() );
+        Map<String, String> schemaLocations = new LinkedHashMap<String, String>();
         if (wfs.isCanonicalSchemaLocation()) {
-            encoder.setSchemaLocation(getWfsNamespace(), getCanonicalWfsSchemaLocation());
+            schemaLocations.put(getWfsNamespace(), getCanonicalWfsSchemaLocation());
         } else {
-            encoder.setSchemaLocation(getWfsNamespace(),
+            schemaLocations.put(getWfsNamespace(),
                     buildSchemaURL(request.getBaseURL(), getRelativeWfsSchemaLocation()));
         }
 
@@ -229,7 +218,7 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
                     if (userSchemaLocation != null && userSchemaLocation instanceof Map) {
                         Map<String, String> schemaURIs = (Map<String, String>) userSchemaLocation;
                         for (String namespace : schemaURIs.keySet()) {
-                            encoder.setSchemaLocation(namespace, schemaURIs.get(namespace));
+                            schemaLocations.put(namespace, schemaURIs.get(namespace));
                         }
                     } else {
                         typeNames.append(meta.getPrefixedName());
@@ -246,11 +235,25 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
                 String schemaLocation = buildURL(request.getBaseURL(), "wfs", params, URLType.SERVICE);
                 LOGGER.finer("Unable to find user-defined schema location for: " + namespaceURI
                         + ". Using a built schema location by default: " + schemaLocation);
-                encoder.setSchemaLocation(namespaceURI, schemaLocation);
+                schemaLocations.put(namespaceURI, schemaLocation);
             }
         }
 
-        setAdditionalSchemaLocations(encoder, request, wfs);
+        setAdditionalSchemaLocations(schemaLocations, request, wfs);
+        
+        if (streamingEncoding && !isComplexFeature(results)) {
+            GML3StreamingWriter writer = createStreamingWriter(wfs);
+            if (writer.canEncode(results)) {
+                writer.write(results, schemaLocations, charset, output);
+                return;
+            }
+        }
+        
+        Encoder encoder = createEncoder(configuration, ns2metas, gft);
+        encoder.setEncoding(charset);
+        for (Map.Entry<String, String> entry : schemaLocations.entrySet()) {
+            encoder.setSchemaLocation(entry.getKey(), entry.getValue());
+        }
         if (this.isComplexFeature(results)) {
             complexFeatureStreamIntercept(results, output, encoder);
         } else {
@@ -264,43 +267,105 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
         return new Encoder(configuration, configuration.schema());
     }
 
-    protected void setAdditionalSchemaLocations(Encoder encoder, GetFeatureRequest request, WFSInfo wfs) {
+    protected void setAdditionalSchemaLocations(Map<String, String> schemaLocations,
+            GetFeatureRequest request, WFSInfo wfs) {
         //hook for subclasses
     }
+
+    /**
+     * Creates the writer used to stream simple features without going through the encoder
+     */
+    protected GML3StreamingWriter createStreamingWriter(WFSInfo wfs) {
+        GML3StreamingWriter writer = new GML3StreamingWriter(GML3StreamingWriter.Version.GML31,
+                catalog, wfs.getGML().get(WFSInfo.Version.V_11).getSrsNameStyle().toSrsSyntax());
+        writer.setFeatureBounding(wfs.isFeatureBounding());
+        writer.setSrsDimension(!wfs.isCiteCompliant());
+        writer.setEncodeFeatureMember(wfs.isEncodeFeatureMember());
+        return writer;
+    }
+
+    /**
+     * Whether simple features are streamed out by a {@link GML3StreamingWriter} instead of the
+     * generic encoder
+     */
+    public boolean isStreamingEncoding() {
+        return streamingEncoding;
+    }
+
+    public void setStreamingEncoding(boolean streamingEncoding) {
+        this.streamingEncoding = streamingEncoding;
+    }
     
     protected void encode(FeatureCollectionResponse results, OutputStream output, Encoder encoder)
         throws IOException {
-        encoder.encode(results.getAdaptee(), org.geoserver.wfs.xml.v1_1_0.WFS.FEATURECOLLECTION, output);
+        encoder.encode(results.getAdaptee(), getFeatureCollectionName(), output);
     }
-    
-    protected DOMSource getXSLT() {
-        return GML3OutputFormat.xslt;
+
+    /**
+     * The name of the feature collection element
+     */
+    protected QName getFeatureCollectionName() {
+        return org.geoserver.wfs.xml.v1_1_0.WFS.FEATURECOLLECTION;
     }
 
+    /**
+     * The root element attributes reporting the number of features in a complex feature response
+     * 
+     * @param count the number of features actually encoded
+     */
+    protected Map<String, String> getFeatureCountAttributes(BigInteger count) {
+        return Collections.singletonMap("numberOfFeatures", count.toString());
+    }
+
+    /**
+     * The number of features is computed before encoding (see
+     * {@link #countFeatures(FeatureCollectionResponse)}) and then patched into the root element
+     * while the encoder streams the response out
+     */
     private void complexFeatureStreamIntercept(FeatureCollectionResponse results, OutputStream output,
             Encoder encoder) throws IOException {
-        if (this.getXSLT() == null) {
-            throw new FileNotFoundException("Unable to locate xslt resource file");
-        }
-
-        // Create a temporary file for the xml dump. _dump is added to ensure the hash create is
-        // more then 3 char.
-        File featureOut = File.createTempFile(output.hashCode() + "_dump", ".xml");
-        // create a buffered output stream to write the output from encode to disk first
-        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(featureOut));
-        // create a buffered input stream to read the dumped xml file in
-        BufferedInputStream in = new BufferedInputStream(new FileInputStream(featureOut));
+        BigInteger count = countFeatures(results);
         try {
-            // the output file has to be unique with each Class object to ensure concurrency
-            encode(results, out, encoder);
-            this.transform(in, this.getXSLT(), output);
+            TransformerHandler serializer = ((SAXTransformerFactory) TransformerFactory
+                    .newInstance()).newTransformerHandler();
+            serializer.getTransformer().setOutputProperty(OutputKeys.ENCODING,
+                    encoder.getEncoding().name());
+            serializer.setResult(new StreamResult(output));
+
+            RootAttributesFilter filter = new RootAttributesFilter(getFeatureCountAttributes(count));
+            filter.setContentHandler(serializer);
+            encoder.encode(results.getAdaptee(), getFeatureCollectionName(), filter);
         } catch (TransformerException e) {
-            throw (IOException) new IOException(e.getMessage()).initCause(e);           
-        } finally {
-            out.close();
-            in.close();
-            featureOut.delete();
+            throw (IOException) new IOException(e.getMessage()).initCause(e);
+        } catch (SAXException e) {
+            throw (IOException) new IOException(e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * Returns the number of features in the response, as computed by GetFeature, which asks the
+     * sources to count complex features. Only if the response carries no count the features are
+     * counted by iterating over them, which runs the queries once more
+     */
+    private BigInteger countFeatures(FeatureCollectionResponse results) {
+        BigInteger known = results.getNumberOfFeatures();
+        if (known != null) {
+            return known;
+        }
+
+        long count = 0;
+        for (FeatureCollection fc : results.getFeature()) {
+            FeatureIterator it = fc.features();
+            try {
+                while (it.hasNext()) {
+                    it.next();
+                    count++;
+                }
+            } finally {
+                it.close();
+            }
         }
+        return BigInteger.valueOf(count);
     }
     
     protected String getWfsNamespace() {
@@ -326,31 +391,40 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
         return hasComplex;
     }
 
-    public void transform(InputStream in, DOMSource xslt, OutputStream out)
-            throws TransformerException {
-        TransformerFactory factory = TransformerFactory.newInstance();
-        Transformer transformer = (xslt == null ? factory.newTransformer() : factory
-                .newTransformer(xslt));
-        transformer.setErrorListener(new TransformerErrorListener());
-        transformer.transform(new StreamSource(in), new StreamResult(out));
-    }
+    /**
+     * Overrides attributes of the root element, leaving the rest of the document untouched
+     */
+    static class RootAttributesFilter extends XMLFilterImpl {
 
-    // If an application does not register its own custom ErrorListener, the default ErrorListener
-    // is used which reports all warnings and errors to System.err and does not throw any Exceptions
-    private class TransformerErrorListener implements ErrorListener {
+        Map<String, String> overrides;
 
-        public void error(TransformerException exception) throws TransformerException {
-            throw exception;
-        }
-
-        public void fatalError(TransformerException exception) throws TransformerException {
-            throw exception;
+        boolean root = true;
 
+        RootAttributesFilter(Map<String, String> overrides) {
+            this.overrides = overrides;
         }
 
-        public void warning(TransformerException exception) throws TransformerException {
-            throw exception;
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts)
+                throws SAXException {
+            if (root) {
+                root = false;
+                AttributesImpl patched = new AttributesImpl(atts);
+                for (Map.Entry<String, String> entry : overrides.entrySet()) {
+                    int idx = patched.getIndex("", entry.getKey());
+                    if (idx < 0) {
+                        idx = patched.getIndex(entry.getKey());
+                    }
+                    if (idx >= 0) {
+                        patched.setValue(idx, entry.getValue());
+                    } else {
+                        patched.addAttribute("", entry.getKey(), entry.getKey(), "CDATA",
+                                entry.getValue());
+                    }
+                }
+                atts = patched;
+            }
+            super.startElement(uri, localName, qName, atts);
         }
-
     }
 }
@@ -0,0 +1,680 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.gml2.SrsSyntax;
+import org.geotools.gml2.bindings.GML2EncodingUtils;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Writes a GetFeature response made of simple features as GML 3.1 or GML 3.2, streaming the
+ * features straight to the output instead of going through the generic
+ * {@link org.geotools.xml.Encoder}.
+ * <p>
+ * The element names are computed once per feature type and the geometries are written directly
+ * from their coordinate sequences. Only the feature types whose attributes map to a well known
+ * set of types can be handled, see {@link #canEncode(FeatureCollectionResponse)}, the output
+ * formats fall back on the encoder for everything else.
+ * </p>
+ */
+public class GML3StreamingWriter {
+
+    static final String XSI = "http://www.w3.org/2001/XMLSchema-instance";
+
+    /**
+     * The attribute bindings the writer knows how to encode
+     */
+    static final Set<Class<?>> BINDINGS = new HashSet<Class<?>>(Arrays.<Class<?>> asList(
+            String.class, Boolean.class, Integer.class, Long.class, Short.class, Byte.class,
+            BigInteger.class, Float.class, Double.class, Point.class, LineString.class,
+            Polygon.class, MultiPoint.class, MultiLineString.class, MultiPolygon.class));
+
+    /**
+     * Attribute names the encoder maps onto the gml feature properties
+     */
+    static final Set<String> GML_PROPERTIES = new HashSet<String>(Arrays.asList("name",
+            "description", "location", "boundedBy", "metaDataProperty", "identifier",
+            "descriptionReference"));
+
+    /**
+     * The GML dialects supported by the writer
+     */
+    public static enum Version {
+        GML31("http://www.opengis.net/wfs", "http://www.opengis.net/gml", "ogc",
+                "http://www.opengis.net/ogc", "http://www.opengis.net/ows"),
+        GML32("http://www.opengis.net/wfs/2.0", "http://www.opengis.net/gml/3.2", "fes",
+                "http://www.opengis.net/fes/2.0", "http://www.opengis.net/ows/1.1");
+
+        final String wfsNamespace;
+
+        final String gmlNamespace;
+
+        final String filterPrefix;
+
+        final String filterNamespace;
+
+        final String owsNamespace;
+
+        private Version(String wfsNamespace, String gmlNamespace, String filterPrefix,
+                String filterNamespace, String owsNamespace) {
+            this.wfsNamespace = wfsNamespace;
+            this.gmlNamespace = gmlNamespace;
+            this.filterPrefix = filterPrefix;
+            this.filterNamespace = filterNamespace;
+            this.owsNamespace = owsNamespace;
+        }
+    }
+
+    final Version version;
+
+    final Catalog catalog;
+
+    final SrsSyntax srsSyntax;
+
+    boolean featureBounding = true;
+
+    boolean srsDimension = true;
+
+    boolean encodeFeatureMember;
+
+    Map<CoordinateReferenceSystem, String> srsNames = new IdentityHashMap<CoordinateReferenceSystem, String>();
+
+    Writer writer;
+
+    CharsetEncoder charsetEncoder;
+
+    StringBuilder numberBuffer = new StringBuilder();
+
+    char[] chars = new char[32];
+
+    public GML3StreamingWriter(Version version, Catalog catalog, SrsSyntax srsSyntax) {
+        this.version = version;
+        this.catalog = catalog;
+        this.srsSyntax = srsSyntax;
+    }
+
+    /**
+     * Whether features and collections get a gml:boundedBy element, defaults to true
+     */
+    public void setFeatureBounding(boolean featureBounding) {
+        this.featureBounding = featureBounding;
+    }
+
+    /**
+     * Whether geometries and envelopes get a srsDimension attribute, defaults to true
+     */
+    public void setSrsDimension(boolean srsDimension) {
+        this.srsDimension = srsDimension;
+    }
+
+    /**
+     * Whether each feature goes in its own gml:featureMember element instead of a single
+     * gml:featureMembers one. Only used in GML 3.1, defaults to false
+     */
+    public void setEncodeFeatureMember(boolean encodeFeatureMember) {
+        this.encodeFeatureMember = encodeFeatureMember;
+    }
+
+    /**
+     * Checks if the response can be encoded by this writer, that is, if all the feature types in
+     * it are simple, published in the catalog, and made only of attributes the writer knows how
+     * to encode
+     */
+    public boolean canEncode(FeatureCollectionResponse results) {
+        List<FeatureCollection> collections = results.getFeature();
+        // WFS 2.0 nests a collection per query, leave that to the encoder
+        if (version == Version.GML32 && collections.size() != 1) {
+            return false;
+        }
+        for (FeatureCollection fc : collections) {
+            if (!(fc instanceof SimpleFeatureCollection)
+                    || !(fc.getSchema() instanceof SimpleFeatureType)) {
+                return false;
+            }
+            SimpleFeatureType schema = (SimpleFeatureType) fc.getSchema();
+            if (getPrefix(schema) == null) {
+                return false;
+            }
+            for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+                if (!BINDINGS.contains(ad.getType().getBinding())
+                        || GML_PROPERTIES.contains(ad.getLocalName())
+                        || ad.getMaxOccurs() != 1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    String getPrefix(SimpleFeatureType schema) {
+        String uri = schema.getName().getNamespaceURI();
+        NamespaceInfo ns = uri != null ? catalog.getNamespaceByURI(uri) : null;
+        return ns != null ? ns.getPrefix() : null;
+    }
+
+    /**
+     * Writes out the response
+     *
+     * @param results the response, must have been accepted by {@link #canEncode(FeatureCollectionResponse)}
+     * @param schemaLocations the namespace to schema location map
+     * @param charset the output charset
+     * @param output
+     * @throws IOException
+     */
+    public void write(FeatureCollectionResponse results, Map<String, String> schemaLocations,
+            Charset charset, OutputStream output) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(output, charset), 64 * 1024);
+        charsetEncoder = charset.name().startsWith("UTF") ? null : charset.newEncoder();
+
+        writer.write("<?xml version=\"1.0\" encoding=\"");
+        writer.write(charset.name());
+        writer.write("\"?>");
+
+        List<FeatureCollection> collections = results.getFeature();
+        start("wfs:FeatureCollection");
+        if (version == Version.GML31) {
+            attribute("numberOfFeatures", results.getNumberOfFeatures());
+        } else {
+            BigInteger matched = results.getTotalNumberOfFeatures();
+            attribute("numberMatched", matched != null ? matched.toString() : "unknown");
+            attribute("numberReturned", results.getNumberOfFeatures());
+            attribute("next", results.getNext());
+            attribute("previous", results.getPrevious());
+        }
+        Calendar timeStamp = results.getTimeStamp();
+        if (timeStamp != null) {
+            attribute("timeStamp", DatatypeConverter.printDateTime(timeStamp));
+        }
+        attribute("lockId", results.getLockId());
+        if (!schemaLocations.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> entry : schemaLocations.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(" ");
+                }
+                sb.append(entry.getKey()).append(" ").append(entry.getValue());
+            }
+            attribute("xsi:schemaLocation", sb.toString());
+        }
+        writeNamespaces();
+        writer.write('>');
+
+        if (version == Version.GML31) {
+            if (featureBounding) {
+                writeCollectionBounds(collections);
+            }
+            if (!collections.isEmpty()) {
+                if (!encodeFeatureMember) {
+                    start("gml:featureMembers");
+                    writer.write('>');
+                    for (FeatureCollection fc : collections) {
+                        writeFeatures((SimpleFeatureCollection) fc, null);
+                    }
+                    end("gml:featureMembers");
+                } else {
+                    for (FeatureCollection fc : collections) {
+                        writeFeatures((SimpleFeatureCollection) fc, "gml:featureMember");
+                    }
+                }
+            }
+        } else {
+            for (FeatureCollection fc : collections) {
+                writeFeatures((SimpleFeatureCollection) fc, "wfs:member");
+            }
+        }
+        end("wfs:FeatureCollection");
+        writer.flush();
+    }
+
+    void writeNamespaces() throws IOException {
+        Set<String> prefixes = new HashSet<String>(Arrays.asList("wfs", "gml",
+                version.filterPrefix, "ows", "xlink", "xs", "xsi"));
+        attribute("xmlns:wfs", version.wfsNamespace);
+        attribute("xmlns:gml", version.gmlNamespace);
+        attribute("xmlns:" + version.filterPrefix, version.filterNamespace);
+        attribute("xmlns:ows", version.owsNamespace);
+        attribute("xmlns:xlink", "http://www.w3.org/1999/xlink");
+        attribute("xmlns:xs", "http://www.w3.org/2001/XMLSchema");
+        attribute("xmlns:xsi", XSI);
+        for (NamespaceInfo ns : catalog.getNamespaces()) {
+            if (prefixes.add(ns.getPrefix())) {
+                attribute("xmlns:" + ns.getPrefix(), ns.getURI());
+            }
+        }
+    }
+
+    /**
+     * Same logic as the WFS 1.1 feature collection binding
+     */
+    void writeCollectionBounds(List<FeatureCollection> collections) throws IOException {
+        ReferencedEnvelope env = null;
+        for (FeatureCollection fc : collections) {
+            if (env == null) {
+                env = fc.getBounds();
+            } else {
+                env.expandToInclude(fc.getBounds());
+            }
+
+            if (env != null && env.getCoordinateReferenceSystem() == null) {
+                CoordinateReferenceSystem crs = fc.getSchema().getCoordinateReferenceSystem();
+                if (crs == null) {
+                    FeatureTypeInfo info = catalog.getFeatureTypeByName(fc.getSchema().getName());
+                    if (info != null) {
+                        crs = info.getCRS();
+                    }
+                }
+                env = new ReferencedEnvelope(env, crs);
+            }
+        }
+        if (env != null && !env.isNull() && !env.isEmpty()) {
+            writeBoundedBy(env, null);
+        }
+    }
+
+    void writeFeatures(SimpleFeatureCollection fc, String member) throws IOException {
+        FeatureTypeEncoding encoding = new FeatureTypeEncoding(fc.getSchema());
+        SimpleFeatureIterator it = fc.features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature feature = it.next();
+                if (member != null) {
+                    start(member);
+                    writer.write('>');
+                }
+                writeFeature(feature, encoding);
+                if (member != null) {
+                    end(member);
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    void writeFeature(SimpleFeature feature, FeatureTypeEncoding encoding) throws IOException {
+        String fid = feature.getID();
+        start(encoding.element);
+        attribute("gml:id", fid);
+        writer.write('>');
+
+        if (featureBounding) {
+            BoundingBox bounds = feature.getBounds();
+            if (bounds != null && !bounds.isEmpty()) {
+                writeBoundedBy(bounds, encoding.defaultCrs);
+            }
+        }
+
+        for (int i = 0; i < encoding.descriptors.length; i++) {
+            AttributeDescriptor ad = encoding.descriptors[i];
+            Object value = feature.getAttribute(ad.getLocalName());
+            String element = encoding.properties[i];
+            if (value == null) {
+                if (ad.isNillable()) {
+                    start(element);
+                    attribute("xsi:nil", "true");
+                    writer.write("/>");
+                }
+            } else if (value instanceof Geometry) {
+                start(element);
+                writer.write('>');
+                Geometry g = (Geometry) value;
+                String srsName = getSrsName(g, encoding.srsNames[i]);
+                String id = version == Version.GML32 ? fid + "." + ad.getLocalName() : null;
+                writeGeometry(g, id, srsName, true);
+                end(element);
+            } else {
+                start(element);
+                writer.write('>');
+                text(encodeValue(value));
+                end(element);
+            }
+        }
+
+        end(encoding.element);
+    }
+
+    String encodeValue(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isInfinite(d)) {
+                return d > 0 ? "INF" : "-INF";
+            }
+        }
+        return value.toString();
+    }
+
+    String getSrsName(Geometry g, String defaultSrsName) {
+        Object userData = g.getUserData();
+        if (userData instanceof CoordinateReferenceSystem) {
+            return getSrsName((CoordinateReferenceSystem) userData);
+        } else if (userData instanceof Map) {
+            Object crs = ((Map) userData).get(CoordinateReferenceSystem.class);
+            if (crs instanceof CoordinateReferenceSystem) {
+                return getSrsName((CoordinateReferenceSystem) crs);
+            }
+        }
+        return defaultSrsName;
+    }
+
+    String getSrsName(CoordinateReferenceSystem crs) {
+        if (crs == null) {
+            return null;
+        }
+        String srsName = srsNames.get(crs);
+        if (srsName == null && !srsNames.containsKey(crs)) {
+            String code = GML2EncodingUtils.epsgCode(crs);
+            srsName = code != null ? srsSyntax.getPrefix() + code : null;
+            srsNames.put(crs, srsName);
+        }
+        return srsName;
+    }
+
+    void writeBoundedBy(BoundingBox bounds, CoordinateReferenceSystem defaultCrs)
+            throws IOException {
+        CoordinateReferenceSystem crs = bounds.getCoordinateReferenceSystem();
+        String srsName = getSrsName(crs != null ? crs : defaultCrs);
+        int dimension = bounds.getDimension() > 2 ? 3 : 2;
+
+        start("gml:boundedBy");
+        writer.write('>');
+        start("gml:Envelope");
+        if (srsDimension) {
+            attribute("srsDimension", String.valueOf(dimension));
+        }
+        attribute("srsName", srsName);
+        writer.write('>');
+        start("gml:lowerCorner");
+        writer.write('>');
+        for (int d = 0; d < dimension; d++) {
+            if (d > 0) {
+                writer.write(' ');
+            }
+            number(bounds.getMinimum(d));
+        }
+        end("gml:lowerCorner");
+        start("gml:upperCorner");
+        writer.write('>');
+        for (int d = 0; d < dimension; d++) {
+            if (d > 0) {
+                writer.write(' ');
+            }
+            number(bounds.getMaximum(d));
+        }
+        end("gml:upperCorner");
+        end("gml:Envelope");
+        end("gml:boundedBy");
+    }
+
+    void writeGeometry(Geometry g, String id, String srsName, boolean root) throws IOException {
+        int dimension = dimension(g);
+        String element;
+        if (g instanceof Point) {
+            element = "gml:Point";
+        } else if (g instanceof LineString) {
+            element = "gml:LineString";
+        } else if (g instanceof Polygon) {
+            element = "gml:Polygon";
+        } else if (g instanceof MultiPoint) {
+            element = "gml:MultiPoint";
+        } else if (g instanceof MultiLineString) {
+            element = version == Version.GML32 ? "gml:MultiCurve" : "gml:MultiLineString";
+        } else if (g instanceof MultiPolygon) {
+            element = "gml:MultiSurface";
+        } else {
+            throw new IllegalArgumentException("Unsupported geometry type "
+                    + g.getGeometryType());
+        }
+
+        start(element);
+        if (id != null) {
+            attribute("gml:id", id);
+        }
+        if (root) {
+            if (srsDimension) {
+                attribute("srsDimension", String.valueOf(dimension));
+            }
+            attribute("srsName", srsName);
+        }
+        writer.write('>');
+
+        if (g instanceof Point) {
+            start("gml:pos");
+            writer.write('>');
+            writeCoordinates(((Point) g).getCoordinateSequence(), dimension);
+            end("gml:pos");
+        } else if (g instanceof LineString) {
+            writePosList(((LineString) g).getCoordinateSequence(), dimension);
+        } else if (g instanceof Polygon) {
+            Polygon polygon = (Polygon) g;
+            writeRing("gml:exterior", polygon.getExteriorRing(), dimension);
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                writeRing("gml:interior", polygon.getInteriorRingN(i), dimension);
+            }
+        } else {
+            String member;
+            if (g instanceof MultiPoint) {
+                member = "gml:pointMember";
+            } else if (g instanceof MultiLineString) {
+                member = version == Version.GML32 ? "gml:curveMember" : "gml:lineStringMember";
+            } else {
+                member = "gml:surfaceMember";
+            }
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                start(member);
+                writer.write('>');
+                writeGeometry(g.getGeometryN(i), id != null ? id + "." + (i + 1) : null, null,
+                        false);
+                end(member);
+            }
+        }
+
+        end(element);
+    }
+
+    void writeRing(String element, LineString ring, int dimension) throws IOException {
+        start(element);
+        writer.write('>');
+        start("gml:LinearRing");
+        writer.write('>');
+        writePosList(ring.getCoordinateSequence(), dimension);
+        end("gml:LinearRing");
+        end(element);
+    }
+
+    void writePosList(CoordinateSequence cs, int dimension) throws IOException {
+        start("gml:posList");
+        writer.write('>');
+        writeCoordinates(cs, dimension);
+        end("gml:posList");
+    }
+
+    void writeCoordinates(CoordinateSequence cs, int dimension) throws IOException {
+        int size = cs.size();
+        for (int i = 0; i < size; i++) {
+            for (int d = 0; d < dimension; d++) {
+                if (i > 0 || d > 0) {
+                    writer.write(' ');
+                }
+                number(cs.getOrdinate(i, d));
+            }
+        }
+    }
+
+    /**
+     * The number of ordinates to write for the geometry, based on its first coordinate
+     */
+    int dimension(Geometry g) {
+        while (g.getNumGeometries() > 0 && !(g instanceof Point || g instanceof LineString
+                || g instanceof Polygon)) {
+            g = g.getGeometryN(0);
+        }
+        CoordinateSequence cs;
+        if (g instanceof Point) {
+            cs = ((Point) g).getCoordinateSequence();
+        } else if (g instanceof LineString) {
+            cs = ((LineString) g).getCoordinateSequence();
+        } else if (g instanceof Polygon) {
+            cs = ((Polygon) g).getExteriorRing().getCoordinateSequence();
+        } else {
+            return 2;
+        }
+        if (cs.getDimension() > 2 && cs.size() > 0 && !Double.isNaN(cs.getOrdinate(0, 2))) {
+            return 3;
+        }
+        return 2;
+    }
+
+    /**
+     * Writes a number without creating intermediate strings
+     */
+    void number(double value) throws IOException {
+        numberBuffer.setLength(0);
+        numberBuffer.append(value);
+        int length = numberBuffer.length();
+        numberBuffer.getChars(0, length, chars, 0);
+        writer.write(chars, 0, length);
+    }
+
+    void start(String element) throws IOException {
+        writer.write('<');
+        writer.write(element);
+    }
+
+    void end(String element) throws IOException {
+        writer.write("</");
+        writer.write(element);
+        writer.write('>');
+    }
+
+    void attribute(String name, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+        escape(value.toString(), true);
+        writer.write('"');
+    }
+
+    void text(String text) throws IOException {
+        escape(text, false);
+    }
+
+    void escape(String s, boolean attribute) throws IOException {
+        int length = s.length();
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            String replacement = null;
+            if (c == '<') {
+                replacement = "&lt;";
+            } else if (c == '>') {
+                replacement = "&gt;";
+            } else if (c == '&') {
+                replacement = "&amp;";
+            } else if (c == '"' && attribute) {
+                replacement = "&quot;";
+            } else if (c == '\r' || (attribute && (c == '\n' || c == '\t'))) {
+                replacement = "&#" + (int) c + ";";
+            } else if (c < 0x20 && c != '\n' && c != '\t') {
+                // not allowed in XML 1.0, skip it
+                replacement = "";
+            } else if (c >= 0x80 && charsetEncoder != null && !charsetEncoder.canEncode(c)) {
+                int cp = Character.codePointAt(s, i);
+                replacement = "&#" + cp + ";";
+                if (Character.charCount(cp) > 1) {
+                    writer.write(s, last, i - last);
+                    writer.write(replacement);
+                    i++;
+                    last = i + 1;
+                    continue;
+                }
+            }
+            if (replacement != null) {
+                writer.write(s, last, i - last);
+                writer.write(replacement);
+                last = i + 1;
+            }
+        }
+        writer.write(s, last, length - last);
+    }
+
+    /**
+     * The element names and spatial reference information of a feature type, computed once for
+     * all of its features
+     */
+    class FeatureTypeEncoding {
+
+        String element;
+
+        AttributeDescriptor[] descriptors;
+
+        String[] properties;
+
+        String[] srsNames;
+
+        CoordinateReferenceSystem defaultCrs;
+
+        FeatureTypeEncoding(SimpleFeatureType schema) {
+            String prefix = getPrefix(schema);
+            element = prefix + ":" + schema.getTypeName();
+            defaultCrs = schema.getCoordinateReferenceSystem();
+
+            List<AttributeDescriptor> ads = schema.getAttributeDescriptors();
+            descriptors = ads.toArray(new AttributeDescriptor[ads.size()]);
+            properties = new String[descriptors.length];
+            srsNames = new String[descriptors.length];
+            for (int i = 0; i < descriptors.length; i++) {
+                properties[i] = prefix + ":" + descriptors[i].getLocalName();
+                if (descriptors[i] instanceof GeometryDescriptor) {
+                    srsNames[i] = getSrsName(((GeometryDescriptor) descriptors[i])
+                            .getCoordinateReferenceSystem());
+                }
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.WFSDescribeFeatureTypeOutputFormat;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.request.DescribeFeatureTypeRequest;
+import org.geoserver.wfs.xml.DescribeFeatureTypeCache;
 import org.geoserver.wfs.xml.FeatureTypeSchemaBuilder;
 import org.geotools.xml.Schemas;
 
@@ -46,6 +47,9 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
     /** schema builder */
     FeatureTypeSchemaBuilder schemaBuilder;
 
+    /** cache of the encoded schemas, optional */
+    DescribeFeatureTypeCache cache;
+
     public XmlSchemaEncoder(String mimeType, GeoServer gs, FeatureTypeSchemaBuilder schemaBuilder) {
         super(gs, mimeType);
         
@@ -64,6 +68,14 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
         this.schemaBuilder = schemaBuilder;
     }
 
+    public void setCache(DescribeFeatureTypeCache cache) {
+        this.cache = cache;
+    }
+
+    public DescribeFeatureTypeCache getCache() {
+        return cache;
+    }
+
     public String getMimeType(Object value, Operation operation)
         throws ServiceException {
         return getOutputFormat();
@@ -104,6 +116,32 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
         Object request = describeFeatureType.getParameters()[0];
         DescribeFeatureTypeRequest req = DescribeFeatureTypeRequest.adapt(request);
         
+        String key = null;
+        long generation = 0;
+        if (cache != null) {
+            key = cache.getKey(getClass().getName() + ":" + getOutputFormat(), req.getVersion(),
+                    featureTypeInfos, req.getBaseURL());
+            generation = cache.getGeneration();
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                output.write(cached);
+                return;
+            }
+        }
+        
+        if (key == null) {
+            encode(featureTypeInfos, req, output);
+        } else {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            encode(featureTypeInfos, req, bout);
+            byte[] encoded = bout.toByteArray();
+            cache.put(key, featureTypeInfos, req.getTypeNames().isEmpty(), encoded, generation);
+            output.write(encoded);
+        }
+    }
+
+    void encode(FeatureTypeInfo[] featureTypeInfos, DescribeFeatureTypeRequest req,
+            OutputStream output) throws IOException {
         XSDSchema schema = schemaBuilder.build(featureTypeInfos, req.getBaseURL());
 
         //serialize
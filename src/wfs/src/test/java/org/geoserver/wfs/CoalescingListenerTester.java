@@ -0,0 +1,22 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CoalescingListenerTester implements CoalescingTransactionListener {
+    List<TransactionEvent> events = new ArrayList<TransactionEvent>();
+
+    public void clear() {
+        events.clear();
+    }
+
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        events.add(event);
+    }
+
+}
@@ -0,0 +1,271 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureLockException;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.identity.FeatureId;
+
+public class FeatureLockIndexTest {
+
+    static final QName TYPE_NAME = new QName("http://www.geoserver.org/test", "Parcels");
+
+    static final FilterFactory FF = CommonFactoryFinder.getFilterFactory(null);
+
+    SimpleFeatureType type;
+
+    List<SimpleFeature> features;
+
+    FeatureLockIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        type = DataUtilities.createType("Parcels", "district:String");
+        features = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < 3000; i++) {
+            features.add(SimpleFeatureBuilder.build(type, new Object[] { i < 2000 ? "north"
+                    : "south" }, "Parcels." + i));
+        }
+        features.add(SimpleFeatureBuilder.build(type, new Object[] { "north" }, "custom-id"));
+        index = new FeatureLockIndex(null, true);
+    }
+
+    SimpleFeatureCollection collection(List<SimpleFeature> features) {
+        return new ListFeatureCollection(type, features);
+    }
+
+    Filter ids(List<SimpleFeature> features) {
+        Set<FeatureId> ids = new HashSet<FeatureId>();
+        for (SimpleFeature f : features) {
+            ids.add(f.getIdentifier());
+        }
+        return FF.id(ids);
+    }
+
+    void lock(String lockId, Filter filter, List<SimpleFeature> features, List<String> locked,
+            List<String> notLocked) throws IOException {
+        SimpleFeatureIterator it = collection(features).features();
+        try {
+            index.lock(lockId, TYPE_NAME, filter, it, locked, notLocked);
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test
+    public void testLockById() throws Exception {
+        index.create("a", 60000);
+        List<String> locked = new ArrayList<String>();
+        List<String> notLocked = new ArrayList<String>();
+        lock("a", ids(features), features, locked, notLocked);
+        assertEquals(features.size(), locked.size());
+        assertTrue(notLocked.isEmpty());
+
+        // numeric ids go in the primitive map, the others in the plain one
+        FeatureLockIndex.TypeLocks locks = index.types.get(index.key(TYPE_NAME));
+        assertEquals(3000, locks.fids.numeric.size());
+        assertEquals(1, locks.fids.others.size());
+
+        // another lock cannot get them
+        index.create("b", 60000);
+        List<SimpleFeature> some = features.subList(10, 20);
+        locked.clear();
+        lock("b", ids(some), some, locked, notLocked);
+        assertTrue(locked.isEmpty());
+        assertEquals(10, notLocked.size());
+
+        // nor modify them, the owner can
+        try {
+            index.check(TYPE_NAME, collection(some), "b");
+            fail("Should have failed, the features are locked by another lock");
+        } catch (FeatureLockException e) {
+            // fine
+        }
+        assertEquals(10, index.check(TYPE_NAME, collection(some), "a").size());
+
+        // once released the other lock can get them
+        assertTrue(index.release("a"));
+        assertFalse(index.exists("a"));
+        assertTrue(index.types.get(index.key(TYPE_NAME)) == null);
+        locked.clear();
+        notLocked.clear();
+        lock("b", ids(some), some, locked, notLocked);
+        assertEquals(10, locked.size());
+    }
+
+    @Test
+    public void testFilterLock() throws Exception {
+        Filter north = FF.equals(FF.property("district"), FF.literal("north"));
+        List<SimpleFeature> northFeatures = new ArrayList<SimpleFeature>(features.subList(0,
+                2000));
+        northFeatures.add(features.get(3000));
+
+        index.create("a", 60000);
+        List<String> locked = new ArrayList<String>();
+        List<String> notLocked = new ArrayList<String>();
+        lock("a", north, northFeatures, locked, notLocked);
+        assertEquals(2001, locked.size());
+
+        // no per feature entry
+        FeatureLockIndex.TypeLocks locks = index.types.get(index.key(TYPE_NAME));
+        assertTrue(locks.fids.isEmpty());
+        assertEquals(1, locks.filterLocks.size());
+
+        // the south features are free, the north ones are not
+        index.check(TYPE_NAME, collection(features.subList(2000, 3000)), null);
+        try {
+            index.check(TYPE_NAME, collection(features.subList(0, 1)), null);
+            fail("Should have failed, the feature is locked by the filter lock");
+        } catch (FeatureLockException e) {
+            // fine
+        }
+
+        // releasing some features only excludes them from the filter lock
+        List<String> owned = index.check(TYPE_NAME, collection(features.subList(0, 5)), "a");
+        assertEquals(Arrays.asList("Parcels.0", "Parcels.1", "Parcels.2", "Parcels.3",
+                "Parcels.4"), owned);
+        index.release("a", TYPE_NAME, owned);
+        index.check(TYPE_NAME, collection(features.subList(0, 5)), null);
+
+        // another lock can take the released ones only
+        index.create("b", 60000);
+        locked.clear();
+        notLocked.clear();
+        List<SimpleFeature> some = features.subList(0, 10);
+        lock("b", ids(some), some, locked, notLocked);
+        assertEquals(5, locked.size());
+        assertEquals(5, notLocked.size());
+    }
+
+    @Test
+    public void testLockSomeWithFilter() throws Exception {
+        index.create("a", 60000);
+        List<SimpleFeature> some = features.subList(0, 10);
+        lock("a", ids(some), some, new ArrayList<String>(), new ArrayList<String>());
+
+        // the filter lock skips the features locked by others, and keeps them excluded
+        index.create("b", 60000);
+        List<String> locked = new ArrayList<String>();
+        List<String> notLocked = new ArrayList<String>();
+        lock("b", Filter.INCLUDE, features, locked, notLocked);
+        assertEquals(features.size() - 10, locked.size());
+        assertEquals(10, notLocked.size());
+
+        index.release("a");
+        index.check(TYPE_NAME, collection(some), null);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        long now = System.currentTimeMillis();
+        index.create("a", 60000);
+        index.create("forever", 0);
+        List<SimpleFeature> some = features.subList(0, 10);
+        lock("a", ids(some), some, new ArrayList<String>(), new ArrayList<String>());
+
+        index.expire(now + 30000);
+        assertTrue(index.exists("a"));
+
+        index.expire(now + 61000 + FeatureLockIndex.TICK);
+        assertFalse(index.exists("a"));
+        assertTrue(index.exists("forever"));
+        index.check(TYPE_NAME, collection(some), null);
+    }
+
+    @Test
+    public void testExpiryBetweenBatches() throws Exception {
+        final long now = System.currentTimeMillis();
+        index.create("a", 60000);
+        List<SimpleFeature> first = features.subList(0, 10);
+        lock("a", ids(first), first, new ArrayList<String>(), new ArrayList<String>());
+
+        // while the first batch is checked "a" expires, and "b" takes its slot
+        final List<SimpleFeature> second = features.subList(FeatureLockIndex.BATCH_SIZE,
+                FeatureLockIndex.BATCH_SIZE + 10);
+        SimpleFeatureCollection collection = new ListFeatureCollection(type, features) {
+            @Override
+            public SimpleFeatureIterator features() {
+                final SimpleFeatureIterator delegate = super.features();
+                return new SimpleFeatureIterator() {
+                    int read = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return delegate.hasNext();
+                    }
+
+                    @Override
+                    public SimpleFeature next() {
+                        if (read++ == FeatureLockIndex.BATCH_SIZE) {
+                            try {
+                                index.expire(now + 61000 + FeatureLockIndex.TICK);
+                                assertFalse(index.exists("a"));
+                                index.create("b", 0);
+                                lock("b", ids(second), second, new ArrayList<String>(),
+                                        new ArrayList<String>());
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                        return delegate.next();
+                    }
+
+                    @Override
+                    public void close() {
+                        delegate.close();
+                    }
+                };
+            }
+        };
+
+        // the features of "b" are not mistaken for the ones of the expired lock
+        try {
+            index.check(TYPE_NAME, collection, "a");
+            fail("Should have failed, the features are locked by another lock");
+        } catch (FeatureLockException e) {
+            assertEquals(second.get(0).getID(), e.getFeatureID());
+        }
+    }
+
+    @Test
+    public void testExpiryAfterManyRounds() throws Exception {
+        long now = System.currentTimeMillis();
+        long duration = FeatureLockIndex.TICK * FeatureLockIndex.WHEEL_SIZE * 3;
+        index.create("a", duration);
+
+        index.expire(now + duration / 2);
+        assertTrue(index.exists("a"));
+        index.expire(now + duration - 2 * FeatureLockIndex.TICK);
+        assertTrue(index.exists("a"));
+        index.expire(now + duration + 2 * FeatureLockIndex.TICK);
+        assertFalse(index.exists("a"));
+    }
+}
@@ -0,0 +1,125 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class GetFeatureExecutorTest extends WFSTestSupport {
+
+    GetFeatureExecutor executor;
+
+    @Before
+    public void enableExecutor() {
+        executor = GeoServerExtensions.bean(GetFeatureExecutor.class);
+        executor.threads = 2;
+        // smaller than the collections, so that the prefetched iterators are continued
+        executor.prefetchSize = 3;
+    }
+
+    @After
+    public void disableExecutor() {
+        executor.threads = 0;
+        executor.prefetchSize = GetFeatureExecutor.DEFAULT_PREFETCH_SIZE;
+    }
+
+    String typeNames() {
+        return getLayerId(MockData.FIFTEEN) + "," + getLayerId(MockData.SEVEN);
+    }
+
+    @Test
+    public void testMaxFeatures() throws Exception {
+        Document dom = getAsDOM("wfs?request=GetFeature&version=1.1.0&service=wfs&typeName="
+                + typeNames() + "&maxFeatures=18");
+        assertEquals("18", dom.getDocumentElement().getAttribute("numberOfFeatures"));
+        assertEquals(15, dom.getElementsByTagName("cite:Fifteen").getLength());
+        assertEquals(3, dom.getElementsByTagName("cite:Seven").getLength());
+        assertNull(GetFeatureExecutor.PREFETCHING.get());
+
+        // the limit is reached with the first query
+        dom = getAsDOM("wfs?request=GetFeature&version=1.1.0&service=wfs&typeName="
+                + typeNames() + "&maxFeatures=10");
+        assertEquals(10, dom.getElementsByTagName("cite:Fifteen").getLength());
+        assertEquals(0, dom.getElementsByTagName("cite:Seven").getLength());
+    }
+
+    @Test
+    public void testNumberMatched() throws Exception {
+        Document dom = getAsDOM("wfs?request=GetFeature&version=2.0.0&service=wfs&typenames="
+                + typeNames() + "&count=18");
+        assertEquals("22", dom.getDocumentElement().getAttribute("numberMatched"));
+        assertEquals("18", dom.getDocumentElement().getAttribute("numberReturned"));
+
+        dom = getAsDOM("wfs?request=GetFeature&version=2.0.0&service=wfs&typenames="
+                + typeNames() + "&resultType=hits");
+        assertEquals("22", dom.getDocumentElement().getAttribute("numberMatched"));
+    }
+
+    @Test
+    public void testSameAsSequential() throws Exception {
+        String request = "wfs?request=GetFeature&version=1.0.0&service=wfs&typeName="
+                + typeNames() + "," + getLayerId(MockData.BUILDINGS) + "&maxFeatures=100";
+        Document parallel = getAsDOM(request);
+        assertNull(GetFeatureExecutor.PREFETCHING.get());
+        executor.threads = 0;
+        Document sequential = getAsDOM(request);
+
+        for (String name : new String[] { "cite:Fifteen", "cite:Seven", "cite:Buildings",
+                "cite:FID" }) {
+            assertEquals(name, sequential.getElementsByTagName(name).getLength(), parallel
+                    .getElementsByTagName(name).getLength());
+        }
+        assertEquals(24, parallel.getElementsByTagName("gml:featureMember").getLength());
+    }
+
+    @Test
+    public void testOffsetIsSequential() throws Exception {
+        // with an offset the queries depend on each other, the executor is not used
+        Document dom = getAsDOM("wfs?request=GetFeature&version=2.0.0&service=wfs&typenames="
+                + typeNames() + "&count=5&startIndex=13");
+        assertEquals("5", dom.getDocumentElement().getAttribute("numberReturned"));
+        assertEquals(2, dom.getElementsByTagName("cite:Fifteen").getLength());
+        assertEquals(3, dom.getElementsByTagName("cite:Seven").getLength());
+    }
+
+    @Test
+    public void testThreadLocals() throws Exception {
+        Request request = new Request();
+        WorkspaceInfo ws = getCatalog().getDefaultWorkspace();
+        Dispatcher.REQUEST.set(request);
+        LocalWorkspace.set(ws);
+        try {
+            Future<Object[]> future = executor.submit(new Callable<Object[]>() {
+
+                @Override
+                public Object[] call() throws Exception {
+                    return new Object[] { Dispatcher.REQUEST.get(), LocalWorkspace.get() };
+                }
+            });
+            Object[] result = GetFeatureExecutor.get(future);
+            assertSame(request, result[0]);
+            assertSame(ws, result[1]);
+        } finally {
+            Dispatcher.REQUEST.remove();
+            LocalWorkspace.remove();
+        }
+    }
+}
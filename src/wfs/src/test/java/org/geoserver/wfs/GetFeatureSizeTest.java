@@ -0,0 +1,68 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertEquals;
+
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.junit.Test;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.FeatureType;
+
+/**
+ * Checks the queries {@link GetFeature#getSize} runs, the mocks fail on any call not expected
+ */
+public class GetFeatureSizeTest {
+
+    @Test
+    public void testSimpleFeatures() throws Exception {
+        FeatureSource<FeatureType, Feature> source = createMock(FeatureSource.class);
+        FeatureCollection<FeatureType, Feature> features = createMock(FeatureCollection.class);
+        expect(features.getSchema()).andReturn(createMock(SimpleFeatureType.class));
+        expect(features.size()).andReturn(5);
+        replay(source, features);
+
+        assertEquals(5, GetFeature.getSize(source, Query.ALL, features));
+        verify(source, features);
+    }
+
+    @Test
+    public void testComplexFeaturesCounted() throws Exception {
+        FeatureSource<FeatureType, Feature> source = createMock(FeatureSource.class);
+        expect(source.getCount(Query.ALL)).andReturn(7).once();
+        FeatureCollection<FeatureType, Feature> features = createMock(FeatureCollection.class);
+        expect(features.getSchema()).andReturn(createMock(FeatureType.class));
+        replay(source, features);
+
+        // the count query only, the features are not read
+        assertEquals(7, GetFeature.getSize(source, Query.ALL, features));
+        verify(source, features);
+    }
+
+    @Test
+    public void testComplexFeaturesIterated() throws Exception {
+        FeatureSource<FeatureType, Feature> source = createMock(FeatureSource.class);
+        expect(source.getCount(Query.ALL)).andReturn(-1).once();
+        FeatureIterator<Feature> it = createMock(FeatureIterator.class);
+        expect(it.hasNext()).andReturn(true).times(3);
+        expect(it.hasNext()).andReturn(false);
+        expect(it.next()).andReturn(null).times(3);
+        it.close();
+        FeatureCollection<FeatureType, Feature> features = createMock(FeatureCollection.class);
+        expect(features.getSchema()).andReturn(createMock(FeatureType.class));
+        expect(features.features()).andReturn(it).once();
+        replay(source, it, features);
+
+        // the source cannot count, the features are read once
+        assertEquals(3, GetFeature.getSize(source, Query.ALL, features));
+        verify(source, it, features);
+    }
+}
@@ -0,0 +1,176 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import net.opengis.wfs.TransactionType;
+import net.opengis.wfs.WfsFactory;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.request.TransactionRequest;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class HitsCacheTest extends WFSTestSupport {
+
+    HitsCache cache;
+
+    @Before
+    public void enableCache() {
+        cache = GeoServerExtensions.bean(HitsCache.class);
+        cache.timeToLive = 60000;
+        cache.clear();
+    }
+
+    @After
+    public void disableCache() {
+        cache.timeToLive = 0;
+        cache.clear();
+    }
+
+    @Test
+    public void testNumberMatched() throws Exception {
+        String request = "wfs?request=GetFeature&typenames=" + getLayerId(MockData.FIFTEEN)
+                + "&version=2.0.0&service=wfs&count=5&startIndex=";
+        Document dom = getAsDOM(request + "0");
+        assertEquals("15", dom.getDocumentElement().getAttribute("numberMatched"));
+        assertEquals(1, cache.entries.size());
+
+        // the other pages reuse the count
+        dom = getAsDOM(request + "5");
+        assertEquals("15", dom.getDocumentElement().getAttribute("numberMatched"));
+        dom = getAsDOM(request + "10");
+        assertEquals("15", dom.getDocumentElement().getAttribute("numberMatched"));
+        assertEquals(1, cache.entries.size());
+
+        // a different filter is a different count
+        dom = getAsDOM("wfs?request=GetFeature&version=2.0.0&service=wfs&count=1"
+                + "&featureId=Fifteen.1,Fifteen.2");
+        assertEquals("2", dom.getDocumentElement().getAttribute("numberMatched"));
+        assertEquals(2, cache.entries.size());
+    }
+
+    @Test
+    public void testTransactionInvalidation() throws Exception {
+        getAsDOM("wfs?request=GetFeature&typenames=" + getLayerId(MockData.FIFTEEN)
+                + "&version=2.0.0&service=wfs&count=5");
+        getAsDOM("wfs?request=GetFeature&typenames=" + getLayerId(MockData.SEVEN)
+                + "&version=2.0.0&service=wfs&count=5");
+        assertEquals(2, cache.entries.size());
+
+        // counts are dropped only once the transaction is committed
+        TransactionType tx = WfsFactory.eINSTANCE.createTransactionType();
+        tx.setExtendedProperties(new HashMap());
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.POST_UPDATE,
+                TransactionRequest.adapt(tx), MockData.FIFTEEN, null));
+        assertEquals(2, cache.entries.size());
+        cache.afterTransaction(tx, null, true);
+        assertEquals(1, cache.entries.size());
+    }
+
+    @Test
+    public void testTransactionInvalidation20() throws Exception {
+        getAsDOM("wfs?request=GetFeature&typenames=" + getLayerId(MockData.FIFTEEN)
+                + "&version=2.0.0&service=wfs&count=5");
+        getAsDOM("wfs?request=GetFeature&typenames=" + getLayerId(MockData.SEVEN)
+                + "&version=2.0.0&service=wfs&count=5");
+        assertEquals(2, cache.entries.size());
+
+        // a WFS 2.0 transaction reaches afterTransaction as well
+        String xml = "<wfs:Transaction service='WFS' version='2.0.0' "
+                + "xmlns:wfs='http://www.opengis.net/wfs/2.0' "
+                + "xmlns:fes='http://www.opengis.net/fes/2.0' "
+                + "xmlns:cdf='http://www.opengis.net/cite/data'>"
+                + "<wfs:Delete typeName='cdf:Fifteen'>"
+                + "<fes:Filter><fes:ResourceId rid='Fifteen.nonexistent'/></fes:Filter>"
+                + "</wfs:Delete>"
+                + "</wfs:Transaction>";
+        Document dom = postAsDOM("wfs", xml);
+        assertEquals("wfs:TransactionResponse", dom.getDocumentElement().getNodeName());
+        assertEquals(1, cache.entries.size());
+    }
+
+    @Test
+    public void testPagingCountThreshold() throws Exception {
+        cache.countThreshold = 10;
+        try {
+            String request = "wfs?request=GetFeature&typenames=" + getLayerId(MockData.FIFTEEN)
+                    + "&version=2.0.0&service=wfs&count=5&startIndex=";
+            // the total is unknown, full pages link to the next one
+            Document dom = getAsDOM(request + "0");
+            assertEquals(5, getStartIndex(dom, "next"));
+            dom = getAsDOM(request + "5");
+            assertEquals(0, getStartIndex(dom, "previous"));
+            assertEquals(10, getStartIndex(dom, "next"));
+
+            // the last page is not full, no next link
+            dom = getAsDOM(request + "12");
+            assertFalse(dom.getDocumentElement().hasAttribute("next"));
+        } finally {
+            cache.countThreshold = 0;
+        }
+    }
+
+    int getStartIndex(Document dom, String link) {
+        String url = dom.getDocumentElement().getAttribute(link);
+        for (String kvp : url.split("\\?")[1].split("&")) {
+            String[] kv = kvp.split("=");
+            if ("startIndex".equalsIgnoreCase(kv[0])) {
+                return Integer.parseInt(kv[1]);
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testCatalogInvalidation() throws Exception {
+        getAsDOM("wfs?request=GetFeature&typenames=" + getLayerId(MockData.FIFTEEN)
+                + "&version=2.0.0&service=wfs&count=5");
+        assertEquals(1, cache.entries.size());
+
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.FIFTEEN));
+        getCatalog().save(info);
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testCountThreshold() throws Exception {
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.FIFTEEN));
+        FeatureSource<?, ?> source = info.getFeatureSource(null, null);
+        List<String> layers = Collections.singletonList(info.prefixedName());
+
+        HitsCache bounded = new HitsCache(getCatalog(), 0, 0, 10);
+        try {
+            // numberMatched is capped, plain counts are not
+            assertEquals(-1, bounded.getMatchedCount(layers, source, Query.ALL));
+            assertEquals(15, bounded.getCount(layers, source, Query.ALL));
+            Query limited = new Query(Query.ALL);
+            limited.setMaxFeatures(8);
+            assertEquals(8, bounded.getMatchedCount(layers, source, limited));
+        } finally {
+            getCatalog().removeListener(bounded);
+        }
+
+        HitsCache large = new HitsCache(getCatalog(), 0, 0, 20);
+        try {
+            assertEquals(15, large.getMatchedCount(layers, source, Query.ALL));
+        } finally {
+            getCatalog().removeListener(large);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Runs the lock tests again with the GeoServer lock index instead of the data store locking
+ */
+public class LockFeatureIndexTest extends LockFeatureTest {
+
+    @Before
+    public void enableIndex() {
+        GeoServerExtensions.bean(FeatureLockIndex.class).enabled = true;
+    }
+
+    @After
+    public void disableIndex() {
+        FeatureLockIndex index = GeoServerExtensions.bean(FeatureLockIndex.class);
+        index.releaseAll();
+        index.enabled = false;
+    }
+}
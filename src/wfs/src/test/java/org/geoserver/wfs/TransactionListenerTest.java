@@ -6,6 +6,7 @@
 package org.geoserver.wfs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
@@ -15,6 +16,7 @@ import net.opengis.wfs.InsertElementType;
 import net.opengis.wfs.UpdateElementType;
 
 import org.geoserver.data.test.CiteTestData;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.Before;
 import org.junit.Test;
 import org.opengis.feature.Feature;
@@ -31,6 +33,8 @@ public class TransactionListenerTest extends WFSTestSupport {
     
     TransactionListenerTester listener;
 
+    CoalescingListenerTester coalescing;
+
     @Override
     protected void setUpSpring(List<String> springContextLocations) {    	
         super.setUpSpring(springContextLocations);
@@ -41,6 +45,9 @@ public class TransactionListenerTest extends WFSTestSupport {
     public void clearState() throws Exception {
         listener = (TransactionListenerTester) applicationContext.getBean("transactionListenerTester");
         listener.clear();
+        coalescing = (CoalescingListenerTester) applicationContext
+                .getBean("coalescingListenerTester");
+        coalescing.clear();
     }
 
     @Test
@@ -155,4 +162,109 @@ public class TransactionListenerTest extends WFSTestSupport {
         
         assertEquals(2, listener.features.size());
     }
+
+    @Test
+    public void testCoalescedUpdateDelete() throws Exception {
+        // two updates and two deletes of the same type, not matching any feature
+        StringBuilder sb = new StringBuilder("<wfs:Transaction service=\"WFS\" version=\"1.0.0\" "
+                + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                + "xmlns:ogc=\"http://www.opengis.net/ogc\" "
+                + "xmlns:wfs=\"http://www.opengis.net/wfs\"> ");
+        for (int i = 0; i < 2; i++) {
+            sb.append("<wfs:Update typeName=\"cgf:Points\"><wfs:Property><wfs:Name>id</wfs:Name>"
+                    + "<wfs:Value>u000" + i + "</wfs:Value></wfs:Property><ogc:Filter>"
+                    + "<ogc:PropertyIsEqualTo><ogc:PropertyName>id</ogc:PropertyName>"
+                    + "<ogc:Literal>u000" + i + "</ogc:Literal></ogc:PropertyIsEqualTo>"
+                    + "</ogc:Filter></wfs:Update>");
+        }
+        for (int i = 0; i < 2; i++) {
+            sb.append("<wfs:Delete typeName=\"cgf:Points\"><ogc:Filter>"
+                    + "<ogc:PropertyIsEqualTo><ogc:PropertyName>id</ogc:PropertyName>"
+                    + "<ogc:Literal>d000" + i + "</ogc:Literal></ogc:PropertyIsEqualTo>"
+                    + "</ogc:Filter></wfs:Delete>");
+        }
+        sb.append("</wfs:Transaction>");
+        postAsDOM("wfs", sb.toString());
+
+        // the plain listener sees every element (no post update, nothing was updated)
+        assertEquals(4, listener.events.size());
+
+        // the coalescing one an event per type
+        assertEquals(2, coalescing.events.size());
+        assertEquals(TransactionEventType.PRE_UPDATE, coalescing.events.get(0).getType());
+        assertTrue(coalescing.events.get(0).getSource() instanceof UpdateElementType);
+        assertEquals(TransactionEventType.PRE_DELETE, coalescing.events.get(1).getType());
+        assertTrue(coalescing.events.get(1).getSource() instanceof DeleteElementType);
+        for (TransactionEvent event : coalescing.events) {
+            assertEquals(CiteTestData.POINTS, event.getLayerName());
+            // no feature affected
+            assertNull(event.getAffectedBounds());
+        }
+    }
+
+    @Test
+    public void testBatchInsert() throws Exception {
+        InsertElementHandler handler = (InsertElementHandler) applicationContext
+                .getBean("wfsInsertElementHandler");
+        handler.batchSize = 2;
+        try {
+            // three consecutive inserts of the same type, followed by another type
+            StringBuilder sb = new StringBuilder("<wfs:Transaction service=\"WFS\" version=\"1.0.0\" "
+                    + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                    + "xmlns:ogc=\"http://www.opengis.net/ogc\" "
+                    + "xmlns:wfs=\"http://www.opengis.net/wfs\" "
+                    + "xmlns:gml=\"http://www.opengis.net/gml\"> ");
+            for (int i = 0; i < 3; i++) {
+                sb.append("<wfs:Insert handle=\"insert" + i + "\"><cgf:Lines>"
+                        + "<cgf:lineStringProperty><gml:LineString>"
+                        + "<gml:coordinates decimal=\".\" cs=\",\" ts=\" \">" + i + ",0 " + i
+                        + ",1</gml:coordinates></gml:LineString></cgf:lineStringProperty>"
+                        + "<cgf:id>b000" + i + "</cgf:id></cgf:Lines></wfs:Insert>");
+            }
+            sb.append("<wfs:Insert><cgf:Points><cgf:pointProperty><gml:Point>"
+                    + "<gml:coordinates decimal=\".\" cs=\",\" ts=\" \">5,5</gml:coordinates>"
+                    + "</gml:Point></cgf:pointProperty><cgf:id>b0003</cgf:id></cgf:Points>"
+                    + "</wfs:Insert></wfs:Transaction>");
+
+            Document dom = postAsDOM("wfs", sb.toString());
+            assertEquals(4, dom.getElementsByTagName("ogc:FeatureId").getLength());
+
+            // the pre insert events of the merged inserts, each with its own source and
+            // features, followed by the post insert ones
+            assertEquals(8, listener.events.size());
+            for (int i = 0; i < 3; i++) {
+                TransactionEvent pre = (TransactionEvent) listener.events.get(i);
+                assertEquals(TransactionEventType.PRE_INSERT, pre.getType());
+                assertEquals(CiteTestData.LINES, pre.getLayerName());
+                assertEquals("insert" + i, ((InsertElementType) pre.getSource()).getHandle());
+                ReferencedEnvelope bounds = pre.getAffectedFeatures().getBounds();
+                assertEquals(i, bounds.getMinX(), 0d);
+                assertEquals(i, bounds.getMaxX(), 0d);
+
+                TransactionEvent post = (TransactionEvent) listener.events.get(i + 3);
+                assertEquals(TransactionEventType.POST_INSERT, post.getType());
+                assertEquals("insert" + i, ((InsertElementType) post.getSource()).getHandle());
+                assertEquals(1, post.getAffectedFeatures().size());
+            }
+            assertEquals(CiteTestData.POINTS, ((TransactionEvent) listener.events.get(6))
+                    .getLayerName());
+
+            // a single pre and post insert event per type for the coalescing listeners
+            assertEquals(4, coalescing.events.size());
+            TransactionEvent pre = coalescing.events.get(0);
+            assertEquals(TransactionEventType.PRE_INSERT, pre.getType());
+            assertEquals(CiteTestData.LINES, pre.getLayerName());
+            assertTrue(pre.getSource() instanceof InsertElementType);
+            ReferencedEnvelope bounds = pre.getAffectedBounds();
+            assertEquals(0, bounds.getMinX(), 0d);
+            assertEquals(2, bounds.getMaxX(), 0d);
+            assertEquals(TransactionEventType.POST_INSERT, coalescing.events.get(1).getType());
+            assertEquals(CiteTestData.LINES, coalescing.events.get(1).getLayerName());
+            assertEquals(TransactionEventType.PRE_INSERT, coalescing.events.get(2).getType());
+            assertEquals(CiteTestData.POINTS, coalescing.events.get(2).getLayerName());
+            assertEquals(TransactionEventType.POST_INSERT, coalescing.events.get(3).getType());
+        } finally {
+            handler.batchSize = 0;
+        }
+    }
 }
@@ -0,0 +1,77 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.geoserver.data.test.MockData;
+import org.geoserver.wfs.WFSTestSupport;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureCollection;
+import org.junit.Test;
+
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class GeoJSONSeqTest extends WFSTestSupport {
+
+    static final String REQUEST = "wfs?request=GetFeature&version=1.0.0"
+            + "&typename=sf:PrimitiveGeoFeature&outputformat=";
+
+    @Test
+    public void testGet() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse(REQUEST + "ndjson");
+        assertEquals("application/x-ndjson", response.getContentType());
+        String[] lines = response.getOutputStreamContent().split("\n");
+
+        // same features as in the collection, one per line
+        JSONObject collection = JSONObject.fromObject(getAsString(REQUEST + JSONType.json));
+        JSONArray features = collection.getJSONArray("features");
+        assertEquals(features.size(), lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            JSONObject feature = JSONObject.fromObject(lines[i]);
+            assertEquals("Feature", feature.getString("type"));
+            assertEquals(features.getJSONObject(i), feature);
+        }
+    }
+
+    @Test
+    public void testIdPolicy() throws Exception {
+        String out = getAsString(REQUEST + GeoJSONSeqGetFeatureResponse.MIME_TYPE
+                + "&format_options=" + JSONType.ID_POLICY + ":false");
+        for (String line : out.split("\n")) {
+            assertFalse(JSONObject.fromObject(line).containsKey("id"));
+        }
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        FeatureSource fs = getFeatureSource(MockData.PRIMITIVEGEOFEATURE);
+        int count = fs.getCount(Query.ALL);
+
+        final int[] flushes = new int[1];
+        ByteArrayOutputStream bos = new ByteArrayOutputStream() {
+            @Override
+            public void flush() throws IOException {
+                flushes[0]++;
+            }
+        };
+        GeoJSONSeqGetFeatureResponse format = new GeoJSONSeqGetFeatureResponse(getGeoServer());
+        format.write(Collections.singletonList((FeatureCollection) fs.getFeatures()), bos, 2);
+
+        // every two features, then at the end
+        assertEquals(count / 2 + 1, flushes[0]);
+        assertEquals(count, bos.toString().split("\n").length);
+    }
+}
@@ -0,0 +1,209 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.output.NullWriter;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class GeoJSONStreamingWriterTest {
+
+    static final Logger LOGGER = Logging.getLogger(GeoJSONStreamingWriterTest.class);
+
+    static final String[] GEOMETRIES = { "POINT(1 2)", "POINT(1.5 -2.25 3)",
+            "LINESTRING(0 0, 1.1 1, 2 0.0001)", "LINESTRING(0 0 1, 1 1 2)",
+            "MULTIPOINT((0 0), (1e-10 1e10))", "POLYGON((0 0, 0 1, 1 1, 0 0))",
+            "POLYGON((0 0, 0 10, 10 10, 0 0), (1 1, 1 2, 2 2, 1 1))",
+            "MULTILINESTRING((0 0, 1 1), (2 2, 3 3))",
+            "MULTIPOLYGON(((0 0, 0 1, 1 1, 0 0)), ((5 5, 5 6, 6 6, 5 5)))",
+            "GEOMETRYCOLLECTION(POINT(1 1), LINESTRING(0 0, -1 -1.123456789012345))" };
+
+    @Test
+    public void testGeometries() throws Exception {
+        WKTReader reader = new WKTReader();
+        for (CRS.AxisOrder order : new CRS.AxisOrder[] { CRS.AxisOrder.EAST_NORTH,
+                CRS.AxisOrder.NORTH_EAST }) {
+            for (String wkt : GEOMETRIES) {
+                Geometry g = reader.read(wkt);
+
+                StringWriter expected = new StringWriter();
+                GeoJSONBuilder builder = new GeoJSONBuilder(expected);
+                builder.setAxisOrder(order);
+                builder.object().key("geometry");
+                builder.writeGeom(g);
+                builder.writeBoundingBox(g.getEnvelopeInternal());
+                builder.endObject();
+
+                StringWriter actual = new StringWriter();
+                GeoJSONStreamingWriter writer = new GeoJSONStreamingWriter(actual);
+                writer.setAxisOrder(order);
+                writer.object().key("geometry");
+                writer.writeGeom(g);
+                writer.writeBoundingBox(g.getEnvelopeInternal());
+                writer.endObject();
+                writer.flush();
+
+                assertEquals(wkt, expected.toString(), actual.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        cal.clear();
+        cal.set(2011, 9, 25);
+        Object[] values = { null, "", "plain", "with \"quotes\" and \\", "</script>",
+                "tab\tnewline\n", "accents \u00e0\u00e8", "\u0085 and \u2028",
+                "function() {}", 0, -12, Long.MAX_VALUE, (short) 3, 0d, -0d, 1d, 1.5, 1e-7,
+                1.2e21, 123456.789, 1.5f, new BigDecimal("1.10"), true, false,
+                new java.sql.Date(cal.getTimeInMillis()), cal };
+
+        StringWriter expected = new StringWriter();
+        GeoJSONBuilder builder = new GeoJSONBuilder(expected);
+        builder.object();
+        builder.key("values").array();
+        for (Object value : values) {
+            builder.value(value);
+        }
+        builder.endArray();
+        builder.key("nested").array().array().endArray().object().endObject().endArray();
+        builder.key("last").value("x");
+        builder.endObject();
+
+        StringWriter actual = new StringWriter();
+        GeoJSONStreamingWriter writer = new GeoJSONStreamingWriter(actual);
+        writer.object();
+        writer.key("values").array();
+        for (Object value : values) {
+            writer.value(value);
+        }
+        writer.endArray();
+        writer.key("nested").array().array().endArray().object().endObject().endArray();
+        writer.key(GeoJSONStreamingWriter.token("last")).value("x");
+        writer.endObject();
+        writer.flush();
+
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testNumberOfDecimals() throws Exception {
+        Geometry g = new WKTReader().read(
+                "LINESTRING(1.123456 -1.987654, 0.00001 -0.00001, 10 2.5, 1e20 1)");
+        StringWriter actual = new StringWriter();
+        GeoJSONStreamingWriter writer = new GeoJSONStreamingWriter(actual);
+        writer.setNumberOfDecimals(3);
+        writer.writeGeom(g);
+        writer.flush();
+
+        assertEquals("{\"type\":\"LineString\",\"coordinates\":"
+                + "[[1.123,-1.988],[0,0],[10,2.5],[1.0E20,1]]}",
+                actual.toString());
+    }
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        // goes past the internal buffer a few times
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String big = sb.toString();
+
+        StringWriter expected = new StringWriter();
+        GeoJSONBuilder builder = new GeoJSONBuilder(expected);
+        StringWriter actual = new StringWriter();
+        GeoJSONStreamingWriter writer = new GeoJSONStreamingWriter(actual);
+        builder.array();
+        writer.array();
+        for (int i = 0; i < 1000; i++) {
+            builder.value(i * 1.5).value("v" + i);
+            writer.value(i * 1.5).value("v" + i);
+        }
+        builder.value(big).endArray();
+        writer.value(big).endArray();
+        writer.flush();
+
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    /**
+     * Compares the builder and streaming writer throughput, only runs if the
+     * <code>geojson.benchmark</code> system property is set to true
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("geojson.benchmark"));
+
+        GeometryFactory gf = new GeometryFactory();
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        for (int i = 0; i < 20000; i++) {
+            Coordinate[] ring = new Coordinate[33];
+            for (int j = 0; j < 32; j++) {
+                double angle = Math.PI * 2 * j / 32;
+                ring[j] = new Coordinate(i % 180 + Math.cos(angle), i % 90 + Math.sin(angle));
+            }
+            ring[32] = ring[0];
+            geometries.add(gf.createPolygon(gf.createLinearRing(ring), null));
+        }
+        Envelope bounds = new Envelope(-180, 180, -90, 90);
+
+        for (int run = 0; run < 4; run++) {
+            boolean streaming = run % 2 == 1;
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                Writer out = new NullWriter();
+                if (streaming) {
+                    GeoJSONStreamingWriter writer = new GeoJSONStreamingWriter(out);
+                    writer.array();
+                    for (int j = 0; j < geometries.size(); j++) {
+                        writer.object().key("id").value("feature." + j);
+                        writer.key("geometry").writeGeom(geometries.get(j));
+                        writer.key("value").value(j * 0.5).writeBoundingBox(bounds);
+                        writer.endObject();
+                    }
+                    writer.endArray().flush();
+                } else {
+                    GeoJSONBuilder builder = new GeoJSONBuilder(out);
+                    builder.array();
+                    for (int j = 0; j < geometries.size(); j++) {
+                        builder.object().key("id").value("feature." + j);
+                        builder.key("geometry");
+                        builder.writeGeom(geometries.get(j));
+                        builder.key("value").value(j * 0.5);
+                        builder.writeBoundingBox(bounds);
+                        builder.endObject();
+                    }
+                    builder.endArray();
+                }
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            LOGGER.log(Level.INFO, (streaming ? "Streaming writer: " : "Builder: ") + elapsed
+                    + "ms for 5 x " + geometries.size() + " features");
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.opengis.wfs.GetFeatureType;
+import net.opengis.wfs.WfsFactory;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.Operation;
+import org.geoserver.wfs.WFSGetFeatureOutputFormat;
+import org.geoserver.wfs.WFSTestSupport;
+import org.geoserver.wfs.json.GeoJSONGetFeatureResponse;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.util.logging.Logging;
+import org.junit.Assume;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKBReader;
+
+public class ArrowOutputFormatTest extends WFSTestSupport {
+
+    static final Logger LOGGER = Logging.getLogger(ArrowOutputFormatTest.class);
+
+    /**
+     * The columns and the record batches decoded from an Arrow stream
+     */
+    static class ArrowContents {
+        List<String> columns = new ArrayList<String>();
+
+        /** the type id of each column, and its bit width or precision if any */
+        List<int[]> types = new ArrayList<int[]>();
+
+        List<Long> batches = new ArrayList<Long>();
+
+        /** the decoded values, one list per column, across all the batches */
+        List<List<Object>> values = new ArrayList<List<Object>>();
+
+        long getRows() {
+            long rows = 0;
+            for (Long length : batches) {
+                rows += length;
+            }
+            return rows;
+        }
+
+        List<Object> getValues(String column) {
+            return values.get(columns.indexOf(column));
+        }
+    }
+
+    @Test
+    public void testFullRequest() throws Exception {
+        MockHttpServletResponse resp = getAsServletResponse("wfs?version=1.1.0&request=GetFeature"
+                + "&typeName=sf:PrimitiveGeoFeature&outputFormat=arrow");
+        assertEquals("application/vnd.apache.arrow.stream", resp.getContentType());
+        assertEquals("attachment; filename=PrimitiveGeoFeature.arrow",
+                resp.getHeader("Content-Disposition"));
+
+        FeatureSource fs = getFeatureSource(MockData.PRIMITIVEGEOFEATURE);
+        ArrowContents contents = read(getBinary(resp));
+        // the feature id, then the attributes
+        assertEquals(fs.getSchema().getDescriptors().size() + 1, contents.columns.size());
+        assertEquals("FID", contents.columns.get(0));
+        assertEquals(1, contents.batches.size());
+        assertEquals(fs.getCount(Query.ALL), contents.getRows());
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        MockHttpServletResponse resp = getAsServletResponse("wfs?version=1.1.0&request=GetFeature"
+                + "&typeName=sf:PrimitiveGeoFeature&outputFormat=arrow&format_options=batchSize:3");
+        ArrowContents contents = read(getBinary(resp));
+        assertTrue(contents.batches.size() > 1);
+
+        // the values read back match the source features, across batches
+        SimpleFeatureSource fs = (SimpleFeatureSource) getFeatureSource(MockData.PRIMITIVEGEOFEATURE);
+        WKBReader wkbReader = new WKBReader();
+        SimpleFeatureIterator it = fs.getFeatures().features();
+        try {
+            int row = 0;
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                assertEquals(f.getID(), contents.getValues("FID").get(row));
+                assertEquals(f.getAttribute("name"), contents.getValues("name").get(row));
+                assertEquals(f.getAttribute("intProperty"),
+                        contents.getValues("intProperty").get(row));
+                assertEquals(f.getAttribute("decimalProperty"),
+                        contents.getValues("decimalProperty").get(row));
+                assertEquals(f.getAttribute("booleanProperty"),
+                        contents.getValues("booleanProperty").get(row));
+                for (String name : new String[] { "dateTimeProperty", "dateProperty" }) {
+                    Date date = (Date) f.getAttribute(name);
+                    Object value = contents.getValues(name).get(row);
+                    if (date == null) {
+                        assertNull(value);
+                    } else {
+                        assertEquals(date.getTime(), value);
+                    }
+                }
+                for (String name : new String[] { "pointProperty", "surfaceProperty" }) {
+                    Geometry geometry = (Geometry) f.getAttribute(name);
+                    byte[] wkb = (byte[]) contents.getValues(name).get(row);
+                    if (geometry == null) {
+                        assertNull(wkb);
+                    } else {
+                        assertTrue(geometry.equalsExact(wkbReader.read(wkb)));
+                    }
+                }
+                row++;
+            }
+            assertEquals(contents.getRows(), row);
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        MockHttpServletResponse resp = getAsServletResponse("wfs?version=1.1.0&request=GetFeature"
+                + "&typeName=sf:PrimitiveGeoFeature&outputFormat=arrow&format_options=batchSize:2");
+
+        FeatureSource fs = getFeatureSource(MockData.PRIMITIVEGEOFEATURE);
+        int count = fs.getCount(Query.ALL);
+        ArrowContents contents = read(getBinary(resp));
+        assertEquals((count + 1) / 2, contents.batches.size());
+        for (int i = 0; i < contents.batches.size() - 1; i++) {
+            assertEquals(2, contents.batches.get(i).longValue());
+        }
+        assertEquals(count, contents.getRows());
+    }
+
+    @Test
+    public void testBatchSizeLimit() throws Exception {
+        ArrowOutputFormat format = new ArrowOutputFormat(getGeoServer());
+        GetFeatureType gft = WfsFactory.eINSTANCE.createGetFeatureType();
+        Operation op = new Operation("GetFeature", getServiceDescriptor10(), null,
+                new Object[] { gft });
+        Map options = new HashMap();
+        gft.setFormatOptions(options);
+
+        // the client can lower the batch size, but not raise it past the configured one
+        options.put("BATCHSIZE", "100");
+        assertEquals(100, format.getBatchSize(op));
+        options.put("BATCHSIZE", "200000000");
+        assertEquals(ArrowOutputFormat.DEFAULT_BATCH_SIZE, format.getBatchSize(op));
+        options.put("BATCHSIZE", "9999999999");
+        assertEquals(ArrowOutputFormat.DEFAULT_BATCH_SIZE, format.getBatchSize(op));
+    }
+
+    @Test
+    public void testBatchBytes() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // a batch is written out as soon as the variable length values reach 10 bytes
+        ArrowStreamWriter writer = new ArrowStreamWriter(bos, 100, 10);
+        writer.addColumn("label", ArrowStreamWriter.Type.STRING, null);
+        writer.addColumn("value", ArrowStreamWriter.Type.DOUBLE, null);
+        for (int i = 0; i < 10; i++) {
+            writer.appendString(0, "abcd");
+            if (i % 2 == 0) {
+                writer.appendDouble(1, i);
+            } else {
+                writer.appendNull(1);
+            }
+            writer.endRow();
+        }
+        writer.finish();
+
+        ArrowContents contents = read(bos.toByteArray());
+        assertEquals(2, contents.columns.size());
+        assertEquals(4, contents.batches.size());
+        assertEquals(10, contents.getRows());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("abcd", contents.getValues("label").get(i));
+            assertEquals(i % 2 == 0 ? Double.valueOf(i) : null, contents.getValues("value").get(i));
+        }
+    }
+
+    @Test
+    public void testColumnGrowth() throws Exception {
+        // the columns start small and grow to the batch size
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ArrowStreamWriter writer = new ArrowStreamWriter(bos, 5000, Long.MAX_VALUE);
+        writer.addColumn("id", ArrowStreamWriter.Type.INT, null);
+        writer.addColumn("flag", ArrowStreamWriter.Type.BOOLEAN, null);
+        writer.addColumn("data", ArrowStreamWriter.Type.BINARY, null);
+        assertEquals(ArrowStreamWriter.INITIAL_CAPACITY, writer.columns.get(0).capacity);
+        for (int i = 0; i < 12000; i++) {
+            writer.appendInt(0, i);
+            writer.appendBoolean(1, i % 3 == 0);
+            writer.appendBinary(2, new byte[] { (byte) i });
+            writer.endRow();
+        }
+        assertEquals(5000, writer.columns.get(0).capacity);
+        writer.finish();
+
+        ArrowContents contents = read(bos.toByteArray());
+        assertEquals(3, contents.batches.size());
+        for (int i = 0; i < 12000; i++) {
+            assertEquals(i, contents.getValues("id").get(i));
+            assertEquals(i % 3 == 0, contents.getValues("flag").get(i));
+            assertArrayEquals(new byte[] { (byte) i }, (byte[]) contents.getValues("data").get(i));
+        }
+    }
+
+    /**
+     * Compares the size and encoding time of the arrow, CSV and GeoJSON outputs, only runs if
+     * the <code>arrow.benchmark</code> system property is set to true
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("arrow.benchmark"));
+
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("benchmark");
+        tb.add("geom", Point.class);
+        tb.add("id", Integer.class);
+        tb.add("value", Double.class);
+        tb.add("name", String.class);
+        SimpleFeatureType type = tb.buildFeatureType();
+        GeometryFactory gf = new GeometryFactory();
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < 200000; i++) {
+            features.add(SimpleFeatureBuilder.build(type, new Object[] {
+                    gf.createPoint(new Coordinate(i % 360 - 180 + i * 1e-6, i % 180 - 90)),
+                    i % 100000, i * 0.37, "name" + (i % 1000) }, "benchmark." + i));
+        }
+        FeatureCollectionResponse fcr = FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE
+                .createFeatureCollectionType());
+        fcr.getFeature().add(new ListFeatureCollection(type, features));
+        Operation op = new Operation("GetFeature", getServiceDescriptor10(), null,
+                new Object[] { WfsFactory.eINSTANCE.createGetFeatureType() });
+
+        WFSGetFeatureOutputFormat[] formats = { new ArrowOutputFormat(getGeoServer()),
+                new CSVOutputFormat(getGeoServer()),
+                new GeoJSONGetFeatureResponse(getGeoServer(), "application/json") };
+        for (int run = 0; run < 3; run++) {
+            for (WFSGetFeatureOutputFormat format : formats) {
+                CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+                long start = System.nanoTime();
+                format.write(fcr, out, op);
+                long elapsed = (System.nanoTime() - start) / 1000000;
+                LOGGER.log(Level.INFO, format.getClass().getSimpleName() + ": "
+                        + out.getByteCount() + " bytes in " + elapsed + "ms for "
+                        + features.size() + " features");
+            }
+        }
+    }
+
+    /**
+     * Walks the messages of an Arrow stream, checking their framing and alignment, and decodes
+     * the column values
+     */
+    ArrowContents read(byte[] data) {
+        ArrowContents contents = new ArrowContents();
+        ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int pos = 0;
+        while (true) {
+            assertEquals(0xFFFFFFFF, bb.getInt(pos));
+            int length = bb.getInt(pos + 4);
+            pos += 8;
+            if (length == 0) {
+                break;
+            }
+            assertEquals(0, length % 8);
+
+            ByteBuffer meta = slice(bb, pos, length);
+            pos += length;
+
+            int message = meta.getInt(0);
+            // V5 metadata
+            assertEquals(4, meta.getShort(message + field(meta, message, 0)));
+            int headerType = meta.get(message + field(meta, message, 1));
+            int header = ref(meta, message, 2);
+            int bodyOffset = field(meta, message, 3);
+            long bodyLength = bodyOffset == 0 ? 0 : meta.getLong(message + bodyOffset);
+            assertEquals(0, bodyLength % 8);
+            if (headerType == ArrowStreamWriter.HEADER_SCHEMA) {
+                int fields = ref(meta, header, 1);
+                for (int i = 0; i < meta.getInt(fields); i++) {
+                    int f = fields + 4 + i * 4;
+                    f += meta.getInt(f);
+                    contents.columns.add(string(meta, ref(meta, f, 0)));
+                    int typeType = meta.get(f + field(meta, f, 2));
+                    int type = ref(meta, f, 3);
+                    int param = 0;
+                    if (typeType == ArrowStreamWriter.TYPE_INT) {
+                        param = meta.getInt(type + field(meta, type, 0));
+                    } else if (typeType == ArrowStreamWriter.TYPE_FLOATING_POINT) {
+                        param = meta.getShort(type + field(meta, type, 0));
+                    }
+                    contents.types.add(new int[] { typeType, param });
+                    contents.values.add(new ArrayList<Object>());
+                }
+            } else {
+                assertEquals(ArrowStreamWriter.HEADER_RECORD_BATCH, headerType);
+                long rows = meta.getLong(header + field(meta, header, 0));
+                contents.batches.add(rows);
+                readBatch(contents, meta, header, (int) rows, slice(bb, pos, (int) bodyLength));
+            }
+            pos += bodyLength;
+        }
+        assertEquals(data.length, pos);
+        assertTrue(contents.columns.size() > 0);
+        return contents;
+    }
+
+    void readBatch(ArrowContents contents, ByteBuffer meta, int header, int rows, ByteBuffer body) {
+        int nodes = ref(meta, header, 1);
+        int buffers = ref(meta, header, 2) + 4;
+        for (int c = 0; c < contents.columns.size(); c++) {
+            // FieldNode structs: length, null count
+            assertEquals(rows, meta.getLong(nodes + 4 + c * 16));
+            long nullCount = meta.getLong(nodes + 4 + c * 16 + 8);
+
+            int[] type = contents.types.get(c);
+            boolean variable = type[0] == ArrowStreamWriter.TYPE_UTF8
+                    || type[0] == ArrowStreamWriter.TYPE_BINARY;
+            // Buffer structs: offset, length
+            int validity = (int) meta.getLong(buffers);
+            boolean hasValidity = meta.getLong(buffers + 8) > 0;
+            buffers += 16;
+            int offsets = 0;
+            if (variable) {
+                offsets = (int) meta.getLong(buffers);
+                buffers += 16;
+            }
+            int values = (int) meta.getLong(buffers);
+            buffers += 16;
+            assertEquals(0, validity % 8);
+            assertEquals(0, values % 8);
+
+            List<Object> decoded = contents.values.get(c);
+            int nulls = 0;
+            for (int i = 0; i < rows; i++) {
+                if (hasValidity && !bit(body, validity, i)) {
+                    decoded.add(null);
+                    nulls++;
+                } else if (variable) {
+                    int start = body.getInt(offsets + i * 4);
+                    byte[] bytes = new byte[body.getInt(offsets + i * 4 + 4) - start];
+                    for (int j = 0; j < bytes.length; j++) {
+                        bytes[j] = body.get(values + start + j);
+                    }
+                    decoded.add(type[0] == ArrowStreamWriter.TYPE_UTF8 ? new String(bytes,
+                            ArrowStreamWriter.UTF8) : bytes);
+                } else if (type[0] == ArrowStreamWriter.TYPE_BOOL) {
+                    decoded.add(bit(body, values, i));
+                } else if (type[0] == ArrowStreamWriter.TYPE_INT && type[1] == 32) {
+                    decoded.add(body.getInt(values + i * 4));
+                } else if (type[0] == ArrowStreamWriter.TYPE_FLOATING_POINT && type[1] == 1) {
+                    decoded.add(body.getFloat(values + i * 4));
+                } else if (type[0] == ArrowStreamWriter.TYPE_FLOATING_POINT) {
+                    decoded.add(body.getDouble(values + i * 8));
+                } else {
+                    // 64 bits integers and timestamps
+                    decoded.add(body.getLong(values + i * 8));
+                }
+            }
+            assertEquals(nullCount, nulls);
+        }
+    }
+
+    static boolean bit(ByteBuffer body, int offset, int index) {
+        return (body.get(offset + (index >> 3)) & (1 << (index & 7))) != 0;
+    }
+
+    static ByteBuffer slice(ByteBuffer bb, int position, int length) {
+        ByteBuffer copy = bb.duplicate();
+        copy.position(position);
+        ByteBuffer slice = copy.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(length);
+        return slice;
+    }
+
+    /**
+     * The offset of a field from the start of its table, or 0 if not set
+     */
+    int field(ByteBuffer meta, int table, int field) {
+        int vtable = table - meta.getInt(table);
+        return 4 + field * 2 < meta.getShort(vtable) ? meta.getShort(vtable + 4 + field * 2) : 0;
+    }
+
+    int ref(ByteBuffer meta, int table, int field) {
+        int position = table + field(meta, table, field);
+        return position + meta.getInt(position);
+    }
+
+    String string(ByteBuffer meta, int position) {
+        byte[] bytes = new byte[meta.getInt(position)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = meta.get(position + 4 + i);
+        }
+        return new String(bytes, ArrowStreamWriter.UTF8);
+    }
+}
@@ -10,8 +10,11 @@ import static org.junit.Assert.assertEquals;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import net.opengis.wfs.GetFeatureType;
 import net.opengis.wfs.WfsFactory;
 import org.geoserver.data.test.MockData;
@@ -108,6 +111,51 @@ public class CSVOutputFormatTest extends WFSTestSupport {
         assertEquals(f2.getAttribute("label"), lines.get(2)[2]);
     }
     
+    @Test
+    public void testSameEscapingAsRegex() throws Exception {
+        String[] fields = new String[] { "", "plain", "a,b", "a \"quoted\" label", "\"",
+                "one\nnewline", "two\nnew\nlines", "new\nline, comma", "carriage\rreturn",
+                "comma, and\r\n", "\"quotes\"\rand return", "\u2028,", "\u00e0\u00e8, \u20ac",
+                "\ud83d\ude00\"" };
+        for (String field : fields) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            CSVWriter w = new CSVWriter(bos, Charset.forName("UTF-8"));
+            w.writeField(field);
+            w.flush();
+            assertEquals(field, regexCSVField(field), bos.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testSameNumbersAsFormatter() throws Exception {
+        NumberFormat formatter = NumberFormat.getInstance(Locale.US);
+        formatter.setMaximumFractionDigits(4);
+        formatter.setGroupingUsed(false);
+        CSVOutputFormat.ValueWriter values = new CSVOutputFormat.ValueWriter(formatter);
+
+        Number[] numbers = new Number[] { 0d, -0d, 1d, -1d, 12345678d, 1e14, -1e15, 1e20, 0.5,
+                1.23456789, Double.NaN, Double.POSITIVE_INFINITY, 3f, 0.1f, Long.MAX_VALUE,
+                Long.MIN_VALUE, Integer.MIN_VALUE, (short) -3, (byte) 7 };
+        for (Number number : numbers) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            CSVWriter w = new CSVWriter(bos, Charset.forName("UTF-8"));
+            values.write(number, CSVOutputFormat.ValueWriter.getKind(number.getClass()), w);
+            w.flush();
+            assertEquals(formatter.format(number), bos.toString("UTF-8"));
+        }
+    }
+
+    /**
+     * The escaping the output format used to do, the new one must match it
+     */
+    private String regexCSVField(String field) {
+        String mod = field.replaceAll("\"", "\"\"");
+        if (mod.matches(".*(\"|\n|,).*")) {
+            mod = "\"" + mod + "\"";
+        }
+        return mod;
+    }
+
     /**
      * Convenience to read the csv content and 
      * @param csvContent
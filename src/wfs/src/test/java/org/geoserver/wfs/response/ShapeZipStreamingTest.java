@@ -0,0 +1,48 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+
+import org.geoserver.data.test.SystemTestData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Runs the shapefile zip tests again with the streaming mode enabled
+ */
+public class ShapeZipStreamingTest extends ShapeZipTest {
+
+    @Before
+    public void enableStreaming() {
+        System.setProperty(ShapeZipOutputFormat.GS_SHAPEFILE_STREAMING, "true");
+    }
+
+    @After
+    public void disableStreaming() {
+        System.clearProperty(ShapeZipOutputFormat.GS_SHAPEFILE_STREAMING);
+        System.clearProperty(ShapeZipOutputFormat.GS_SHAPEFILE_SPILL_THRESHOLD);
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        // small enough for every part to be moved to a temporary file
+        System.setProperty(ShapeZipOutputFormat.GS_SHAPEFILE_SPILL_THRESHOLD, "16");
+
+        byte[] zip = writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures());
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+
+        zip = writeOut(getFeatureSource(ALL_TYPES).getFeatures());
+        checkShapefileIntegrity(new String[] { "AllTypesPoint", "AllTypesMPoint",
+                "AllTypesPolygon", "AllTypesLine" }, new ByteArrayInputStream(zip));
+        SimpleFeatureType schema = checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+        assertEquals("the_geom", schema.getGeometryDescriptor().getLocalName());
+    }
+}
@@ -63,7 +63,7 @@ import com.vividsolutions.jts.geom.MultiPolygon;
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class ShapeZipTest extends WFSTestSupport {
 
-    private static final QName ALL_TYPES = new QName(SystemTestData.CITE_URI, "AllTypes",
+    static final QName ALL_TYPES = new QName(SystemTestData.CITE_URI, "AllTypes",
             SystemTestData.CITE_PREFIX);
 
     private static final QName ALL_DOTS = new QName(SystemTestData.CITE_URI, "All.Types.Dots",
@@ -504,7 +504,7 @@ public class ShapeZipTest extends WFSTestSupport {
             outStream.write(buf, 0, count);
     }
 
-    private SimpleFeatureType checkFieldsAreNotEmpty(InputStream in) throws IOException {
+    SimpleFeatureType checkFieldsAreNotEmpty(InputStream in) throws IOException {
         ZipInputStream zis = new ZipInputStream(in);
         ZipEntry entry = null;
 
@@ -580,7 +580,7 @@ public class ShapeZipTest extends WFSTestSupport {
         geoServer.save(wfsInfo);
     }
 
-    private void checkShapefileIntegrity(String[] typeNames, final InputStream in)
+    void checkShapefileIntegrity(String[] typeNames, final InputStream in)
             throws IOException {
         ZipInputStream zis = new ZipInputStream(in);
         ZipEntry entry = null;
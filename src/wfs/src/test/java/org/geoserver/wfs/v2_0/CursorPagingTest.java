@@ -0,0 +1,219 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.v2_0;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogBuilder;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.data.test.SystemTestData;
+import org.geoserver.wfs.GetFeature;
+import org.geotools.data.DataStore;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.FilterFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+public class CursorPagingTest extends WFS20TestSupport {
+
+    static final int FEATURES = 23;
+
+    @Override
+    protected void setUpInternal(SystemTestData data) throws Exception {
+        // cursor paging matters for stores that can do native paging, use h2
+        Catalog cat = getCatalog();
+        DataStoreInfo ds = cat.getFactory().createDataStore();
+        ds.setName("cursor");
+        ds.setWorkspace(cat.getDefaultWorkspace());
+
+        Map params = ds.getConnectionParameters();
+        params.put("dbtype", "h2");
+        params.put("database", getTestData().getDataDirectoryRoot().getAbsolutePath()
+                + "/cursor");
+        cat.add(ds);
+
+        DataStore store = (DataStore) ds.getDataStore(null);
+        CatalogBuilder cb = new CatalogBuilder(cat);
+        cb.setStore(ds);
+        for (String name : new String[] { "Ordered", "OrderedEdit" }) {
+            SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+            tb.setName(name);
+            tb.setCRS(DefaultGeographicCRS.WGS84);
+            tb.add("geom", Point.class);
+            tb.nillable(false).add("seq", Integer.class);
+            tb.nillable(false).add("grp", Integer.class);
+            tb.nillable(true).add("label", String.class);
+            SimpleFeatureType schema = tb.buildFeatureType();
+            store.createSchema(schema);
+
+            SimpleFeatureStore fs = (SimpleFeatureStore) store.getFeatureSource(name);
+            schema = fs.getSchema();
+            SimpleFeatureBuilder fb = new SimpleFeatureBuilder(schema);
+            GeometryFactory gf = new GeometryFactory();
+            DefaultFeatureCollection features = new DefaultFeatureCollection(null, null);
+            // insert in a scrambled order, so that the sort actually matters
+            for (int i = 0; i < FEATURES; i++) {
+                int seq = (i * 7) % FEATURES;
+                fb.add(gf.createPoint(new Coordinate(seq, seq)));
+                fb.add(seq);
+                fb.add(seq / 4);
+                fb.add(seq % 2 == 0 ? "label" + seq : null);
+                features.add(fb.buildFeature(null));
+            }
+            fs.addFeatures(features);
+
+            FeatureTypeInfo ft = cb.buildFeatureType(fs);
+            cat.add(ft);
+        }
+    }
+
+    @Before
+    public void enableCursorPaging() {
+        System.setProperty(GetFeature.CURSOR_PAGING_KEY, "true");
+    }
+
+    @After
+    public void disableCursorPaging() {
+        System.clearProperty(GetFeature.CURSOR_PAGING_KEY);
+    }
+
+    String getRequest(String typeName, String sortBy, int count) {
+        return "wfs?request=GetFeature&version=2.0.0&service=wfs&typenames=gs:" + typeName
+                + "&sortBy=" + sortBy + "&count=" + count + "&startIndex=0";
+    }
+
+    /**
+     * Follows the next links, checking they carry a cursor, and returns the sequence numbers
+     * found in all pages
+     */
+    List<Integer> walk(String request, boolean cursorExpected) throws Exception {
+        List<Integer> result = new ArrayList<Integer>();
+        while (request != null) {
+            Document doc = getAsDOM(request);
+            NodeList values = doc.getElementsByTagName("gs:seq");
+            for (int i = 0; i < values.getLength(); i++) {
+                result.add(Integer.valueOf(values.item(i).getTextContent()));
+            }
+
+            String previous = doc.getDocumentElement().getAttribute("previous");
+            assertFalse(previous, previous.contains("cursor="));
+            if (doc.getDocumentElement().hasAttribute("next")) {
+                String next = doc.getDocumentElement().getAttribute("next");
+                assertEquals(next, cursorExpected, next.contains("cursor="));
+                request = next.substring(next.indexOf("wfs"));
+            } else {
+                request = null;
+            }
+        }
+        return result;
+    }
+
+    List<Integer> range(int from, int to) {
+        List<Integer> result = new ArrayList<Integer>();
+        if (from <= to) {
+            for (int i = from; i <= to; i++) {
+                result.add(i);
+            }
+        } else {
+            for (int i = from; i >= to; i--) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testAscending() throws Exception {
+        assertEquals(range(0, FEATURES - 1), walk(getRequest("Ordered", "seq", 5), true));
+    }
+
+    @Test
+    public void testDescendingMultipleKeys() throws Exception {
+        assertEquals(range(FEATURES - 1, 0),
+                walk(getRequest("Ordered", "grp%20DESC,seq%20DESC", 4), true));
+    }
+
+    @Test
+    public void testTies() throws Exception {
+        // groups of 4 features spread over pages of 3, nothing is lost or duplicated
+        List<Integer> values = walk(getRequest("Ordered", "grp", 3), true);
+        assertEquals(FEATURES, values.size());
+        int lastGroup = -1;
+        for (Integer value : values) {
+            assertTrue(value / 4 >= lastGroup);
+            lastGroup = value / 4;
+        }
+        List<Integer> sorted = new ArrayList<Integer>(values);
+        Collections.sort(sorted);
+        assertEquals(range(0, FEATURES - 1), sorted);
+    }
+
+    @Test
+    public void testFallbacks() throws Exception {
+        // nillable attributes cannot be used for cursors
+        assertEquals(FEATURES, walk(getRequest("Ordered", "label,seq", 5), false).size());
+
+        // neither unsorted requests
+        walk("wfs?request=GetFeature&version=2.0.0&service=wfs&typenames=gs:Ordered"
+                + "&count=5&startIndex=0", false);
+
+        // an invalid cursor makes the server fall back on the start index
+        Document doc = getAsDOM(getRequest("Ordered", "seq", 5).replace("startIndex=0",
+                "startIndex=5") + "&cursor=abcd");
+        NodeList values = doc.getElementsByTagName("gs:seq");
+        assertEquals(5, values.getLength());
+        assertEquals("5", values.item(0).getTextContent());
+
+        // and the cursor is not used when disabled
+        disableCursorPaging();
+        assertEquals(range(0, FEATURES - 1), walk(getRequest("Ordered", "seq", 5), false));
+    }
+
+    @Test
+    public void testStableAcrossDeletes() throws Exception {
+        Document doc = getAsDOM(getRequest("OrderedEdit", "seq", 5));
+        String next = doc.getDocumentElement().getAttribute("next");
+        assertTrue(next.contains("cursor="));
+
+        // remove a feature from the first page, the next page still starts where the first one
+        // ended (an offset would skip a feature instead)
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName("gs:OrderedEdit");
+        SimpleFeatureStore store = (SimpleFeatureStore) info.getFeatureSource(null, null);
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+        store.removeFeatures(ff.equals(ff.property("seq"), ff.literal(0)));
+
+        doc = getAsDOM(next.substring(next.indexOf("wfs")));
+        NodeList values = doc.getElementsByTagName("gs:seq");
+        List<Integer> seqs = new ArrayList<Integer>();
+        for (int i = 0; i < values.getLength(); i++) {
+            seqs.add(Integer.valueOf(values.item(i).getTextContent()));
+        }
+        assertEquals(Arrays.asList(5, 6, 7, 8, 9), seqs);
+    }
+}
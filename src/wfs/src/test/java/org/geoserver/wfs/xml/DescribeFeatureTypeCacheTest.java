@@ -0,0 +1,129 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathEvaluatesTo;
+import static org.junit.Assert.assertEquals;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.event.impl.CatalogAddEventImpl;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.WFSInfo;
+import org.geoserver.wfs.WFSTestSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class DescribeFeatureTypeCacheTest extends WFSTestSupport {
+
+    DescribeFeatureTypeCache cache;
+
+    @Before
+    public void enableCache() {
+        cache = GeoServerExtensions.bean(DescribeFeatureTypeCache.class);
+        cache.timeToLive = 60000;
+        cache.clear();
+        cache.hits.set(0);
+        cache.misses.set(0);
+    }
+
+    @After
+    public void disableCache() {
+        cache.timeToLive = 0;
+        cache.clear();
+    }
+
+    String describe(String typeNames, String version) {
+        return "wfs?request=DescribeFeatureType&service=wfs&version=" + version + "&typeName="
+                + typeNames;
+    }
+
+    @Test
+    public void testHits() throws Exception {
+        String request = describe(getLayerId(MockData.FIFTEEN), "1.1.0");
+        Document dom = getAsDOM(request);
+        assertXpathEvaluatesTo("Fifteen", "//xsd:element/@name", dom);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        dom = getAsDOM(request);
+        assertXpathEvaluatesTo("Fifteen", "//xsd:element/@name", dom);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.entries.size());
+
+        // the order of the types does not matter, the version and the types do
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN) + "," + getLayerId(MockData.SEVEN),
+                "1.1.0"));
+        getAsDOM(describe(getLayerId(MockData.SEVEN) + "," + getLayerId(MockData.FIFTEEN),
+                "1.1.0"));
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN), "2.0.0"));
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.entries.size());
+    }
+
+    @Test
+    public void testFeatureTypeInvalidation() throws Exception {
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN), "1.1.0"));
+        getAsDOM(describe(getLayerId(MockData.SEVEN), "1.1.0"));
+        assertEquals(2, cache.entries.size());
+
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(getLayerId(MockData.FIFTEEN));
+        getCatalog().save(info);
+        assertEquals(1, cache.entries.size());
+
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN), "1.1.0"));
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testNamespaceInvalidation() throws Exception {
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN), "1.1.0"));
+        assertEquals(1, cache.entries.size());
+
+        NamespaceInfo ns = getCatalog().getNamespaceByPrefix(MockData.CDF_PREFIX);
+        getCatalog().save(ns);
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testAddInvalidation() throws Exception {
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN), "1.1.0"));
+        getAsDOM("wfs?request=DescribeFeatureType&service=wfs&version=1.1.0");
+        assertEquals(2, cache.entries.size());
+
+        // a new type only affects the responses describing all of them
+        CatalogAddEventImpl event = new CatalogAddEventImpl();
+        event.setSource(getCatalog().getFeatureTypeByName(getLayerId(MockData.SEVEN)));
+        cache.handleAddEvent(event);
+        assertEquals(1, cache.entries.size());
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN), "1.1.0"));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testConfigurationInvalidation() throws Exception {
+        getAsDOM(describe(getLayerId(MockData.FIFTEEN), "1.1.0"));
+        assertEquals(1, cache.entries.size());
+
+        WFSInfo wfs = getGeoServer().getService(WFSInfo.class);
+        getGeoServer().save(wfs);
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        cache.timeToLive = 0;
+        String request = describe(getLayerId(MockData.FIFTEEN), "1.1.0");
+        getAsDOM(request);
+        getAsDOM(request);
+        assertEquals(0, cache.entries.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+}
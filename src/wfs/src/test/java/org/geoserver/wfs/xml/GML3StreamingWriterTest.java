@@ -0,0 +1,259 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import net.opengis.wfs.GetFeatureType;
+import net.opengis.wfs.QueryType;
+import net.opengis.wfs.WfsFactory;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.Operation;
+import org.geoserver.wfs.WFSTestSupport;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.gml2.SrsSyntax;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class GML3StreamingWriterTest extends WFSTestSupport {
+
+    @After
+    public void resetStreaming() {
+        setStreamingEncoding(false);
+    }
+
+    void setStreamingEncoding(boolean streaming) {
+        for (String id : new String[] { "gml3OutputFormat", "gml32OutputFormat" }) {
+            ((GML3OutputFormat) applicationContext.getBean(id)).setStreamingEncoding(streaming);
+        }
+    }
+
+    @Test
+    public void testEquivalenceGML31() throws Exception {
+        for (QName type : new QName[] { MockData.BASIC_POLYGONS, MockData.BRIDGES,
+                MockData.BUILDINGS, MockData.LAKES, MockData.NAMED_PLACES,
+                MockData.ROAD_SEGMENTS, MockData.STREAMS, MockData.SEVEN, MockData.FIFTEEN }) {
+            assertEquivalent("wfs?request=GetFeature&version=1.1.0&service=wfs&typename="
+                    + getLayerId(type));
+        }
+        // multiple queries, reprojection
+        assertEquivalent("wfs?request=GetFeature&version=1.1.0&service=wfs&typename="
+                + getLayerId(MockData.LAKES) + "," + getLayerId(MockData.BRIDGES));
+        assertEquivalent("wfs?request=GetFeature&version=1.1.0&service=wfs&typename="
+                + getLayerId(MockData.BASIC_POLYGONS) + "&srsName=EPSG:3857");
+        // types the writer cannot handle are still encoded
+        assertEquivalent("wfs?request=GetFeature&version=1.1.0&service=wfs&typename="
+                + getLayerId(MockData.PRIMITIVEGEOFEATURE));
+    }
+
+    @Test
+    public void testEquivalenceGML32() throws Exception {
+        for (QName type : new QName[] { MockData.BASIC_POLYGONS, MockData.BRIDGES,
+                MockData.LAKES, MockData.ROAD_SEGMENTS, MockData.STREAMS, MockData.FIFTEEN }) {
+            assertEquivalent("wfs?request=GetFeature&version=2.0.0&service=wfs&typenames="
+                    + getLayerId(type));
+        }
+        assertEquivalent("wfs?request=GetFeature&version=2.0.0&service=wfs&typenames="
+                + getLayerId(MockData.FIFTEEN) + "&count=5&startIndex=3");
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType(MockData.CITE_URI, "Escaping",
+                "label:String,value:Double");
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        features.add(SimpleFeatureBuilder.build(type, new Object[] { "a<b & \"c\"",
+                Double.POSITIVE_INFINITY }, "Escaping.1"));
+        FeatureCollectionResponse response = FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE
+                .createFeatureCollectionType());
+        response.getFeature().add(new ListFeatureCollection(type, features));
+
+        GML3StreamingWriter writer = new GML3StreamingWriter(GML3StreamingWriter.Version.GML31,
+                getCatalog(), SrsSyntax.OGC_URN);
+        assertTrue(writer.canEncode(response));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.write(response, Collections.<String, String> emptyMap(),
+                Charset.forName("ISO-8859-1"), bos);
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document dom = factory.newDocumentBuilder().parse(
+                new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals("a<b & \"c\"", getFirstElementByTagName(dom, "cite:label").getTextContent());
+        assertEquals("INF", getFirstElementByTagName(dom, "cite:value").getTextContent());
+        assertEquals("Escaping.1", getFirstElementByTagName(dom, "cite:Escaping")
+                .getAttributeNS(org.geotools.gml3.GML.NAMESPACE, "id"));
+
+        // types with attributes the writer does not know about are refused
+        type = DataUtilities.createType(MockData.CITE_URI, "Dates", "date:java.util.Date");
+        response.getFeature().clear();
+        response.getFeature().add(
+                new ListFeatureCollection(type, new ArrayList<SimpleFeature>()));
+        assertFalse(writer.canEncode(response));
+    }
+
+    /**
+     * Compares the encoder and streaming writer throughput, only runs if the
+     * <code>gml.benchmark</code> system property is set to true
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("gml.benchmark"));
+
+        SimpleFeatureType type = (SimpleFeatureType) getFeatureSource(MockData.BASIC_POLYGONS)
+                .getSchema();
+        GeometryFactory gf = new GeometryFactory();
+        SimpleFeatureBuilder fb = new SimpleFeatureBuilder(type);
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < 20000; i++) {
+            Coordinate[] ring = new Coordinate[33];
+            for (int j = 0; j < 32; j++) {
+                double angle = Math.PI * 2 * j / 32;
+                ring[j] = new Coordinate(i % 180 + Math.cos(angle), i % 90 + Math.sin(angle));
+            }
+            ring[32] = ring[0];
+            Polygon polygon = gf.createPolygon(gf.createLinearRing(ring), null);
+            MultiPolygon mp = gf.createMultiPolygon(new Polygon[] { polygon });
+            mp.setUserData(DefaultGeographicCRS.WGS84);
+            fb.set("the_geom", mp);
+            fb.set("ID", "polygon." + i);
+            features.add(fb.buildFeature("BasicPolygons." + i));
+        }
+
+        GetFeatureType request = WfsFactory.eINSTANCE.createGetFeatureType();
+        request.setBaseUrl("http://localhost:8080/geoserver");
+        QueryType query = WfsFactory.eINSTANCE.createQueryType();
+        query.setTypeName(Collections.singletonList(MockData.BASIC_POLYGONS));
+        request.getQuery().add(query);
+        Operation operation = new Operation("GetFeature", getServiceDescriptor11(), null,
+                new Object[] { request });
+
+        GML3OutputFormat format = (GML3OutputFormat) applicationContext
+                .getBean("gml3OutputFormat");
+        for (boolean streaming : new boolean[] { false, true, false, true }) {
+            format.setStreamingEncoding(streaming);
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                FeatureCollectionResponse response = FeatureCollectionResponse
+                        .adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
+                response.getFeature().add(new ListFeatureCollection(type, features));
+                format.write(response, new NullOutputStream(), operation);
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            LOGGER.log(Level.INFO, (streaming ? "Streaming writer: " : "Encoder: ") + elapsed
+                    + "ms for 5 x " + features.size() + " features");
+        }
+    }
+
+    void assertEquivalent(String request) throws Exception {
+        setStreamingEncoding(false);
+        Document expected = getAsDOM(request);
+        setStreamingEncoding(true);
+        Document actual = getAsDOM(request);
+        assertEquivalent(request, expected.getDocumentElement(), actual.getDocumentElement());
+    }
+
+    /**
+     * Compares two documents ignoring namespace declarations, the time stamp, the schema location
+     * ordering and the number formatting
+     */
+    void assertEquivalent(String path, Element expected, Element actual) {
+        path = path + "/" + expected.getNodeName();
+        assertEquals(path, expected.getNamespaceURI(), actual.getNamespaceURI());
+        assertEquals(path, expected.getLocalName(), actual.getLocalName());
+        assertEquals(path, attributes(expected), attributes(actual));
+
+        List<Element> expectedChildren = children(expected);
+        List<Element> actualChildren = children(actual);
+        assertEquals(path, expectedChildren.size(), actualChildren.size());
+        if (expectedChildren.isEmpty()) {
+            String[] expectedTokens = expected.getTextContent().trim().split("\\s+");
+            String[] actualTokens = actual.getTextContent().trim().split("\\s+");
+            assertEquals(path, expectedTokens.length, actualTokens.length);
+            for (int i = 0; i < expectedTokens.length; i++) {
+                try {
+                    assertEquals(path, Double.parseDouble(expectedTokens[i]),
+                            Double.parseDouble(actualTokens[i]), 0d);
+                } catch (NumberFormatException e) {
+                    assertEquals(path, expected.getTextContent(), actual.getTextContent());
+                }
+            }
+        }
+        for (int i = 0; i < expectedChildren.size(); i++) {
+            assertEquivalent(path, expectedChildren.get(i), actualChildren.get(i));
+        }
+    }
+
+    Map<String, String> attributes(Element element) {
+        Map<String, String> result = new HashMap<String, String>();
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())
+                    || "timeStamp".equals(attribute.getLocalName())) {
+                continue;
+            }
+            String value = attribute.getValue();
+            if ("schemaLocation".equals(attribute.getLocalName())) {
+                // namespace/location pairs, in no particular order
+                Map<String, String> locations = new TreeMap<String, String>();
+                String[] tokens = value.trim().split("\\s+");
+                for (int j = 0; j + 1 < tokens.length; j += 2) {
+                    locations.put(tokens[j], tokens[j + 1]);
+                }
+                value = locations.toString();
+            }
+            result.put("{" + attribute.getNamespaceURI() + "}" + attribute.getLocalName(), value);
+        }
+        return result;
+    }
+
+    List<Element> children(Element element) {
+        List<Element> result = new ArrayList<Element>();
+        for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) {
+                result.add((Element) n);
+            }
+        }
+        return result;
+    }
+}
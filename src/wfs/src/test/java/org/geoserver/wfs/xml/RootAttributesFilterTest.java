@@ -0,0 +1,73 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.geoserver.wfs.xml.GML3OutputFormat.RootAttributesFilter;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+public class RootAttributesFilterTest {
+
+    @Test
+    public void testOverrides() throws Exception {
+        String xml = "<wfs:FeatureCollection xmlns:wfs='http://www.opengis.net/wfs/2.0' "
+                + "numberMatched='0' numberReturned='0' timeStamp='2015-01-01T00:00:00Z'>"
+                + "<wfs:member numberReturned='0'/></wfs:FeatureCollection>";
+
+        Map<String, String> overrides = new LinkedHashMap<String, String>();
+        overrides.put("numberMatched", "unknown");
+        overrides.put("numberReturned", "10");
+        overrides.put("lockId", "abc");
+        Element root = filter(xml, overrides).getDocumentElement();
+
+        assertEquals("unknown", root.getAttribute("numberMatched"));
+        assertEquals("10", root.getAttribute("numberReturned"));
+        assertEquals("abc", root.getAttribute("lockId"));
+        assertEquals("2015-01-01T00:00:00Z", root.getAttribute("timeStamp"));
+        // only the root is touched
+        Element member = (Element) root.getFirstChild();
+        assertEquals("0", member.getAttribute("numberReturned"));
+        assertEquals("http://www.opengis.net/wfs/2.0", member.getNamespaceURI());
+    }
+
+    Document filter(String xml, Map<String, String> overrides) throws Exception {
+        StringWriter writer = new StringWriter();
+        TransformerHandler serializer = ((SAXTransformerFactory) TransformerFactory
+                .newInstance()).newTransformerHandler();
+        serializer.setResult(new StreamResult(writer));
+
+        RootAttributesFilter filter = new RootAttributesFilter(overrides);
+        filter.setContentHandler(serializer);
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        XMLReader reader = spf.newSAXParser().getXMLReader();
+        reader.setContentHandler(filter);
+        reader.parse(new InputSource(new StringReader(xml)));
+
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder().parse(
+                new ByteArrayInputStream(writer.toString().getBytes("UTF-8")));
+    }
+}
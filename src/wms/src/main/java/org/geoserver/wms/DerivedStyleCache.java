@@ -0,0 +1,151 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.geotools.renderer.lite.MetaBufferEstimator;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the information derived from a style by the visitors run during GetMap and
+ * GetFeatureInfo (preprocessed copies, symbolizer analysis, buffer estimates), so that they are
+ * computed once per style instead of once per request.
+ * <p>
+ * Entries are keyed by style identity: the catalog hands out the same {@link Style} instance
+ * until the style is modified, at which point a new one is parsed and the derived information
+ * of the old one becomes garbage along with it. The styles are referenced weakly, the cache
+ * never keeps a style alive on its own.
+ * <p>
+ * The styles, and the artifacts derived from them, are shared among requests and must not be
+ * modified.
+ */
+public class DerivedStyleCache {
+
+    static final DerivedStyleCache INSTANCE = new DerivedStyleCache();
+
+    static final Object RULE_BUFFERS = new Object();
+
+    /**
+     * The shared cache instance
+     *
+     * @return
+     */
+    public static DerivedStyleCache getInstance() {
+        return INSTANCE;
+    }
+
+    final Cache<Style, ConcurrentHashMap<Object, Object>> cache = CacheBuilder.newBuilder()
+            .weakKeys().build();
+
+    /**
+     * Returns the artifact identified by <code>key</code> for the given style, computing it with
+     * the loader if not available yet
+     *
+     * @param style the style the artifact is derived from
+     * @param key the artifact key, must implement equals/hashCode if not a singleton
+     * @param loader computes the artifact, it's not supposed to modify the style
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Style style, Object key, Callable<T> loader) {
+        ConcurrentHashMap<Object, Object> artifacts = getArtifacts(style);
+        Object artifact = artifacts.get(key);
+        if (artifact == null) {
+            try {
+                artifact = loader.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to compute " + key + " for style "
+                        + style.getName(), e);
+            }
+            if (artifact != null) {
+                Object existing = artifacts.putIfAbsent(key, artifact);
+                if (existing != null) {
+                    artifact = existing;
+                }
+            }
+        }
+        return (T) artifact;
+    }
+
+    private ConcurrentHashMap<Object, Object> getArtifacts(Style style) {
+        try {
+            return cache.get(style, new Callable<ConcurrentHashMap<Object, Object>>() {
+
+                @Override
+                public ConcurrentHashMap<Object, Object> call() throws Exception {
+                    return new ConcurrentHashMap<Object, Object>();
+                }
+            });
+        } catch (ExecutionException e) {
+            // cannot happen, the loader above does not throw exceptions
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the buffer estimate of the given rules, which are supposed to be part of the
+     * style. The estimate of each rule of the style is computed once, rules that are not part of
+     * the style (e.g., rescaled copies) are estimated on the fly.
+     *
+     * @param style
+     * @param rules
+     * @return
+     * @see MetaBufferEstimator#getBuffer()
+     */
+    public int getBuffer(final Style style, List<Rule> rules) {
+        Map<Rule, Integer> buffers = get(style, RULE_BUFFERS,
+                new Callable<Map<Rule, Integer>>() {
+
+                    @Override
+                    public Map<Rule, Integer> call() throws Exception {
+                        Map<Rule, Integer> result = new IdentityHashMap<Rule, Integer>();
+                        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+                            for (Rule rule : fts.rules()) {
+                                result.put(rule, estimateBuffer(rule));
+                            }
+                        }
+                        return result;
+                    }
+                });
+
+        int buffer = 0;
+        for (Rule rule : rules) {
+            Integer ruleBuffer = buffers.get(rule);
+            if (ruleBuffer == null) {
+                ruleBuffer = estimateBuffer(rule);
+            }
+            buffer = Math.max(buffer, ruleBuffer);
+        }
+        return buffer;
+    }
+
+    static int estimateBuffer(Rule rule) {
+        MetaBufferEstimator estimator = new MetaBufferEstimator();
+        estimator.visit(rule);
+        return estimator.getBuffer();
+    }
+
+    /**
+     * Drops all the cached artifacts
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+}
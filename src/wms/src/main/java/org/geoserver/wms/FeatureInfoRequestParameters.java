@@ -6,6 +6,7 @@
 package org.geoserver.wms;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -69,6 +70,8 @@ public class FeatureInfoRequestParameters {
 
     int maxFeatures;
 
+    Map<Object, Object> identifierCache = new HashMap<Object, Object>();
+
     public FeatureInfoRequestParameters(GetFeatureInfoRequest request) {
         // use the layer of the QUERY_LAYERS parameter, not the LAYERS one
         this.layers = request.getQueryLayers();
@@ -295,5 +298,15 @@ public class FeatureInfoRequestParameters {
         return getMapReq;
     }
 
+    /**
+     * A cache living as long as the request, that identifiers can use to share work among the
+     * query layers
+     * 
+     * @return
+     */
+    public Map<Object, Object> getIdentifierCache() {
+        return identifierCache;
+    }
+
 
 }
@@ -5,10 +5,21 @@
  */
 package org.geoserver.wms;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
 import org.geoserver.ows.Response;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.legendgraphic.BufferedImageLegendGraphic;
-import org.geotools.filter.function.EnvFunction;
+import org.geoserver.wms.legendgraphic.CachedLegendGraphic;
+import org.geoserver.wms.legendgraphic.LegendGraphicCache;
 
 /**
  * WMS GetLegendGraphic operation default implementation.
@@ -19,10 +30,20 @@ public class GetLegendGraphic {
 
     private final WMS wms;
 
+    private LegendGraphicCache legendCache;
+
     public GetLegendGraphic(final WMS wms) {
         this.wms = wms;
     }
 
+    /**
+     * Sets the cache used to store the encoded legends, if not set legends are produced on each
+     * request
+     */
+    public void setLegendCache(LegendGraphicCache legendCache) {
+        this.legendCache = legendCache;
+    }
+
     /**
      * Produces a representation of the map's legend graphic given by the {@code request} by means
      * of a {@link GetLegendGraphicOutputFormat}.
@@ -46,8 +67,71 @@ public class GetLegendGraphic {
             throw new ServiceException("There is no support for creating legends in "
                     + outputFormat + " format", "InvalidFormat");
         }
+        final String cacheKey = legendCache != null ? legendCache.getKey(request) : null;
+        if (cacheKey != null) {
+            CachedLegendGraphic cached = legendCache.get(cacheKey);
+            if (cached != null) {
+                checkNotModified(cached);
+                return cached;
+            }
+        }
+
         Object legend = format.produceLegendGraphic(request);
+
+        if (cacheKey != null && request.isCacheable()) {
+            try {
+                CachedLegendGraphic encoded = encode(legend);
+                if (encoded != null) {
+                    legendCache.put(cacheKey, encoded);
+                    checkNotModified(encoded);
+                    return encoded;
+                }
+            } catch (IOException e) {
+                throw new ServiceException("Failed to encode the legend graphic", e);
+            }
+        }
         return legend;
     }
 
+    /**
+     * Throws a 304 if the client already has the same legend, before anything gets dispatched
+     * to the response
+     */
+    private void checkNotModified(CachedLegendGraphic legend) {
+        Request request = Dispatcher.REQUEST.get();
+        if (request == null || request.getHttpRequest() == null) {
+            return;
+        }
+        String ifNoneMatch = request.getHttpRequest().getHeader("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(legend.getETag())) {
+            // a 304 has to carry the validator, the dispatcher won't write the response headers
+            if (request.getHttpResponse() != null) {
+                request.getHttpResponse().setHeader("ETag", legend.getETag());
+            }
+            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+    }
+
+    /**
+     * Encodes the legend with the same {@link Response} the dispatcher would use, returns null if
+     * none can be found
+     */
+    private CachedLegendGraphic encode(Object legend) throws IOException {
+        Request dispatched = Dispatcher.REQUEST.get();
+        if (dispatched == null || dispatched.getOperation() == null) {
+            return null;
+        }
+        Operation operation = dispatched.getOperation();
+        for (Response response : GeoServerExtensions.extensions(Response.class)) {
+            if (response.getBinding().isAssignableFrom(legend.getClass())
+                    && response.canHandle(operation)) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                response.write(legend, bos, operation);
+                return new CachedLegendGraphic(bos.toByteArray(), response.getMimeType(legend,
+                        operation));
+            }
+        }
+        return null;
+    }
+
 }
@@ -151,6 +151,8 @@ public class GetLegendGraphicRequest extends WMSRequest {
      */
     private Locale locale;
 
+    private boolean cacheable = true;
+
     /**
      * Creates a new GetLegendGraphicRequest object.
      * 
@@ -383,4 +385,19 @@ public class GetLegendGraphicRequest extends WMSRequest {
     public Locale getLocale() {
         return this.locale;
     }
+
+    /**
+     * Returns false if the legend output should not be cached (e.g., because it depends on the
+     * data, and not only on the style)
+     */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    /**
+     * Allows legend producers building dynamic output to opt out of the legend cache
+     */
+    public void setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+    }
 }
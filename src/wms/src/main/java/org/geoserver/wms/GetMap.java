@@ -45,7 +45,6 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
 import org.geotools.map.WMSLayer;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.geotools.renderer.lite.MetaBufferEstimator;
 import org.geotools.styling.FeatureTypeConstraint;
 import org.geotools.styling.FeatureTypeStyle;
 import org.geotools.styling.Rule;
@@ -194,15 +193,6 @@ public class GetMap {
             throw new ServiceException("Format " + request.getFormat()
                     + " does not support tiled requests");
         }
-        // enable on the fly meta tiling if request looks like a tiled one
-        if (MetatileMapOutputFormat.isRequestTiled(request, delegate)) {
-            if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer("Tiled request detected, activating on the fly meta tiler");
-            }
-
-            delegate = new MetatileMapOutputFormat(request, (RenderedImageMapOutputFormat) delegate);
-        }
-
         //
         // Test if the parameter "TIME" or ELEVATION are present in the WMS
         // request
@@ -216,6 +206,19 @@ public class GetMap {
 
         // handling time series and elevation series
         final boolean isMultivaluedSupported = (cap != null ? cap.isMultivalueRequestsSupported() : false);
+
+        // enable on the fly meta tiling if request looks like a tiled one
+        if (MetatileMapOutputFormat.isRequestTiled(request, delegate)) {
+            if (LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.finer("Tiled request detected, activating on the fly meta tiler");
+            }
+
+            // series need the tile images to assemble them
+            boolean imageRequired = request.isImageRequired()
+                    || ((numTimes > 1 || numElevations > 1) && isMultivaluedSupported);
+            delegate = new MetatileMapOutputFormat(request,
+                    (RenderedImageMapOutputFormat) delegate, imageRequired);
+        }
         if(numTimes > 1 && isMultivaluedSupported) {
             WebMap map = null;
             List<RenderedImage> images = new ArrayList<RenderedImage>();
@@ -573,18 +576,19 @@ public class GetMap {
      */
     static int computeLayerBuffer(Style style, double scaleDenominator) {
         final double TOLERANCE = 1e-6;
-        MetaBufferEstimator estimator = new MetaBufferEstimator();
+        List<Rule> rules = new ArrayList<Rule>();
         for (FeatureTypeStyle fts : style.featureTypeStyles()) {
             for (Rule rule : fts.rules()) {
                 if (((rule.getMinScaleDenominator() - TOLERANCE) <= scaleDenominator)
                         && ((rule.getMaxScaleDenominator() + TOLERANCE) > scaleDenominator)) {
-                    estimator.visit(rule);
+                    rules.add(rule);
                 }
             }
         }
 
-        // we get any estimate, it's better than nothing...
-        return estimator.getBuffer();
+        // we get any estimate, it's better than nothing... (the per rule estimates are
+        // computed once per style)
+        return DerivedStyleCache.getInstance().getBuffer(style, rules);
     }
 
     /**
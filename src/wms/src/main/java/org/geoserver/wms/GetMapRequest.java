@@ -59,6 +59,9 @@ public class GetMapRequest extends WMSRequest implements Cloneable {
 
     private Map<String, String> httpRequestHeaders;
 
+    /** true if the caller is going to use the rendered image, instead of writing out the map */
+    private boolean imageRequired;
+
     public GetMapRequest() {
         super("GetMap");
     }
@@ -843,6 +846,18 @@ public class GetMapRequest extends WMSRequest implements Cloneable {
         httpRequestHeaders.put(headerName, value);
     }
     
+    /**
+     * Returns true if the caller is going to use the rendered image of the map (e.g. animation
+     * frames, time and elevation series), in which case the map is not encoded ahead of time
+     */
+    public boolean isImageRequired() {
+        return imageRequired;
+    }
+
+    public void setImageRequired(boolean imageRequired) {
+        this.imageRequired = imageRequired;
+    }
+
     @Override
     public Object clone() {
     	try {
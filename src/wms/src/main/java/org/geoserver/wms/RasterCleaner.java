@@ -15,6 +15,7 @@ import javax.media.jai.RenderedImageList;
 
 import org.geoserver.ows.AbstractDispatcherCallback;
 import org.geoserver.ows.Request;
+import org.geoserver.wms.map.DrawingSurfacePool;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.resources.image.ImageUtilities;
 
@@ -61,11 +62,20 @@ public class RasterCleaner extends AbstractDispatcherCallback {
 
     @Override
     public void finished(Request request) {
+        cleanup();
+    }
+
+    /**
+     * Disposes the images and coverages scheduled for cleanup by the current thread. To be used
+     * by threads working on behalf of a request, for which {@link #finished(Request)} is never
+     * called
+     */
+    public static void cleanup() {
         disposeCoverages();
         disposeImages();
     }
 
-    private void disposeImages() {
+    private static void disposeImages() {
         List<RenderedImage> list = images.get();
         if (list != null) {
             images.remove();
@@ -83,16 +93,22 @@ public class RasterCleaner extends AbstractDispatcherCallback {
         }
     }
 
-    private void disposeImage(RenderedImage image) {
+    /**
+     * Disposes an image right away, releasing its JAI chain, or giving back its drawing surface
+     * to the pool
+     */
+    public static void disposeImage(RenderedImage image) {
         if (image instanceof PlanarImage) {
             ImageUtilities.disposePlanarImageChain((PlanarImage) image);
         } else if (image instanceof BufferedImage) {
             BufferedImage bi = (BufferedImage) image;
             bi.flush();
+            // give back the drawing surface, if it was taken from the pool
+            DrawingSurfacePool.get().release(bi);
         } 
     }
 
-    private void disposeCoverages() {
+    private static void disposeCoverages() {
         List<GridCoverage2D> list = coverages.get();
         if (list != null) {
             coverages.remove();
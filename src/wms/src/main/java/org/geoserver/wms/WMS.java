@@ -110,6 +110,14 @@ public class WMS implements ApplicationContextAware {
     
     public static final String MAX_RENDERING_SIZE = "maxRenderingSize";
     
+    public static final String ANIMATOR_STREAMING = "animatorStreaming";
+
+    public static final Boolean ANIMATOR_STREAMING_DEFAULT = Boolean.FALSE;
+
+    public static final String ANIMATOR_STREAMING_WINDOW = "animatorStreamingWindow";
+
+    public static final int ANIMATOR_STREAMING_WINDOW_DEFAULT = 4;
+
     public static final String FRAMES_DELAY = "framesDelay";
 
     public static final int FRAMES_DELAY_DEFAULT = 1000;
@@ -483,6 +491,23 @@ public class WMS implements ApplicationContextAware {
         return getMetadataValue( MAX_RENDERING_SIZE, null, Long.class);
     }
 
+    /**
+     * Returns true if animations should be encoded frame by frame as soon as each one is ready,
+     * instead of waiting for all the frames to be rendered
+     */
+    public Boolean getAnimatorStreaming() {
+        return getMetadataValue(ANIMATOR_STREAMING, ANIMATOR_STREAMING_DEFAULT, Boolean.class);
+    }
+
+    /**
+     * Returns the maximum number of frames that can be rendering, or waiting to be encoded, at
+     * any given time when streaming animations
+     */
+    public int getAnimatorStreamingWindow() {
+        return getMetadataValue(ANIMATOR_STREAMING_WINDOW, ANIMATOR_STREAMING_WINDOW_DEFAULT,
+                Integer.class);
+    }
+
     public Integer getFramesDelay() {
         return getMetadataValue(FRAMES_DELAY, FRAMES_DELAY_DEFAULT, Integer.class);
     }
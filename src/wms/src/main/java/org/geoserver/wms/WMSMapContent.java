@@ -95,6 +95,26 @@ public class WMSMapContent extends MapContent {
         request = req;
     }
 
+    /**
+     * Copies the map settings and viewport of another map content, but not its layers. Meant for
+     * code working on the rendered map in other threads, e.g. the meta tile encoders
+     * 
+     * @param other
+     */
+    public WMSMapContent(WMSMapContent other) {
+        super();
+        request = other.request;
+        mapWidth = other.mapWidth;
+        mapHeight = other.mapHeight;
+        bgColor = other.bgColor;
+        transparent = other.transparent;
+        tileSize = other.tileSize;
+        angle = other.angle;
+        buffer = other.buffer;
+        icm = other.icm;
+        getViewport().setBounds(other.getViewport().getBounds());
+    }
+
 
     public Color getBgColor() {
         return this.bgColor;
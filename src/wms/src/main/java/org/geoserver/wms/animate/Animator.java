@@ -53,6 +53,11 @@ public class Animator {
      **/
     public static final String GIF_ANIMATED_FORMAT = "image/gif;subtype=animated";
 
+    /**
+     * Format option enabling/disabling the streaming of frames, overriding the WMS configuration
+     */
+    public static final String STREAMING_OPTION = "anim_streaming";
+
     /**
      * web map service
      */
@@ -111,6 +116,8 @@ public class Animator {
         
         // set rest of the wms defaults
         request = DefaultWebMapService.autoSetMissingProperties(request);
+        // the map is not written out as is, only its map context is used
+        request.setImageRequired(true);
         
         // if we have a case of layers being the param, we should also try to get uniform
         // width and height and bbox
@@ -126,15 +133,45 @@ public class Animator {
         // RenderedImages.
         FrameCatalogVisitor visitor = new FrameCatalogVisitor();
         frameCatalog.getFrames(visitor);
-        RenderedImage imageList = visitor.produce(frameCatalog.getWmsConfiguration());
+        RenderedImage imageList;
+        if (isStreaming(request, wmsConfiguration)) {
+            // frames will be rendered while the previous ones are being encoded
+            imageList = visitor.produceSequence(frameCatalog.getWmsConfiguration(),
+                    wmsConfiguration.getAnimatorStreamingWindow());
+        } else {
+            imageList = visitor.produce(frameCatalog.getWmsConfiguration());
+        }
 
         // run a single getmap to get the right mime type and map context
-        WebMap wmsResponse = wms.getMap(request);
+        WebMap wmsResponse;
+        try {
+            wmsResponse = wms.getMap(request);
+        } catch (Exception e) {
+            if (imageList instanceof FrameSequence) {
+                ((FrameSequence) imageList).dispose();
+            }
+            throw e;
+        }
 
         return new RenderedImageMap(((RenderedImageMap) wmsResponse).getMapContext(), imageList,
                 wmsResponse.getMimeType());
     }
 
+    /**
+     * Checks if the frames should be streamed to the output as soon as they are ready
+     * 
+     * @param request
+     * @param wmsConfiguration
+     * @return
+     */
+    static boolean isStreaming(GetMapRequest request, WMS wmsConfiguration) {
+        Object streaming = request.getFormatOptions().get(STREAMING_OPTION);
+        if (streaming != null) {
+            return Boolean.valueOf(String.valueOf(streaming));
+        }
+        return Boolean.TRUE.equals(wmsConfiguration.getAnimatorStreaming());
+    }
+
     /**
      * Initializes the Animator engine.
      * 
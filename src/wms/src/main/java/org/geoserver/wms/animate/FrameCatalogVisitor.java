@@ -48,6 +48,11 @@ public class FrameCatalogVisitor {
      */
     int framesNumber;
 
+    /**
+     * the list of frame loaders, in animation order
+     */
+    List<FrameLoader> loaders;
+
     /**
      * the list of runnables to be executed
      */
@@ -62,19 +67,13 @@ public class FrameCatalogVisitor {
      * @param avalue
      */
     public void visit(final GetMapRequest request, WebMapService wms, WMS wmsConfiguration, String aparam, String avalue) {
-        if (this.tasks == null) {
-            this.tasks = new LinkedList<Future<RenderedImage>>();
+        if (this.loaders == null) {
+            this.loaders = new ArrayList<FrameLoader>();
         }
 
         FrameLoader loader = new FrameLoader(request, wms, wmsConfiguration, aparam, avalue);
-        
-        
-        final FutureTask<RenderedImage> task = new FutureTask<RenderedImage>(loader);
-        this.tasks.add(task);
+        this.loaders.add(loader);
         this.framesNumber++;
-
-        // run the loading in this thread
-        wmsConfiguration.getAnimatorExecutorService().execute(task);
     }
 
     /**
@@ -86,6 +85,16 @@ public class FrameCatalogVisitor {
     public RenderedImageList produce(WMS wmsConfiguration) throws IOException {
         List<RenderedImage> images = new ArrayList<RenderedImage>();
 
+        // run the loading in the animator threads
+        this.tasks = new LinkedList<Future<RenderedImage>>();
+        if (loaders != null) {
+            for (FrameLoader loader : loaders) {
+                final FutureTask<RenderedImage> task = new FutureTask<RenderedImage>(loader);
+                this.tasks.add(task);
+                wmsConfiguration.getAnimatorExecutorService().execute(task);
+            }
+        }
+
         long gifAnimatedSize = 0;
 
         for (Future<RenderedImage> future : tasks) {
@@ -124,7 +133,27 @@ public class FrameCatalogVisitor {
         return new RenderedImageList(images);
     }
 
-    private long getImageSizeInBytes(RenderedImage image) {
+    /**
+     * Starts producing the frames images in the animator executor service, returning a sequence
+     * that hands them out in order as soon as they are ready. At most <code>window</code> frames
+     * are being rendered, or waiting to be consumed, at any given time.
+     * @param wmsConfiguration
+     * @param window
+     * @return
+     * @throws IOException
+     */
+    public FrameSequence produceSequence(WMS wmsConfiguration, int window) throws IOException {
+        List<FrameLoader> frames = loaders != null ? loaders : new ArrayList<FrameLoader>();
+        try {
+            return FrameSequence.start(frames.iterator(),
+                    wmsConfiguration.getAnimatorExecutorService(), window,
+                    wmsConfiguration.getMaxRenderingSize());
+        } finally {
+            dispose();
+        }
+    }
+
+    static long getImageSizeInBytes(RenderedImage image) {
         int tileWidth = image.getTileWidth();
         int tileLength = image.getNumXTiles();
         int numBands = image.getSampleModel().getNumBands();
@@ -138,6 +167,7 @@ public class FrameCatalogVisitor {
      */
     private void dispose() {
         this.framesNumber = 0;
+        this.loaders = null;
 
         if (this.tasks != null)
             this.tasks.clear();
@@ -196,6 +226,7 @@ class FrameLoader implements Callable<RenderedImage> {
         
         // set rest of the wms defaults
         frameRequest = DefaultWebMapService.autoSetMissingProperties(frameRequest);
+        frameRequest.setImageRequired(true);
 
         // Setup Frame OUTputFormat
         String outFormat = frameRequest.getFormat();
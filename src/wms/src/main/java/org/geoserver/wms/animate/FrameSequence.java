@@ -0,0 +1,182 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.animate;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.RenderedImageAdapter;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * A lazily produced sequence of animation frames.
+ * <p>
+ * Frames are rendered in parallel on the animator executor service, but at most
+ * <code>window</code> of them are submitted, or waiting to be consumed, at any given time: a new
+ * frame is submitted only when the first one in the window is handed out. This allows encoders to
+ * write each frame as soon as it is ready, keeping the memory usage bound regardless of the
+ * animation length.
+ * <p>
+ * The sequence itself behaves as its first frame, so that it can be carried around as the image of
+ * a {@link org.geoserver.wms.map.RenderedImageMap}. Disposing it cancels the frames not yet
+ * consumed.
+ */
+public class FrameSequence extends RenderedImageAdapter {
+
+    static final Logger LOGGER = Logging.getLogger(FrameSequence.class);
+
+    private final Iterator<? extends Callable<RenderedImage>> loaders;
+
+    private final LinkedList<Future<RenderedImage>> pending;
+
+    private final ExecutorService executor;
+
+    private final int window;
+
+    private RenderedImage next;
+
+    private FrameSequence(RenderedImage first, Iterator<? extends Callable<RenderedImage>> loaders,
+            LinkedList<Future<RenderedImage>> pending, ExecutorService executor, int window) {
+        super(first);
+        this.next = first;
+        this.loaders = loaders;
+        this.pending = pending;
+        this.executor = executor;
+        this.window = window;
+    }
+
+    /**
+     * Starts rendering the frames, and waits for the first one to be available
+     *
+     * @param loaders the frame loaders, in animation order
+     * @param executor the executor service rendering the frames
+     * @param window the maximum number of frames in flight
+     * @param maxFrameWindowSize the maximum amount of memory, in bytes, the frames in the window can
+     *        use, or null if there is no limit
+     * @return
+     * @throws IOException if the first frame could not be rendered, or there are no frames at all
+     */
+    static FrameSequence start(Iterator<? extends Callable<RenderedImage>> loaders,
+            ExecutorService executor, int window, Long maxFrameWindowSize) throws IOException {
+        if (window < 1) {
+            window = 1;
+        }
+        LinkedList<Future<RenderedImage>> pending = new LinkedList<Future<RenderedImage>>();
+        fill(loaders, pending, executor, window);
+        RenderedImage first;
+        try {
+            first = take(loaders, pending, executor, window);
+        } catch (IOException e) {
+            cancel(pending);
+            throw e;
+        }
+        if (first == null) {
+            throw new IOException("Empty list of frames.");
+        }
+
+        // all the frames have the same size, make sure a full window fits in the allowed memory
+        long frameSize = FrameCatalogVisitor.getImageSizeInBytes(first);
+        if (maxFrameWindowSize != null && frameSize * window >= maxFrameWindowSize) {
+            cancel(pending);
+            throw new IOException("Max rendering size exceed!");
+        }
+
+        return new FrameSequence(first, loaders, pending, executor, window);
+    }
+
+    /**
+     * Returns true if there are more frames to be consumed
+     *
+     * @return
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    /**
+     * Returns the next frame, waiting for it to be rendered if necessary
+     *
+     * @return
+     * @throws IOException if the rendering of one of the following frames failed
+     */
+    public RenderedImage next() throws IOException {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        RenderedImage result = next;
+        try {
+            next = take(loaders, pending, executor, window);
+        } catch (IOException e) {
+            next = null;
+            cancel(pending);
+            throw e;
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        next = null;
+        cancel(pending);
+        super.dispose();
+    }
+
+    /**
+     * Waits for the first non null frame in the window, topping up the window as frames are
+     * consumed
+     */
+    private static RenderedImage take(Iterator<? extends Callable<RenderedImage>> loaders,
+            LinkedList<Future<RenderedImage>> pending, ExecutorService executor, int window)
+            throws IOException {
+        while (!pending.isEmpty()) {
+            Future<RenderedImage> future = pending.removeFirst();
+            // keep the executor busy while we wait
+            fill(loaders, pending, executor, window);
+            try {
+                RenderedImage image = future.get();
+                if (image != null) {
+                    return image;
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e);
+            }
+        }
+
+        return null;
+    }
+
+    private static void fill(Iterator<? extends Callable<RenderedImage>> loaders,
+            LinkedList<Future<RenderedImage>> pending, ExecutorService executor, int window) {
+        while (pending.size() < window && loaders.hasNext()) {
+            FutureTask<RenderedImage> task = new FutureTask<RenderedImage>(loaders.next());
+            pending.add(task);
+            executor.execute(task);
+        }
+    }
+
+    private static void cancel(LinkedList<Future<RenderedImage>> pending) {
+        if (LOGGER.isLoggable(Level.FINE) && !pending.isEmpty()) {
+            LOGGER.fine("Cancelling " + pending.size() + " animation frames");
+        }
+        for (Future<RenderedImage> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+}
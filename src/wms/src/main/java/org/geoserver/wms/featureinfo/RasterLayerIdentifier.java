@@ -8,10 +8,15 @@ package org.geoserver.wms.featureinfo;
 import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,6 +24,7 @@ import javax.media.jai.PlanarImage;
 
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.ProjectionPolicy;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.FeatureInfoRequestParameters;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapLayerInfo;
@@ -72,7 +78,15 @@ public class RasterLayerIdentifier implements LayerIdentifier {
     
     static final Logger LOGGER = Logging.getLogger(RasterLayerIdentifier.class);
 
+    /**
+     * Set to false to disable the point query fast path
+     */
+    static final String POINT_QUERY_KEY = "org.geoserver.wms.featureinfo.pointQuery";
+
     private WMS wms;
+
+    private boolean pointQuery = !"false".equalsIgnoreCase(GeoServerExtensions
+            .getProperty(POINT_QUERY_KEY));
     
     public RasterLayerIdentifier(final WMS wms) {
         this.wms = wms;
@@ -134,22 +148,90 @@ public class RasterLayerIdentifier implements LayerIdentifier {
         final MathTransform worldToGrid = reader.getOriginalGridToWorld(PixelInCell.CELL_CORNER)
                 .inverse();
         final DirectPosition rasterMid = worldToGrid.transform(position, null);
+        final GridEnvelope gridEnvelope = reader.getOriginalGridRange();
+        final Rectangle originalArea = (gridEnvelope instanceof GridEnvelope2D) ? (GridEnvelope2D) gridEnvelope
+                : new Rectangle();
+
+        if (pointQuery) {
+            // read just the pixel containing the point, at native resolution, so that the
+            // reader only has to decode a single tile out of the full resolution level
+            final Rectangle pixelArea = new Rectangle(
+                    (int) Math.floor(rasterMid.getOrdinate(0)),
+                    (int) Math.floor(rasterMid.getOrdinate(1)), 1, 1);
+            if (originalArea.contains(pixelArea)) {
+                try {
+                    PixelSample sample = readPixel(params, cinfo, reader, parameters, pixelArea,
+                            position);
+                    if (sample == null) {
+                        return null;
+                    }
+                    return Collections.singletonList(wrapPixelInFeatureCollection(
+                            sample.sampleDimensions, sample.values, cinfo.getQualifiedName()));
+                } catch (PointOutsideCoverageException e) {
+                    // the reader did not return exactly the pixel we asked for, use a larger area
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Point query missed the pixel, falling back on a larger read");
+                    }
+                }
+            }
+        }
+
         // create a 20X20 rectangle aruond the mid point and then intersect with the
         // original range
         final Rectangle2D.Double rasterArea = new Rectangle2D.Double();
         rasterArea.setFrameFromCenter(rasterMid.getOrdinate(0), rasterMid.getOrdinate(1),
                 rasterMid.getOrdinate(0) + 10, rasterMid.getOrdinate(1) + 10);
         final Rectangle integerRasterArea = rasterArea.getBounds();
-        final GridEnvelope gridEnvelope = reader.getOriginalGridRange();
-        final Rectangle originalArea = (gridEnvelope instanceof GridEnvelope2D) ? (GridEnvelope2D) gridEnvelope
-                : new Rectangle();
         XRectangle2D.intersect(integerRasterArea, originalArea, integerRasterArea);
         // paranoiac check, did we fall outside the coverage raster area? This should
         // never really happne if the request is well formed.
         if (integerRasterArea.isEmpty()) {
             return null;
         }
-        // now set the grid geometry for this request
+
+        FeatureCollection pixel = null;
+        try {
+            PixelSample sample = readPixel(params, cinfo, reader, parameters, integerRasterArea,
+                    position);
+            if (sample == null) {
+                return null;
+            }
+            pixel = wrapPixelInFeatureCollection(sample.sampleDimensions, sample.values,
+                    cinfo.getQualifiedName());
+        } catch (PointOutsideCoverageException e) {
+            // it's fine, users might legitimately query point outside, we just don't
+            // return anything
+        }
+        return Collections.singletonList(pixel);
+    }
+
+    /**
+     * Enables or disables the point query fast path, that reads only the pixel being queried
+     * instead of a 20x20 area around it. Mostly useful to compare the two approaches.
+     * 
+     * @param pointQuery
+     */
+    public void setPointQuery(boolean pointQuery) {
+        this.pointQuery = pointQuery;
+    }
+
+    public boolean isPointQuery() {
+        return pointQuery;
+    }
+
+    /**
+     * Reads the given raster area and samples the coverage at the requested position. Samples are
+     * shared among the query layers reading the same coverage with the same parameters.
+     * 
+     * @return the sample, or null if the reader did not return any coverage
+     * @throws PointOutsideCoverageException if the position is not inside the coverage read
+     */
+    private PixelSample readPixel(FeatureInfoRequestParameters params, CoverageInfo cinfo,
+            GridCoverage2DReader reader, GeneralParameterValue[] parameters, Rectangle area,
+            DirectPosition position) throws IOException {
+        // now set the grid geometry for this request, and collect the parameters by name so that
+        // the key does not depend on their order
+        Map<String, Object> readParameters = new TreeMap<String, Object>();
         for (int k = 0; k < parameters.length; k++) {
             if (!(parameters[k] instanceof Parameter<?>))
                 continue;
@@ -161,10 +243,30 @@ public class RasterLayerIdentifier implements LayerIdentifier {
                 // create a suitable geometry for this request reusing the getmap (we
                 // could probably optimize)
                 //
-                parameter.setValue(new GridGeometry2D(new GridEnvelope2D(integerRasterArea), reader
+                parameter.setValue(new GridGeometry2D(new GridEnvelope2D(area), reader
                         .getOriginalGridToWorld(PixelInCell.CELL_CENTER), reader.getCoordinateReferenceSystem()));
             }
+            if (parameter.getValue() != null) {
+                readParameters.put(parameter.getDescriptor().getName().getCode(),
+                        parameter.getValue());
+            }
+        }
+        List<Object> key = new ArrayList<Object>();
+        key.add(cinfo.getStore().getId());
+        key.add(cinfo.getNativeCoverageName() != null ? cinfo.getNativeCoverageName() : cinfo
+                .getNativeName());
+        for (Map.Entry<String, Object> entry : readParameters.entrySet()) {
+            key.add(entry.getKey());
+            key.add(entry.getValue());
+        }
+        key.add(area);
+        key.add(new DirectPosition2D(position));
 
+        Map<Object, Object> cache = params.getIdentifierCache();
+        SampleKey sampleKey = new SampleKey(key.toArray());
+        PixelSample sample = (PixelSample) cache.get(sampleKey);
+        if (sample != null) {
+            return sample;
         }
 
         final GridCoverage2D coverage = (GridCoverage2D) reader.read(parameters);
@@ -174,13 +276,11 @@ public class RasterLayerIdentifier implements LayerIdentifier {
             return null;
         }
 
-        FeatureCollection pixel = null;
         try {
             final double[] pixelValues = coverage.evaluate(position, (double[]) null);
-            pixel = wrapPixelInFeatureCollection(coverage, pixelValues, cinfo.getQualifiedName());
-        } catch (PointOutsideCoverageException e) {
-            // it's fine, users might legitimately query point outside, we just don't
-            // return anything
+            sample = new PixelSample(coverage.getSampleDimensions(), pixelValues);
+            cache.put(sampleKey, sample);
+            return sample;
         } finally {
             RenderedImage ri = coverage.getRenderedImage();
             coverage.dispose(true);
@@ -188,13 +288,11 @@ public class RasterLayerIdentifier implements LayerIdentifier {
                 ImageUtilities.disposePlanarImageChain((PlanarImage) ri);
             }
         }
-        return Collections.singletonList(pixel);
     }
     
-    private SimpleFeatureCollection wrapPixelInFeatureCollection(GridCoverage2D coverage,
-            double[] pixelValues, Name coverageName) throws SchemaException {
-
-        GridSampleDimension[] sampleDimensions = coverage.getSampleDimensions();
+    private SimpleFeatureCollection wrapPixelInFeatureCollection(
+            GridSampleDimension[] sampleDimensions, double[] pixelValues, Name coverageName)
+            throws SchemaException {
 
         SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
         builder.setName(coverageName);
@@ -218,4 +316,41 @@ public class RasterLayerIdentifier implements LayerIdentifier {
         return DataUtilities.collection(SimpleFeatureBuilder.build(gridType, values, ""));
     }
 
+    /**
+     * The key of a shared sample, comparing the read parameters by content, arrays included
+     */
+    static class SampleKey {
+
+        final Object[] values;
+
+        SampleKey(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof SampleKey && Arrays.deepEquals(values, ((SampleKey) obj).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(values);
+        }
+    }
+
+    /**
+     * The values of a pixel, along with the description of the bands
+     */
+    static class PixelSample {
+
+        final GridSampleDimension[] sampleDimensions;
+
+        final double[] values;
+
+        PixelSample(GridSampleDimension[] sampleDimensions, double[] values) {
+            this.sampleDimensions = sampleDimensions;
+            this.values = values;
+        }
+    }
+
 }
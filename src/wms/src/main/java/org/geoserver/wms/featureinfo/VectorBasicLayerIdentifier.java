@@ -14,6 +14,7 @@ import java.util.logging.Logger;
 
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.DerivedStyleCache;
 import org.geoserver.wms.FeatureInfoRequestParameters;
 import org.geoserver.wms.MapLayerInfo;
 import org.geoserver.wms.WMS;
@@ -28,7 +29,6 @@ import org.geotools.filter.visitor.SimplifyingFilterVisitor;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
-import org.geotools.renderer.lite.MetaBufferEstimator;
 import org.geotools.styling.FeatureTypeStyle;
 import org.geotools.styling.Rule;
 import org.geotools.styling.Style;
@@ -173,12 +173,8 @@ public class VectorBasicLayerIdentifier extends AbstractVectorLayerIdentifier {
                 radius = layerBuffer / 2.0;
             } else {
                 // estimate the radius given the currently active rules
-                MetaBufferEstimator estimator = new MetaBufferEstimator();
-                for (Rule rule : rules) {
-                    rule.accept(estimator);
-                }
-
-                int estimatedRadius = estimator.getBuffer() / 2;
+                int estimatedRadius = DerivedStyleCache.getInstance().getBuffer(
+                        params.getStyle(), rules) / 2;
                 if (estimatedRadius < MIN_BUFFER_SIZE) {
                     radius = MIN_BUFFER_SIZE;
                 } else {
@@ -28,6 +28,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +38,7 @@ import org.geoserver.catalog.LayerInfo;
 import org.geoserver.platform.ExtensionPriority;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.security.decorators.DecoratingFeatureSource;
+import org.geoserver.wms.DerivedStyleCache;
 import org.geoserver.wms.FeatureInfoRequestParameters;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapLayerInfo;
@@ -265,12 +267,19 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         }
     }
 
-    private Style preprocessStyle(Style style, FeatureType schema) {
-        FeatureInfoStylePreprocessor preprocessor = new FeatureInfoStylePreprocessor(schema);
-        style.accept(preprocessor);
-        Style result = (Style) preprocessor.getCopy();
-        
-        return result;
+    private Style preprocessStyle(final Style style, final FeatureType schema) {
+        // the preprocessed copy only depends on the style and the schema, compute it once
+        Object key = Arrays.asList(FeatureInfoStylePreprocessor.class, schema);
+        return DerivedStyleCache.getInstance().get(style, key, new Callable<Style>() {
+
+            @Override
+            public Style call() throws Exception {
+                FeatureInfoStylePreprocessor preprocessor = new FeatureInfoStylePreprocessor(
+                        schema);
+                style.accept(preprocessor);
+                return (Style) preprocessor.getCopy();
+            }
+        });
     }
 
     private List<FeatureCollection> aggregateByFeatureType(List<? extends Feature> features) {
@@ -0,0 +1,60 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An already encoded legend graphic, as stored in the {@link LegendGraphicCache}
+ */
+public class CachedLegendGraphic {
+
+    private final byte[] contents;
+
+    private final String mimeType;
+
+    private final String etag;
+
+    public CachedLegendGraphic(byte[] contents, String mimeType) {
+        this.contents = contents;
+        this.mimeType = mimeType;
+        this.etag = buildETag(contents);
+    }
+
+    private static String buildETag(byte[] contents) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(contents);
+            StringBuilder sb = new StringBuilder("\"");
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append("\"").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 digest is not available", e);
+        }
+    }
+
+    /**
+     * The encoded legend. The array is shared, callers must not modify it
+     */
+    public byte[] getContents() {
+        return contents;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * The entity tag of the legend, a quoted digest of its contents
+     */
+    public String getETag() {
+        return etag;
+    }
+}
@@ -0,0 +1,46 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.geoserver.ows.Response;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.springframework.util.Assert;
+
+/**
+ * Writes out a {@link CachedLegendGraphic} along with its ETag. Conditional requests matching
+ * the tag are answered with a "304 Not Modified" by {@link org.geoserver.wms.GetLegendGraphic}
+ * before getting here.
+ */
+public class CachedLegendGraphicResponse extends Response {
+
+    public CachedLegendGraphicResponse() {
+        super(CachedLegendGraphic.class);
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return ((CachedLegendGraphic) value).getMimeType();
+    }
+
+    @Override
+    public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+        return new String[][] { { "ETag", ((CachedLegendGraphic) value).getETag() } };
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException,
+            ServiceException {
+        Assert.isInstanceOf(CachedLegendGraphic.class, value);
+        CachedLegendGraphic legend = (CachedLegendGraphic) value;
+
+        output.write(legend.getContents());
+    }
+
+}
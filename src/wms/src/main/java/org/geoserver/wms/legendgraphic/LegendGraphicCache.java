@@ -0,0 +1,224 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Caches encoded GetLegendGraphic outputs. Legends are keyed by the full set of request
+ * parameters (layer, style, rule, scale, size, format, legend options, language, env and so on)
+ * and the cache is cleared whenever a style, layer, layer group or resource is modified or
+ * removed.
+ * <p>
+ * Requests carrying their own style via SLD or SLD_BODY are not cached, and legend producers
+ * generating dynamic output can opt out by calling
+ * {@link GetLegendGraphicRequest#setCacheable(boolean)}.
+ * <p>
+ * The cache size can be configured, in KB, with the
+ * {@code org.geoserver.wms.legendgraphic.cache.maxSize} property, a non positive value disables
+ * it.
+ */
+public class LegendGraphicCache implements CatalogListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(LegendGraphicCache.class);
+
+    static final String MAX_SIZE_KEY = "org.geoserver.wms.legendgraphic.cache.maxSize";
+
+    /**
+     * Default cache size, 8MB of encoded legends
+     */
+    static final long DEFAULT_MAX_SIZE = 8 * 1024;
+
+    final Cache<String, CachedLegendGraphic> cache;
+
+    Catalog catalog;
+
+    public LegendGraphicCache(Catalog catalog) {
+        this(catalog, getMaxSizeProperty());
+    }
+
+    public LegendGraphicCache(Catalog catalog, long maxSize) {
+        this.catalog = catalog;
+        if (maxSize > 0) {
+            cache = CacheBuilder.newBuilder().maximumWeight(maxSize)
+                    .weigher(new Weigher<String, CachedLegendGraphic>() {
+
+                        @Override
+                        public int weigh(String key, CachedLegendGraphic value) {
+                            return value.getContents().length;
+                        }
+                    }).recordStats().build();
+            catalog.addListener(this);
+        } else {
+            cache = null;
+        }
+    }
+
+    private static long getMaxSizeProperty() {
+        String value = GeoServerExtensions.getProperty(MAX_SIZE_KEY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value) * 1024;
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for " + MAX_SIZE_KEY + ": " + value
+                        + ", using the default " + DEFAULT_MAX_SIZE + "KB");
+            }
+        }
+        return DEFAULT_MAX_SIZE * 1024;
+    }
+
+    /**
+     * Builds the cache key for the request, or returns null if the request cannot be cached
+     *
+     * @param request
+     * @return
+     */
+    public String getKey(GetLegendGraphicRequest request) {
+        if (cache == null || !request.isCacheable()) {
+            return null;
+        }
+        Map<String, String> rawKvp = request.getRawKvp();
+        if (rawKvp == null) {
+            return null;
+        }
+
+        // sort the parameters so that the key does not depend on their order
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : rawKvp.entrySet()) {
+            String name = entry.getKey().toUpperCase();
+            if ("SLD".equals(name) || "SLD_BODY".equals(name)) {
+                // the style is not coming from the catalog, we cannot track its changes
+                return null;
+            }
+            sorted.put(name, entry.getValue());
+        }
+        sorted.remove("SERVICE");
+        sorted.remove("REQUEST");
+
+        StringBuilder sb = new StringBuilder();
+        WorkspaceInfo ws = LocalWorkspace.get();
+        if (ws != null) {
+            sb.append(ws.getName()).append("/");
+        }
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            sb.append(entry.getKey()).append("=").append(entry.getValue()).append("&");
+        }
+        return sb.toString();
+    }
+
+    public CachedLegendGraphic get(String key) {
+        return cache != null ? cache.getIfPresent(key) : null;
+    }
+
+    public void put(String key, CachedLegendGraphic legend) {
+        if (cache != null) {
+            cache.put(key, legend);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Cached legend " + key + ", stats: " + cache.stats());
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached legends
+     */
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the cache hit/miss/eviction statistics
+     *
+     * @return
+     */
+    public CacheStats getStats() {
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    private void handleChange(CatalogEvent event) {
+        Object source = event.getSource();
+        if (source instanceof StyleInfo || source instanceof LayerInfo
+                || source instanceof LayerGroupInfo || source instanceof ResourceInfo) {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do, a new object cannot be referenced by a cached legend
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        handleChange(event);
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        handleChange(event);
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+        catalog.removeListener(this);
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+}
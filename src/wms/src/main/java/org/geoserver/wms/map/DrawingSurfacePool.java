@@ -0,0 +1,416 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.RasterCleaner;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A size bucketed pool of the rasters backing the GetMap drawing surfaces, used to avoid
+ * allocating a new multi megabyte buffer for each map rendered.
+ * <p>
+ * Surfaces are acquired by {@link RenderedImageMapOutputFormat} and go back to the pool only when
+ * the {@link RasterCleaner} disposes the image at the end of a request that actually encoded it.
+ * Surfaces that are never handed to the cleaner (e.g., maps captured by the tile caches, or frames
+ * of an animation) are simply left to the garbage collector. Code that keeps the surface data
+ * around past the end of the request must call {@link #detach(RenderedImage)}.
+ * <p>
+ * The amount of memory held by idle surfaces is capped by the
+ * {@code org.geoserver.wms.map.surfacePool.maxMemory} property (in KB, a non positive value
+ * disables pooling), while setting {@code org.geoserver.wms.map.surfacePool.debug} to
+ * {@code true} enables reporting of surfaces garbage collected without being returned to the pool.
+ */
+public class DrawingSurfacePool {
+
+    static final Logger LOGGER = Logging.getLogger(DrawingSurfacePool.class);
+
+    static final String MAX_MEMORY_KEY = "org.geoserver.wms.map.surfacePool.maxMemory";
+
+    static final String DEBUG_KEY = "org.geoserver.wms.map.surfacePool.debug";
+
+    /**
+     * Default cap for the idle surfaces, 16MB, enough to hold 64 4 bands 256x256 surfaces
+     */
+    static final long DEFAULT_MAX_MEMORY = 16 * 1024;
+
+    static final ColorModel ABGR_CM = new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR)
+            .getColorModel();
+
+    static final ColorModel BGR_CM = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR)
+            .getColorModel();
+
+    private static DrawingSurfacePool INSTANCE = new DrawingSurfacePool(getMaxMemoryProperty(),
+            Boolean.valueOf(GeoServerExtensions.getProperty(DEBUG_KEY)));
+
+    /**
+     * Returns the shared pool instance
+     *
+     * @return
+     */
+    public static DrawingSurfacePool get() {
+        return INSTANCE;
+    }
+
+    private static long getMaxMemoryProperty() {
+        String value = GeoServerExtensions.getProperty(MAX_MEMORY_KEY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value) * 1024;
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for " + MAX_MEMORY_KEY + ": " + value
+                        + ", using the default " + DEFAULT_MAX_MEMORY + "KB");
+            }
+        }
+        return DEFAULT_MAX_MEMORY * 1024;
+    }
+
+    final long maxMemory;
+
+    final boolean debug;
+
+    /**
+     * The idle rasters, grouped by size and structure
+     */
+    final Map<SurfaceKey, ArrayDeque<WritableRaster>> idle = new HashMap<SurfaceKey, ArrayDeque<WritableRaster>>();
+
+    /**
+     * Memory currently held by the idle rasters
+     */
+    long idleMemory;
+
+    /**
+     * The rasters currently handed out. Weak so that surfaces that never make it back are not
+     * retained
+     */
+    final Map<WritableRaster, SurfaceKey> leased = Collections
+            .synchronizedMap(new WeakHashMap<WritableRaster, SurfaceKey>());
+
+    /**
+     * Leak tracking, used only in debug mode
+     */
+    final ReferenceQueue<WritableRaster> leakQueue = new ReferenceQueue<WritableRaster>();
+
+    final Map<LeaseReference, Boolean> leakTracked = Collections
+            .synchronizedMap(new HashMap<LeaseReference, Boolean>());
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    DrawingSurfacePool(long maxMemory, boolean debug) {
+        this.maxMemory = maxMemory;
+        this.debug = debug;
+    }
+
+    /**
+     * Returns true if the pool is enabled
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return maxMemory > 0;
+    }
+
+    /**
+     * Returns a drawing surface equivalent to the one built by
+     * {@link ImageUtils#createImage(int, int, IndexColorModel, boolean)}, reusing a pooled
+     * raster if one is available. The surface contents are cleared, so the result is
+     * indistinguishable from a newly allocated image
+     *
+     * @param width
+     * @param height
+     * @param palette
+     * @param transparent
+     * @return
+     */
+    public BufferedImage acquire(int width, int height, IndexColorModel palette,
+            boolean transparent) {
+        if (!isEnabled()) {
+            return ImageUtils.createImage(width, height, palette, transparent);
+        }
+        if (debug) {
+            reportLeaks();
+        }
+
+        SurfaceKey key = new SurfaceKey(width, height, palette, transparent);
+        WritableRaster raster = null;
+        synchronized (idle) {
+            ArrayDeque<WritableRaster> queue = idle.get(key);
+            if (queue != null) {
+                raster = queue.pollFirst();
+                if (raster != null) {
+                    idleMemory -= key.getMemory();
+                }
+            }
+        }
+
+        BufferedImage image;
+        if (raster != null) {
+            hits.incrementAndGet();
+            clear(raster);
+            image = new BufferedImage(getColorModel(palette, transparent), raster, false, null);
+        } else {
+            misses.incrementAndGet();
+            image = ImageUtils.createImage(width, height, palette, transparent);
+            raster = image.getRaster();
+            if (!isPoolable(raster)) {
+                return image;
+            }
+        }
+
+        leased.put(raster, key);
+        if (debug) {
+            leakTracked.put(new LeaseReference(raster, leakQueue), Boolean.TRUE);
+        }
+        return image;
+    }
+
+    /**
+     * Returns the surface backing the image to the pool, provided it was acquired from the pool
+     * and it has not been returned or detached already. Meant to be called only once the image
+     * contents are no longer needed (normally by the {@link RasterCleaner})
+     *
+     * @param image
+     * @return true if the image raster has been recycled
+     */
+    public boolean release(BufferedImage image) {
+        if (image == null || leased.isEmpty()) {
+            return false;
+        }
+        WritableRaster raster = image.getRaster();
+        SurfaceKey key = leased.remove(raster);
+        if (key == null) {
+            return false;
+        }
+        if (debug) {
+            leakTracked.remove(new LeaseReference(raster, null));
+        }
+
+        synchronized (idle) {
+            if (idleMemory + key.getMemory() > maxMemory) {
+                // over the cap, let the garbage collector have it
+                return false;
+            }
+            ArrayDeque<WritableRaster> queue = idle.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<WritableRaster>();
+                idle.put(key, queue);
+            }
+            queue.addFirst(raster);
+            idleMemory += key.getMemory();
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure the surface backing the image will never be recycled, to be used when the
+     * image data is going to be retained past the end of the current request
+     *
+     * @param image
+     */
+    public void detach(RenderedImage image) {
+        if (!(image instanceof BufferedImage) || leased.isEmpty()) {
+            return;
+        }
+        WritableRaster raster = ((BufferedImage) image).getRaster();
+        if (leased.remove(raster) != null && debug) {
+            leakTracked.remove(new LeaseReference(raster, null));
+        }
+    }
+
+    /**
+     * Drops all the idle surfaces
+     */
+    public void clear() {
+        synchronized (idle) {
+            idle.clear();
+            idleMemory = 0;
+        }
+    }
+
+    /**
+     * Number of acquisitions satisfied by a pooled surface
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of acquisitions that required a new surface to be allocated
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Memory currently held by idle surfaces, in bytes
+     *
+     * @return
+     */
+    public long getIdleMemory() {
+        synchronized (idle) {
+            return idleMemory;
+        }
+    }
+
+    /**
+     * Logs the surfaces that got garbage collected while still leased
+     */
+    void reportLeaks() {
+        LeaseReference ref;
+        while ((ref = (LeaseReference) leakQueue.poll()) != null) {
+            if (leakTracked.remove(ref) != null) {
+                LOGGER.log(Level.WARNING, "Drawing surface " + ref.key
+                        + " was garbage collected without being returned to the pool", ref.origin);
+            }
+        }
+    }
+
+    private ColorModel getColorModel(IndexColorModel palette, boolean transparent) {
+        if (palette != null) {
+            return palette;
+        } else if (transparent) {
+            return ABGR_CM;
+        } else {
+            return BGR_CM;
+        }
+    }
+
+    private boolean isPoolable(Raster raster) {
+        DataBuffer buffer = raster.getDataBuffer();
+        return buffer.getNumBanks() == 1
+                && (buffer instanceof DataBufferByte || buffer instanceof DataBufferUShort);
+    }
+
+    private void clear(WritableRaster raster) {
+        DataBuffer buffer = raster.getDataBuffer();
+        if (buffer instanceof DataBufferByte) {
+            Arrays.fill(((DataBufferByte) buffer).getData(), (byte) 0);
+        } else if (buffer instanceof DataBufferUShort) {
+            Arrays.fill(((DataBufferUShort) buffer).getData(), (short) 0);
+        }
+    }
+
+    /**
+     * Identifies the structure of a drawing surface
+     */
+    static final class SurfaceKey {
+        final int width;
+
+        final int height;
+
+        final int bands;
+
+        final int dataType;
+
+        SurfaceKey(int width, int height, IndexColorModel palette, boolean transparent) {
+            this.width = width;
+            this.height = height;
+            if (palette != null) {
+                this.bands = 1;
+                this.dataType = palette.getTransferType();
+            } else {
+                this.bands = transparent ? 4 : 3;
+                this.dataType = DataBuffer.TYPE_BYTE;
+            }
+        }
+
+        long getMemory() {
+            long memory = (long) width * height * bands;
+            return dataType == DataBuffer.TYPE_BYTE ? memory : memory * 2;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + bands;
+            result = prime * result + dataType;
+            result = prime * result + height;
+            result = prime * result + width;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            SurfaceKey other = (SurfaceKey) obj;
+            return bands == other.bands && dataType == other.dataType && height == other.height
+                    && width == other.width;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "x" + bands + " (data type " + dataType + ")";
+        }
+    }
+
+    /**
+     * Weak reference to a leased raster, remembering where it was acquired. Equality is based on
+     * the referent identity, so that a lookup reference can be used to remove the tracked one
+     */
+    static final class LeaseReference extends WeakReference<WritableRaster> {
+
+        final int hash;
+
+        final String key;
+
+        final Throwable origin;
+
+        LeaseReference(WritableRaster raster, ReferenceQueue<WritableRaster> queue) {
+            super(raster, queue);
+            this.hash = System.identityHashCode(raster);
+            this.key = raster.getWidth() + "x" + raster.getHeight() + "x" + raster.getNumBands();
+            this.origin = queue != null ? new Exception("Surface acquired here") : null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof LeaseReference)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((LeaseReference) obj).get();
+        }
+    }
+}
@@ -34,6 +34,7 @@ import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.MapProducerCapabilities;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.animate.FrameSequence;
 import org.geoserver.wms.kvp.PaletteManager;
 import org.geotools.image.ImageWorker;
 import org.geotools.image.palette.InverseColorMapOp;
@@ -127,6 +128,11 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
             animatedGIF = true;
 
         }
+        // the frames are still being rendered, encode them as they become available
+        if (animatedGIF && originalImage instanceof FrameSequence) {
+            formatFrameSequence((FrameSequence) originalImage, outStream, mapContent);
+            return;
+        }
         // the original image should always be a list of rendered images unless metatiling is
         // activated
         int numfiles = 1;
@@ -164,10 +170,7 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
 
         final GIFImageWriter gifWriter = new GIFImageWriter(ORIGINATING_PROVIDER);
         // write param
-        final ImageWriteParam param = gifWriter.getDefaultWriteParam();
-        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        param.setCompressionType("LZW");
-        param.setCompressionQuality(0.75f);
+        final ImageWriteParam param = getWriteParam(gifWriter);
 
         ImageOutputStream otStream = null;
         List<RenderedImage> images = new ArrayList<RenderedImage>();
@@ -178,14 +181,8 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
 
             // gif params
             final GetMapRequest request = (GetMapRequest) mapContent.getRequest();
-            final Boolean loopContinuosly = (request.getFormatOptions().get("gif_loop_continuosly") != null ?
-                    Boolean.valueOf((String)request.getFormatOptions().get("gif_loop_continuosly")) : wms.getLoopContinuously());
-            final Integer delay = (request.getFormatOptions().get("gif_frames_delay") != null ? 
-                    Integer.valueOf((String) request.getFormatOptions().get("gif_frames_delay")) : wms.getFramesDelay());
-
-            // check value
-            if (delay <= 0)
-                throw new ServiceException("Animate GIF delay invalid: " + delay);
+            final Boolean loopContinuosly = getLoopContinuosly(request);
+            final Integer delay = getFramesDelay(request);
 
             //
             // Getting input files
@@ -195,16 +192,9 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
                     LOGGER.fine("Writing image " + i);
                 // get the image
                 RenderedImage ri = (RenderedImage) ril.get(i);
-                // convert it to gif compatible
-                ri = applyPalette(ri, mapContent, MIME_TYPE, false);
+                // convert it to gif compatible and write it
+                ri = writeFrame(gifWriter, param, ri, mapContent, loopContinuosly, delay);
                 if (ri != null) {
-                    // prepare metadata and write param
-                    final IIOMetadata imageMetadata = gifWriter.getDefaultImageMetadata(
-                    	new ImageTypeSpecifier(ri), param);
-                    prepareMetadata(ri, imageMetadata, loopContinuosly, delay);
-
-                    // write
-                    gifWriter.writeToSequence(new IIOImage(ri, null, imageMetadata), param);
                     images.add(ri);
                 }
             }
@@ -247,6 +237,117 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
             LOGGER.fine("Done writing animated gif");
     }
 
+    /**
+     * Writes out the frames of an animation while they are still being rendered, pushing each one
+     * to the client and releasing it as soon as it's encoded
+     */
+    private void formatFrameSequence(FrameSequence frames, OutputStream outStream,
+            WMSMapContent mapContent) throws ServiceException, IOException {
+        final GIFImageWriter gifWriter = new GIFImageWriter(ORIGINATING_PROVIDER);
+        final ImageWriteParam param = getWriteParam(gifWriter);
+
+        ImageOutputStream otStream = null;
+        try {
+            // gif params
+            final GetMapRequest request = (GetMapRequest) mapContent.getRequest();
+            final Boolean loopContinuosly = getLoopContinuosly(request);
+            final Integer delay = getFramesDelay(request);
+
+            otStream = ImageIO.createImageOutputStream(outStream);
+            gifWriter.setOutput(otStream);
+            gifWriter.prepareWriteSequence(null);
+
+            int i = 0;
+            while (frames.hasNext()) {
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.fine("Streaming image " + i++);
+                RenderedImage frame = frames.next();
+                RenderedImage ri = null;
+                try {
+                    ri = writeFrame(gifWriter, param, frame, mapContent, loopContinuosly, delay);
+                    // send out the frame right away
+                    otStream.flush();
+                    outStream.flush();
+                } finally {
+                    if (ri != null && ri != frame) {
+                        RasterCleaner.disposeImage(ri);
+                    }
+                    RasterCleaner.disposeImage(frame);
+                }
+            }
+
+            // close writing sequence
+            gifWriter.endWriteSequence();
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        } finally {
+            // cancels the frames still in flight, if any
+            frames.dispose();
+
+            try {
+                if (otStream != null) {
+                    otStream.flush();
+                    otStream.close();
+                }
+            } catch (Exception e) {
+                // swallow
+            }
+
+            try {
+                gifWriter.dispose();
+            } catch (Exception e) {
+                // swallow
+            }
+        }
+
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine("Done streaming animated gif");
+    }
+
+    private ImageWriteParam getWriteParam(GIFImageWriter gifWriter) {
+        final ImageWriteParam param = gifWriter.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionType("LZW");
+        param.setCompressionQuality(0.75f);
+        return param;
+    }
+
+    private Boolean getLoopContinuosly(GetMapRequest request) {
+        return (request.getFormatOptions().get("gif_loop_continuosly") != null ?
+                Boolean.valueOf((String)request.getFormatOptions().get("gif_loop_continuosly")) : wms.getLoopContinuously());
+    }
+
+    private Integer getFramesDelay(GetMapRequest request) {
+        final Integer delay = (request.getFormatOptions().get("gif_frames_delay") != null ? 
+                Integer.valueOf((String) request.getFormatOptions().get("gif_frames_delay")) : wms.getFramesDelay());
+
+        // check value
+        if (delay <= 0)
+            throw new ServiceException("Animate GIF delay invalid: " + delay);
+        return delay;
+    }
+
+    /**
+     * Converts the frame to a gif compatible image and appends it to the sequence
+     * 
+     * @return the image actually written, or null if the palette could not be applied
+     */
+    private RenderedImage writeFrame(GIFImageWriter gifWriter, ImageWriteParam param,
+            RenderedImage frame, WMSMapContent mapContent, boolean loopContinuosly, int delay)
+            throws IOException {
+        RenderedImage ri = applyPalette(frame, mapContent, MIME_TYPE, false);
+        if (ri != null) {
+            // prepare metadata and write param
+            final IIOMetadata imageMetadata = gifWriter.getDefaultImageMetadata(
+                    new ImageTypeSpecifier(ri), param);
+            prepareMetadata(ri, imageMetadata, loopContinuosly, delay);
+
+            // write
+            gifWriter.writeToSequence(new IIOImage(ri, null, imageMetadata), param);
+        }
+        return ri;
+    }
+
     public String getContentDisposition() {
         // can be null
         return null;
@@ -8,8 +8,10 @@ package org.geoserver.wms.map;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -24,6 +26,7 @@ import java.util.logging.Level;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.collections.EnumerationUtils;
+import org.apache.commons.io.IOUtils;
 import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
@@ -111,6 +114,16 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
      * EntityResolver provider, used in SLD parsing
      */
     EntityResolverProvider entityResolverProvider;
+
+    /**
+     * Cache of the styles parsed from the SLD and SLD_BODY parameters
+     */
+    private ParsedStyleCache styleCache = new ParsedStyleCache();
+
+    /**
+     * Cache of the flattened layer groups, optional
+     */
+    private LayerGroupRenderPlanCache renderPlanCache;
     
     /**
      * This flags allows the kvp reader to go beyond the SLD library mode specification and match
@@ -141,6 +154,32 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
         this.styleFactory = styleFactory;
     }
 
+    public void setStyleCache(ParsedStyleCache styleCache) {
+        this.styleCache = styleCache;
+    }
+
+    public ParsedStyleCache getStyleCache() {
+        return styleCache;
+    }
+
+    public void setRenderPlanCache(LayerGroupRenderPlanCache renderPlanCache) {
+        this.renderPlanCache = renderPlanCache;
+    }
+
+    public LayerGroupRenderPlanCache getRenderPlanCache() {
+        return renderPlanCache;
+    }
+
+    /**
+     * Returns the flattened layers and styles of the group, from the cache if available
+     */
+    LayerGroupRenderPlan getRenderPlan(LayerGroupInfo group) throws IOException {
+        if (renderPlanCache != null) {
+            return renderPlanCache.getPlan(group);
+        }
+        return new LayerGroupRenderPlan(group);
+    }
+
     public void setFilterFactory(FilterFactory filterFactory) {
         this.filterFactory = filterFactory;
     }
@@ -225,7 +264,7 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
                 if (o instanceof LayerInfo) {
                     layers.add(new MapLayerInfo((LayerInfo) o));
                 } else if (o instanceof LayerGroupInfo) {
-                    for (LayerInfo l : ((LayerGroupInfo) o).layers()) {
+                    for (LayerInfo l : getRenderPlan((LayerGroupInfo) o).getLayers()) {
                         layers.add(new MapLayerInfo(l));
                     }
                 } else if (o instanceof MapLayerInfo) {
@@ -253,19 +292,29 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
                 LOGGER.fine("Getting layers and styles from SLD_BODY");
             }
 
-            if (getMap.getValidateSchema().booleanValue()) {
-                ByteArrayInputStream stream = new ByteArrayInputStream(getMap.getSldBody()
-                        .getBytes());
-                List errors = validateStyle(stream, getMap);
-
-                if (errors.size() != 0) {
-                    throw new ServiceException(SLDValidator.getErrorMessage(
-                            new ByteArrayInputStream(getMap.getSldBody().getBytes()), errors));
+            final boolean validate = getMap.getValidateSchema().booleanValue();
+            final String cacheKey = styleCache.getBodyKey(getMap.getSldBody(),
+                    getStyleFormat(getMap), getMap.styleVersion());
+            ParsedStyleCache.CachedStyle cached = styleCache.get(cacheKey, validate);
+            StyledLayerDescriptor sld;
+            if (cached != null) {
+                sld = cached.getStyle();
+            } else {
+                if (validate) {
+                    ByteArrayInputStream stream = new ByteArrayInputStream(getMap.getSldBody()
+                            .getBytes());
+                    List errors = validateStyle(stream, getMap);
+
+                    if (errors.size() != 0) {
+                        throw new ServiceException(SLDValidator.getErrorMessage(
+                                new ByteArrayInputStream(getMap.getSldBody().getBytes()), errors));
+                    }
                 }
-            }
 
-            InputStream input = new ByteArrayInputStream(getMap.getSldBody().getBytes());
-            StyledLayerDescriptor sld = parseStyle(getMap, input);
+                InputStream input = new ByteArrayInputStream(getMap.getSldBody().getBytes());
+                sld = parseStyle(getMap, input);
+                styleCache.put(cacheKey, sld, getMap.getSldBody().length(), validate, null);
+            }
             processSld(getMap, requestedLayerInfos, sld, styleNameList);
 
             // set filter in, we'll check consistency later
@@ -276,38 +325,8 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
             }
 
             URL styleUrl = getMap.getStyleUrl();
-
-            if (getMap.getValidateSchema().booleanValue()) {
-                InputStream input = Requests.getInputStream(styleUrl);
-                List errors = null;
-
-                try {
-                    errors = validateStyle(input, getMap);
-                } finally {
-                    input.close();
-                }
-
-                if ((errors != null) && (errors.size() != 0)) {
-                    input = Requests.getInputStream(styleUrl);
-
-                    try {
-                        throw new ServiceException(SLDValidator.getErrorMessage(input, errors));
-                    } finally {
-                        input.close();
-                    }
-                }
-            }
-
-            // JD: GEOS-420, Wrap the sldUrl in getINputStream method in order
-            // to do compression
-            InputStream input = Requests.getInputStream(styleUrl);
-
-            try {
-                StyledLayerDescriptor sld = parseStyle(getMap, input);
-                processSld(getMap, requestedLayerInfos, sld, styleNameList);
-            } finally {
-                input.close();
-            }
+            StyledLayerDescriptor sld = readRemoteStyle(getMap, styleUrl);
+            processSld(getMap, requestedLayerInfos, sld, styleNameList);
 
             // set filter in, we'll check consistency later
             getMap.setFilter(filters);
@@ -334,18 +353,9 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
                     Style style = oldStyles.isEmpty() ? null : (Style) oldStyles.get(i);
 
                     if (o instanceof LayerGroupInfo) {
-                        LayerGroupInfo groupInfo = (LayerGroupInfo) o;
-                        List<LayerInfo> layers = groupInfo.layers();
-                        List<StyleInfo> styles = groupInfo.styles();
-                        for (int j = 0; j < styles.size(); j++) {
-                            StyleInfo si = styles.get(j);
-                            if (si != null){
-                                newStyles.add(si.getStyle());
-                            } else {
-                                LayerInfo layer = layers.get(j);
-                                newStyles.add(getDefaultStyle(layer));
-                            }
-                        }
+                        LayerGroupRenderPlan plan = getRenderPlan((LayerGroupInfo) o);
+                        List<LayerInfo> layers = plan.getLayers();
+                        newStyles.addAll(plan.getStyles());
                         // expand the filter on the layer group to all its sublayers
                         if (filters != null) {
                             for (int j = 0; j < layers.size(); j++) {
@@ -486,7 +496,11 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
         return getMap;
     }
 
-    private Style getDefaultStyle (LayerInfo layer) throws IOException{
+    /**
+     * Returns the default style of the layer, or an unnamed {@link NamedStyle} for cascaded WMS
+     * layers
+     */
+    static Style getDefaultStyle(LayerInfo layer) throws IOException {
         if (layer.getResource() instanceof WMSLayerInfo) {
             // NamedStyle is a subclass of Style -> we use it as a way to convey
             // cascaded WMS layer styles
@@ -588,6 +602,50 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
         }
     }
 
+    /**
+     * Reads, validates if required, and parses the remote style. Styles served over HTTP with
+     * validators are cached, and reused as long as the remote server reports them as not modified
+     */
+    private StyledLayerDescriptor readRemoteStyle(GetMapRequest getMap, URL styleUrl)
+            throws IOException {
+        final boolean validate = getMap.getValidateSchema().booleanValue();
+        final String cacheKey = styleCache.getUrlKey(styleUrl, getStyleFormat(getMap),
+                getMap.styleVersion());
+        URLConnection conn = styleUrl.openConnection();
+        final boolean http = conn instanceof HttpURLConnection;
+        ParsedStyleCache.CachedStyle cached = http ? styleCache.get(cacheKey, validate) : null;
+        if (cached != null) {
+            cached.addValidators(conn);
+        }
+
+        // JD: GEOS-420, Wrap the sldUrl in getINputStream method in order
+        // to do compression
+        InputStream input = Requests.getInputStream(conn);
+        byte[] contents;
+        try {
+            if (cached != null && cached.isNotModified(conn)) {
+                return cached.getStyle();
+            }
+            contents = IOUtils.toByteArray(input);
+        } finally {
+            input.close();
+        }
+
+        if (validate) {
+            List errors = validateStyle(new ByteArrayInputStream(contents), getMap);
+            if ((errors != null) && (errors.size() != 0)) {
+                throw new ServiceException(SLDValidator.getErrorMessage(new ByteArrayInputStream(
+                        contents), errors));
+            }
+        }
+
+        StyledLayerDescriptor sld = parseStyle(getMap, new ByteArrayInputStream(contents));
+        if (http) {
+            styleCache.put(cacheKey, sld, contents.length, validate, conn);
+        }
+        return sld;
+    }
+
     /*
      * Get style language from request, falling back on SLD as default. 
      */
@@ -668,7 +726,7 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
                 Style style = findStyleOf(request, currLayer, styleName, styledLayers);
                 styles.add(style);
             } else if (o instanceof LayerGroupInfo) {
-                List<LayerInfo> subLayers = ((LayerGroupInfo) o).layers();
+                List<LayerInfo> subLayers = getRenderPlan((LayerGroupInfo) o).getLayers();
                 for (LayerInfo layer : subLayers) {
                     currLayer = new MapLayerInfo(layer);
                     layers.add(currLayer);
@@ -0,0 +1,875 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.io.FileUtils;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.DispatcherCallback;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.Response;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.AbstractLayerCache;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WebMap;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.styling.Style;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * An opt-in cache of the encoded GetMap responses, meant for the untiled requests that do not get
+ * to use GeoWebCache, but are still issued over and over with the very same parameters (overview
+ * maps, report thumbnails, ...).
+ * <p>
+ * A request is cached only if all the layers it contains have the {@link #CACHE_ENABLED} key set
+ * to true in their metadata, it is not tiled, and it is not referencing a remote SLD document.
+ * Responses are keyed by user and by the canonicalised request (layers, styles, bbox, size,
+ * format and all the other parameters, including env, time, elevation and viewparams), and are
+ * kept in memory, spilling over to a disk tier in the data directory when the memory tier is
+ * full.
+ * <p>
+ * Cached responses carry ETag and Last-Modified headers, clients sending back matching
+ * conditional headers receive a 304. Entries are dropped when the layers they contain are
+ * modified in the catalog, and when a WFS transaction modifying features in the area they cover
+ * is committed.
+ * <p>
+ * The class works both as the interceptor of {@link org.geoserver.wms.WebMapService#getMap}
+ * (serving the cached responses) and as a dispatcher callback (recording the responses as they
+ * are encoded).
+ * <p>
+ * The memory and disk tier sizes, in KB, are configured via the
+ * {@code org.geoserver.wms.responseCache.memorySize} and
+ * {@code org.geoserver.wms.responseCache.diskSize} properties, a non positive memory size
+ * disables the cache.
+ */
+public class GetMapResponseCache extends AbstractLayerCache implements MethodInterceptor,
+        DispatcherCallback, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(GetMapResponseCache.class);
+
+    /**
+     * The layer metadata key enabling the response cache
+     */
+    public static final String CACHE_ENABLED = "getMapResponseCache";
+
+    static final String MEMORY_SIZE_KEY = "org.geoserver.wms.responseCache.memorySize";
+
+    static final String DISK_SIZE_KEY = "org.geoserver.wms.responseCache.diskSize";
+
+    /**
+     * Default memory tier size, 16MB
+     */
+    static final long DEFAULT_MEMORY_SIZE = 16 * 1024;
+
+    /**
+     * Default disk tier size, 256MB
+     */
+    static final long DEFAULT_DISK_SIZE = 256 * 1024;
+
+    /**
+     * How many pixels around the map are considered when checking if a transaction affected it,
+     * to account for symbols and labels painted from features sitting outside of the map
+     */
+    static final int MARGIN_PIXELS = 64;
+
+    /**
+     * Parameters that are already part of the key in canonical form, or do not affect the output
+     */
+    static final Set<String> KEY_EXCLUDED_PARAMS = new HashSet<String>();
+    static {
+        KEY_EXCLUDED_PARAMS.add("SERVICE");
+        KEY_EXCLUDED_PARAMS.add("REQUEST");
+        KEY_EXCLUDED_PARAMS.add("LAYERS");
+        KEY_EXCLUDED_PARAMS.add("STYLES");
+        KEY_EXCLUDED_PARAMS.add("BBOX");
+        KEY_EXCLUDED_PARAMS.add("SRS");
+        KEY_EXCLUDED_PARAMS.add("CRS");
+        KEY_EXCLUDED_PARAMS.add("WIDTH");
+        KEY_EXCLUDED_PARAMS.add("HEIGHT");
+        KEY_EXCLUDED_PARAMS.add("FORMAT");
+    }
+
+    final GeoServer geoServer;
+
+    final long maxMemorySize;
+
+    final long maxDiskSize;
+
+    /**
+     * The cached entries, in access order
+     */
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f,
+            true);
+
+    long memorySize;
+
+    long diskSize;
+
+    /**
+     * Bumped at each invalidation, responses whose rendering started before an invalidation are
+     * not stored as they might be stale already
+     */
+    long generation;
+
+    /**
+     * The generation at the time the current GetMap request was dispatched
+     */
+    final ThreadLocal<Long> requestGeneration = new ThreadLocal<Long>();
+
+    File diskDirectory;
+
+    final Object diskDirectoryLock = new Object();
+
+    public GetMapResponseCache(GeoServer geoServer) {
+        this(geoServer, getLongProperty(MEMORY_SIZE_KEY, DEFAULT_MEMORY_SIZE) * 1024,
+                getLongProperty(DISK_SIZE_KEY, DEFAULT_DISK_SIZE) * 1024);
+    }
+
+    /**
+     * Builds the cache with the given tier sizes, in bytes
+     */
+    GetMapResponseCache(GeoServer geoServer, long maxMemorySize, long maxDiskSize) {
+        super(geoServer.getCatalog(), true);
+        this.geoServer = geoServer;
+        this.maxMemorySize = maxMemorySize;
+        this.maxDiskSize = maxDiskSize;
+        catalog.addListener(this);
+        clearOnConfigurationChange(geoServer, null);
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return maxMemorySize > 0;
+    }
+
+    /**
+     * Returns the cache key for the request, or null if the request cannot be cached
+     *
+     * @param request
+     * @return
+     */
+    String getKey(GetMapRequest request) {
+        if (!isEnabled() || request.isTiled() || request.getRawKvp() == null
+                || request.getSld() != null || request.getLayers().isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        sb.append(auth == null ? "" : auth.getName()).append('|');
+
+        sb.append("LAYERS=");
+        for (MapLayerInfo layer : request.getLayers()) {
+            LayerInfo info = layer.getLayerInfo();
+            if (info == null
+                    || !Boolean.TRUE.equals(info.getMetadata().get(CACHE_ENABLED, Boolean.class))) {
+                return null;
+            }
+            sb.append(info.getResource().prefixedName()).append(',');
+        }
+        sb.append("&STYLES=");
+        for (Style style : request.getStyles()) {
+            sb.append(style == null ? "" : style.getName()).append(',');
+        }
+        ReferencedEnvelope bbox = getBounds(request);
+        sb.append("&BBOX=").append(bbox.getMinX()).append(',').append(bbox.getMinY())
+                .append(',').append(bbox.getMaxX()).append(',').append(bbox.getMaxY());
+        sb.append("&SRS=").append(request.getSRS());
+        sb.append("&WIDTH=").append(request.getWidth());
+        sb.append("&HEIGHT=").append(request.getHeight());
+        sb.append("&FORMAT=").append(request.getFormat());
+
+        // everything else, in a predictable order
+        Map<String, String> params = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : request.getRawKvp().entrySet()) {
+            String name = entry.getKey().toUpperCase();
+            if (!KEY_EXCLUDED_PARAMS.contains(name)) {
+                params.put(name, entry.getValue());
+            }
+        }
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            sb.append('&').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    private ReferencedEnvelope getBounds(GetMapRequest request) {
+        return new ReferencedEnvelope(request.getBbox(), request.getCrs());
+    }
+
+    // ----------------------------------------------------------------------------------------
+    // Serving the cached responses
+    // ----------------------------------------------------------------------------------------
+
+    /**
+     * Wraps {@link org.geoserver.wms.WebMapService#getMap(GetMapRequest)}, returning the cached
+     * response if available
+     */
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Object[] arguments = invocation.getArguments();
+        if (!"getMap".equals(invocation.getMethod().getName()) || arguments.length != 1
+                || !(arguments[0] instanceof GetMapRequest)) {
+            return invocation.proceed();
+        }
+        GetMapRequest request = (GetMapRequest) arguments[0];
+        String key = getKey(request);
+        if (key == null) {
+            return invocation.proceed();
+        }
+        Entry entry = getEntry(key);
+        if (entry == null) {
+            return invocation.proceed();
+        }
+        byte[] contents = read(entry);
+        if (contents == null) {
+            return invocation.proceed();
+        }
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Serving cached GetMap response " + key);
+        }
+        checkNotModified(request, entry);
+        CachedMap map = new CachedMap(contents, entry);
+        map.setResponseHeader("geoserver-cache-result", "HIT");
+        return map;
+    }
+
+    /**
+     * Throws a 304 if the client already has the current version of the response
+     */
+    void checkNotModified(GetMapRequest request, Entry entry) {
+        String ifNoneMatch = request.getHttpRequestHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.contains(entry.etag)) {
+                setValidators(entry);
+                throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+            }
+            // the validators did not match, don't look at the date
+            return;
+        }
+        String ifModifiedSince = request.getHttpRequestHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                Date date = newDateFormat().parse(ifModifiedSince);
+                // the HTTP header has second precision
+                if (date.getTime() / 1000 >= entry.created / 1000) {
+                    setValidators(entry);
+                    throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+                }
+            } catch (ParseException e) {
+                if (LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.finer("Can't parse client's If-Modified-Since header: '"
+                            + ifModifiedSince + "'");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the ETag and Last-Modified headers of the entry on the HTTP response, a 304 has to
+     * carry them and the dispatcher won't write the headers of a response it does not encode
+     */
+    void setValidators(Entry entry) {
+        Request request = Dispatcher.REQUEST.get();
+        if (request == null || request.getHttpResponse() == null) {
+            return;
+        }
+        HttpServletResponse response = request.getHttpResponse();
+        response.setHeader("ETag", entry.etag);
+        response.setHeader("Last-Modified", newDateFormat().format(new Date(entry.created)));
+    }
+
+    static SimpleDateFormat newDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    // ----------------------------------------------------------------------------------------
+    // Recording the responses
+    // ----------------------------------------------------------------------------------------
+
+    @Override
+    public Response responseDispatched(Request request, Operation operation, Object result,
+            Response response) {
+        if (!(result instanceof WebMap) || result instanceof CachedMap
+                || !"GetMap".equalsIgnoreCase(operation.getId())) {
+            return response;
+        }
+        Object[] parameters = operation.getParameters();
+        if (parameters == null || parameters.length != 1
+                || !(parameters[0] instanceof GetMapRequest)) {
+            return response;
+        }
+        GetMapRequest getMap = (GetMapRequest) parameters[0];
+        String key = getKey(getMap);
+        if (key == null) {
+            return response;
+        }
+        Long generation = requestGeneration.get();
+        if (generation == null) {
+            return response;
+        }
+        return new RecordingResponse(response, key, getMap, generation);
+    }
+
+    /**
+     * Adds a response to the cache, unless the cache got invalidated after the given generation
+     */
+    void put(String key, GetMapRequest request, byte[] contents, String mimeType,
+            String[][] headers, String disposition, String fileName, long generation) {
+        if (contents.length > maxMemorySize) {
+            return;
+        }
+        Entry entry = new Entry(key, contents, mimeType, headers, disposition, fileName);
+        for (MapLayerInfo layer : request.getLayers()) {
+            entry.layers.add(layer.getLayerInfo().getResource().prefixedName());
+        }
+        ReferencedEnvelope bounds = getBounds(request);
+        double margin = Math.max(bounds.getWidth() / request.getWidth(), bounds.getHeight()
+                / request.getHeight())
+                * MARGIN_PIXELS;
+        bounds.expandBy(margin);
+        entry.bounds = bounds;
+
+        List<Entry> spilled = new ArrayList<Entry>();
+        List<Entry> removed = new ArrayList<Entry>();
+        synchronized (this) {
+            if (generation != this.generation) {
+                // the data changed while the response was being built
+                return;
+            }
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                release(previous);
+                removed.add(previous);
+            }
+            memorySize += contents.length;
+            enforceLimits(spilled, removed);
+        }
+        spill(spilled);
+        deleteFiles(removed);
+    }
+
+    /**
+     * Picks the least recently used entries to be moved to disk, and drops the ones that do not
+     * fit on disk either. Must be called while holding the lock. The entries to be moved are
+     * accounted in the disk tier right away, but their files are written later by
+     * {@link #spill(List)}, outside of the lock.
+     *
+     * @param spilled collects the entries to be moved to disk
+     * @param removed collects the entries removed from the cache, whose files need to be deleted
+     */
+    void enforceLimits(List<Entry> spilled, List<Entry> removed) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (memorySize > maxMemorySize && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.onDisk) {
+                continue;
+            }
+            if (maxDiskSize > 0 && entry.size <= maxDiskSize) {
+                entry.onDisk = true;
+                memorySize -= entry.size;
+                diskSize += entry.size;
+                spilled.add(entry);
+            } else {
+                it.remove();
+                release(entry);
+            }
+        }
+        it = entries.values().iterator();
+        while (diskSize > maxDiskSize && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.onDisk) {
+                it.remove();
+                release(entry);
+                removed.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Writes the contents of the entries picked by {@link #enforceLimits} to disk. The entries
+     * keep serving their contents from memory until the file is written, entries removed from
+     * the cache in the meantime get their file deleted.
+     */
+    void spill(List<Entry> spilled) {
+        for (Entry entry : spilled) {
+            File file = null;
+            try {
+                file = File.createTempFile("getmap", ".cache", getDiskDirectory());
+                FileUtils.writeByteArrayToFile(file, entry.contents);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to move a cached GetMap response to disk", e);
+                if (file != null) {
+                    file.delete();
+                    file = null;
+                }
+            }
+
+            boolean orphan;
+            synchronized (this) {
+                orphan = entry.released;
+                if (!orphan) {
+                    if (file != null) {
+                        entry.file = file;
+                        entry.contents = null;
+                    } else {
+                        entries.remove(entry.key);
+                        release(entry);
+                    }
+                }
+            }
+            if (orphan && file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    File getDiskDirectory() throws IOException {
+        synchronized (diskDirectoryLock) {
+            if (diskDirectory == null) {
+                diskDirectory = geoServer.getCatalog().getResourceLoader()
+                        .findOrCreateDirectory("temp", "wms", "responseCache");
+                FileUtils.cleanDirectory(diskDirectory);
+            }
+            return diskDirectory;
+        }
+    }
+
+    /**
+     * Updates the tier sizes after an entry got removed. Must be called while holding the lock.
+     */
+    void release(Entry entry) {
+        entry.released = true;
+        if (entry.onDisk) {
+            diskSize -= entry.size;
+        } else {
+            memorySize -= entry.size;
+        }
+    }
+
+    void deleteFiles(List<Entry> removed) {
+        for (Entry entry : removed) {
+            if (entry.file != null) {
+                entry.file.delete();
+            }
+        }
+    }
+
+    synchronized Entry getEntry(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Returns the entry contents, or null if they could not be read
+     */
+    byte[] read(Entry entry) {
+        byte[] contents = entry.contents;
+        if (contents != null) {
+            return contents;
+        }
+        File file = entry.file;
+        if (file == null) {
+            return null;
+        }
+        try {
+            return FileUtils.readFileToByteArray(file);
+        } catch (IOException e) {
+            // removed in the meantime
+            LOGGER.log(Level.FINE, "Failed to read the cached GetMap response", e);
+            return null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------
+    // Invalidation
+    // ----------------------------------------------------------------------------------------
+
+    /**
+     * Drops all the cached responses
+     */
+    @Override
+    public void clear() {
+        List<Entry> removed;
+        synchronized (this) {
+            generation++;
+            removed = new ArrayList<Entry>(entries.values());
+            for (Entry entry : removed) {
+                entry.released = true;
+            }
+            entries.clear();
+            memorySize = 0;
+            diskSize = 0;
+        }
+        deleteFiles(removed);
+    }
+
+    /**
+     * Drops the cached responses containing the given layer and touching the given area
+     *
+     * @param layerName the layer prefixed name
+     * @param bounds the modified area, or null if unknown
+     */
+    @Override
+    public void invalidate(String layerName, ReferencedEnvelope bounds) {
+        List<Entry> removed = new ArrayList<Entry>();
+        synchronized (this) {
+            generation++;
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.layers.contains(layerName) && intersects(entry.bounds, bounds)) {
+                    it.remove();
+                    release(entry);
+                    removed.add(entry);
+                }
+            }
+        }
+        deleteFiles(removed);
+    }
+
+    /**
+     * Drops the cached responses containing the given layer
+     */
+    @Override
+    public void invalidate(String layerName) {
+        invalidate(layerName, null);
+    }
+
+    boolean intersects(ReferencedEnvelope mapBounds, ReferencedEnvelope bounds) {
+        if (bounds == null || bounds.isNull()) {
+            return true;
+        }
+        try {
+            ReferencedEnvelope transformed = bounds;
+            if (bounds.getCoordinateReferenceSystem() != null
+                    && mapBounds.getCoordinateReferenceSystem() != null
+                    && !CRS.equalsIgnoreMetadata(bounds.getCoordinateReferenceSystem(),
+                            mapBounds.getCoordinateReferenceSystem())) {
+                transformed = bounds.transform(mapBounds.getCoordinateReferenceSystem(), true);
+            }
+            return transformed.intersects((Envelope) mapBounds);
+        } catch (Exception e) {
+            // be conservative
+            return true;
+        }
+    }
+
+    @Override
+    protected ReferencedEnvelope getModifiedArea(TransactionEvent event) {
+        return event.getAffectedBounds();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+        catalog.removeListener(this);
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    // ----------------------------------------------------------------------------------------
+    // Other dispatcher callbacks
+    // ----------------------------------------------------------------------------------------
+
+    @Override
+    public Request init(Request request) {
+        return request;
+    }
+
+    @Override
+    public Service serviceDispatched(Request request, Service service) throws ServiceException {
+        return service;
+    }
+
+    @Override
+    public Operation operationDispatched(Request request, Operation operation) {
+        if ("GetMap".equalsIgnoreCase(operation.getId())) {
+            synchronized (this) {
+                requestGeneration.set(generation);
+            }
+        }
+        return operation;
+    }
+
+    @Override
+    public Object operationExecuted(Request request, Operation operation, Object result) {
+        return result;
+    }
+
+    @Override
+    public void finished(Request request) {
+        requestGeneration.remove();
+    }
+
+    /**
+     * A cached response
+     */
+    static class Entry {
+
+        final String key;
+
+        final int size;
+
+        final String mimeType;
+
+        final String[][] headers;
+
+        final String disposition;
+
+        final String fileName;
+
+        final String etag;
+
+        final long created = System.currentTimeMillis();
+
+        final Set<String> layers = new HashSet<String>();
+
+        ReferencedEnvelope bounds;
+
+        /**
+         * The contents, if in the memory tier
+         */
+        volatile byte[] contents;
+
+        /**
+         * The contents location, if in the disk tier
+         */
+        volatile File file;
+
+        /**
+         * Whether the entry is accounted in the disk tier, its file might still be being written.
+         * Guarded by the cache lock.
+         */
+        boolean onDisk;
+
+        /**
+         * Whether the entry got removed from the cache. Guarded by the cache lock.
+         */
+        boolean released;
+
+        Entry(String key, byte[] contents, String mimeType, String[][] headers,
+                String disposition, String fileName) {
+            this.key = key;
+            this.contents = contents;
+            this.size = contents.length;
+            this.mimeType = mimeType;
+            this.headers = headers;
+            this.disposition = disposition;
+            this.fileName = fileName;
+            this.etag = "\"" + digest(contents) + "\"";
+        }
+
+        static String digest(byte[] contents) {
+            try {
+                byte[] hash = MessageDigest.getInstance("MD5").digest(contents);
+                StringBuilder sb = new StringBuilder();
+                for (byte b : hash) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    sb.append(Character.forDigit(b & 0xF, 16));
+                }
+                return sb.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("MD5 digest is not available", e);
+            }
+        }
+    }
+
+    /**
+     * The map returned on cache hits
+     */
+    static class CachedMap extends RawMap {
+
+        final Entry entry;
+
+        CachedMap(byte[] contents, Entry entry) {
+            super(null, contents, entry.mimeType);
+            this.entry = entry;
+            if (entry.headers != null) {
+                for (String[] header : entry.headers) {
+                    setResponseHeader(header[0], header[1]);
+                }
+            }
+            setResponseHeader("ETag", entry.etag);
+            setResponseHeader("Last-Modified", newDateFormat().format(new Date(entry.created)));
+        }
+
+        @Override
+        public String getDisposition() {
+            return entry.disposition;
+        }
+
+        @Override
+        public String getAttachmentFileName() {
+            return entry.fileName;
+        }
+    }
+
+    /**
+     * Wraps the response chosen by the dispatcher, recording the encoded bytes as they are
+     * written out
+     */
+    class RecordingResponse extends Response {
+
+        final Response delegate;
+
+        final String key;
+
+        final GetMapRequest request;
+
+        final long generation;
+
+        RecordingResponse(Response delegate, String key, GetMapRequest request, long generation) {
+            super(delegate.getBinding());
+            this.delegate = delegate;
+            this.key = key;
+            this.request = request;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean canHandle(Operation operation) {
+            return delegate.canHandle(operation);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return delegate.getMimeType(value, operation);
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            return delegate.getHeaders(value, operation);
+        }
+
+        @Override
+        public String getPreferredDisposition(Object value, Operation operation) {
+            return delegate.getPreferredDisposition(value, operation);
+        }
+
+        @Override
+        public String getAttachmentFileName(Object value, Operation operation) {
+            return delegate.getAttachmentFileName(value, operation);
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            // grab the response metadata before writing, as writing disposes the map
+            String mimeType = delegate.getMimeType(value, operation);
+            String[][] headers = delegate.getHeaders(value, operation);
+            String disposition = delegate.getPreferredDisposition(value, operation);
+            String fileName = delegate.getAttachmentFileName(value, operation);
+
+            TeeOutputStream tee = new TeeOutputStream(output, maxMemorySize);
+            delegate.write(value, tee, operation);
+            tee.flush();
+            if (!tee.overflown) {
+                put(key, request, tee.copy.toByteArray(), mimeType, headers, disposition,
+                        fileName, generation);
+            }
+        }
+    }
+
+    /**
+     * Writes to the actual output, keeping a copy of the contents up to the specified size
+     */
+    static class TeeOutputStream extends FilterOutputStream {
+
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        final long maxSize;
+
+        boolean overflown;
+
+        TeeOutputStream(OutputStream out, long maxSize) {
+            super(out);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            record(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            record(b, off, len);
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (overflown) {
+                return;
+            }
+            if (copy.size() + len > maxSize) {
+                overflown = true;
+                copy.reset();
+            } else {
+                copy.write(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geotools.styling.Style;
+
+/**
+ * The flattened, ready to render, contents of a layer group: the layers in painting order, along
+ * with their parsed styles.
+ * <p>
+ * Plans are immutable, and are shared among requests by {@link LayerGroupRenderPlanCache}.
+ */
+public class LayerGroupRenderPlan {
+
+    private final List<LayerInfo> layers;
+
+    private final List<Style> styles;
+
+    LayerGroupRenderPlan(LayerGroupInfo group) throws IOException {
+        List<LayerInfo> groupLayers = group.layers();
+        List<StyleInfo> groupStyles = group.styles();
+        int size = groupLayers.size();
+
+        List<Style> parsedStyles = new ArrayList<Style>(size);
+        for (int i = 0; i < size; i++) {
+            LayerInfo layer = groupLayers.get(i);
+            StyleInfo si = i < groupStyles.size() ? groupStyles.get(i) : null;
+            parsedStyles.add(si != null ? si.getStyle()
+                    : GetMapKvpRequestReader.getDefaultStyle(layer));
+        }
+
+        this.layers = Collections.unmodifiableList(new ArrayList<LayerInfo>(groupLayers));
+        this.styles = Collections.unmodifiableList(parsedStyles);
+    }
+
+    /**
+     * The layers to be painted, in painting order
+     *
+     * @return
+     */
+    public List<LayerInfo> getLayers() {
+        return layers;
+    }
+
+    /**
+     * The parsed styles, one per layer
+     *
+     * @return
+     */
+    public List<Style> getStyles() {
+        return styles;
+    }
+
+    public int size() {
+        return layers.size();
+    }
+}
@@ -0,0 +1,149 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.security.decorators.SecuredLayerGroupInfo;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Caches the {@link LayerGroupRenderPlan} of each layer group, so that GetMap requests naming a
+ * group do not have to walk its nested groups and resolve its styles over and over. The cache is
+ * cleared whenever a layer group, layer, style, resource or store is modified or removed.
+ * <p>
+ * Groups that the current user can only partially see are handed out by the secure catalog as a
+ * filtered view, the plans for those are built on the fly and never cached.
+ */
+public class LayerGroupRenderPlanCache implements CatalogListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(LayerGroupRenderPlanCache.class);
+
+    final ConcurrentHashMap<String, LayerGroupRenderPlan> plans =
+            new ConcurrentHashMap<String, LayerGroupRenderPlan>();
+
+    /**
+     * Incremented on each clear, so that plans built while the catalog was changing are not cached
+     */
+    final AtomicLong generation = new AtomicLong();
+
+    Catalog catalog;
+
+    public LayerGroupRenderPlanCache(Catalog catalog) {
+        this.catalog = catalog;
+        catalog.addListener(this);
+    }
+
+    /**
+     * Returns the render plan for the given group
+     *
+     * @param group
+     * @return
+     * @throws IOException if one of the styles could not be parsed
+     */
+    public LayerGroupRenderPlan getPlan(LayerGroupInfo group) throws IOException {
+        if (group instanceof SecuredLayerGroupInfo || group.getId() == null) {
+            return new LayerGroupRenderPlan(group);
+        }
+
+        LayerGroupRenderPlan plan = plans.get(group.getId());
+        if (plan == null) {
+            long current = generation.get();
+            plan = new LayerGroupRenderPlan(group);
+            plans.put(group.getId(), plan);
+            if (generation.get() != current) {
+                // the catalog changed while building the plan, it might be stale
+                plans.remove(group.getId(), plan);
+            } else if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Cached the render plan of layer group " + group.getName() + ", "
+                        + plan.size() + " layers");
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Drops all the cached plans
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        plans.clear();
+    }
+
+    private void handleChange(CatalogEvent event) {
+        Object source = event.getSource();
+        if (source instanceof LayerGroupInfo || source instanceof LayerInfo
+                || source instanceof StyleInfo || source instanceof ResourceInfo
+                || source instanceof StoreInfo) {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do, a new object cannot be part of a cached plan
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        handleChange(event);
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        handleChange(event);
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+        catalog.removeListener(this);
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+}
@@ -11,10 +11,19 @@ import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,11 +47,13 @@ import org.geotools.resources.i18n.ErrorKeys;
 import org.geotools.resources.i18n.Errors;
 import org.geotools.util.logging.Logging;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Wrapping map producer that performs on the fly meta tiling wrapping another map producer. It will
  * first peek inside a tile cache to see if the requested tile has already been computed, if so,
- * it'll encode and return that one, otherwise it'll build a meta tile, split it, and finally encode
- * just the requested tile, putting the others in the tile cache.
+ * it'll return it as is, otherwise it'll build a meta tile, split it and encode all the tiles in
+ * parallel, returning the requested one and putting all of them, encoded, in the tile cache.
  * 
  * @author Andrea Aime - TOPP
  * @author Simone Giannecchini - GeoSolutions
@@ -104,16 +115,63 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
 
     private static QuickTileCache tileCache;
 
+    /**
+     * Number of threads used to encode the tiles of a meta tile, one or less means the tiles are
+     * encoded sequentially in the request thread
+     */
+    static final int ENCODER_THREADS = getEncoderThreads();
+
+    private static ExecutorService encoderPool;
+
     private GetMapRequest request;
 
     private RenderedImageMapOutputFormat delegate;
+
+    private boolean imageRequired;
     
     public MetatileMapOutputFormat(GetMapRequest request, RenderedImageMapOutputFormat delegate) {
+        this(request, delegate, false);
+    }
+
+    /**
+     * Builds a new meta tiler
+     * 
+     * @param request
+     * @param delegate
+     * @param imageRequired if true the caller needs the tile image, which is cut out of a
+     *        freshly rendered meta tile, bypassing the cache of encoded tiles
+     */
+    public MetatileMapOutputFormat(GetMapRequest request, RenderedImageMapOutputFormat delegate,
+            boolean imageRequired) {
         if (tileCache == null) {
             tileCache = (QuickTileCache) GeoServerExtensions.bean("metaTileCache");
         }
         this.request = request;
         this.delegate = delegate;
+        this.imageRequired = imageRequired;
+    }
+
+    private static int getEncoderThreads() {
+        String value = GeoServerExtensions
+                .getProperty("org.geoserver.wms.map.MetatileMapOutputFormat.encoderThreads");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid number of meta tile encoder threads " + value
+                        + ", using the default");
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    static synchronized ExecutorService getEncoderPool() {
+        if (encoderPool == null) {
+            ThreadFactory factory = new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("MetaTileEncoder-%d").build();
+            encoderPool = Executors.newFixedThreadPool(ENCODER_THREADS, factory);
+        }
+        return encoderPool;
     }
 
     /**
@@ -129,9 +187,13 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
         // to be used)
         QuickTileCache.MetaTileKey key = tileCache.getMetaTileKey(request);
 
+        if (imageRequired) {
+            // the cache holds encoded tiles, decoding them back would be lossy
+            return getTileMap(key, renderMetaTile(key, mapContent), mapContent);
+        }
+
         synchronized (key) {
-            RenderedImage tile = tileCache.getTile(key, request);
-            List<GridCoverage2D> renderedCoverages = null;
+            byte[] tile = tileCache.getTile(key, request);
 
             if (LOGGER.isLoggable(Level.FINER)) {
                 LOGGER.finer("Looked for meta tile " + key.metaTileCoords.x + ", "
@@ -139,40 +201,99 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
             }
 
             if (tile == null) {
-                // compute the meta-tile
-                if (LOGGER.isLoggable(Level.FINER)) {
-                    LOGGER.finer("Building meta tile " + key.metaTileCoords.x + ", "
-                            + key.metaTileCoords.y+" of size w="+
-                            key.getTileSize() * key.getMetaFactor()+", h="+
-                            key.getTileSize() * key.getMetaFactor()+ " with metatilign factor "+key.getMetaFactor());
-                    
+                RenderedImageMap metaTileMap = renderMetaTile(key, mapContent);
+
+                RenderedImage metaTile = metaTileMap.getImage();
+                List<GridCoverage2D> renderedCoverages = metaTileMap.getRenderedCoverages();
+                RenderedImageMapResponse encoder = getEncoder();
+                if (encoder == null) {
+                    // we don't know how to encode the tiles, return the raster one and let
+                    // the dispatcher sort it out
+                    return getTileMap(key, metaTileMap, mapContent);
                 }
 
-                // alter the map definition so that we build a meta-tile instead
-                // of just the tile
-                mapContent.getViewport().setBounds(key.getMetaTileEnvelope());
-                mapContent.setMapWidth(key.getTileSize() * key.getMetaFactor());
-                mapContent.setMapHeight(key.getTileSize() * key.getMetaFactor());
-                mapContent.setTileSize(key.getTileSize());
-                
-                // adjust the bbox/width/height env vars that GetMap setup, since we
-                // are changing them under its feet
-                EnvFunction.setLocalValue("wms_bbox", mapContent.getViewport().getBounds());
-                EnvFunction.setLocalValue("wms_width", mapContent.getMapWidth());
-                EnvFunction.setLocalValue("wms_height", mapContent.getMapHeight());
-
-                RenderedImageMap metaTileMap = delegate.produceMap(mapContent);
+                try {
+                    byte[][] tiles = encode(key, metaTile, mapContent, encoder);
+                    tileCache.storeTiles(key, tiles);
+                    tile = tileCache.getTile(key, request, tiles);
+                } finally {
+                    // let go of the coverages created for rendering
+                    for (GridCoverage2D coverage : renderedCoverages) {
+                        RasterCleaner.addCoverage(coverage);
+                    }
+                }
+            }
+            return new RawMap(mapContent, tile, getMimeType());
+        }
+    }
 
-                RenderedImage metaTile = metaTileMap.getImage();
-                RenderedImage[] tiles = split(key, metaTile, mapContent);
-                tileCache.storeTiles(key, tiles);
-                tile = tileCache.getTile(key, request, tiles);
-                renderedCoverages = metaTileMap.getRenderedCoverages();
+    /**
+     * Renders the whole meta tile the requested tile is part of
+     * 
+     * @param key
+     * @param mapContent
+     * @return
+     * @throws IOException
+     */
+    private RenderedImageMap renderMetaTile(MetaTileKey key, WMSMapContent mapContent)
+            throws IOException {
+        // compute the meta-tile
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Building meta tile " + key.metaTileCoords.x + ", "
+                    + key.metaTileCoords.y+" of size w="+
+                    key.getTileSize() * key.getMetaFactor()+", h="+
+                    key.getTileSize() * key.getMetaFactor()+ " with metatilign factor "+key.getMetaFactor());
+            
+        }
+
+        // alter the map definition so that we build a meta-tile instead
+        // of just the tile
+        mapContent.getViewport().setBounds(key.getMetaTileEnvelope());
+        mapContent.setMapWidth(key.getTileSize() * key.getMetaFactor());
+        mapContent.setMapHeight(key.getTileSize() * key.getMetaFactor());
+        mapContent.setTileSize(key.getTileSize());
+        
+        // adjust the bbox/width/height env vars that GetMap setup, since we
+        // are changing them under its feet
+        EnvFunction.setLocalValue("wms_bbox", mapContent.getViewport().getBounds());
+        EnvFunction.setLocalValue("wms_width", mapContent.getMapWidth());
+        EnvFunction.setLocalValue("wms_height", mapContent.getMapHeight());
+
+        return delegate.produceMap(mapContent);
+    }
+
+    /**
+     * Splits the meta tile and returns the requested tile image
+     * 
+     * @param key
+     * @param metaTileMap
+     * @param mapContent
+     * @return
+     */
+    private RenderedImageMap getTileMap(MetaTileKey key, RenderedImageMap metaTileMap,
+            WMSMapContent mapContent) {
+        RenderedImage[] tiles = split(key, metaTileMap.getImage(), mapContent);
+        RenderedImageMap tileMap = new RenderedImageMap(mapContent, tileCache.getTile(key,
+                request, tiles), getMimeType());
+        tileMap.setRenderedCoverages(metaTileMap.getRenderedCoverages());
+        return tileMap;
+    }
+
+    /**
+     * Looks up the map response that will encode the tiles
+     * 
+     * @return
+     */
+    private RenderedImageMapResponse getEncoder() {
+        final Collection<RenderedImageMapResponse> responses = delegate.wms.getAvailableMapResponses();
+        for (String format : new String[] { request.getFormat(), getMimeType() }) {
+            for (RenderedImageMapResponse response : responses) {
+                if (response.getOutputFormats().contains(format)) {
+                    return response;
+                }
             }
-            RenderedImageMap tileMap = new RenderedImageMap(mapContent, tile, getMimeType());
-            tileMap.setRenderedCoverages(renderedCoverages);
-            return tileMap;
         }
+        return null;
     }
 
     /**
@@ -233,69 +354,17 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
         final RenderedImage[] tiles = new RenderedImage[key.getMetaFactor() * key.getMetaFactor()];
         final int tileSize = key.getTileSize();
 
-        // check image type 
-        int type = 0;
-        if (metaTile instanceof PlanarImage) {
-            type = 1;
-        } else if (metaTile instanceof BufferedImage) {
-            type = 2;
-        }
-        if(LOGGER.isLoggable(Level.FINER)){
-        	LOGGER.finer("Metatile type " + type);        
-        }
-
         // now do the splitting
         if(DEBUG){
         	writeRenderedImage(metaTile,"metaTile");
         } 
+        final RenderedImage source = prepareMetaTile(metaTile);
         for (int i = 0; i < metaFactor; i++) {
             for (int j = 0; j < metaFactor; j++) {
                 int x = j * tileSize;
                 int y = (tileSize * (metaFactor - 1)) - (i * tileSize);
 
-                RenderedImage tile;
-                switch (type) {
-                case 0:
-                	// RENDERED IMAGE
-                    if(LOGGER.isLoggable(Level.FINER)){
-                    	LOGGER.finer("Metatile split on RenderedImage");        
-                    }          
-                    metaTile=PlanarImage.wrapRenderedImage(metaTile);
-                    RasterCleaner.addImage(metaTile);
-
-                case 1:
-                	// PLANAR IMAGE
-                    if(LOGGER.isLoggable(Level.FINER)){
-                    	LOGGER.finer("Metatile split on PlanarImage");        
-                    }                	
-                    final PlanarImage pImage = (PlanarImage) metaTile;
-                    final WritableRaster wTile = WritableRaster.createWritableRaster(
-                            pImage.getSampleModel().createCompatibleSampleModel(tileSize, tileSize), 
-                            new Point(x, y));
-                    Rectangle sourceArea = new Rectangle(x, y, tileSize, tileSize);
-                    sourceArea = sourceArea.intersection(pImage.getBounds());
-                    
-                    // copying the data to ensure we don't have side effects when we clean the cache
-                    pImage.copyData(wTile);
-                    if(wTile.getMinX()!=0||wTile.getMinY()!=0) {
-                        tile = new BufferedImage(pImage.getColorModel(), (WritableRaster) wTile.createTranslatedChild(0, 0), pImage.getColorModel().isAlphaPremultiplied(), null);                    
-                    } else {
-                        tile = new BufferedImage(pImage.getColorModel(), wTile, pImage.getColorModel().isAlphaPremultiplied(), null);
-                    }
-                    break;
-                case 2:
-                	// BUFFERED IMAGE
-                    if(LOGGER.isLoggable(Level.FINER)){
-                    	LOGGER.finer("Metatile split on BufferedImage");        
-                    }                  	
-                    final BufferedImage image = (BufferedImage) metaTile;
-                    tile = image.getSubimage(x, y, tileSize, tileSize);                    
-                    break;                    
-                default:
-                    throw new IllegalStateException(Errors.format(ErrorKeys.ILLEGAL_ARGUMENT_$2,"metaTile class",metaTile.getClass().toString()));
-
-                }
-
+                RenderedImage tile = extractTile(source, x, y, tileSize);
                 tiles[(i * key.getMetaFactor()) + j] = tile;
                 if(DEBUG){
                 	writeRenderedImage(tile, "tile"+i+"-"+j);
@@ -308,6 +377,185 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
         return tiles;
     }
 
+    /**
+     * Splits the meta tile and encodes each tile, using the same layout as
+     * {@link #split(MetaTileKey, RenderedImage, WMSMapContent)}. Tiles are extracted and encoded in
+     * parallel, unless the encoder pool has been disabled.
+     * 
+     * @param key
+     * @param metaTile
+     * @param map
+     * @param encoder
+     * @return
+     * @throws IOException
+     */
+    private static byte[][] encode(MetaTileKey key, RenderedImage metaTile, WMSMapContent map,
+            RenderedImageMapResponse encoder) throws IOException {
+        final int metaFactor = key.getMetaFactor();
+        final int tileSize = key.getTileSize();
+        final boolean parallel = ENCODER_THREADS > 1;
+
+        if(DEBUG){
+        	writeRenderedImage(metaTile,"metaTile");
+        } 
+        final RenderedImage source = prepareMetaTile(metaTile);
+        List<TileEncoder> tasks = new ArrayList<TileEncoder>();
+        for (int i = 0; i < metaFactor; i++) {
+            for (int j = 0; j < metaFactor; j++) {
+                int x = j * tileSize;
+                int y = (tileSize * (metaFactor - 1)) - (i * tileSize);
+                // the encoders running in parallel get their own copy of the map content
+                WMSMapContent tileContent = parallel ? new WMSMapContent(map) : map;
+                tasks.add(new TileEncoder(source, x, y, tileSize, tileContent, encoder, parallel));
+            }
+        }
+
+        final byte[][] tiles = new byte[tasks.size()][];
+        try {
+            if (parallel) {
+                List<Future<byte[]>> futures = getEncoderPool().invokeAll(tasks);
+                for (int i = 0; i < tiles.length; i++) {
+                    tiles[i] = futures.get(i).get();
+                }
+            } else {
+                for (int i = 0; i < tiles.length; i++) {
+                    tiles[i] = tasks.get(i).call();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new ServiceException("Interrupted while encoding the meta tile", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            }
+            throw new ServiceException("Failed to encode the meta tile", cause);
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServiceException("Failed to encode the meta tile", e);
+        } finally {
+            // dispose input image if necessary/possible
+            RasterCleaner.addImage(metaTile);
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Turns the meta tile into an image {@link #extractTile(RenderedImage, int, int, int)} can
+     * work against
+     * 
+     * @param metaTile
+     * @return
+     */
+    private static RenderedImage prepareMetaTile(RenderedImage metaTile) {
+        if (metaTile instanceof PlanarImage || metaTile instanceof BufferedImage) {
+            if(LOGGER.isLoggable(Level.FINER)){
+                LOGGER.finer("Metatile type " + metaTile.getClass().getSimpleName());        
+            }
+            return metaTile;
+        }
+
+        // RENDERED IMAGE
+        if(LOGGER.isLoggable(Level.FINER)){
+            LOGGER.finer("Metatile split on RenderedImage");        
+        }          
+        PlanarImage wrapped = PlanarImage.wrapRenderedImage(metaTile);
+        RasterCleaner.addImage(wrapped);
+        return wrapped;
+    }
+
+    /**
+     * Extracts a single tile out of the meta tile
+     * 
+     * @param metaTile
+     * @param x
+     * @param y
+     * @param tileSize
+     * @return
+     */
+    private static RenderedImage extractTile(RenderedImage metaTile, int x, int y, int tileSize) {
+        if (metaTile instanceof PlanarImage) {
+            // PLANAR IMAGE
+            final PlanarImage pImage = (PlanarImage) metaTile;
+            final WritableRaster wTile = WritableRaster.createWritableRaster(
+                    pImage.getSampleModel().createCompatibleSampleModel(tileSize, tileSize), 
+                    new Point(x, y));
+            Rectangle sourceArea = new Rectangle(x, y, tileSize, tileSize);
+            sourceArea = sourceArea.intersection(pImage.getBounds());
+            
+            // copying the data to ensure we don't have side effects when we clean the cache
+            pImage.copyData(wTile);
+            if(wTile.getMinX()!=0||wTile.getMinY()!=0) {
+                return new BufferedImage(pImage.getColorModel(), (WritableRaster) wTile.createTranslatedChild(0, 0), pImage.getColorModel().isAlphaPremultiplied(), null);                    
+            } else {
+                return new BufferedImage(pImage.getColorModel(), wTile, pImage.getColorModel().isAlphaPremultiplied(), null);
+            }
+        } else if (metaTile instanceof BufferedImage) {
+            // BUFFERED IMAGE
+            // the sub images share the meta tile raster, but they are either encoded right away
+            // or handed out along with the meta tile, which is disposed at the end of the request
+            return ((BufferedImage) metaTile).getSubimage(x, y, tileSize, tileSize);
+        } else {
+            throw new IllegalStateException(Errors.format(ErrorKeys.ILLEGAL_ARGUMENT_$2,"metaTile class",metaTile.getClass().toString()));
+        }
+    }
+
+    /**
+     * Extracts and encodes a single tile of the meta tile
+     */
+    static class TileEncoder implements Callable<byte[]> {
+
+        RenderedImage metaTile;
+
+        int x;
+
+        int y;
+
+        int tileSize;
+
+        WMSMapContent mapContent;
+
+        RenderedImageMapResponse encoder;
+
+        boolean cleanup;
+
+        public TileEncoder(RenderedImage metaTile, int x, int y, int tileSize,
+                WMSMapContent mapContent, RenderedImageMapResponse encoder, boolean cleanup) {
+            this.metaTile = metaTile;
+            this.x = x;
+            this.y = y;
+            this.tileSize = tileSize;
+            this.mapContent = mapContent;
+            this.encoder = encoder;
+            this.cleanup = cleanup;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            try {
+                RenderedImage tile = extractTile(metaTile, x, y, tileSize);
+                if(DEBUG){
+                    writeRenderedImage(tile, "tile"+x+"-"+y);
+                }                
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                encoder.formatImageOutputStream(tile, bos, mapContent);
+                return bos.toByteArray();
+            } finally {
+                if (cleanup) {
+                    // we are not running in the request thread, nobody else will clean up
+                    // the images the encoder scheduled for disposal
+                    RasterCleaner.cleanup();
+                }
+            }
+        }
+    }
+
     public MapProducerCapabilities getCapabilities(String format) {
         throw new RuntimeException("The meta-tile output format should never be invoked directly!");
     }
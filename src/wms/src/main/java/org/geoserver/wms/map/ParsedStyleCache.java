@@ -0,0 +1,309 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.styling.StyledLayer;
+import org.geotools.styling.StyledLayerDescriptor;
+import org.geotools.styling.UserLayer;
+import org.geotools.styling.visitor.DuplicatingStyleVisitor;
+import org.geotools.util.Version;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Caches the {@link StyledLayerDescriptor} parsed out of the GetMap SLD_BODY and SLD parameters,
+ * so that clients sending the same style over and over do not pay for parsing and validation on
+ * each request.
+ * <p>
+ * Inline styles are keyed by a digest of their contents, remote ones by URL, and the latter are
+ * reused only as long as the remote server confirms them as unmodified via the ETag/Last-Modified
+ * validators. The cached documents are never handed out directly, each request gets its own copy
+ * so that changes made while processing the request cannot leak into other ones.
+ * <p>
+ * The cache size is expressed as the total size of the style documents sources, in KB, and can be
+ * configured with the {@code org.geoserver.wms.map.sldCache.maxSize} property (a non positive
+ * value disables the cache)
+ */
+public class ParsedStyleCache {
+
+    static final Logger LOGGER = Logging.getLogger(ParsedStyleCache.class);
+
+    static final String MAX_SIZE_KEY = "org.geoserver.wms.map.sldCache.maxSize";
+
+    /**
+     * Default cache size, 4MB of style sources
+     */
+    static final long DEFAULT_MAX_SIZE = 4 * 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final Cache<String, CachedStyle> cache;
+
+    public ParsedStyleCache() {
+        this(getMaxSizeProperty());
+    }
+
+    public ParsedStyleCache(long maxSize) {
+        if (maxSize > 0) {
+            cache = CacheBuilder.newBuilder().maximumWeight(maxSize)
+                    .weigher(new Weigher<String, CachedStyle>() {
+
+                        @Override
+                        public int weigh(String key, CachedStyle value) {
+                            return value.size;
+                        }
+                    }).recordStats().build();
+        } else {
+            cache = null;
+        }
+    }
+
+    private static long getMaxSizeProperty() {
+        String value = GeoServerExtensions.getProperty(MAX_SIZE_KEY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value) * 1024;
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for " + MAX_SIZE_KEY + ": " + value
+                        + ", using the default " + DEFAULT_MAX_SIZE + "KB");
+            }
+        }
+        return DEFAULT_MAX_SIZE * 1024;
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Builds the cache key for a style provided inline
+     *
+     * @param body the style document
+     * @param format the style language
+     * @param version the style language version, if any
+     * @return
+     */
+    public String getBodyKey(String body, String format, Version version) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(body.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder("body:").append(format).append(":")
+                    .append(version).append(":");
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest is not available", e);
+        }
+    }
+
+    /**
+     * Builds the cache key for a remote style
+     *
+     * @param url the style location
+     * @param format the style language
+     * @param version the style language version, if any
+     * @return
+     */
+    public String getUrlKey(URL url, String format, Version version) {
+        return "url:" + format + ":" + version + ":" + url.toExternalForm();
+    }
+
+    /**
+     * Looks up a cached style
+     *
+     * @param key the style key
+     * @param validated if true, only styles that have been validated against the schema will be
+     *        returned
+     * @return the cached style, or null if not found
+     */
+    public CachedStyle get(String key, boolean validated) {
+        if (cache == null) {
+            return null;
+        }
+        CachedStyle style = cache.getIfPresent(key);
+        if (style != null && validated && !style.validated) {
+            return null;
+        }
+        return style;
+    }
+
+    /**
+     * Caches a parsed style, provided it contains no inline data that would make it unsafe or
+     * expensive to share
+     *
+     * @param key the style key
+     * @param sld the parsed style
+     * @param size the size of the style source
+     * @param validated whether the style has been validated against the schema
+     * @param connection the connection the style has been read from, if any, used to grab the
+     *        HTTP validators
+     */
+    public void put(String key, StyledLayerDescriptor sld, int size, boolean validated,
+            URLConnection connection) {
+        if (cache == null || !isCacheable(sld)) {
+            return;
+        }
+        String etag = null;
+        long lastModified = 0;
+        if (connection != null) {
+            etag = connection.getHeaderField("ETag");
+            lastModified = connection.getLastModified();
+            if (etag == null && lastModified <= 0) {
+                // no way to tell if the remote style changed
+                return;
+            }
+        }
+        cache.put(key, new CachedStyle(copy(sld), size, validated, etag, lastModified));
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Cached parsed style " + key + ", stats: " + cache.stats());
+        }
+    }
+
+    /**
+     * Removes a style from the cache
+     *
+     * @param key
+     */
+    public void remove(String key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Drops all the cached styles
+     */
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the cache hit/miss/eviction statistics
+     *
+     * @return
+     */
+    public CacheStats getStats() {
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Number of cached styles
+     *
+     * @return
+     */
+    public long size() {
+        return cache != null ? cache.size() : 0;
+    }
+
+    /**
+     * Inline features and remote OWS references carry state and connections, styles using them
+     * are not cached
+     *
+     * @param sld
+     * @return
+     */
+    boolean isCacheable(StyledLayerDescriptor sld) {
+        for (StyledLayer sl : sld.getStyledLayers()) {
+            if (sl instanceof UserLayer) {
+                UserLayer ul = (UserLayer) sl;
+                if (ul.getInlineFeatureDatastore() != null || ul.getRemoteOWS() != null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static StyledLayerDescriptor copy(StyledLayerDescriptor sld) {
+        DuplicatingStyleVisitor duplicator = new DuplicatingStyleVisitor();
+        sld.accept(duplicator);
+        return (StyledLayerDescriptor) duplicator.getCopy();
+    }
+
+    /**
+     * A cached style, along with the information needed to decide if it can be reused
+     */
+    public static class CachedStyle {
+        final StyledLayerDescriptor sld;
+
+        final int size;
+
+        final boolean validated;
+
+        final String etag;
+
+        final long lastModified;
+
+        CachedStyle(StyledLayerDescriptor sld, int size, boolean validated, String etag,
+                long lastModified) {
+            this.sld = sld;
+            this.size = size;
+            this.validated = validated;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns a private copy of the cached style, which the caller is free to modify
+         *
+         * @return
+         */
+        public StyledLayerDescriptor getStyle() {
+            return copy(sld);
+        }
+
+        /**
+         * Sets up the conditional request headers on the connection, so that the remote server
+         * can tell us whether the cached style is still current
+         *
+         * @param connection
+         */
+        public void addValidators(URLConnection connection) {
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified > 0) {
+                connection.setIfModifiedSince(lastModified);
+            }
+        }
+
+        /**
+         * Returns true if the remote server confirmed the cached style is still current
+         *
+         * @param connection
+         * @return
+         */
+        public boolean isNotModified(URLConnection connection) throws IOException {
+            return connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+    }
+}
@@ -7,7 +7,6 @@ package org.geoserver.wms.map;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
-import java.awt.image.RenderedImage;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -24,8 +23,8 @@ import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.ServiceInfo;
 import org.geoserver.config.impl.GeoServerLifecycleHandler;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.CoalescingTransactionListener;
 import org.geoserver.wfs.TransactionEvent;
-import org.geoserver.wfs.TransactionListener;
 import org.geoserver.wfs.WFSException;
 import org.geoserver.wms.GetMapRequest;
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -35,7 +34,7 @@ import org.geotools.util.CanonicalSet;
 
 import com.vividsolutions.jts.geom.Envelope;
 
-public class QuickTileCache implements TransactionListener, GeoServerLifecycleHandler {
+public class QuickTileCache implements CoalescingTransactionListener, GeoServerLifecycleHandler {
     /**
      * Set of parameters that we can ignore, since they do not define a map, are either unrelated,
      * or define the tiling instead
@@ -329,13 +328,13 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
     }
 
     /**
-     * Gathers a tile from the cache, if available
+     * Gathers an encoded tile from the cache, if available
      * 
      * @param key
      * @param request
      * @return
      */
-    public synchronized RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
+    public synchronized byte[] getTile(MetaTileKey key, GetMapRequest request) {
         CacheElement ce = (CacheElement) tileCache.get(key);
 
         if (ce == null) {
@@ -346,13 +345,14 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
     }
 
     /**
+     * Picks the tile the request is looking for out of the tiles of a meta tile
      * 
      * @param key
      * @param request
      * @param tiles
      * @return
      */
-    public RenderedImage getTile(MetaTileKey key, GetMapRequest request, RenderedImage[] tiles) {
+    public <T> T getTile(MetaTileKey key, GetMapRequest request, T[] tiles) {
         Envelope bbox = request.getBbox();
         if(CRS.getAxisOrder(request.getCrs()) == AxisOrder.NORTH_EAST) {
             bbox = new Envelope(bbox.getMinY(), bbox.getMaxY(), bbox.getMinX(), bbox.getMaxX());
@@ -364,21 +364,19 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
     }
 
     /**
-     * Puts the specified tile array in the cache, and returns the tile the request was looking for
+     * Puts the specified encoded tile array in the cache
      * 
      * @param key
-     * @param request
      * @param tiles
-     * @return
      */
-    public synchronized void storeTiles(MetaTileKey key, RenderedImage[] tiles) {
+    public synchronized void storeTiles(MetaTileKey key, byte[][] tiles) {
         tileCache.put(key, new CacheElement(tiles));
     }
 
     class CacheElement {
-        RenderedImage[] tiles;
+        byte[][] tiles;
 
-        public CacheElement(RenderedImage[] tiles) {
+        public CacheElement(byte[][] tiles) {
             this.tiles = tiles;
         }
     }
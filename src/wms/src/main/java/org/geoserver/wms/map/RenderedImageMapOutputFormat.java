@@ -655,7 +655,8 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
     /**
      * Sets up a {@link BufferedImage#TYPE_4BYTE_ABGR} if the paletteInverter is not provided, or a
      * indexed image otherwise. Subclasses may override this method should they need a special kind
-     * of image
+     * of image. The image is taken from the {@link DrawingSurfacePool}, and will be recycled once
+     * the map has been encoded
      * 
      * @param width
      * @param height
@@ -664,8 +665,8 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
      */
     protected RenderedImage prepareImage(int width, int height, IndexColorModel palette,
             boolean transparent) {
-        return ImageUtils.createImage(width, height, isPaletteSupported() ? palette : null,
-                transparent && isTransparencySupported());
+        return DrawingSurfacePool.get().acquire(width, height,
+                isPaletteSupported() ? palette : null, transparent && isTransparencySupported());
     }
 
     /**
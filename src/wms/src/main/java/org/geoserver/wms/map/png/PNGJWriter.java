@@ -9,10 +9,12 @@ import it.geosolutions.imageio.plugins.png.PNGWriter;
 
 import java.awt.image.RenderedImage;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.DerivedStyleCache;
 import org.geoserver.wms.WMSMapContent;
 import org.geotools.image.ImageWorker;
 import org.geotools.map.Layer;
@@ -65,16 +67,24 @@ public class PNGJWriter {
      * @return
      */
     private FilterType getFilterType(WMSMapContent mapContent) {
-        RasterSymbolizerVisitor visitor = new RasterSymbolizerVisitor();
         for (Layer layer : mapContent.layers()) {
             // check if the style has a raster symbolizer, don't trust the layer type as
             // we don't know in advance if there is a rendering transformation
             // WMS cascading is a ugly case, we might be cascading a map that is vector, but
             // we don't get to know
-            Style style = layer.getStyle();
+            final Style style = layer.getStyle();
             if (style != null) {
-                style.accept(visitor);
-                if (visitor.highChangeRasterSymbolizer) {
+                Boolean highChange = DerivedStyleCache.getInstance().get(style,
+                        RasterSymbolizerVisitor.class, new Callable<Boolean>() {
+
+                            @Override
+                            public Boolean call() throws Exception {
+                                RasterSymbolizerVisitor visitor = new RasterSymbolizerVisitor();
+                                style.accept(visitor);
+                                return visitor.highChangeRasterSymbolizer;
+                            }
+                        });
+                if (highChange) {
                     return FilterType.FILTER_SUB;
                 }
             }
@@ -89,7 +99,7 @@ public class PNGJWriter {
      * 
      * @author Andrea Aime - GeoSolutions
      */
-    class RasterSymbolizerVisitor extends AbstractStyleVisitor {
+    static class RasterSymbolizerVisitor extends AbstractStyleVisitor {
 
         boolean highChangeRasterSymbolizer;
 
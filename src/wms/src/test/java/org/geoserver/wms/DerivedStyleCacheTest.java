@@ -0,0 +1,76 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+import org.geotools.styling.StyleBuilder;
+import org.junit.Test;
+
+public class DerivedStyleCacheTest {
+
+    StyleBuilder sb = new StyleBuilder();
+
+    @Test
+    public void testComputedOnce() {
+        DerivedStyleCache cache = new DerivedStyleCache();
+        Style style = sb.createStyle(sb.createPointSymbolizer());
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> loader = new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return "artifact" + calls.incrementAndGet();
+            }
+        };
+
+        assertEquals("artifact1", cache.get(style, "test", loader));
+        assertEquals("artifact1", cache.get(style, "test", loader));
+        assertEquals(1, calls.get());
+
+        // a different style, even if equal, gets its own artifacts
+        Style other = sb.createStyle(sb.createPointSymbolizer());
+        assertEquals("artifact2", cache.get(other, "test", loader));
+
+        cache.clear();
+        assertEquals("artifact3", cache.get(style, "test", loader));
+    }
+
+    @Test
+    public void testBuffer() {
+        DerivedStyleCache cache = new DerivedStyleCache();
+        Rule small = sb.createRule(sb.createPointSymbolizer(sb.createGraphic(null,
+                sb.createMark("square"), null, 1, 10, 0)));
+        Rule large = sb.createRule(sb.createLineSymbolizer(sb.createStroke(20)));
+        Style style = sb.createStyle();
+        style.featureTypeStyles().add(sb.createFeatureTypeStyle("Feature", new Rule[] { small,
+                large }));
+
+        assertEquals(DerivedStyleCache.estimateBuffer(small),
+                cache.getBuffer(style, Collections.singletonList(small)));
+        assertEquals(20, cache.getBuffer(style, Arrays.asList(small, large)));
+        assertEquals(0, cache.getBuffer(style, Collections.<Rule> emptyList()));
+        assertNotNull(cache.cache.getIfPresent(style).get(DerivedStyleCache.RULE_BUFFERS));
+
+        // rules outside of the style are estimated on the fly
+        Rule external = sb.createRule(sb.createLineSymbolizer(sb.createStroke(30)));
+        assertEquals(30, cache.getBuffer(style, Collections.singletonList(external)));
+    }
+
+    @Test
+    public void testSharedInstance() {
+        assertSame(DerivedStyleCache.getInstance(), DerivedStyleCache.getInstance());
+    }
+}
@@ -148,6 +148,83 @@ public class AnimatorTest extends WMSTestSupport {
         assertEquals(3, reader.getNumImages(true));
     }
     
+    /**
+     * Animate layers with a tiled request, the frames go through the meta tiler
+     */
+    @org.junit.Test
+    public void testAnimatorLayersTiled() throws Exception {
+        String requestURL = "cite/wms/animate?&aparam=layers&avalues=MapNeatline,Buildings,Lakes"
+                + "&SRS=EPSG:4326&BBOX=0.0006,-0.0018,0.0031,0.0007&WIDTH=256&HEIGHT=256"
+                + "&TILED=true&TILESORIGIN=0.0006,-0.0018";
+        
+        // check we got a gif
+        MockHttpServletResponse resp = getAsServletResponse(requestURL);
+        assertEquals("image/gif", resp.getContentType());
+        
+        // check it has three tile sized frames
+        ByteArrayInputStream bis = getBinaryInputStream(resp);
+        ImageInputStream iis = ImageIO.createImageInputStream(bis);
+        ImageReader reader = ImageIO.getImageReadersBySuffix("gif").next();
+        reader.setInput(iis);
+        assertEquals(3, reader.getNumImages(true));
+        assertEquals(256, reader.getWidth(0));
+        assertEquals(256, reader.getHeight(0));
+    }
+    
+    /**
+     * Testing FrameVisitor streamed production, with a window smaller than the number of frames
+     * 
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testFrameSequence() throws Exception {
+        final WebMapService wms = (WebMapService) applicationContext.getBean("wmsService2");
+        final String layerName = MockData.BASIC_POLYGONS.getPrefix() + ":" +
+            MockData.BASIC_POLYGONS.getLocalPart();
+        
+        GetMapRequest getMapRequest = createGetMapRequest(new QName(layerName));
+        getMapRequest.getRawKvp().put("aparam", "fake_param");
+        getMapRequest.getRawKvp().put("avalues", "val0,val\\,1,val2\\,\\,,val3");
+        getMapRequest.getRawKvp().put("format", GIF_ANIMATED_FORMAT);
+        getMapRequest.getRawKvp().put("LAYERS", layerName);
+        
+        FrameCatalog catalog = new FrameCatalog(getMapRequest, wms, getWMS());
+        FrameCatalogVisitor visitor = new FrameCatalogVisitor();
+        catalog.getFrames(visitor);
+        
+        FrameSequence sequence = visitor.produceSequence(getWMS(), 2);
+        try {
+            int count = 0;
+            while (sequence.hasNext()) {
+                assertNotNull(sequence.next());
+                count++;
+            }
+            assertEquals(4, count);
+        } finally {
+            sequence.dispose();
+        }
+    }
+    
+    /**
+     * Animate layers, streaming out the frames as they get rendered
+     */
+    @org.junit.Test
+    public void testAnimatorLayersStreaming() throws Exception {
+        String requestURL = "cite/wms/animate?&aparam=layers&avalues=MapNeatline,Buildings,Lakes"
+                + "&format_options=anim_streaming:true";
+        
+        // check we got a gif
+        MockHttpServletResponse resp = getAsServletResponse(requestURL);
+        assertEquals("image/gif", resp.getContentType());
+        
+        // check it has three frames
+        ByteArrayInputStream bis = getBinaryInputStream(resp);
+        ImageInputStream iis = ImageIO.createImageInputStream(bis);
+        ImageReader reader = ImageIO.getImageReadersBySuffix("gif").next();
+        reader.setInput(iis);
+        assertEquals(3, reader.getNumImages(true));
+    }
+    
     /**
      * Animate layer groups
      */
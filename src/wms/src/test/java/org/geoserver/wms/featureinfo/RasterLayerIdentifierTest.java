@@ -0,0 +1,26 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.geoserver.wms.featureinfo.RasterLayerIdentifier.SampleKey;
+import org.junit.Test;
+
+public class RasterLayerIdentifierTest {
+
+    @Test
+    public void testSampleKeyArrays() {
+        SampleKey k1 = new SampleKey(new Object[] { "store", "Bands", new int[] { 0, 2 } });
+        SampleKey k2 = new SampleKey(new Object[] { "store", "Bands", new int[] { 0, 2 } });
+        SampleKey k3 = new SampleKey(new Object[] { "store", "Bands", new int[] { 2, 0 } });
+
+        assertEquals(k1, k2);
+        assertEquals(k1.hashCode(), k2.hashCode());
+        assertFalse(k1.equals(k3));
+    }
+}
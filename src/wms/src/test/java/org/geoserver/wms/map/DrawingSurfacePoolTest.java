@@ -0,0 +1,107 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import org.junit.Test;
+
+public class DrawingSurfacePoolTest {
+
+    @Test
+    public void testRecycle() {
+        DrawingSurfacePool pool = new DrawingSurfacePool(1024 * 1024, false);
+        BufferedImage first = pool.acquire(256, 256, null, true);
+        assertEquals(BufferedImage.TYPE_4BYTE_ABGR, first.getType());
+        paint(first);
+        assertTrue(pool.release(first));
+        assertEquals(256 * 256 * 4, pool.getIdleMemory());
+
+        BufferedImage second = pool.acquire(256, 256, null, true);
+        assertSame(first.getRaster(), second.getRaster());
+        assertEquals(BufferedImage.TYPE_4BYTE_ABGR, second.getType());
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getIdleMemory());
+        // the recycled surface has been cleared
+        assertEquals(0, second.getRGB(10, 10));
+    }
+
+    @Test
+    public void testDoubleRelease() {
+        DrawingSurfacePool pool = new DrawingSurfacePool(1024 * 1024, false);
+        BufferedImage image = pool.acquire(256, 256, null, false);
+        assertTrue(pool.release(image));
+        assertFalse(pool.release(image));
+
+        BufferedImage first = pool.acquire(256, 256, null, false);
+        BufferedImage second = pool.acquire(256, 256, null, false);
+        assertNotSame(first.getRaster(), second.getRaster());
+    }
+
+    @Test
+    public void testBuckets() {
+        DrawingSurfacePool pool = new DrawingSurfacePool(1024 * 1024, false);
+        BufferedImage image = pool.acquire(256, 256, null, false);
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, image.getType());
+        pool.release(image);
+
+        // different structure or size, no match
+        assertNotSame(image.getRaster(), pool.acquire(256, 256, null, true).getRaster());
+        assertNotSame(image.getRaster(), pool.acquire(512, 512, null, false).getRaster());
+
+        IndexColorModel palette = new IndexColorModel(8, 2, new byte[] { 0, (byte) 255 },
+                new byte[] { 0, (byte) 255 }, new byte[] { 0, (byte) 255 });
+        BufferedImage indexed = pool.acquire(256, 256, palette, false);
+        assertSame(palette, indexed.getColorModel());
+        pool.release(indexed);
+        BufferedImage recycled = pool.acquire(256, 256, palette, true);
+        assertSame(indexed.getRaster(), recycled.getRaster());
+        assertSame(palette, recycled.getColorModel());
+    }
+
+    @Test
+    public void testMemoryCap() {
+        DrawingSurfacePool pool = new DrawingSurfacePool(256 * 256 * 4, false);
+        BufferedImage first = pool.acquire(256, 256, null, true);
+        BufferedImage second = pool.acquire(256, 256, null, true);
+        assertTrue(pool.release(first));
+        assertFalse(pool.release(second));
+        assertEquals(256 * 256 * 4, pool.getIdleMemory());
+    }
+
+    @Test
+    public void testDetach() {
+        DrawingSurfacePool pool = new DrawingSurfacePool(1024 * 1024, false);
+        BufferedImage image = pool.acquire(256, 256, null, true);
+        pool.detach(image);
+        assertFalse(pool.release(image));
+        assertEquals(0, pool.getIdleMemory());
+    }
+
+    @Test
+    public void testDisabled() {
+        DrawingSurfacePool pool = new DrawingSurfacePool(0, false);
+        BufferedImage image = pool.acquire(256, 256, null, true);
+        assertFalse(pool.release(image));
+        assertEquals(0, pool.getMisses());
+    }
+
+    private void paint(BufferedImage image) {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.dispose();
+    }
+}
@@ -206,6 +206,32 @@ public class GetMapIntegrationTest extends WMSTestSupport {
         }
     }
     
+    @Test
+    public void testMetaTileEncodedCache() throws Exception {
+        String base = "wms?LAYERS=cite%3ALakes&STYLES=&FORMAT=image%2Fpng&TILED=true&TILESORIGIN=0.0006%2C-0.0018"
+                + "&SERVICE=WMS&VERSION=1.1.1&REQUEST=GetMap&SRS=EPSG%3A4326&WIDTH=256&HEIGHT=256";
+        String tile = base + "&BBOX=0.0006,-0.0018,0.0031,0.0007";
+        String neighbour = base + "&BBOX=0.0031,-0.0018,0.0056,0.0007";
+
+        // the first request builds the meta tile, the following ones are served from the cache
+        MockHttpServletResponse response = getAsServletResponse(tile);
+        assertEquals("image/png", response.getContentType());
+        byte[] first = getBinary(response);
+        BufferedImage image = ImageIO.read(getBinaryInputStream(response));
+        assertEquals(256, image.getWidth());
+        assertEquals(256, image.getHeight());
+
+        response = getAsServletResponse(tile);
+        assertEquals("image/png", response.getContentType());
+        assertTrue(Arrays.equals(first, getBinary(response)));
+
+        response = getAsServletResponse(neighbour);
+        assertEquals("image/png", response.getContentType());
+        image = ImageIO.read(getBinaryInputStream(response));
+        assertEquals(256, image.getWidth());
+        assertEquals(256, image.getHeight());
+    }
+
     @Test
     public void testOpenLayersProxy() throws Exception {
         NamespaceContext oldContext = XMLUnit.getXpathNamespaceContext();
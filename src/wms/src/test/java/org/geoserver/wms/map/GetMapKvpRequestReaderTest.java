@@ -19,6 +19,8 @@ import java.util.TimeZone;
 
 import junit.framework.Test;
 
+import org.apache.commons.io.IOUtils;
+
 import org.geoserver.catalog.CatalogBuilder;
 import org.geoserver.catalog.CatalogFactory;
 import org.geoserver.catalog.LayerGroupInfo;
@@ -219,6 +221,46 @@ public class GetMapKvpRequestReaderTest extends KvpRequestReaderTestSupport {
         assertEquals(buildings.getDefaultStyle().getStyle(), request.getStyles().get(1));
     }
 
+    public void testLayerGroupRenderPlanCached() throws Exception {
+        HashMap raw = new HashMap();
+        raw.put("layers", "testGroup");
+        raw.put("styles", "");
+        raw.put("format", "image/jpeg");
+        raw.put("srs", "epsg:4326");
+        raw.put("bbox", "-10,-10,10,10");
+        raw.put("height", "600");
+        raw.put("width", "800");
+
+        LayerGroupRenderPlanCache cache = new LayerGroupRenderPlanCache(getCatalog());
+        try {
+            reader.setRenderPlanCache(cache);
+            for (int i = 0; i < 2; i++) {
+                GetMapRequest request = (GetMapRequest) reader.createRequest();
+                request = (GetMapRequest) reader.read(request, parseKvp(raw),
+                        caseInsensitiveKvp(raw));
+                assertEquals(1, request.getLayers().size());
+                assertEquals(getLayerId(MockData.BASIC_POLYGONS), request.getLayers().get(0)
+                        .getName());
+                assertEquals(getCatalog().getStyleByName("polygon").getStyle(), request
+                        .getStyles().get(0));
+            }
+
+            // a single plan, shared among requests
+            assertEquals(1, cache.plans.size());
+            LayerGroupInfo group = getCatalog().getLayerGroupByName("testGroup");
+            LayerGroupRenderPlan plan = cache.getPlan(group);
+            assertSame(plan, cache.getPlan(group));
+            assertEquals(1, plan.size());
+
+            // catalog changes drop the plans
+            cache.clear();
+            assertTrue(cache.plans.isEmpty());
+            assertNotSame(plan, cache.getPlan(group));
+        } finally {
+            cache.onDispose();
+        }
+    }
+
     public void testFilter() throws Exception {
         HashMap kvp = new HashMap();
         kvp.put("layers", getLayerId(MockData.BASIC_POLYGONS));
@@ -322,6 +364,29 @@ public class GetMapKvpRequestReaderTest extends KvpRequestReaderTestSupport {
         assertEquals("TheLibraryModeStyle", style.getName());
     }
 
+    public void testSldBodyCached() throws Exception {
+        URL url = GetMapKvpRequestReader.class.getResource("BasicPolygonsLibraryNoDefault.sld");
+        String body = IOUtils.toString(url.openStream(), "UTF-8");
+        HashMap kvp = new HashMap();
+        kvp.put("sld_body", body);
+        kvp.put("layers",
+                MockData.BASIC_POLYGONS.getPrefix() + ":" + MockData.BASIC_POLYGONS.getLocalPart());
+        kvp.put("styles", "TheLibraryModeStyle");
+
+        reader.setStyleCache(new ParsedStyleCache(1024 * 1024));
+        GetMapRequest first = (GetMapRequest) reader.read(reader.createRequest(),
+                parseKvp(kvp), kvp);
+        GetMapRequest second = (GetMapRequest) reader.read(reader.createRequest(),
+                parseKvp(kvp), kvp);
+
+        assertEquals(1, reader.getStyleCache().getStats().hitCount());
+        Style firstStyle = (Style) first.getStyles().get(0);
+        Style secondStyle = (Style) second.getStyles().get(0);
+        assertEquals("TheLibraryModeStyle", secondStyle.getName());
+        // each request gets its own copy of the cached style
+        assertNotSame(firstStyle, secondStyle);
+    }
+
     public void testSldFailLookup() throws Exception {
         // nothing matches the required style name
         HashMap kvp = new HashMap();
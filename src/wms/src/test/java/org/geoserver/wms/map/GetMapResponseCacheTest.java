@@ -0,0 +1,216 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.opengis.wfs.TransactionType;
+import net.opengis.wfs.WfsFactory;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wfs.request.TransactionRequest;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WMSTestSupport;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.vividsolutions.jts.geom.Envelope;
+
+public class GetMapResponseCacheTest extends WMSTestSupport {
+
+    static final String BASE_REQUEST = "wms?service=WMS&version=1.1.0&request=GetMap&styles="
+            + "&bbox=-2,-1,2,6&width=256&height=256&srs=EPSG:4326&format=image/png";
+
+    GetMapResponseCache cache;
+
+    @Before
+    public void setupCache() throws Exception {
+        cache = GeoServerExtensions.bean(GetMapResponseCache.class);
+        LayerInfo layer = getCatalog().getLayerByName(getLayerId(MockData.BASIC_POLYGONS));
+        if (!Boolean.TRUE.equals(layer.getMetadata().get(GetMapResponseCache.CACHE_ENABLED,
+                Boolean.class))) {
+            layer.getMetadata().put(GetMapResponseCache.CACHE_ENABLED, true);
+            getCatalog().save(layer);
+        }
+        cache.clear();
+    }
+
+    String getRequest() {
+        return BASE_REQUEST + "&layers=" + getLayerId(MockData.BASIC_POLYGONS);
+    }
+
+    @Test
+    public void testCacheHit() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse(getRequest());
+        assertEquals("image/png", response.getContentType());
+        assertNull(response.getHeader("geoserver-cache-result"));
+        byte[] original = getBinary(response);
+        assertEquals(1, cache.entries.size());
+
+        response = getAsServletResponse(getRequest());
+        assertEquals("image/png", response.getContentType());
+        assertEquals("HIT", response.getHeader("geoserver-cache-result"));
+        assertNotNull(response.getHeader("ETag"));
+        assertNotNull(response.getHeader("Last-Modified"));
+        assertArrayEquals(original, getBinary(response));
+    }
+
+    @Test
+    public void testConditionalGet() throws Exception {
+        getAsServletResponse(getRequest());
+        MockHttpServletResponse response = getAsServletResponse(getRequest());
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        MockHttpServletRequest request = createRequest(getRequest());
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.setHeader("If-None-Match", etag);
+        response = dispatch(request, "UTF-8");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getErrorCode());
+        assertEquals(etag, response.getHeader("ETag"));
+        assertNotNull(response.getHeader("Last-Modified"));
+
+        request.setHeader("If-None-Match", "\"abcd\"");
+        response = dispatch(request, "UTF-8");
+        assertEquals(HttpServletResponse.SC_OK, response.getErrorCode());
+    }
+
+    @Test
+    public void testNotEnabled() throws Exception {
+        String request = BASE_REQUEST + "&layers=" + getLayerId(MockData.LAKES);
+        getAsServletResponse(request);
+        MockHttpServletResponse response = getAsServletResponse(request);
+        assertNull(response.getHeader("geoserver-cache-result"));
+        assertEquals(0, cache.entries.size());
+
+        // tiled requests are left to the tile caches
+        getAsServletResponse(getRequest() + "&tiled=true&tilesorigin=-2,-1");
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testDifferentParameters() throws Exception {
+        getAsServletResponse(getRequest());
+        getAsServletResponse(getRequest() + "&env=color:FF0000");
+        getAsServletResponse(getRequest() + "&transparent=true");
+        assertEquals(3, cache.entries.size());
+    }
+
+    @Test
+    public void testTransactionInvalidation() throws Exception {
+        getAsServletResponse(getRequest());
+        assertEquals(1, cache.entries.size());
+
+        // changes far away from the map do not affect it
+        String layerName = getLayerId(MockData.BASIC_POLYGONS);
+        cache.invalidate(layerName, new ReferencedEnvelope(100, 101, 40, 41,
+                DefaultGeographicCRS.WGS84));
+        assertEquals(1, cache.entries.size());
+        // other layers neither
+        cache.invalidate(getLayerId(MockData.LAKES), null);
+        assertEquals(1, cache.entries.size());
+
+        // a change in the map area does
+        cache.invalidate(layerName, new ReferencedEnvelope(0, 1, 0, 1,
+                DefaultGeographicCRS.WGS84));
+        assertEquals(0, cache.entries.size());
+
+        // same goes for a transaction without any information about the modified area, once
+        // committed
+        getAsServletResponse(getRequest());
+        assertEquals(1, cache.entries.size());
+        TransactionType tx = WfsFactory.eINSTANCE.createTransactionType();
+        tx.setExtendedProperties(new HashMap());
+        TransactionEvent event = new TransactionEvent(TransactionEventType.POST_UPDATE,
+                TransactionRequest.adapt(tx), MockData.BASIC_POLYGONS, null);
+        cache.dataStoreChange(event);
+        assertEquals(1, cache.entries.size());
+        cache.afterTransaction(tx, null, false);
+        assertEquals(1, cache.entries.size());
+
+        cache.dataStoreChange(event);
+        cache.afterTransaction(tx, null, true);
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testInvalidatedWhileRendering() throws Exception {
+        getAsServletResponse(getRequest());
+        String key = cache.entries.keySet().iterator().next();
+        GetMapResponseCache.Entry entry = cache.entries.get(key);
+        cache.clear();
+
+        // a response rendered before a commit is not stored
+        GetMapRequest request = createGetMapRequest(MockData.BASIC_POLYGONS);
+        request.setWidth(256);
+        request.setHeight(256);
+        long generation = cache.generation;
+        cache.invalidate(getLayerId(MockData.BASIC_POLYGONS), null);
+        cache.put(key, request, entry.contents, "image/png", null, null, null, generation);
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testCatalogInvalidation() throws Exception {
+        getAsServletResponse(getRequest());
+        assertEquals(1, cache.entries.size());
+
+        LayerInfo layer = getCatalog().getLayerByName(getLayerId(MockData.BASIC_POLYGONS));
+        getCatalog().save(layer);
+        assertEquals(0, cache.entries.size());
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+        GetMapResponseCache small = new GetMapResponseCache(getGeoServer(), 1024 * 1024,
+                1024 * 1024);
+        try {
+            getAsServletResponse(getRequest());
+            GetMapResponseCache.Entry entry = cache.entries.values().iterator().next();
+            byte[] contents = entry.contents;
+            String key = cache.entries.keySet().iterator().next();
+
+            // fill the memory tier, forcing the first entry to disk
+            int count = (int) (1024 * 1024 / contents.length) + 1;
+            GetMapRequest request = new GetMapRequest();
+            request.setBbox(new Envelope(-2, 2, -1, 6));
+            request.setWidth(256);
+            request.setHeight(256);
+            for (int i = 0; i <= count; i++) {
+                small.put(key + i, request, contents, "image/png", null, null, null,
+                        small.generation);
+            }
+            GetMapResponseCache.Entry spilled = small.getEntry(key + 0);
+            assertNull(spilled.contents);
+            assertNotNull(spilled.file);
+            assertArrayEquals(contents, small.read(spilled));
+
+            // replacing the entry deletes the file
+            small.put(key + 0, request, contents, "image/png", null, null, null,
+                    small.generation);
+            assertFalse(spilled.file.exists());
+        } finally {
+            small.onDispose();
+        }
+    }
+}
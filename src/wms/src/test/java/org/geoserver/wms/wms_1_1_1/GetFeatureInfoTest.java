@@ -29,12 +29,14 @@ import org.geoserver.catalog.WMSStoreInfo;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.data.test.SystemTestData.LayerProperty;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.test.RemoteOWSTestSupport;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wms.WMSInfo;
 import org.geoserver.wms.WMSTestSupport;
 import org.geoserver.wms.featureinfo.GML3FeatureInfoOutputFormat;
 import org.geoserver.wms.featureinfo.GetFeatureInfoOutputFormat;
+import org.geoserver.wms.featureinfo.RasterLayerIdentifier;
 import org.geoserver.wms.featureinfo.TextFeatureInfoOutputFormat;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -45,6 +47,7 @@ import org.geotools.styling.Rule;
 import org.geotools.styling.Style;
 import org.geotools.styling.StyleFactory;
 import org.geotools.util.logging.Logging;
+import org.junit.Assume;
 import org.junit.Test;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory;
@@ -601,6 +604,63 @@ public class GetFeatureInfoTest extends WMSTestSupport {
                 "//wfs:FeatureCollection/gml:featureMember/wcs:BlueMarble/wcs:BLUE_BAND", dom);
     }
     
+    @Test 
+    public void testCoverageGMLAreaRead() throws Exception {
+        // same as above, but reading the area around the pixel instead of the pixel alone
+        RasterLayerIdentifier identifier = GeoServerExtensions.bean(RasterLayerIdentifier.class);
+        identifier.setPointQuery(false);
+        try {
+            testCoverageGML();
+        } finally {
+            identifier.setPointQuery(true);
+        }
+    }
+    
+    @Test 
+    public void testCoverageMultipleQueryLayers() throws Exception {
+        // the second layer reuses the pixel read for the first one
+        String layer = getLayerId(TASMANIA_BM);
+        String request = "wms?service=wms&request=GetFeatureInfo&version=1.1.1&feature_count=10"
+                + "&layers=" + layer + "," + layer + "&styles=&bbox=146.5,-44.5,148,-43"
+                + "&width=600&height=600&info_format=application/vnd.ogc.gml&query_layers="
+                + layer + "," + layer + "&x=300&y=300&srs=EPSG:4326";
+        Document dom = getAsDOM(request);
+        
+        XMLAssert.assertXpathEvaluatesTo("2",
+                "count(//wfs:FeatureCollection/gml:featureMember/wcs:BlueMarble)", dom);
+        XMLAssert.assertXpathEvaluatesTo("2",
+                "count(//wcs:BlueMarble[wcs:RED_BAND = '26.0' and wcs:BLUE_BAND = '126.0'])", dom);
+    }
+    
+    /**
+     * Compares the point query and area read throughput, only runs if the
+     * <code>featureinfo.benchmark</code> system property is set to true
+     */
+    @Test 
+    public void testCoverageBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("featureinfo.benchmark"));
+        
+        String layer = getLayerId(TASMANIA_BM);
+        String request = "wms?service=wms&request=GetFeatureInfo&version=1.1.1" +
+                "&layers=" + layer + "&styles=&bbox=146.5,-44.5,148,-43&width=600&height=600" + 
+                "&info_format=text/plain&query_layers=" + layer + "&srs=EPSG:4326";
+        RasterLayerIdentifier identifier = GeoServerExtensions.bean(RasterLayerIdentifier.class);
+        try {
+            for (boolean pointQuery : new boolean[] { true, false, true, false }) {
+                identifier.setPointQuery(pointQuery);
+                long start = System.nanoTime();
+                for (int i = 0; i < 500; i++) {
+                    getAsString(request + "&x=" + (i % 600) + "&y=" + (i * 7 % 600));
+                }
+                long elapsed = (System.nanoTime() - start) / 1000000;
+                LOGGER.log(Level.INFO, (pointQuery ? "Point query: " : "Area read: ") + elapsed
+                        + "ms for 500 requests");
+            }
+        } finally {
+            identifier.setPointQuery(true);
+        }
+    }
+    
     @Test 
     public void testCoverageScales() throws Exception {
         String layer = getLayerId(TASMANIA_BM);
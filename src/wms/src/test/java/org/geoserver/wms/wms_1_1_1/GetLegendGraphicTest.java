@@ -6,6 +6,7 @@
 package org.geoserver.wms.wms_1_1_1;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.awt.Color;
@@ -21,6 +22,9 @@ import org.geoserver.wms.WMSTestSupport;
 import org.geotools.util.Converters;
 import org.junit.Test;
 
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
 public class GetLegendGraphicTest extends WMSTestSupport {
    
     
@@ -77,6 +81,32 @@ public class GetLegendGraphicTest extends WMSTestSupport {
         assertPixel(image, 10, 10, Converters.convert("#FF0000", Color.class));
     }
     
+    /**
+     * Tests the legend is cached, and conditional requests are answered with a 304
+     */
+    @Test
+    public void testCachedLegendETag() throws Exception {
+        String base = "wms?service=WMS&version=1.1.1&request=GetLegendGraphic" +
+                        "&layer=" + getLayerId(MockData.LAKES) + "&style=Lakes" +
+                        "&format=image/png&width=20&height=20";
+        MockHttpServletResponse response = getAsServletResponse(base);
+        assertEquals("image/png", response.getContentType());
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        // same request, same tag
+        response = getAsServletResponse(base);
+        assertEquals(etag, response.getHeader("ETag"));
+
+        // conditional request
+        MockHttpServletRequest request = createRequest(base);
+        request.addHeader("If-None-Match", etag);
+        response = dispatch(request);
+        assertEquals(304, response.getStatusCode());
+        assertEquals(etag, response.getHeader("ETag"));
+        assertEquals(0, response.getOutputStreamContent().length());
+    }
+
     /**
      * Tests an unscaled states legend
      */